@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayDocument;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayValue;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the two ways to produce a DataArray request body for a
+ * MultiDatastream: Observations with a List of boxed results, serialised with
+ * the ObjectMapper, or primitive double[] results written by the
+ * MultiObservationBatcher. The width parameter is the number of
+ * ObservedProperties, each request holds a fixed number of rows.
+ *
+ * As with the PayloadBenchmark, gc.alloc.rate.norm is the number to watch.
+ *
+ * @author Hylke van der Schaaf
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiDatastreamBenchmark {
+
+    private static final long START = Instant.parse("2016-01-01T00:00:00Z").toEpochMilli();
+    private static final long DELTA = 60_000L;
+    private static final int ROWS = 100;
+    private static final Set<DataArrayValue.Property> COMPONENTS = EnumSet.of(
+            DataArrayValue.Property.PhenomenonTime,
+            DataArrayValue.Property.Result);
+
+    @Param({"2", "20"})
+    public int width;
+
+    private ObjectMapper mapper;
+    private MultiDatastream multiDatastream;
+    private MultiObservationBatcher batcher;
+    private double[] result;
+    private int counter;
+
+    @Setup
+    public void setup() {
+        mapper = ObjectMapperFactory.get();
+        multiDatastream = new MultiDatastream();
+        multiDatastream.setId(new IdLong(1L));
+        // Never posts, the batch size is larger than the rows per operation.
+        batcher = new MultiObservationBatcher(null, "http://localhost/", Integer.MAX_VALUE);
+        result = new double[width];
+    }
+
+    /**
+     * Builds Observations with boxed List results and serialises them.
+     *
+     * @return The serialised request body.
+     * @throws JsonProcessingException If serialisation fails.
+     */
+    @Benchmark
+    public byte[] boxed() throws JsonProcessingException {
+        DataArrayValue value = new DataArrayValue(multiDatastream, COMPONENTS);
+        for (int row = 0; row < ROWS; row++) {
+            int i = counter++;
+            List<Double> values = new ArrayList<>(width);
+            for (int c = 0; c < width; c++) {
+                values.add(i + c * 0.5);
+            }
+            Observation o = new Observation(values, multiDatastream);
+            o.setPhenomenonTimeFrom(ZonedDateTime.ofInstant(Instant.ofEpochMilli(START + DELTA * i), ZoneOffset.UTC));
+            value.addObservation(o);
+        }
+        DataArrayDocument document = new DataArrayDocument();
+        document.addDataArrayValue(value);
+        return mapper.writeValueAsBytes(document.getValue());
+    }
+
+    /**
+     * Adds primitive results to the batcher and serialises them.
+     *
+     * @return The number of bytes written.
+     * @throws ServiceFailureException Not thrown, the batcher never posts.
+     */
+    @Benchmark
+    public int primitive() throws ServiceFailureException {
+        for (int row = 0; row < ROWS; row++) {
+            int i = counter++;
+            for (int c = 0; c < width; c++) {
+                result[c] = i + c * 0.5;
+            }
+            batcher.add(multiDatastream, START + DELTA * i, result);
+        }
+        return batcher.serialize();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(MultiDatastreamBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
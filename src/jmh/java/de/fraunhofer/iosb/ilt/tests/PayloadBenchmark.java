@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayDocument;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayValue;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the two ways CreateEntities can produce its request bodies:
+ * building Observation entities with parameter maps and serialising them with
+ * the ObjectMapper, or writing them into a reused ObservationTemplate. The
+ * rows parameter is the number of Observations per request; with 1 row a
+ * single Observation is written, otherwise a DataArray document.
+ *
+ * The interesting number is gc.alloc.rate.norm, the bytes allocated per
+ * operation, which for the template should drop to near zero.
+ *
+ * @author Hylke van der Schaaf
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+
+    private static final long START = Instant.parse("2016-01-01T00:00:00Z").toEpochMilli();
+    private static final long DELTA = 60_000L;
+
+    @Param({"1", "100"})
+    public int rows;
+
+    private ObjectMapper mapper;
+    private Datastream datastream;
+    private ObservationTemplate template;
+    private int counter;
+
+    @Setup
+    public void setup() {
+        mapper = ObjectMapperFactory.get();
+        datastream = new Datastream();
+        datastream.setId(new IdLong(1L));
+        template = new ObservationTemplate(datastream.getId());
+    }
+
+    private Observation buildObservation(int i) {
+        Observation o = new Observation(i, datastream);
+        o.setParameters(CreateEntities.generateParameters(i));
+        o.setPhenomenonTimeFrom(ZonedDateTime.ofInstant(Instant.ofEpochMilli(START + DELTA * i), ZoneOffset.UTC));
+        return o;
+    }
+
+    /**
+     * Builds the Observations as entities and serialises them.
+     *
+     * @return The serialised request body.
+     * @throws JsonProcessingException If serialisation fails.
+     */
+    @Benchmark
+    public byte[] entities() throws JsonProcessingException {
+        if (rows == 1) {
+            return mapper.writeValueAsBytes(buildObservation(counter++));
+        }
+        DataArrayValue value = new DataArrayValue(datastream, ObservationBatcher.DEFAULT_COMPONENTS);
+        for (int row = 0; row < rows; row++) {
+            value.addObservation(buildObservation(counter++));
+        }
+        DataArrayDocument document = new DataArrayDocument();
+        document.addDataArrayValue(value);
+        return mapper.writeValueAsBytes(document.getValue());
+    }
+
+    /**
+     * Writes the Observations into the reused template buffer.
+     *
+     * @return The number of bytes written.
+     */
+    @Benchmark
+    public int template() {
+        if (rows == 1) {
+            int i = counter++;
+            return template.writeObservation(i, START + DELTA * i).getLength();
+        }
+        template.startDataArray();
+        for (int row = 0; row < rows; row++) {
+            int i = counter++;
+            template.addRow(i, START + DELTA * i);
+        }
+        return template.getLength();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(PayloadBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
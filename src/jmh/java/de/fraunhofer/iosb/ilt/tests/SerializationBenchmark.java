@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
+import de.fraunhofer.iosb.ilt.sta.model.Sensor;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the client side cost of building and serialising the entities that
+ * CreateEntities posts. The size parameter scales the Observation parameters
+ * (the length of the string, arrays and object lists) and the number of
+ * components of the MultiDatastream.
+ *
+ * Build with the benchmark profile, and run with:
+ * <pre>
+ * mvn -P benchmark package
+ * java -jar target/benchmarks.jar SerializationBenchmark -prof gc
+ * </pre> The -prof gc option adds the allocation rate per operation, from the
+ * GC profiler. The main method of this class adds that profiler itself.
+ *
+ * @author Hylke van der Schaaf
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private static final String OM_MEASUREMENT = "http://www.opengis.net/def/observationType/OGC-OM/2.0/OM_Measurement";
+    private static final ZonedDateTime START = ZonedDateTime.ofInstant(Instant.parse("2016-01-01T00:00:00Z"), ZoneOffset.UTC);
+
+    @Param({"0", "3", "10", "30"})
+    public int size;
+
+    private ObjectMapper mapper;
+    private Datastream datastream;
+    private MultiDatastream multiDatastream;
+    private Thing thing;
+    private Sensor sensor;
+    private ObservedProperty observedProperty;
+    private Observation observation;
+    private int counter;
+
+    @Setup
+    public void setup() {
+        mapper = ObjectMapperFactory.get();
+        thing = new Thing();
+        thing.setId(new IdLong(1L));
+        sensor = new Sensor();
+        sensor.setId(new IdLong(1L));
+        observedProperty = new ObservedProperty();
+        observedProperty.setId(new IdLong(1L));
+        datastream = new Datastream();
+        datastream.setId(new IdLong(1L));
+        multiDatastream = new MultiDatastream();
+        multiDatastream.setId(new IdLong(1L));
+        observation = buildObservation(0);
+    }
+
+    private Observation buildObservation(int i) {
+        Observation o = new Observation(i, datastream);
+        if (size > 0) {
+            Map<String, Object> parameters = new HashMap<>();
+            parameters.put("string", CreateEntities.generateString(i, size));
+            parameters.put("boolean", i % 2 == 0);
+            parameters.put("int", i);
+            parameters.put("intArray", CreateEntities.generateIntArray(i, size));
+            parameters.put("intIntArray", CreateEntities.generateIntIntArray(i, size));
+            parameters.put("objArray", CreateEntities.generateObjectList(i, size));
+            o.setParameters(parameters);
+        }
+        o.setPhenomenonTimeFrom(START.plusMinutes(i));
+        return o;
+    }
+
+    /**
+     * Builds a new Observation, like CreateEntities does, and serialises it.
+     *
+     * @return The serialised Observation.
+     * @throws JsonProcessingException If serialisation fails.
+     */
+    @Benchmark
+    public byte[] buildAndSerializeObservation() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(buildObservation(counter++));
+    }
+
+    /**
+     * Serialises the same Observation over and over, to separate the cost of
+     * serialisation from the cost of building the entity.
+     *
+     * @return The serialised Observation.
+     * @throws JsonProcessingException If serialisation fails.
+     */
+    @Benchmark
+    public byte[] serializeObservation() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(observation);
+    }
+
+    /**
+     * Builds and serialises a Datastream that links to existing entities.
+     *
+     * @return The serialised Datastream.
+     * @throws JsonProcessingException If serialisation fails.
+     */
+    @Benchmark
+    public byte[] buildAndSerializeDatastream() throws JsonProcessingException {
+        Datastream ds = new Datastream("Datastream " + counter++, "The temperature of thing 1, sensor 1.", OM_MEASUREMENT, new UnitOfMeasurement("degree celcius", "°C", "ucum:T"));
+        ds.setThing(thing);
+        ds.setSensor(sensor);
+        ds.setObservedProperty(observedProperty);
+        return mapper.writeValueAsBytes(ds);
+    }
+
+    /**
+     * Builds and serialises a MultiDatastream with size components, or one
+     * component if size is 0.
+     *
+     * @return The serialised MultiDatastream.
+     * @throws JsonProcessingException If serialisation fails.
+     */
+    @Benchmark
+    public byte[] buildAndSerializeMultiDatastream() throws JsonProcessingException {
+        MultiDatastream md = new MultiDatastream();
+        md.setName("MultiDatastream " + counter++);
+        md.setDescription("A MultiDatastream with " + size + " components.");
+        for (int i = 0; i < Math.max(1, size); i++) {
+            md.addUnitOfMeasurement(new UnitOfMeasurement("degree celcius", "°C", "ucum:T"));
+            md.addMultiObservationDataTypes(OM_MEASUREMENT);
+        }
+        md.setThing(thing);
+        md.setSensor(sensor);
+        return mapper.writeValueAsBytes(md);
+    }
+
+    /**
+     * Builds and serialises an Observation for a MultiDatastream, with an
+     * array result of size components, or one component if size is 0.
+     *
+     * @return The serialised Observation.
+     * @throws JsonProcessingException If serialisation fails.
+     */
+    @Benchmark
+    public byte[] buildAndSerializeMultiObservation() throws JsonProcessingException {
+        int i = counter++;
+        int[] result = CreateEntities.generateIntArray(i, Math.max(1, size));
+        Observation o = new Observation(result, multiDatastream);
+        o.setPhenomenonTimeFrom(START.plusMinutes(i));
+        return mapper.writeValueAsBytes(o);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(SerializationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.model.Id;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.IdString;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayDocument;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.sta.service.TokenManager;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * A non-blocking client for the requests that the load generators make:
+ * creating entities, creating Observations in DataArray format, reading and
+ * deleting. Requests are sent by an HttpAsyncClient, and each call returns a
+ * CompletableFuture instead of waiting for the response.
+ *
+ * The number of requests in flight is limited by a window. When the window is
+ * full, the calls block until a response comes in, so a fast producer is
+ * slowed down to the pace of the service instead of queueing requests without
+ * bound.
+ *
+ * The futures are completed on the I/O threads of the http client, so
+ * callbacks attached to them should not block.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class AsyncSensorThingsClient implements Closeable {
+
+    private final String baseUrl;
+    private final CloseableHttpAsyncClient client;
+    private final Semaphore window;
+    private final int maxInFlight;
+    private final ObjectMapper mapper = ObjectMapperFactory.get();
+    private SensorThingsService service;
+    private TokenManager<?> tokenManager;
+
+    /**
+     * Creates a client and starts the given http client.
+     *
+     * @param baseUrl The base url of the service, ending in a slash.
+     * @param client The http client to use, it is started if needed, and
+     * closed when this client is closed.
+     * @param maxInFlight The maximum number of requests in flight.
+     */
+    public AsyncSensorThingsClient(String baseUrl, CloseableHttpAsyncClient client, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1, got " + maxInFlight);
+        }
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        this.client = client;
+        this.maxInFlight = maxInFlight;
+        this.window = new Semaphore(maxInFlight);
+        if (!client.isRunning()) {
+            client.start();
+        }
+    }
+
+    /**
+     * @param service The service that created entities are linked to, so
+     * they can be used with the blocking api afterwards. Its token manager,
+     * if any, is used to authenticate the requests.
+     * @return this.
+     */
+    public AsyncSensorThingsClient setService(SensorThingsService service) {
+        this.service = service;
+        if (service != null && service.getTokenManager() != null) {
+            this.tokenManager = service.getTokenManager();
+        }
+        return this;
+    }
+
+    /**
+     * @param tokenManager The token manager used to authenticate requests.
+     * @return this.
+     */
+    public AsyncSensorThingsClient setTokenManager(TokenManager<?> tokenManager) {
+        this.tokenManager = tokenManager;
+        return this;
+    }
+
+    /**
+     * Creates the given entity. When the future completes, the entity has the
+     * id assigned by the service.
+     *
+     * @param <T> The type of the entity.
+     * @param entity The entity to create.
+     * @return A future that completes with the entity, or with a
+     * ServiceFailureException.
+     * @throws InterruptedException If interrupted while waiting for room in
+     * the window.
+     */
+    public <T extends Entity<T>> CompletableFuture<T> create(T entity) throws InterruptedException {
+        String entitySet = entitySetName(entity);
+        HttpPost post = new HttpPost(baseUrl + entitySet);
+        try {
+            post.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(entity), ContentType.APPLICATION_JSON));
+        } catch (JsonProcessingException ex) {
+            return failed(new ServiceFailureException("Failed to serialise " + entitySet, ex));
+        }
+        return send("create " + entity.getClass().getSimpleName(), post, response -> {
+            Header location = response.getFirstHeader("Location");
+            if (location == null) {
+                throw new ServiceFailureException("No Location header in response to creating " + entitySet);
+            }
+            entity.setId(parseId(location.getValue()));
+            if (service != null) {
+                entity.setService(service);
+            }
+            return entity;
+        });
+    }
+
+    /**
+     * Creates the Observations in the given document, using the
+     * CreateObservations action.
+     *
+     * @param document The Observations to create.
+     * @return A future that completes with the lines of the response: one
+     * selfLink or error per Observation.
+     * @throws InterruptedException If interrupted while waiting for room in
+     * the window.
+     */
+    public CompletableFuture<List<String>> createObservations(DataArrayDocument document) throws InterruptedException {
+        HttpPost post = new HttpPost(baseUrl + "CreateObservations");
+        try {
+            post.setEntity(new ByteArrayEntity(mapper.writeValueAsBytes(document.getValue()), ContentType.APPLICATION_JSON));
+        } catch (JsonProcessingException ex) {
+            return failed(new ServiceFailureException("Failed to serialise DataArray", ex));
+        }
+        return send("create DataArray", post, response -> {
+            List<String> result = new ArrayList<>();
+            for (JsonNode line : mapper.readTree(bodyOf(response))) {
+                result.add(line.asText());
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Fetches the given url, relative to the base url, like
+     * "Datastreams(5)/Observations?$top=10".
+     *
+     * @param relativeUrl The url to fetch, relative to the base url.
+     * @return A future that completes with the parsed response.
+     * @throws InterruptedException If interrupted while waiting for room in
+     * the window.
+     */
+    public CompletableFuture<JsonNode> get(String relativeUrl) throws InterruptedException {
+        return send("get", new HttpGet(baseUrl + relativeUrl), response -> mapper.readTree(bodyOf(response)));
+    }
+
+    /**
+     * Queries an entity set, returning the entities of the first page.
+     *
+     * @param entitySet The entity set, or navigation path, to query.
+     * @param queryOptions The query options, without the leading question
+     * mark, like "$filter=result gt 5&amp;$top=10". Must be url-encoded.
+     * @return A future that completes with the value array of the response.
+     * @throws InterruptedException If interrupted while waiting for room in
+     * the window.
+     */
+    public CompletableFuture<JsonNode> query(String entitySet, String queryOptions) throws InterruptedException {
+        String url = queryOptions == null || queryOptions.isEmpty() ? entitySet : entitySet + "?" + queryOptions;
+        return get(url).thenApply(node -> node.path("value"));
+    }
+
+    /**
+     * Deletes the given entity.
+     *
+     * @param entity The entity to delete.
+     * @return A future that completes when the entity is deleted.
+     * @throws InterruptedException If interrupted while waiting for room in
+     * the window.
+     */
+    public CompletableFuture<Void> delete(Entity<?> entity) throws InterruptedException {
+        if (entity.getId() == null) {
+            return failed(new ServiceFailureException("Can not delete an entity without id."));
+        }
+        HttpDelete delete = new HttpDelete(baseUrl + entitySetName(entity) + "(" + Utils.idUrl(entity.getId()) + ")");
+        return send("delete " + entity.getClass().getSimpleName(), delete, response -> {
+            EntityUtils.consume(response.getEntity());
+            return null;
+        });
+    }
+
+    /**
+     * Waits until all requests in flight have completed. The permit of a
+     * request is only released after its future is completed, so the
+     * callbacks added to the futures before they completed have run too.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void awaitIdle() throws InterruptedException {
+        window.acquire(maxInFlight);
+        window.release(maxInFlight);
+    }
+
+    /**
+     * @return The number of requests currently in flight.
+     */
+    public int getInFlight() {
+        return maxInFlight - window.availablePermits();
+    }
+
+    /**
+     * @return The maximum number of requests in flight.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    private static interface ResponseHandler<R> {
+
+        public R handle(HttpResponse response) throws IOException, ServiceFailureException;
+    }
+
+    private <R> CompletableFuture<R> send(String operation, HttpRequestBase request, ResponseHandler<R> handler) throws InterruptedException {
+        if (tokenManager != null) {
+            tokenManager.addAuthHeader(request);
+        }
+        window.acquire();
+        CompletableFuture<R> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try {
+            client.execute(request, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    LatencyRecorder.getInstance().recordSince(operation, start);
+                    try {
+                        int code = response.getStatusLine().getStatusCode();
+                        if (code < 200 || code >= 300) {
+                            throw new ServiceFailureException(operation + " failed with status " + code + ": " + bodyOf(response));
+                        }
+                        future.complete(handler.handle(response));
+                    } catch (IOException | ServiceFailureException | RuntimeException ex) {
+                        future.completeExceptionally(ex);
+                    } finally {
+                        window.release();
+                    }
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    try {
+                        future.completeExceptionally(new ServiceFailureException(operation + " failed.", ex));
+                    } finally {
+                        window.release();
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    try {
+                        future.cancel(false);
+                    } finally {
+                        window.release();
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            window.release();
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    private static <R> CompletableFuture<R> failed(Throwable ex) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        future.completeExceptionally(ex);
+        return future;
+    }
+
+    private static String bodyOf(HttpResponse response) throws IOException {
+        if (response.getEntity() == null) {
+            return "";
+        }
+        return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the name of the entity set that entities of the given type are
+     * created in.
+     *
+     * @param entity The entity.
+     * @return The name of the entity set.
+     */
+    public static String entitySetName(Entity<?> entity) {
+        String name = entity.getClass().getSimpleName();
+        switch (name) {
+            case "ObservedProperty":
+                return "ObservedProperties";
+            case "FeatureOfInterest":
+                return "FeaturesOfInterest";
+            case "TaskingCapability":
+                return "TaskingCapabilities";
+            default:
+                return name + "s";
+        }
+    }
+
+    /**
+     * Parses the id out of a self link like
+     * http://example.org/v1.0/Things(5), or Things('abc').
+     *
+     * @param selfLink The link to parse.
+     * @return The id in the link.
+     * @throws ServiceFailureException If the link does not contain an id.
+     */
+    public static Id parseId(String selfLink) throws ServiceFailureException {
+        int open = selfLink.lastIndexOf('(');
+        int close = selfLink.lastIndexOf(')');
+        if (open < 0 || close < open) {
+            throw new ServiceFailureException("No id in link: " + selfLink);
+        }
+        String value = selfLink.substring(open + 1, close);
+        if (value.startsWith("'") && value.endsWith("'") && value.length() >= 2) {
+            return new IdString(value.substring(1, value.length() - 1).replace("''", "'"));
+        }
+        try {
+            return new IdLong(Long.parseLong(value));
+        } catch (NumberFormatException ex) {
+            throw new ServiceFailureException("No id in link: " + selfLink, ex);
+        }
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.dao.DatastreamDao;
+import de.fraunhofer.iosb.ilt.sta.dao.MultiDatastreamDao;
+import de.fraunhofer.iosb.ilt.sta.dao.ObservedPropertyDao;
+import de.fraunhofer.iosb.ilt.sta.dao.SensorDao;
+import de.fraunhofer.iosb.ilt.sta.dao.ThingDao;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.model.Id;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
+import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
+import de.fraunhofer.iosb.ilt.sta.model.Sensor;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.query.Query;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+/**
+ * A SensorThingsService that caches the metadata entities it finds by id:
+ * Things, Sensors, ObservedProperties, Datastreams and MultiDatastreams. Name
+ * lookups go through findByName. Entities that are updated or deleted through
+ * this service are removed from the cache; changes made by others show up
+ * when the cached entry expires.
+ *
+ * Cached entities are shared between callers, so they should be treated as
+ * read-only. Use withOnlyId() to link new entities to them.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class CachingSensorThingsService extends SensorThingsService {
+
+    private final EntityCache<String, Entity<?>> cache;
+
+    /**
+     * @param endpoint The url of the service.
+     * @param cache The cache to use, can be shared between services of the
+     * same endpoint.
+     * @throws MalformedURLException If the url is not valid.
+     * @throws URISyntaxException If the url is not valid.
+     */
+    public CachingSensorThingsService(URL endpoint, EntityCache<String, Entity<?>> cache) throws MalformedURLException, URISyntaxException {
+        super(endpoint);
+        this.cache = cache;
+    }
+
+    /**
+     * @return The cache, for its hit and miss counters.
+     */
+    public EntityCache<String, Entity<?>> getCache() {
+        return cache;
+    }
+
+    private static String key(Class<?> type, Object id) {
+        return type.getSimpleName() + ':' + id;
+    }
+
+    private static String nameKey(Class<?> type, String name) {
+        return type.getSimpleName() + "#name:" + name;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Entity<T>> T cached(Class<T> type, Id id, LatencyRecorder.ServiceCall<T> loader) throws ServiceFailureException {
+        return (T) cache.get(key(type, id.getValue()), loader::call);
+    }
+
+    /**
+     * Finds the entity of the given type with the given name. If there are
+     * several, an arbitrary one is returned.
+     *
+     * @param <T> The type of the entity.
+     * @param type The class of the entity.
+     * @param name The name to look for.
+     * @return The entity, or null if there is none with this name.
+     * @throws ServiceFailureException If the query failed.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Entity<T>> T findByName(Class<T> type, String name) throws ServiceFailureException {
+        LatencyRecorder.ServiceCall<T> loader = () -> new Query<>(this, type)
+                .filter("name eq '" + name.replace("'", "''") + "'")
+                .top(1)
+                .first();
+        return (T) cache.get(nameKey(type, name), loader::call);
+    }
+
+    private void invalidate(Entity<?> entity) {
+        if (entity.getId() == null) {
+            return;
+        }
+        Class<?> type = entity.getClass();
+        Object idValue = entity.getId().getValue();
+        cache.invalidate(key(type, idValue));
+        cache.invalidateIf(cached -> cached.getClass() == type && cached.getId() != null && idValue.equals(cached.getId().getValue()));
+    }
+
+    @Override
+    public <T extends Entity<T>> void update(T entity) throws ServiceFailureException {
+        try {
+            super.update(entity);
+        } finally {
+            invalidate(entity);
+        }
+    }
+
+    @Override
+    public <T extends Entity<T>> void delete(T entity) throws ServiceFailureException {
+        try {
+            super.delete(entity);
+        } finally {
+            invalidate(entity);
+        }
+    }
+
+    @Override
+    public DatastreamDao datastreams() {
+        return new DatastreamDao(this) {
+            @Override
+            public Datastream find(Id id) throws ServiceFailureException {
+                return cached(Datastream.class, id, () -> super.find(id));
+            }
+
+            @Override
+            public Datastream find(long id) throws ServiceFailureException {
+                return find(new IdLong(id));
+            }
+
+            @Override
+            public void update(Datastream entity) throws ServiceFailureException {
+                try {
+                    super.update(entity);
+                } finally {
+                    invalidate(entity);
+                }
+            }
+
+            @Override
+            public void delete(Datastream entity) throws ServiceFailureException {
+                try {
+                    super.delete(entity);
+                } finally {
+                    invalidate(entity);
+                }
+            }
+        };
+    }
+
+    @Override
+    public MultiDatastreamDao multiDatastreams() {
+        return new MultiDatastreamDao(this) {
+            @Override
+            public MultiDatastream find(Id id) throws ServiceFailureException {
+                return cached(MultiDatastream.class, id, () -> super.find(id));
+            }
+
+            @Override
+            public MultiDatastream find(long id) throws ServiceFailureException {
+                return find(new IdLong(id));
+            }
+
+            @Override
+            public void update(MultiDatastream entity) throws ServiceFailureException {
+                try {
+                    super.update(entity);
+                } finally {
+                    invalidate(entity);
+                }
+            }
+
+            @Override
+            public void delete(MultiDatastream entity) throws ServiceFailureException {
+                try {
+                    super.delete(entity);
+                } finally {
+                    invalidate(entity);
+                }
+            }
+        };
+    }
+
+    @Override
+    public ThingDao things() {
+        return new ThingDao(this) {
+            @Override
+            public Thing find(Id id) throws ServiceFailureException {
+                return cached(Thing.class, id, () -> super.find(id));
+            }
+
+            @Override
+            public Thing find(long id) throws ServiceFailureException {
+                return find(new IdLong(id));
+            }
+
+            @Override
+            public void update(Thing entity) throws ServiceFailureException {
+                try {
+                    super.update(entity);
+                } finally {
+                    invalidate(entity);
+                }
+            }
+
+            @Override
+            public void delete(Thing entity) throws ServiceFailureException {
+                try {
+                    super.delete(entity);
+                } finally {
+                    invalidate(entity);
+                }
+            }
+        };
+    }
+
+    @Override
+    public SensorDao sensors() {
+        return new SensorDao(this) {
+            @Override
+            public Sensor find(Id id) throws ServiceFailureException {
+                return cached(Sensor.class, id, () -> super.find(id));
+            }
+
+            @Override
+            public Sensor find(long id) throws ServiceFailureException {
+                return find(new IdLong(id));
+            }
+
+            @Override
+            public void update(Sensor entity) throws ServiceFailureException {
+                try {
+                    super.update(entity);
+                } finally {
+                    invalidate(entity);
+                }
+            }
+
+            @Override
+            public void delete(Sensor entity) throws ServiceFailureException {
+                try {
+                    super.delete(entity);
+                } finally {
+                    invalidate(entity);
+                }
+            }
+        };
+    }
+
+    @Override
+    public ObservedPropertyDao observedProperties() {
+        return new ObservedPropertyDao(this) {
+            @Override
+            public ObservedProperty find(Id id) throws ServiceFailureException {
+                return cached(ObservedProperty.class, id, () -> super.find(id));
+            }
+
+            @Override
+            public ObservedProperty find(long id) throws ServiceFailureException {
+                return find(new IdLong(id));
+            }
+
+            @Override
+            public void update(ObservedProperty entity) throws ServiceFailureException {
+                try {
+                    super.update(entity);
+                } finally {
+                    invalidate(entity);
+                }
+            }
+
+            @Override
+            public void delete(ObservedProperty entity) throws ServiceFailureException {
+                try {
+                    super.delete(entity);
+                } finally {
+                    invalidate(entity);
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the highest sustainable Observation throughput of a service. Runs
+ * closed-loop steps of a fixed duration, in each of which a number of workers
+ * post Observations as fast as they can, and lets a ConcurrencyController pick
+ * the number of workers of the next step. The result is the knee of the
+ * throughput curve, with its p99 latency. Failed requests do not stop a
+ * worker; they are counted, and a step in which more than maxErrorRate of the
+ * Observations fail counts as overloaded.
+ *
+ * Observations are written with an ObservationTemplate, so the load generator
+ * itself stays cheap.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class CapacityProbe {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CapacityProbe.class.getName());
+
+    private final SensorThingsService service;
+    private final Datastream datastream;
+    private int batchSize = 100;
+    private long stepMillis = 10_000;
+    private long warmupMillis = 2_000;
+    private int initialConcurrency = 1;
+    private int maxConcurrency = 256;
+    private double maxLatencyFactor = 10;
+    private double maxErrorRate = 0.01;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    private final long startMillis = System.currentTimeMillis();
+
+    /**
+     * @param service The service to post to. Its connection pool should
+     * allow maxConcurrency connections.
+     * @param datastream The Datastream to create the Observations in.
+     */
+    public CapacityProbe(SensorThingsService service, Datastream datastream) {
+        this.service = service;
+        this.datastream = datastream;
+    }
+
+    /**
+     * @param batchSize The number of Observations per request. If 1, each
+     * Observation is posted separately, otherwise the DataArray format is used.
+     * @return this.
+     */
+    public CapacityProbe setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param stepMillis The duration of the measurement of each step.
+     * @param warmupMillis The duration of the unmeasured start of each step.
+     * @return this.
+     */
+    public CapacityProbe setStepDuration(long stepMillis, long warmupMillis) {
+        this.stepMillis = stepMillis;
+        this.warmupMillis = warmupMillis;
+        return this;
+    }
+
+    /**
+     * @param initialConcurrency The concurrency of the first step.
+     * @param maxConcurrency The highest concurrency to try.
+     * @return this.
+     */
+    public CapacityProbe setConcurrency(int initialConcurrency, int maxConcurrency) {
+        this.initialConcurrency = initialConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * @param maxLatencyFactor How many times the p99 latency of the first step
+     * the p99 latency may grow before the service counts as overloaded.
+     * @return this.
+     */
+    public CapacityProbe setMaxLatencyFactor(double maxLatencyFactor) {
+        this.maxLatencyFactor = maxLatencyFactor;
+        return this;
+    }
+
+    /**
+     * @param maxErrorRate The fraction of the Observations of a step that may
+     * fail before the service counts as overloaded.
+     * @return this.
+     */
+    public CapacityProbe setMaxErrorRate(double maxErrorRate) {
+        this.maxErrorRate = maxErrorRate;
+        return this;
+    }
+
+    /**
+     * Runs steps until the controller finds the knee.
+     *
+     * @return The controller, holding all steps and the knee, if one was
+     * found.
+     * @throws URISyntaxException If the service url is not valid.
+     * @throws InterruptedException If interrupted.
+     */
+    public ConcurrencyController run() throws URISyntaxException, InterruptedException {
+        ConcurrencyController controller = new ConcurrencyController(initialConcurrency, maxConcurrency)
+                .setMaxLatencyFactor(maxLatencyFactor)
+                .setMaxErrorRate(maxErrorRate);
+        do {
+            ConcurrencyController.Step step = runStep(controller.getConcurrency());
+            LOGGER.info("Step {}", step);
+            controller.record(step.throughput, step.p99Nanos, step.errorRate);
+        } while (!controller.isDone());
+        ConcurrencyController.Step knee = controller.getKnee();
+        if (knee == null) {
+            LOGGER.warn("No sustainable rate found, even concurrency {} exceeded the limits.", initialConcurrency);
+            return controller;
+        }
+        LOGGER.info("Max sustainable rate: {} obs/s at concurrency {}, p99 latency {}ms.",
+                String.format("%.1f", knee.throughput), knee.concurrency, String.format("%.1f", knee.p99Nanos / 1e6));
+        return controller;
+    }
+
+    /**
+     * Runs one step with the given number of workers.
+     *
+     * @param concurrency The number of workers.
+     * @return The measured throughput and latency.
+     * @throws URISyntaxException If the service url is not valid.
+     * @throws InterruptedException If interrupted.
+     * @throws IllegalStateException If the workers do not stop.
+     */
+    public ConcurrencyController.Step runStep(int concurrency) throws URISyntaxException, InterruptedException {
+        URI url = new URI(Constants.getBaseUrl() + (batchSize > 1 ? "CreateObservations" : "Observations"));
+        Recorder recorder = new Recorder(3);
+        LongAdder created = new LongAdder();
+        LongAdder failed = new LongAdder();
+        long measureStart = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        long end = measureStart + TimeUnit.MILLISECONDS.toNanos(stepMillis);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        for (int w = 0; w < concurrency; w++) {
+            workers.execute(() -> work(url, measureStart, end, recorder, created, failed));
+        }
+        workers.shutdown();
+        if (!workers.awaitTermination(stepMillis + warmupMillis + TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS)) {
+            // Workers that are still running would load the next step.
+            workers.shutdownNow();
+            throw new IllegalStateException("Workers did not stop at the end of the step at concurrency " + concurrency);
+        }
+        long total = created.sum() + failed.sum();
+        double errorRate = total == 0 ? 0 : (double) failed.sum() / total;
+        if (failed.sum() > 0) {
+            LOGGER.warn("{} Observations failed at concurrency {}.", failed.sum(), concurrency);
+        }
+        Histogram histogram = recorder.getIntervalHistogram();
+        double throughput = created.sum() * 1000.0 / stepMillis;
+        return new ConcurrencyController.Step(concurrency, throughput, histogram.getValueAtPercentile(99), errorRate);
+    }
+
+    private void work(URI url, long measureStart, long end, Recorder recorder, LongAdder created, LongAdder failed) {
+        ObservationTemplate template = new ObservationTemplate(datastream.getId());
+        while (true) {
+            int first = nextIndex.getAndAdd(batchSize);
+            if (batchSize > 1) {
+                template.startDataArray();
+                for (int i = first; i < first + batchSize; i++) {
+                    template.addRow(i, startMillis + i);
+                }
+            } else {
+                template.writeObservation(first, startMillis + first);
+            }
+            long start = System.nanoTime();
+            if (start >= end) {
+                return;
+            }
+            int errors;
+            try {
+                errors = template.post(service, url);
+            } catch (ServiceFailureException ex) {
+                LOGGER.debug("Request failed: {}", ex.getMessage());
+                errors = batchSize;
+            }
+            long done = System.nanoTime();
+            // Only requests that complete within the measured window count.
+            if (start >= measureStart && done <= end) {
+                recorder.recordValue(done - start);
+                created.add(batchSize - errors);
+                failed.add(errors);
+            }
+        }
+    }
+
+}
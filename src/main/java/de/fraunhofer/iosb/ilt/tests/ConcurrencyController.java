@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decides the concurrency of each step of a capacity probe, and finds the
+ * knee of the throughput curve: the concurrency beyond which more concurrent
+ * requests no longer buy more throughput, only more latency.
+ *
+ * The search is AIMD-like. It starts by doubling the concurrency while the
+ * throughput keeps growing. A step only counts as growth if throughput grows
+ * by at least minGain, and by at least minEfficiency times the relative growth
+ * in concurrency; past the knee, extra requests mostly queue, and throughput
+ * grows much slower than concurrency. When it stops growing, the search falls
+ * back to the best step, and continues in additive steps of a quarter of that
+ * concurrency. It stops when the p99 latency exceeds
+ * maxLatencyFactor times the latency of the first step, when more than
+ * maxErrorRate of the items fail, when throughput drops, or when patience
+ * additive steps in a row bring no gain.
+ *
+ * The knee is the step with the highest throughput that stayed within the
+ * latency and error limits.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ConcurrencyController {
+
+    /**
+     * The result of running at one concurrency.
+     */
+    public static class Step {
+
+        public final int concurrency;
+        /**
+         * The throughput, in items per second.
+         */
+        public final double throughput;
+        /**
+         * The 99th percentile of the latency, in nanoseconds.
+         */
+        public final long p99Nanos;
+        /**
+         * The fraction of the items that failed.
+         */
+        public final double errorRate;
+
+        public Step(int concurrency, double throughput, long p99Nanos) {
+            this(concurrency, throughput, p99Nanos, 0);
+        }
+
+        public Step(int concurrency, double throughput, long p99Nanos, double errorRate) {
+            this.concurrency = concurrency;
+            this.throughput = throughput;
+            this.p99Nanos = p99Nanos;
+            this.errorRate = errorRate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("concurrency %d: %.1f/s, p99 %.1fms, %.2f%% errors", concurrency, throughput, p99Nanos / 1e6, errorRate * 100);
+        }
+    }
+
+    private final int maxConcurrency;
+    private double minGain = 0.05;
+    private double minEfficiency = 0.75;
+    private double maxLatencyFactor = 10;
+    private double maxErrorRate = 0.01;
+    private int patience = 2;
+
+    private final List<Step> steps = new ArrayList<>();
+    private int concurrency;
+    private int increment;
+    private boolean slowStart = true;
+    private boolean done = false;
+    private long latencyLimit = Long.MAX_VALUE;
+    private Step best;
+    private int stalls;
+
+    /**
+     * @param initialConcurrency The concurrency of the first step.
+     * @param maxConcurrency The highest concurrency to try.
+     */
+    public ConcurrencyController(int initialConcurrency, int maxConcurrency) {
+        if (initialConcurrency < 1 || maxConcurrency < initialConcurrency) {
+            throw new IllegalArgumentException("Need 1 <= initial <= max, got " + initialConcurrency + ", " + maxConcurrency);
+        }
+        this.concurrency = initialConcurrency;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * @param minGain The relative throughput gain a step must bring to count
+     * as an improvement. Default 0.05.
+     * @return this.
+     */
+    public ConcurrencyController setMinGain(double minGain) {
+        this.minGain = minGain;
+        return this;
+    }
+
+    /**
+     * @param minEfficiency The fraction of the relative concurrency growth
+     * that the relative throughput growth must reach for a step to count as
+     * an improvement. Default 0.75.
+     * @return this.
+     */
+    public ConcurrencyController setMinEfficiency(double minEfficiency) {
+        this.minEfficiency = minEfficiency;
+        return this;
+    }
+
+    /**
+     * @param maxLatencyFactor How many times the p99 latency of the first step
+     * the p99 latency may grow before the service counts as overloaded.
+     * Default 10.
+     * @return this.
+     */
+    public ConcurrencyController setMaxLatencyFactor(double maxLatencyFactor) {
+        this.maxLatencyFactor = maxLatencyFactor;
+        return this;
+    }
+
+    /**
+     * @param maxErrorRate The fraction of the items of a step that may fail
+     * before the service counts as overloaded. Default 0.01.
+     * @return this.
+     */
+    public ConcurrencyController setMaxErrorRate(double maxErrorRate) {
+        this.maxErrorRate = maxErrorRate;
+        return this;
+    }
+
+    /**
+     * @param patience The number of additive steps in a row without gain
+     * before the search stops. Default 2.
+     * @return this.
+     */
+    public ConcurrencyController setPatience(int patience) {
+        this.patience = patience;
+        return this;
+    }
+
+    /**
+     * @return The concurrency to use for the next step.
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return true if the search is finished.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Records the result of a step at the current concurrency, and decides
+     * the concurrency of the next step.
+     *
+     * @param throughput The throughput of the step, in items per second.
+     * @param p99Nanos The 99th percentile latency of the step, in nanoseconds.
+     * @return true if another step should be run.
+     */
+    public boolean record(double throughput, long p99Nanos) {
+        return record(throughput, p99Nanos, 0);
+    }
+
+    /**
+     * Records the result of a step at the current concurrency, and decides
+     * the concurrency of the next step.
+     *
+     * @param throughput The throughput of the step, in items per second.
+     * @param p99Nanos The 99th percentile latency of the step, in nanoseconds.
+     * @param errorRate The fraction of the items of the step that failed.
+     * @return true if another step should be run.
+     */
+    public boolean record(double throughput, long p99Nanos, double errorRate) {
+        if (done) {
+            throw new IllegalStateException("The search is already finished.");
+        }
+        Step step = new Step(concurrency, throughput, p99Nanos, errorRate);
+        steps.add(step);
+        if (steps.size() == 1) {
+            latencyLimit = (long) (p99Nanos * maxLatencyFactor);
+        }
+        boolean withinLimit = p99Nanos <= latencyLimit && errorRate <= maxErrorRate;
+        boolean better = withinLimit && (best == null || isGrowth(step));
+        boolean declined = best != null && throughput < best.throughput * (1 - minGain);
+        if (better) {
+            best = step;
+            stalls = 0;
+        } else {
+            stalls++;
+        }
+
+        if (slowStart) {
+            if (better) {
+                return setNext(concurrency * 2);
+            }
+            slowStart = false;
+            if (best == null) {
+                // Even the first step was over the limits.
+                return finish();
+            }
+            increment = Math.max(1, best.concurrency / 4);
+            if (best.concurrency + increment >= concurrency) {
+                // Nothing left to try between the best and the failed step.
+                return finish();
+            }
+            stalls = 0;
+            return setNext(best.concurrency + increment);
+        }
+        if (!withinLimit || declined || stalls >= patience) {
+            return finish();
+        }
+        return setNext(concurrency + increment);
+    }
+
+    private boolean isGrowth(Step step) {
+        double throughputGrowth = step.throughput / best.throughput - 1;
+        double concurrencyGrowth = (double) step.concurrency / best.concurrency - 1;
+        return throughputGrowth > minGain && throughputGrowth >= minEfficiency * concurrencyGrowth;
+    }
+
+    private boolean setNext(int next) {
+        int capped = Math.min(next, maxConcurrency);
+        if (capped == concurrency) {
+            // Already ran at the maximum.
+            return finish();
+        }
+        concurrency = capped;
+        return true;
+    }
+
+    private boolean finish() {
+        done = true;
+        if (best != null) {
+            concurrency = best.concurrency;
+        }
+        return false;
+    }
+
+    /**
+     * @return The step with the highest throughput within the limits,
+     * or null if no step was recorded.
+     */
+    public Step getKnee() {
+        return best;
+    }
+
+    /**
+     * @return All recorded steps, in order.
+     */
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+}
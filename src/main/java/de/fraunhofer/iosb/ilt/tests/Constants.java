@@ -17,17 +17,29 @@
  */
 package de.fraunhofer.iosb.ilt.tests;
 
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
 import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
 import de.fraunhofer.iosb.ilt.sta.service.TokenManagerOpenIDConnect;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
 
 /**
  *
@@ -42,9 +54,127 @@ public class Constants {
     public static String CLIENT_ID = "";
     public static String USERNAME = "";
     public static String PASSWORD = "";
+    /**
+     * If true, getBaseUrl() starts an in-process StandInServer and returns its
+     * url, instead of BASE_URL. Set with -Dsta.standin=true to run the tests
+     * without a server.
+     */
+    public static boolean USE_STAND_IN = Boolean.getBoolean("sta.standin");
+
+    /**
+     * The maximum number of pooled connections per route (host).
+     */
+    public static int HTTP_MAX_PER_ROUTE = 20;
+    /**
+     * The maximum number of pooled connections in total.
+     */
+    public static int HTTP_MAX_TOTAL = 50;
+    /**
+     * How long to keep idle connections alive, if the server does not say.
+     */
+    public static long HTTP_KEEP_ALIVE_MILLIS = 30_000;
+    /**
+     * The maximum time to wait for data on an open connection.
+     */
+    public static int HTTP_SOCKET_TIMEOUT_MILLIS = 60_000;
+    /**
+     * The maximum time to wait for a connection to be established.
+     */
+    public static int HTTP_CONNECT_TIMEOUT_MILLIS = 10_000;
+    /**
+     * If true, createService returns a CachingSensorThingsService, that
+     * caches the metadata entities it finds by id. Set with -Dsta.cache=true.
+     */
+    public static boolean USE_ENTITY_CACHE = Boolean.getBoolean("sta.cache");
+    /**
+     * The maximum number of entities in the cache.
+     */
+    public static int ENTITY_CACHE_SIZE = 10_000;
+    /**
+     * How long a cached entity is used before it is fetched again.
+     */
+    public static long ENTITY_CACHE_TTL_MILLIS = 60_000;
+
+    private static PoolingHttpClientConnectionManager sharedConnectionManager;
+    private static StandInServer standIn;
+    private static final Map<String, EntityCache<String, Entity<?>>> ENTITY_CACHES = new HashMap<>();
+
+    /**
+     * Uses the keep-alive time sent by the server, or HTTP_KEEP_ALIVE_MILLIS
+     * if the server does not send one.
+     */
+    private static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = (response, context) -> {
+        long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        if (duration < 0) {
+            return HTTP_KEEP_ALIVE_MILLIS;
+        }
+        return duration;
+    };
+
+    /**
+     * Creates a new connection pool with the given limits.
+     *
+     * @param maxTotal The maximum number of connections in total.
+     * @param maxPerRoute The maximum number of connections per route.
+     * @return A new connection pool.
+     */
+    public static PoolingHttpClientConnectionManager createConnectionManager(int maxTotal, int maxPerRoute) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        return connectionManager;
+    }
+
+    /**
+     * Returns the connection pool shared by everything in this JVM that does
+     * not need its own pool. It is created on first use, using
+     * HTTP_MAX_TOTAL and HTTP_MAX_PER_ROUTE.
+     *
+     * @return The shared connection pool.
+     */
+    public static synchronized PoolingHttpClientConnectionManager getSharedConnectionManager() {
+        if (sharedConnectionManager == null) {
+            sharedConnectionManager = createConnectionManager(HTTP_MAX_TOTAL, HTTP_MAX_PER_ROUTE);
+        }
+        return sharedConnectionManager;
+    }
+
+    /**
+     * Returns the entity cache for the given service url. Services of the same
+     * url share their cache.
+     *
+     * @param serviceUrl The url of the service.
+     * @return The cache for the service.
+     */
+    public static synchronized EntityCache<String, Entity<?>> getEntityCache(URL serviceUrl) {
+        return ENTITY_CACHES.computeIfAbsent(serviceUrl.toString(), u -> new EntityCache<>(ENTITY_CACHE_SIZE, ENTITY_CACHE_TTL_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Returns the url of the service to use. This is BASE_URL, unless
+     * USE_STAND_IN is set, in which case a StandInServer is started on first
+     * use, and its url is returned.
+     *
+     * @return The url of the service to use.
+     * @throws IllegalStateException If the stand-in server can not be
+     * started.
+     */
+    public static synchronized String getBaseUrl() {
+        if (!USE_STAND_IN) {
+            return BASE_URL;
+        }
+        if (standIn == null) {
+            try {
+                standIn = new StandInServer().start();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Failed to start the stand-in server.", ex);
+            }
+        }
+        return standIn.getBaseUrl();
+    }
 
     public static SensorThingsService createService() throws MalformedURLException, URISyntaxException {
-        return createService(BASE_URL);
+        return createService(getBaseUrl());
     }
 
     public static SensorThingsService createService(String serviceUrl) throws MalformedURLException, URISyntaxException {
@@ -53,27 +183,97 @@ public class Constants {
     }
 
     public static SensorThingsService createService(URL serviceUrl) throws MalformedURLException, URISyntaxException {
-        SensorThingsService service = new SensorThingsService(serviceUrl);
+        return createService(serviceUrl, null);
+    }
+
+    /**
+     * Creates a service that uses the given connection pool. Services created
+     * with the same pool re-use each others connections. The pool is not
+     * closed when the http client of the service is closed. If
+     * USE_ENTITY_CACHE is set, the service caches metadata entities.
+     *
+     * @param serviceUrl The url of the service.
+     * @param connectionManager The connection pool to use, or null to use a
+     * default http client.
+     * @return The service.
+     * @throws MalformedURLException If the url is not valid.
+     * @throws URISyntaxException If the url is not valid.
+     */
+    public static SensorThingsService createService(URL serviceUrl, PoolingHttpClientConnectionManager connectionManager) throws MalformedURLException, URISyntaxException {
+        SensorThingsService service;
+        if (USE_ENTITY_CACHE) {
+            service = new CachingSensorThingsService(serviceUrl, getEntityCache(serviceUrl));
+        } else {
+            service = new SensorThingsService(serviceUrl);
+        }
         if (USE_OPENID_CONNECT) {
-            service.setTokenManager(
-                    new TokenManagerOpenIDConnect()
-                            .setTokenServerUrl(TOKEN_SERVER_URL)
-                            .setClientId(CLIENT_ID)
-                            .setUserName(USERNAME)
-                            .setPassword(PASSWORD)
-            );
+            service.setTokenManager(createTokenManager());
         }
-        if (USE_BASIC_AUTH) {
-            CredentialsProvider credsProvider = new BasicCredentialsProvider();
-            URL url = new URL(BASE_URL);
-            credsProvider.setCredentials(
-                    new AuthScope(url.getHost(), url.getPort()),
-                    new UsernamePasswordCredentials(USERNAME, PASSWORD));
-            CloseableHttpClient httpclient = HttpClients.custom()
-                    .setDefaultCredentialsProvider(credsProvider)
-                    .build();
+        if (USE_BASIC_AUTH || connectionManager != null) {
+            HttpClientBuilder clientBuilder = HttpClients.custom();
+            if (USE_BASIC_AUTH) {
+                clientBuilder.setDefaultCredentialsProvider(createCredentialsProvider());
+            }
+            if (connectionManager != null) {
+                clientBuilder.setConnectionManager(connectionManager)
+                        .setConnectionManagerShared(true)
+                        .setKeepAliveStrategy(KEEP_ALIVE_STRATEGY)
+                        .setDefaultRequestConfig(createRequestConfig());
+            }
+            CloseableHttpClient httpclient = clientBuilder.build();
             service.setClient(httpclient);
         }
         return service;
     }
+
+    /**
+     * Creates a non-blocking client for the service at getBaseUrl(), with the
+     * same authentication and timeouts as the services made by createService.
+     * The client has its own connections, one per request in flight.
+     *
+     * @param maxInFlight The maximum number of requests in flight.
+     * @return The started client.
+     * @throws MalformedURLException If the url is not valid.
+     */
+    public static AsyncSensorThingsClient createAsyncClient(int maxInFlight) throws MalformedURLException {
+        HttpAsyncClientBuilder clientBuilder = HttpAsyncClients.custom()
+                .setMaxConnTotal(maxInFlight)
+                .setMaxConnPerRoute(maxInFlight)
+                .setKeepAliveStrategy(KEEP_ALIVE_STRATEGY)
+                .setDefaultRequestConfig(createRequestConfig());
+        if (USE_BASIC_AUTH) {
+            clientBuilder.setDefaultCredentialsProvider(createCredentialsProvider());
+        }
+        AsyncSensorThingsClient client = new AsyncSensorThingsClient(getBaseUrl(), clientBuilder.build(), maxInFlight);
+        if (USE_OPENID_CONNECT) {
+            client.setTokenManager(createTokenManager());
+        }
+        return client;
+    }
+
+    private static TokenManagerOpenIDConnect createTokenManager() {
+        return new TokenManagerOpenIDConnect()
+                .setTokenServerUrl(TOKEN_SERVER_URL)
+                .setClientId(CLIENT_ID)
+                .setUserName(USERNAME)
+                .setPassword(PASSWORD);
+    }
+
+    private static CredentialsProvider createCredentialsProvider() throws MalformedURLException {
+        CredentialsProvider credsProvider = new BasicCredentialsProvider();
+        URL url = new URL(BASE_URL);
+        credsProvider.setCredentials(
+                new AuthScope(url.getHost(), url.getPort()),
+                new UsernamePasswordCredentials(USERNAME, PASSWORD));
+        return credsProvider;
+    }
+
+    private static RequestConfig createRequestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(HTTP_CONNECT_TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(HTTP_CONNECT_TIMEOUT_MILLIS)
+                .setSocketTimeout(HTTP_SOCKET_TIMEOUT_MILLIS)
+                .build();
+    }
+
 }
@@ -182,7 +182,41 @@ public class CreateDefaultEntities {
             mds.getObservations().add(new Observation(Arrays.asList(12, 18), ZonedDateTime.parse("2019-03-12T00:00:00Z")));
             thing.getMultiDatastreams().add(mds);
         }
-        service.create(thing);
+        resolveAndFill(thing);
+    }
+
+    /**
+     * Creates the Thing with one deep insert if it does not exist yet.
+     * Otherwise resolves its Datastreams and MultiDatastreams, and creates the
+     * Observations of those that did not exist yet. Running again does not
+     * create anything.
+     */
+    private void resolveAndFill(Thing thing) throws ServiceFailureException {
+        MetadataResolver resolver = new MetadataResolver(service);
+        if (resolver.createTreeIfMissing(thing)) {
+            LOGGER.info("Created {} entities in {} requests.", resolver.getCreated(), resolver.getRequests());
+            return;
+        }
+        resolver.resolveTree(thing);
+        ObservationBatcher batcher = new ObservationBatcher(service, Integer.MAX_VALUE);
+        for (Datastream ds : thing.getDatastreams()) {
+            if (resolver.wasCreated(ds)) {
+                for (Observation o : ds.getObservations()) {
+                    o.setDatastream(ds.withOnlyId());
+                    batcher.add(o);
+                }
+            }
+        }
+        batcher.flush();
+        for (MultiDatastream mds : thing.getMultiDatastreams()) {
+            if (resolver.wasCreated(mds)) {
+                for (Observation o : mds.getObservations()) {
+                    o.setMultiDatastream(mds.withOnlyId());
+                    service.create(o);
+                }
+            }
+        }
+        LOGGER.info("Found {} entities, created {}.", resolver.getFound(), resolver.getCreated());
     }
 
 }
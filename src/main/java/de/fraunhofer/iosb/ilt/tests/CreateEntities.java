@@ -23,9 +23,14 @@ import de.fraunhofer.iosb.ilt.sta.model.Observation;
 import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
 import de.fraunhofer.iosb.ilt.sta.model.Sensor;
 import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayDocument;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayValue;
 import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
 import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
 import de.fraunhofer.iosb.ilt.sta.service.TokenManager;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -38,9 +43,9 @@ import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.geojson.LineString;
 import org.geojson.LngLatAlt;
 import org.geojson.Point;
@@ -61,9 +66,70 @@ public class CreateEntities {
      * The number of observations that will be created.
      */
     private static final int OBSERVATION_COUNT = 50;
+    /**
+     * The number of observations to send in one request, using the DataArray
+     * format. If 1, each observation is posted separately.
+     */
+    private static final int BATCH_SIZE = 1000;
+    /**
+     * If true, the same number of observations is also posted separately, into
+     * a separate Datastream, to compare the batched throughput against.
+     */
+    private static final boolean COMPARE_SINGLE = false;
+    /**
+     * The number of workers that create observations in parallel.
+     */
+    private static final int WORKER_COUNT = 5;
+    /**
+     * If true, the workers write the observations directly into a reusable
+     * ObservationTemplate buffer, instead of building Observation entities and
+     * serialising those.
+     */
+    private static final boolean USE_TEMPLATE = false;
+    /**
+     * If true, each request gets its own virtual thread, and up to
+     * MAX_CONCURRENCY requests are in flight at the same time. Needs Java 21,
+     * on older runtimes MAX_CONCURRENCY platform threads are used.
+     */
+    private static final boolean USE_VIRTUAL_THREADS = false;
+    /**
+     * The maximum number of requests in flight when using virtual threads.
+     */
+    private static final int MAX_CONCURRENCY = 200;
+    /**
+     * The number of concurrent requests, and the size of the connection pool.
+     */
+    private static final int CONCURRENCY = USE_VIRTUAL_THREADS ? MAX_CONCURRENCY : WORKER_COUNT;
+    /**
+     * If true, observations are sent from a single thread, using the
+     * non-blocking AsyncSensorThingsClient, with up to ASYNC_MAX_IN_FLIGHT
+     * requests in flight.
+     */
+    private static final boolean USE_ASYNC = false;
+    /**
+     * The maximum number of requests in flight when using the async client.
+     */
+    private static final int ASYNC_MAX_IN_FLIGHT = 500;
+    /**
+     * If true, instead of creating OBSERVATION_COUNT observations, a
+     * CapacityProbe ramps up the concurrency until the service is saturated,
+     * and reports the highest sustainable rate.
+     */
+    private static final boolean USE_CAPACITY_PROBE = false;
+    /**
+     * The highest concurrency the capacity probe tries.
+     */
+    private static final int PROBE_MAX_CONCURRENCY = 256;
+
+    /**
+     * The file to write the latency histograms to.
+     */
+    private static final String LATENCY_LOG_FILE = "CreateEntities.hlog";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CreateEntities.class.getName());
+    private static final LatencyRecorder LATENCIES = LatencyRecorder.getInstance();
     private SensorThingsService service;
+    private final MetadataResolver resolver;
     private TokenManager tokenManager;
     private final List<Thing> things = new ArrayList<>();
     private final List<Location> locations = new ArrayList<>();
@@ -71,47 +137,57 @@ public class CreateEntities {
     private final List<ObservedProperty> oProps = new ArrayList<>();
     private final List<Datastream> datastreams = new ArrayList<>();
     private final List<Observation> observations = new ArrayList<>();
+    private double singleRate;
+    /**
+     * The connection pool shared by all workers.
+     */
+    private final PoolingHttpClientConnectionManager connectionManager = Constants.createConnectionManager(CONCURRENCY, CONCURRENCY);
 
     /**
      * @param args the command line arguments
      * @throws ServiceFailureException when there is an error.
      * @throws java.net.URISyntaxException
      * @throws java.net.MalformedURLException
+     * @throws java.io.FileNotFoundException If the latency log can not be
+     * created.
      */
-    public static void main(String[] args) throws ServiceFailureException, URISyntaxException, MalformedURLException {
+    public static void main(String[] args) throws ServiceFailureException, URISyntaxException, MalformedURLException, FileNotFoundException {
         LOGGER.info("Creating test entities in {}", Constants.BASE_URL);
+        LATENCIES.startReporting(10, TimeUnit.SECONDS, new File(LATENCY_LOG_FILE));
         CreateEntities tester = new CreateEntities();
         tester.createEntities();
+        LATENCIES.stopReporting();
     }
 
     public CreateEntities() throws MalformedURLException, URISyntaxException {
         service = Constants.createService();
+        resolver = new MetadataResolver(service);
     }
 
     private void createEntities2() throws ServiceFailureException, URISyntaxException, MalformedURLException {
         Thing thing = new Thing("ILThing", "Das Ding von ILT.");
-        service.create(thing);
+        LATENCIES.create(service, thing);
         things.add(thing);
 
         Location location = new Location("Location Des Dings von ILT", "First Location of Thing 1.", "application/vnd.geo+json", new Point(8, 49));
         location.getThings().add(things.get(0));
-        service.create(location);
+        LATENCIES.create(service, location);
         locations.add(location);
 
         Sensor sensor1 = new Sensor("Sensor 1", "Temperatur Sensor Ding ILT.", "text", "Some metadata.");
-        service.create(sensor1);
+        LATENCIES.create(service, sensor1);
         sensors.add(sensor1);
 
         Sensor sensor2 = new Sensor("Sensor 2", "Luftfeuchte Sensor Ding ILT", "text", "Some metadata.");
-        service.create(sensor2);
+        LATENCIES.create(service, sensor2);
         sensors.add(sensor2);
 
         ObservedProperty obsProp1 = new ObservedProperty("Temperature", new URI("http://ucom.org/temperature"), "The temperature of the thing.");
-        service.create(obsProp1);
+        LATENCIES.create(service, obsProp1);
         oProps.add(obsProp1);
 
         ObservedProperty obsProp2 = new ObservedProperty("Humidity", new URI("http://ucom.org/humidity"), "The humidity of the thing.");
-        service.create(obsProp2);
+        LATENCIES.create(service, obsProp2);
         oProps.add(obsProp2);
 
         thing = things.get(0);
@@ -119,17 +195,21 @@ public class CreateEntities {
         datastream1.setThing(thing);
         datastream1.setSensor(sensor1);
         datastream1.setObservedProperty(obsProp1);
-        service.create(datastream1);
+        LATENCIES.create(service, datastream1);
         datastreams.add(datastream1);
 
         Datastream datastream2 = new Datastream("Datastream LF", "The humidity of thing 1, sensor 2.", "someType", new UnitOfMeasurement("relative humidity", "%", "ucum:Humidity"));
         datastream2.setThing(thing);
         datastream2.setSensor(sensor2);
         datastream2.setObservedProperty(obsProp2);
-        service.create(datastream2);
+        LATENCIES.create(service, datastream2);
         datastreams.add(datastream2);
     }
 
+    /**
+     * Creates the test metadata, re-using what exists from an earlier run, and
+     * then creates the Observations.
+     */
     private void createEntities() throws ServiceFailureException, URISyntaxException, MalformedURLException {
         Map<String, Object> deep1 = new HashMap<>();
         Map<String, Object> deep2 = new HashMap<>();
@@ -148,7 +228,7 @@ public class CreateEntities {
         deep2.put("integer", 9);
         Thing thing = new Thing("Thing 1", "The first thing.");
         thing.setProperties(properties1);
-        service.create(thing);
+        resolver.resolveThing(thing);
         LOGGER.info("id: " + thing.getId());
         things.add(thing);
 
@@ -161,7 +241,7 @@ public class CreateEntities {
         properties2.put("deep", properties1);
         thing = new Thing("Thing 2", "The second thing.");
         thing.setProperties(properties2);
-        service.create(thing);
+        resolver.resolveThing(thing);
         things.add(thing);
 
         Map<String, Object> properties3 = new HashMap<>();
@@ -172,7 +252,7 @@ public class CreateEntities {
         properties3.put("array", new int[]{2, 1, 4, 3});
         thing = new Thing("Thing 3", "The third thing.");
         thing.setProperties(properties3);
-        service.create(thing);
+        resolver.resolveThing(thing);
         things.add(thing);
 
         Map<String, Object> properties4 = new HashMap<>();
@@ -183,27 +263,27 @@ public class CreateEntities {
         properties4.put("array", new int[]{3, 4, 1, 2});
         thing = new Thing("Thing 4", "The fourt thing.");
         thing.setProperties(properties4);
-        service.create(thing);
+        resolver.resolveThing(thing);
         things.add(thing);
 
         Location location = new Location("Location 1.0", "First Location of Thing 1.", "application/vnd.geo+json", new Point(8, 52));
         location.getThings().add(things.get(0));
-        service.create(location);
+        resolver.resolveLocation(location);
         locations.add(location);
 
         location = new Location("Location 1.1", "Second Location of Thing 1.", "application/vnd.geo+json", new Point(8, 52));
         location.getThings().add(things.get(0));
-        service.create(location);
+        resolver.resolveLocation(location);
         locations.add(location);
 
         location = new Location("Location 2", "Location of Thing 2.", "application/vnd.geo+json", new Point(8, 53));
         location.getThings().add(things.get(1));
-        service.create(location);
+        resolver.resolveLocation(location);
         locations.add(location);
 
         location = new Location("Location 3", "Location of Thing 3.", "application/vnd.geo+json", new Point(8, 54));
         location.getThings().add(things.get(2));
-        service.create(location);
+        resolver.resolveLocation(location);
         locations.add(location);
 
         // Locations 4
@@ -214,7 +294,7 @@ public class CreateEntities {
                         new LngLatAlt(7, 53),
                         new LngLatAlt(8, 53)));
         location.getThings().add(things.get(3));
-        service.create(location);
+        resolver.resolveLocation(location);
         locations.add(location);
 
         // Locations 5
@@ -222,7 +302,7 @@ public class CreateEntities {
                 new LineString(
                         new LngLatAlt(5, 52),
                         new LngLatAlt(5, 53)));
-        service.create(location);
+        resolver.resolveLocation(location);
         locations.add(location);
 
         // Locations 6
@@ -230,7 +310,7 @@ public class CreateEntities {
                 new LineString(
                         new LngLatAlt(5, 52),
                         new LngLatAlt(6, 53)));
-        service.create(location);
+        resolver.resolveLocation(location);
         locations.add(location);
 
         // Locations 7
@@ -238,23 +318,23 @@ public class CreateEntities {
                 new LineString(
                         new LngLatAlt(4, 52),
                         new LngLatAlt(8, 52)));
-        service.create(location);
+        resolver.resolveLocation(location);
         locations.add(location);
 
         Sensor sensor1 = new Sensor("Sensor 1", "The first sensor.", "text", "Some metadata.");
-        service.create(sensor1);
+        resolver.resolveSensor(sensor1);
         sensors.add(sensor1);
 
         Sensor sensor2 = new Sensor("Sensor 2", "The second sensor.", "text", "Some metadata.");
-        service.create(sensor2);
+        resolver.resolveSensor(sensor2);
         sensors.add(sensor2);
 
         ObservedProperty obsProp1 = new ObservedProperty("Temperature", new URI("http://ucom.org/temperature"), "The temperature of the thing.");
-        service.create(obsProp1);
+        resolver.resolveObservedProperty(obsProp1);
         oProps.add(obsProp1);
 
         ObservedProperty obsProp2 = new ObservedProperty("Humidity", new URI("http://ucom.org/humidity"), "The humidity of the thing.");
-        service.create(obsProp2);
+        resolver.resolveObservedProperty(obsProp2);
         oProps.add(obsProp2);
 
         thing = things.get(0);
@@ -262,51 +342,51 @@ public class CreateEntities {
         datastream1.setThing(thing);
         datastream1.setSensor(sensor1);
         datastream1.setObservedProperty(obsProp1);
-        service.create(datastream1);
+        resolver.resolveDatastream(thing, datastream1);
         datastreams.add(datastream1);
 
         Datastream datastream2 = new Datastream("Datastream 2", "The humidity of thing 1, sensor 2.", "someType", new UnitOfMeasurement("relative humidity", "%", "ucum:Humidity"));
         datastream2.setThing(thing);
         datastream2.setSensor(sensor2);
         datastream2.setObservedProperty(obsProp2);
-        service.create(datastream2);
+        resolver.resolveDatastream(thing, datastream2);
         datastreams.add(datastream2);
 
         Datastream datastream3 = new Datastream("Datastream 3", "The humidity of thing 2, sensor 2.", "someType", new UnitOfMeasurement("relative humidity", "%", "ucum:Humidity"));
         datastream3.setThing(things.get(1));
         datastream3.setSensor(sensor2);
         datastream3.setObservedProperty(obsProp2);
-        service.create(datastream3);
+        resolver.resolveDatastream(things.get(1), datastream3);
         datastreams.add(datastream3);
 
         Observation o = new Observation(new int[]{1, 2, 3, 4}, datastream1);
         o.setPhenomenonTimeFrom(ZonedDateTime.parse("2016-01-01T01:01:01.000Z"));
         o.setValidTime(Interval.of(Instant.parse("2016-01-01T01:01:01.000Z"), Instant.parse("2016-01-01T23:59:59.999Z")));
-        service.create(o);
+        LATENCIES.create(service, o);
         observations.add(o);
 
         o = new Observation(2, datastream1);
         o.setPhenomenonTimeFrom(ZonedDateTime.parse("2016-01-02T01:01:01.000Z"));
         o.setValidTime(Interval.of(Instant.parse("2016-01-02T01:01:01.000Z"), Instant.parse("2016-01-02T23:59:59.999Z")));
-        service.create(o);
+        LATENCIES.create(service, o);
         observations.add(o);
 
         o = new Observation(3, datastream1);
         o.setPhenomenonTimeFrom(ZonedDateTime.parse("2016-01-03T01:01:01.000Z"));
         o.setValidTime(Interval.of(Instant.parse("2016-01-03T01:01:01.000Z"), Instant.parse("2016-01-03T23:59:59.999Z")));
-        service.create(o);
+        LATENCIES.create(service, o);
         observations.add(o);
 
         o = new Observation(4, datastream1);
         o.setPhenomenonTimeFrom(ZonedDateTime.parse("2016-01-04T01:01:01.000Z"));
         o.setValidTime(Interval.of(Instant.parse("2016-01-04T01:01:01.000Z"), Instant.parse("2016-01-04T23:59:59.999Z")));
-        service.create(o);
+        LATENCIES.create(service, o);
         observations.add(o);
 
         o = new Observation(5, datastream2);
         o.setPhenomenonTimeFrom(ZonedDateTime.parse("2016-01-04T01:01:01.000Z"));
         o.setValidTime(Interval.of(Instant.parse("2016-01-04T01:01:01.000Z"), Instant.parse("2016-01-04T23:59:59.999Z")));
-        service.create(o);
+        LATENCIES.create(service, o);
         observations.add(o);
 
         {
@@ -319,34 +399,75 @@ public class CreateEntities {
             parameters.put("intIntArray", generateIntIntArray(0, 3));
             parameters.put("objArray", generateObjectList(0, 3));
             o.setParameters(parameters);
-            service.create(o);
+            LATENCIES.create(service, o);
             observations.add(o);
         }
 
-        ExecutorService pool = Executors.newFixedThreadPool(5);
+        if (USE_CAPACITY_PROBE) {
+            probeCapacity(datastream1);
+            return;
+        }
+        if (BATCH_SIZE > 1 && COMPARE_SINGLE) {
+            Datastream compareDs = new Datastream("Comparison Datastream", "The per-entity rate comparison of thing 1, sensor 1.", "someType", new UnitOfMeasurement("degree celcius", "°C", "ucum:T"));
+            compareDs.setThing(thing);
+            compareDs.setSensor(sensor1);
+            compareDs.setObservedProperty(obsProp1);
+            resolver.resolveDatastream(thing, compareDs);
+            datastreams.add(compareDs);
+            LOGGER.info("Measuring per-entity rate using {} observations.", OBSERVATION_COUNT);
+            singleRate = createObservations(compareDs, OBSERVATION_COUNT, 1);
+        }
+        createObservations(datastream1, OBSERVATION_COUNT, BATCH_SIZE);
+    }
 
-        int totalCount = OBSERVATION_COUNT;
-        int perTask = 10000;
+    /**
+     * Creates the given number of observations in the given Datastream, using
+     * a pool of workers.
+     *
+     * @param datastream The datastream to create the observations in.
+     * @param totalCount The number of observations to create.
+     * @param batchSize The number of observations to send per request. If 1,
+     * each observation is posted separately.
+     * @return The number of observations created per second.
+     * @throws MalformedURLException If the service url is not valid.
+     * @throws URISyntaxException If the service url is not valid.
+     */
+    private double createObservations(Datastream datastream, int totalCount, int batchSize) throws MalformedURLException, URISyntaxException {
+        if (USE_ASYNC) {
+            return createObservationsAsync(datastream, totalCount, batchSize);
+        }
+        LoadExecutor pool = LoadExecutor.create(USE_VIRTUAL_THREADS, CONCURRENCY);
+
+        // Virtual threads are cheap, so each gets a single request.
+        int perTask = pool.isVirtual() ? batchSize : 10000;
 
         long startTime = Calendar.getInstance().getTimeInMillis();
         Duration delta = Duration.standardMinutes(1);
         DateTime dtStart = DateTime.now().minus(delta.multipliedBy(totalCount));
+        SensorThingsService sharedService = null;
+        if (pool.isVirtual()) {
+            sharedService = Constants.createService(new URL(Constants.getBaseUrl()), connectionManager)
+                    .setTokenManager(service.getTokenManager());
+            LOGGER.info("Creating {} observations using virtual threads, at most {} requests in flight.", totalCount, pool.getMaxConcurrency());
+        }
 
         int start = 0;
-        while (start < totalCount) {
-            if (start + perTask >= totalCount) {
-                perTask = totalCount - start;
-            }
-            obsCreator obsCreator = new obsCreator(
-                    new SensorThingsService(new URL(Constants.BASE_URL)).setTokenManager(service.getTokenManager()),
-                    datastream1, start, perTask, dtStart, delta);
-            pool.submit(obsCreator);
-            LOGGER.info("Submitted task for {} observations starting at {}.", perTask, start);
-            start += perTask;
-        }
         try {
-            pool.shutdown();
-            pool.awaitTermination(1, TimeUnit.HOURS);
+            while (start < totalCount) {
+                if (start + perTask >= totalCount) {
+                    perTask = totalCount - start;
+                }
+                SensorThingsService workerService = sharedService;
+                if (workerService == null) {
+                    workerService = Constants.createService(new URL(Constants.getBaseUrl()), connectionManager)
+                            .setTokenManager(service.getTokenManager());
+                }
+                obsCreator obsCreator = new obsCreator(workerService, datastream, start, perTask, dtStart, delta, batchSize);
+                pool.submit(obsCreator);
+                LOGGER.debug("Submitted task for {} observations starting at {}.", perTask, start);
+                start += perTask;
+            }
+            pool.shutdownAndWait(1, TimeUnit.HOURS);
         } catch (InterruptedException ex) {
             LOGGER.info("Pool prepaturely interrupted.", ex);
         }
@@ -354,7 +475,129 @@ public class CreateEntities {
         long endTime = Calendar.getInstance().getTimeInMillis();
         long duration = endTime - startTime;
         double secs = duration / 1000.0;
-        LOGGER.info("Created {} obs in {}ms, {}/s.", totalCount, duration, totalCount / secs);
+        double rate = totalCount / secs;
+        if (batchSize > 1 && singleRate > 0) {
+            LOGGER.info("Created {} obs in {}ms, {}/s, using {} obs per request: {} times the per-entity rate of {}/s.", totalCount, duration, rate, batchSize, rate / singleRate, singleRate);
+        } else if (batchSize > 1) {
+            LOGGER.info("Created {} obs in {}ms, {}/s, using {} obs per request.", totalCount, duration, rate, batchSize);
+        } else {
+            LOGGER.info("Created {} obs in {}ms, {}/s.", totalCount, duration, rate);
+        }
+        return rate;
+    }
+
+    /**
+     * Finds the highest sustainable observation rate of the service, by
+     * ramping up the number of concurrent requests.
+     *
+     * @param datastream The datastream to create the observations in.
+     * @throws MalformedURLException If the service url is not valid.
+     * @throws URISyntaxException If the service url is not valid.
+     */
+    private void probeCapacity(Datastream datastream) throws MalformedURLException, URISyntaxException {
+        PoolingHttpClientConnectionManager probePool = Constants.createConnectionManager(PROBE_MAX_CONCURRENCY, PROBE_MAX_CONCURRENCY);
+        SensorThingsService probeService = Constants.createService(new URL(Constants.getBaseUrl()), probePool)
+                .setTokenManager(service.getTokenManager());
+        try {
+            ConcurrencyController result = new CapacityProbe(probeService, datastream)
+                    .setBatchSize(BATCH_SIZE)
+                    .setConcurrency(1, PROBE_MAX_CONCURRENCY)
+                    .run();
+            for (ConcurrencyController.Step step : result.getSteps()) {
+                LOGGER.info("  {}", step);
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.info("Capacity probe prepaturely interrupted.", ex);
+        } finally {
+            probePool.close();
+        }
+    }
+
+    /**
+     * Creates the given number of observations in the given Datastream, from
+     * this thread, using the non-blocking client.
+     *
+     * @param datastream The datastream to create the observations in.
+     * @param totalCount The number of observations to create.
+     * @param batchSize The number of observations to send per request. If 1,
+     * each observation is posted separately.
+     * @return The number of observations created per second.
+     * @throws MalformedURLException If the service url is not valid.
+     */
+    private double createObservationsAsync(Datastream datastream, int totalCount, int batchSize) throws MalformedURLException {
+        long startTime = Calendar.getInstance().getTimeInMillis();
+        long deltaMillis = Duration.standardMinutes(1).getMillis();
+        long startMillis = startTime - deltaMillis * totalCount;
+        Datastream dsRef = datastream.withOnlyId();
+        LongAdder failed = new LongAdder();
+        try (AsyncSensorThingsClient client = Constants.createAsyncClient(ASYNC_MAX_IN_FLIGHT)) {
+            client.setTokenManager(service.getTokenManager());
+            LOGGER.info("Creating {} observations using the async client, at most {} requests in flight.", totalCount, client.getMaxInFlight());
+            DataArrayValue value = null;
+            int pending = 0;
+            for (int i = 0; i < totalCount; i++) {
+                Observation o = new Observation(i, dsRef);
+                o.setParameters(generateParameters(i));
+                o.setPhenomenonTimeFrom(ZonedDateTime.ofInstant(Instant.ofEpochMilli(startMillis + deltaMillis * i), ZoneId.systemDefault()));
+                if (batchSize <= 1) {
+                    client.create(o).whenComplete((r, ex) -> {
+                        if (ex != null) {
+                            failed.increment();
+                        }
+                    });
+                    continue;
+                }
+                if (value == null) {
+                    value = new DataArrayValue(dsRef, ObservationBatcher.DEFAULT_COMPONENTS);
+                }
+                value.addObservation(o);
+                pending++;
+                if (pending >= batchSize || i == totalCount - 1) {
+                    DataArrayDocument document = new DataArrayDocument();
+                    document.addDataArrayValue(value);
+                    int rows = pending;
+                    client.createObservations(document).whenComplete((lines, ex) -> {
+                        if (ex != null) {
+                            failed.add(rows);
+                        } else {
+                            lines.stream().filter(line -> line.startsWith("error")).forEach(line -> failed.increment());
+                        }
+                    });
+                    value = null;
+                    pending = 0;
+                }
+            }
+            client.awaitIdle();
+        } catch (IOException ex) {
+            LOGGER.error("Failed to close the async client.", ex);
+        } catch (InterruptedException ex) {
+            LOGGER.info("Async creation prepaturely interrupted.", ex);
+        }
+        if (failed.sum() > 0) {
+            LOGGER.warn("Failed to create {} observations.", failed.sum());
+        }
+
+        long duration = Calendar.getInstance().getTimeInMillis() - startTime;
+        double rate = totalCount / (duration / 1000.0);
+        LOGGER.info("Created {} obs in {}ms, {}/s, using {} obs per request, asynchronously.", totalCount, duration, rate, batchSize);
+        return rate;
+    }
+
+    /**
+     * Generates the parameters for the observation with the given index.
+     *
+     * @param i The index of the observation.
+     * @return A new map with the parameters.
+     */
+    public static Map<String, Object> generateParameters(int i) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("string", generateString(i, 10));
+        parameters.put("boolean", i % 2 == 0);
+        parameters.put("int", i);
+        parameters.put("intArray", generateIntArray(i, 5));
+        parameters.put("intIntArray", generateIntIntArray(i, 3));
+        parameters.put("objArray", generateObjectList(i, 3));
+        return parameters;
     }
 
     /**
@@ -429,42 +672,92 @@ public class CreateEntities {
         private final int count;
         private final DateTime startTime;
         private final Duration deltaPerObs;
-        private final Map<String, Object> parameters = new HashMap<>();
+        private final int batchSize;
 
-        public obsCreator(SensorThingsService service, Datastream datastream, int start, int count, DateTime startTime, Duration deltaPerObs) {
+        public obsCreator(SensorThingsService service, Datastream datastream, int start, int count, DateTime startTime, Duration deltaPerObs, int batchSize) {
             this.service = service;
             this.datastream = datastream;
             this.start = start;
             this.count = count;
             this.startTime = startTime;
             this.deltaPerObs = deltaPerObs;
+            this.batchSize = batchSize;
         }
 
         @Override
         public void run() {
+            if (USE_TEMPLATE) {
+                runTemplate();
+                return;
+            }
             int end = start + count;
             int i = 0;
-            LOGGER.info("Creating {} observations from {} to {}.", count, start, end);
+            LOGGER.debug("Creating {} observations from {} to {}.", count, start, end);
+            ObservationBatcher batcher = null;
+            if (batchSize > 1) {
+                batcher = new ObservationBatcher(service, batchSize);
+            }
             try {
                 for (i = start; i < end; i++) {
                     Observation o = new Observation(i, datastream);
-                    parameters.put("string", generateString(i, 10));
-                    parameters.put("boolean", i % 2 == 0);
-                    parameters.put("int", i);
-                    parameters.put("intArray", generateIntArray(i, 5));
-                    parameters.put("intIntArray", generateIntIntArray(i, 3));
-                    parameters.put("objArray", generateObjectList(i, 3));
-                    o.setParameters(parameters);
+                    o.setParameters(generateParameters(i));
                     long millis = startTime.plus(deltaPerObs.multipliedBy(i)).getMillis();
                     o.setPhenomenonTimeFrom(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()));
-                    service.create(o);
+                    if (batcher == null) {
+                        LATENCIES.create(service, o);
+                    } else {
+                        batcher.add(o);
+                    }
+                }
+                if (batcher != null) {
+                    batcher.flush();
+                    LOGGER.debug("Used {} requests for {} observations.", batcher.getSentRequests(), batcher.getSentObservations());
                 }
             } catch (ServiceFailureException ex) {
                 LOGGER.error("Failed to create observation {}: {}", i);
                 LOGGER.error("", ex);
 
             }
-            LOGGER.info("Done creating {} observations from {} to {}.", count, start, end);
+            LOGGER.debug("Done creating {} observations from {} to {}.", count, start, end);
+        }
+
+        /**
+         * Creates the observations using one ObservationTemplate, that is
+         * reused for all requests.
+         */
+        private void runTemplate() {
+            int end = start + count;
+            int i = start;
+            LOGGER.debug("Creating {} observations from {} to {} using a template.", count, start, end);
+            ObservationTemplate template = new ObservationTemplate(datastream.getId());
+            long startMillis = startTime.getMillis();
+            long deltaMillis = deltaPerObs.getMillis();
+            int failed = 0;
+            try {
+                if (batchSize > 1) {
+                    URI url = new URI(Constants.getBaseUrl() + "CreateObservations");
+                    while (i < end) {
+                        template.startDataArray();
+                        for (int row = 0; row < batchSize && i < end; row++, i++) {
+                            template.addRow(i, startMillis + deltaMillis * i);
+                        }
+                        failed += LATENCIES.time("create DataArray", () -> template.post(service, url));
+                    }
+                } else {
+                    URI url = new URI(Constants.getBaseUrl() + "Observations");
+                    for (; i < end; i++) {
+                        template.writeObservation(i, startMillis + deltaMillis * i);
+                        failed += LATENCIES.time("create Observation", () -> template.post(service, url));
+                    }
+                }
+            } catch (ServiceFailureException | URISyntaxException ex) {
+                LOGGER.error("Failed to create observation {}.", i);
+                LOGGER.error("", ex);
+            }
+            if (failed > 0) {
+                LOGGER.warn("Service reported {} failed observations.", failed);
+            }
+            LOGGER.debug("Done creating {} observations from {} to {}.", count, start, end);
         }
 
     }
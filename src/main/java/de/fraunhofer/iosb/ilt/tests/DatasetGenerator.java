@@ -0,0 +1,531 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.Location;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
+import de.fraunhofer.iosb.ilt.sta.model.Sensor;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayValue;
+import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.geojson.Point;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.threeten.extra.Interval;
+
+/**
+ * Generates synthetic datasets of a configurable size. All values are derived
+ * from the seed, so a dataset with the same seed and parameters is exactly the
+ * same, whether it is written to a server or to files. Each Thing is generated
+ * from its own random sequence, so Things can be generated in parallel without
+ * changing the result.
+ *
+ * Every Thing has one Location, and datastreamsPerThing Datastreams. Datastream
+ * d of each Thing uses Sensor d and ObservedProperty d. The Observations of a
+ * Datastream are spread evenly over the time span, with a random walk as
+ * result. Each Observation has a resultTime RESULT_DELAY after its
+ * phenomenonTime, and a validTime that lasts until the next Observation, so
+ * that time filters on all three properties select data.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class DatasetGenerator {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatasetGenerator.class);
+
+    private static final long SEED = 42;
+    private static final double SCALE_FACTOR = 1;
+    /**
+     * If not null, the dataset is written to files in this directory, instead
+     * of to the server.
+     */
+    private static final String OUTPUT_DIR = null;
+    private static final int WORKER_COUNT = 5;
+    private static final int BATCH_SIZE = 1000;
+    /**
+     * The time between the phenomenonTime and resultTime of each Observation.
+     */
+    private static final Duration RESULT_DELAY = Duration.ofSeconds(1);
+    /**
+     * The Observation properties sent when writing in batches.
+     */
+    private static final Set<DataArrayValue.Property> COMPONENTS = EnumSet.of(
+            DataArrayValue.Property.PhenomenonTime,
+            DataArrayValue.Property.ResultTime,
+            DataArrayValue.Property.ValidTime,
+            DataArrayValue.Property.Result);
+
+    /**
+     * How the Locations of the Things are spread over the bounding box.
+     */
+    public static enum GeometryDistribution {
+        /**
+         * Uniformly random.
+         */
+        UNIFORM,
+        /**
+         * Normally distributed around a number of random cluster centres, like
+         * sensors in cities.
+         */
+        CLUSTERED,
+        /**
+         * On a regular grid, in order of the Things.
+         */
+        GRID
+    }
+
+    /**
+     * Something that can take generated Observations.
+     */
+    @FunctionalInterface
+    public static interface ObservationWriter {
+
+        public void write(Observation o) throws ServiceFailureException, IOException;
+    }
+
+    private long seed = SEED;
+    private int thingCount = 10;
+    private int datastreamsPerThing = 2;
+    private int observationsPerDatastream = 10_000;
+    private Instant start = Instant.parse("2016-01-01T00:00:00Z");
+    private Duration timeSpan = Duration.ofDays(30);
+    private GeometryDistribution geometryDistribution = GeometryDistribution.CLUSTERED;
+    private int clusterCount = 10;
+    private double clusterSpread = 0.1;
+    private double minLon = 5.0;
+    private double maxLon = 15.0;
+    private double minLat = 47.0;
+    private double maxLat = 55.0;
+
+    /**
+     * Creates a generator with the size of the given scale factor. Scale
+     * factor 1 has 10 Things with 2 Datastreams each, and 10000 Observations
+     * per Datastream. The number of Things grows linearly with the scale
+     * factor.
+     *
+     * @param scaleFactor The scale factor.
+     * @return A generator with the size of the scale factor.
+     */
+    public static DatasetGenerator forScale(double scaleFactor) {
+        DatasetGenerator generator = new DatasetGenerator();
+        generator.thingCount = Math.max(1, (int) Math.round(10 * scaleFactor));
+        return generator;
+    }
+
+    public DatasetGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public DatasetGenerator setThingCount(int thingCount) {
+        this.thingCount = thingCount;
+        return this;
+    }
+
+    public DatasetGenerator setDatastreamsPerThing(int datastreamsPerThing) {
+        this.datastreamsPerThing = datastreamsPerThing;
+        return this;
+    }
+
+    public DatasetGenerator setObservationsPerDatastream(int observationsPerDatastream) {
+        this.observationsPerDatastream = observationsPerDatastream;
+        return this;
+    }
+
+    /**
+     * @param start The time of the first Observation of each Datastream.
+     * @param timeSpan The time over which the Observations are spread.
+     * @return this.
+     */
+    public DatasetGenerator setTime(Instant start, Duration timeSpan) {
+        this.start = start;
+        this.timeSpan = timeSpan;
+        return this;
+    }
+
+    public DatasetGenerator setGeometryDistribution(GeometryDistribution geometryDistribution) {
+        this.geometryDistribution = geometryDistribution;
+        return this;
+    }
+
+    /**
+     * @param clusterCount The number of clusters for the CLUSTERED
+     * distribution.
+     * @param clusterSpread The standard deviation around the cluster centres,
+     * in degrees.
+     * @return this.
+     */
+    public DatasetGenerator setClusters(int clusterCount, double clusterSpread) {
+        this.clusterCount = clusterCount;
+        this.clusterSpread = clusterSpread;
+        return this;
+    }
+
+    /**
+     * Sets the area in which Locations are generated, in degrees.
+     *
+     * @param minLon The western bound.
+     * @param minLat The southern bound.
+     * @param maxLon The eastern bound.
+     * @param maxLat The northern bound.
+     * @return this.
+     */
+    public DatasetGenerator setBoundingBox(double minLon, double minLat, double maxLon, double maxLat) {
+        this.minLon = minLon;
+        this.minLat = minLat;
+        this.maxLon = maxLon;
+        this.maxLat = maxLat;
+        return this;
+    }
+
+    /**
+     * @return The time of the first Observation of each Datastream.
+     */
+    public Instant getStart() {
+        return start;
+    }
+
+    /**
+     * @return The time over which the Observations are spread.
+     */
+    public Duration getTimeSpan() {
+        return timeSpan;
+    }
+
+    /**
+     * @return The area in which Locations are generated, as minLon, minLat,
+     * maxLon, maxLat.
+     */
+    public double[] getBoundingBox() {
+        return new double[]{minLon, minLat, maxLon, maxLat};
+    }
+
+    /**
+     * @return The total number of Observations in the dataset.
+     */
+    public long getObservationCount() {
+        return (long) thingCount * datastreamsPerThing * observationsPerDatastream;
+    }
+
+    /**
+     * Derives an independent seed for a part of the dataset, so that each
+     * part is the same no matter in which order the parts are generated.
+     */
+    private long seedFor(long part) {
+        long z = seed + (part + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return The Sensors of the dataset, one per Datastream of a Thing.
+     */
+    public List<Sensor> createSensors() {
+        List<Sensor> sensors = new ArrayList<>();
+        for (int d = 0; d < datastreamsPerThing; d++) {
+            sensors.add(new Sensor("Sensor " + d, "Generated sensor " + d + ".", "text", "Seed " + seed));
+        }
+        return sensors;
+    }
+
+    /**
+     * @return The ObservedProperties of the dataset, one per Datastream of a
+     * Thing.
+     * @throws URISyntaxException Never.
+     */
+    public List<ObservedProperty> createObservedProperties() throws URISyntaxException {
+        List<ObservedProperty> obsProps = new ArrayList<>();
+        for (int d = 0; d < datastreamsPerThing; d++) {
+            obsProps.add(new ObservedProperty("Property " + d, new URI("http://example.org/property/" + d), "Generated property " + d + "."));
+        }
+        return obsProps;
+    }
+
+    /**
+     * Creates Thing t, with its Location.
+     *
+     * @param t The index of the Thing.
+     * @return The Thing.
+     */
+    public Thing createThing(int t) {
+        Random random = new Random(seedFor(t));
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("generator", DatasetGenerator.class.getSimpleName());
+        properties.put("seed", seed);
+        properties.put("index", t);
+        Thing thing = new Thing("Thing " + t, "Generated thing " + t + ".", properties);
+        thing.getLocations().add(new Location("Location " + t, "Location of Thing " + t + ".", "application/vnd.geo+json", createPoint(t, random)));
+        return thing;
+    }
+
+    private Point createPoint(int t, Random random) {
+        double width = maxLon - minLon;
+        double height = maxLat - minLat;
+        switch (geometryDistribution) {
+            case GRID:
+                int side = (int) Math.ceil(Math.sqrt(thingCount));
+                return new Point(minLon + width * ((t % side) + 0.5) / side, minLat + height * ((t / side) + 0.5) / side);
+
+            case CLUSTERED:
+                // The cluster centres come from their own sequence, so they are the same for all Things.
+                int cluster = random.nextInt(Math.max(1, clusterCount));
+                Random centres = new Random(seedFor(-1 - cluster));
+                double lon = minLon + width * centres.nextDouble() + random.nextGaussian() * clusterSpread;
+                double lat = minLat + height * centres.nextDouble() + random.nextGaussian() * clusterSpread;
+                return new Point(clamp(lon, minLon, maxLon), clamp(lat, minLat, maxLat));
+
+            case UNIFORM:
+            default:
+                return new Point(minLon + width * random.nextDouble(), minLat + height * random.nextDouble());
+        }
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Creates Datastream d of the given Thing.
+     *
+     * @param t The index of the Thing.
+     * @param d The index of the Datastream in the Thing.
+     * @param thing The Thing.
+     * @param sensor The Sensor of the Datastream.
+     * @param obsProp The ObservedProperty of the Datastream.
+     * @return The Datastream.
+     */
+    public Datastream createDatastream(int t, int d, Thing thing, Sensor sensor, ObservedProperty obsProp) {
+        Datastream datastream = new Datastream("Datastream " + t + "." + d, "Datastream " + d + " of Thing " + t + ".", "http://www.opengis.net/def/observationType/OGC-OM/2.0/OM_Measurement", new UnitOfMeasurement("unit " + d, "u" + d, "http://example.org/unit/" + d));
+        datastream.setThing(thing.withOnlyId());
+        datastream.setSensor(sensor.withOnlyId());
+        datastream.setObservedProperty(obsProp.withOnlyId());
+        return datastream;
+    }
+
+    /**
+     * Generates the Observations of Datastream d of Thing t, without keeping
+     * them in memory.
+     *
+     * @param t The index of the Thing.
+     * @param d The index of the Datastream in the Thing.
+     * @param datastream The Datastream, with its id.
+     * @param writer The writer to pass the Observations to.
+     * @throws ServiceFailureException If the writer fails.
+     * @throws IOException If the writer fails.
+     */
+    public void createObservations(int t, int d, Datastream datastream, ObservationWriter writer) throws ServiceFailureException, IOException {
+        Random random = new Random(seedFor((long) t * datastreamsPerThing + d + thingCount));
+        Datastream dsRef = datastream.withOnlyId();
+        long stepNanos = observationsPerDatastream <= 1 ? 0 : timeSpan.toNanos() / (observationsPerDatastream - 1);
+        Duration validity = stepNanos == 0 ? RESULT_DELAY : Duration.ofNanos(stepNanos);
+        double value = 20 * random.nextDouble();
+        for (int i = 0; i < observationsPerDatastream; i++) {
+            value += random.nextGaussian();
+            Observation o = new Observation(Math.round(value * 100) / 100.0, dsRef);
+            Instant phenomenonTime = start.plusNanos(stepNanos * i);
+            o.setPhenomenonTimeFrom(ZonedDateTime.ofInstant(phenomenonTime, ZoneOffset.UTC));
+            o.setResultTime(ZonedDateTime.ofInstant(phenomenonTime.plus(RESULT_DELAY), ZoneOffset.UTC));
+            o.setValidTime(Interval.of(phenomenonTime, validity));
+            writer.write(o);
+        }
+    }
+
+    /**
+     * Writes the dataset to the service. Things are created in parallel, and
+     * Observations are sent in batches.
+     *
+     * @param service The service to write to. Only used for the shared
+     * entities, workers get their own service.
+     * @param workers The number of Things to create in parallel.
+     * @param batchSize The number of Observations per request.
+     * @throws ServiceFailureException If writing fails.
+     * @throws URISyntaxException If the service url is not valid.
+     * @throws IOException If the service url is not valid.
+     */
+    public void writeToService(SensorThingsService service, int workers, int batchSize) throws ServiceFailureException, URISyntaxException, IOException {
+        long startTime = System.currentTimeMillis();
+        LatencyRecorder latencies = LatencyRecorder.getInstance();
+        List<Sensor> sensors = createSensors();
+        for (Sensor sensor : sensors) {
+            latencies.create(service, sensor);
+        }
+        List<ObservedProperty> obsProps = createObservedProperties();
+        for (ObservedProperty obsProp : obsProps) {
+            latencies.create(service, obsProp);
+        }
+        PoolingHttpClientConnectionManager connectionManager = Constants.createConnectionManager(workers, workers);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < thingCount; t++) {
+                int thingIndex = t;
+                SensorThingsService workerService = Constants.createService(new URL(Constants.getBaseUrl()), connectionManager)
+                        .setTokenManager(service.getTokenManager());
+                tasks.add(pool.submit(() -> {
+                    writeThing(workerService, thingIndex, sensors, obsProps, batchSize);
+                    return null;
+                }));
+            }
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceFailureException("Interrupted while writing dataset.", ex);
+        } catch (ExecutionException ex) {
+            throw new ServiceFailureException("Failed to write dataset.", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+            connectionManager.close();
+        }
+        long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        LOGGER.info("Wrote {} Things and {} Observations in {}ms, {} obs/s.", thingCount, getObservationCount(), duration, getObservationCount() * 1000 / duration);
+    }
+
+    private void writeThing(SensorThingsService service, int t, List<Sensor> sensors, List<ObservedProperty> obsProps, int batchSize) throws ServiceFailureException, IOException {
+        LatencyRecorder latencies = LatencyRecorder.getInstance();
+        Thing thing = createThing(t);
+        latencies.create(service, thing);
+        ObservationBatcher batcher = batchSize > 1 ? new ObservationBatcher(service, batchSize, COMPONENTS) : null;
+        for (int d = 0; d < datastreamsPerThing; d++) {
+            Datastream datastream = createDatastream(t, d, thing, sensors.get(d), obsProps.get(d));
+            latencies.create(service, datastream);
+            if (batcher == null) {
+                createObservations(t, d, datastream, o -> latencies.create(service, o));
+            } else {
+                createObservations(t, d, datastream, batcher::add);
+            }
+        }
+        if (batcher != null) {
+            batcher.flush();
+        }
+        LOGGER.debug("Wrote Thing {}.", t);
+    }
+
+    /**
+     * Writes the dataset to JSON lines files in the given directory: one file
+     * per entity type, one entity per line. Entities get sequential ids, and
+     * refer to each other by those ids.
+     *
+     * @param directory The directory to write to.
+     * @throws IOException If writing fails.
+     * @throws URISyntaxException Never.
+     */
+    public void writeToFiles(File directory) throws IOException, URISyntaxException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        long startTime = System.currentTimeMillis();
+        ObjectWriter json = ObjectMapperFactory.get().writer();
+        List<Sensor> sensors = createSensors();
+        List<ObservedProperty> obsProps = createObservedProperties();
+        try (Writer sensorOut = open(directory, "Sensors.jsonl");
+                Writer obsPropOut = open(directory, "ObservedProperties.jsonl");
+                Writer thingOut = open(directory, "Things.jsonl");
+                Writer datastreamOut = open(directory, "Datastreams.jsonl");
+                Writer observationOut = open(directory, "Observations.jsonl")) {
+            for (int d = 0; d < datastreamsPerThing; d++) {
+                writeLine(json, sensorOut, sensors.get(d), d + 1);
+                writeLine(json, obsPropOut, obsProps.get(d), d + 1);
+            }
+            long[] observationId = {1};
+            for (int t = 0; t < thingCount; t++) {
+                Thing thing = createThing(t);
+                writeLine(json, thingOut, thing, t + 1);
+                for (int d = 0; d < datastreamsPerThing; d++) {
+                    Datastream datastream = createDatastream(t, d, thing, sensors.get(d), obsProps.get(d));
+                    writeLine(json, datastreamOut, datastream, (long) t * datastreamsPerThing + d + 1);
+                    try {
+                        createObservations(t, d, datastream, o -> writeLine(json, observationOut, o, observationId[0]++));
+                    } catch (ServiceFailureException ex) {
+                        // Can not happen, writing to a file does not use the service.
+                        throw new IOException(ex);
+                    }
+                }
+            }
+        }
+        long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        LOGGER.info("Wrote {} Things and {} Observations to {} in {}ms.", thingCount, getObservationCount(), directory.getAbsolutePath(), duration);
+    }
+
+    private static Writer open(File directory, String name) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, name)), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    private static void writeLine(ObjectWriter json, Writer out, Entity<?> entity, long id) throws IOException {
+        entity.setId(new IdLong(id));
+        out.write(json.writeValueAsString(entity));
+        out.write('\n');
+    }
+
+    public static void main(String[] args) throws ServiceFailureException, URISyntaxException, IOException {
+        DatasetGenerator generator = DatasetGenerator.forScale(SCALE_FACTOR).setSeed(SEED);
+        String outputDir = args.length > 0 ? args[0] : OUTPUT_DIR;
+        if (outputDir != null) {
+            generator.writeToFiles(new File(outputDir));
+            return;
+        }
+        LOGGER.info("Writing dataset with seed {} and scale factor {} to {}", SEED, SCALE_FACTOR, Constants.getBaseUrl());
+        SensorThingsService service = Constants.createService(Constants.getBaseUrl());
+        LatencyRecorder.getInstance().startReporting(10, TimeUnit.SECONDS, null);
+        try {
+            generator.writeToService(service, WORKER_COUNT, BATCH_SIZE);
+        } finally {
+            LatencyRecorder.getInstance().stopReporting();
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * A bounded cache with size-based and time-based eviction. When the cache is
+ * full, the least recently used entry is evicted. Entries older than the
+ * time-to-live are reloaded.
+ *
+ * Concurrent misses on the same key may both load the value; the last one
+ * wins. For the metadata lookups this is meant for, that is cheaper than
+ * holding a lock during a request.
+ *
+ * @author Hylke van der Schaaf
+ * @param <K> The type of the keys.
+ * @param <V> The type of the values.
+ */
+public class EntityCache<K, V> {
+
+    private static class Entry<V> {
+
+        final V value;
+        final long expires;
+
+        Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxSize The maximum number of entries.
+     * @param ttl The time after which an entry is reloaded.
+     * @param unit The unit of the ttl.
+     */
+    public EntityCache(int maxSize, long ttl, TimeUnit unit) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Size must be at least 1, got " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                if (size() > EntityCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached value for the key, or loads it if it is not cached or
+     * expired. Null values are not cached.
+     *
+     * @param key The key to look up.
+     * @param loader The loader used on a miss.
+     * @return The value, or null if the loader returned null.
+     * @throws ServiceFailureException If the loader failed.
+     */
+    public V get(K key, LatencyRecorder.ServiceCall<V> loader) throws ServiceFailureException {
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        value = loader.call();
+        if (value != null) {
+            put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the cached value, counting a hit or a miss.
+     *
+     * @param key The key to look up.
+     * @return The value, or null if it is not cached or expired.
+     */
+    public synchronized V getIfPresent(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.expires - System.nanoTime() > 0) {
+            hits++;
+            return entry.value;
+        }
+        if (entry != null) {
+            entries.remove(key);
+            evictions++;
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * @param key The key to store the value under.
+     * @param value The value to store.
+     */
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * @param key The key to remove.
+     */
+    public synchronized void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Removes all entries for which the given filter returns true.
+     *
+     * @param filter The filter to test the values with.
+     */
+    public synchronized void invalidateIf(Predicate<V> filter) {
+        for (Iterator<Entry<V>> it = entries.values().iterator(); it.hasNext();) {
+            if (filter.test(it.next().value)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return The number of entries, including expired ones that were not
+     * looked up since they expired.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of lookups that found a value.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of lookups that did not find a value.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of entries removed because the cache was full or the
+     * entry expired.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EntityCache{size=" + entries.size() + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "}";
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A compact set of expected numeric entity ids within a fixed range, backed by
+ * a bit set. Uses one bit per id in the range, regardless of how many entities
+ * the expected result holds.
+ *
+ * Not thread safe.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ExpectedIds {
+
+    private final long from;
+    private final long to;
+    private final BitSet bits;
+
+    /**
+     * Creates an empty set for ids in the range [from, to).
+     *
+     * @param from The lowest id that can be expected, inclusive.
+     * @param to The highest id that can be expected, exclusive.
+     */
+    public ExpectedIds(long from, long to) {
+        if (to < from || to - from > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid id range [" + from + ", " + to + ")");
+        }
+        this.from = from;
+        this.to = to;
+        this.bits = new BitSet((int) (to - from));
+    }
+
+    /**
+     * Creates a set that expects all ids in the range [from, to).
+     *
+     * @param from The lowest expected id, inclusive.
+     * @param to The highest expected id, exclusive.
+     * @return A set containing all ids in the range.
+     */
+    public static ExpectedIds range(long from, long to) {
+        ExpectedIds ids = new ExpectedIds(from, to);
+        ids.bits.set(0, (int) (to - from));
+        return ids;
+    }
+
+    /**
+     * Marks the given id as expected.
+     *
+     * @param id The id to expect.
+     */
+    public void add(long id) {
+        if (!inRange(id)) {
+            throw new IllegalArgumentException("Id " + id + " outside of range [" + from + ", " + to + ")");
+        }
+        bits.set((int) (id - from));
+    }
+
+    /**
+     * Marks the given id as seen.
+     *
+     * @param id The id that was seen.
+     * @return true if the id was expected and not seen before.
+     */
+    public boolean remove(long id) {
+        if (!inRange(id)) {
+            return false;
+        }
+        int index = (int) (id - from);
+        boolean expected = bits.get(index);
+        bits.clear(index);
+        return expected;
+    }
+
+    private boolean inRange(long id) {
+        return id >= from && id < to;
+    }
+
+    /**
+     * @return The number of expected ids that have not been seen.
+     */
+    public int remaining() {
+        return bits.cardinality();
+    }
+
+    /**
+     * @param max The maximum number of ids to return.
+     * @return The first max ids that were expected but not seen.
+     */
+    public List<Long> firstRemaining(int max) {
+        List<Long> result = new ArrayList<>();
+        for (int i = bits.nextSetBit(0); i >= 0 && result.size() < max; i = bits.nextSetBit(i + 1)) {
+            result.add(from + i);
+        }
+        return result;
+    }
+
+}
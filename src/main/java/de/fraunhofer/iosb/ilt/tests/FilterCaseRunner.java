@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.dao.BaseDao;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.model.ext.EntityList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks a table of filters against one entity set. Each case is a filter and
+ * the indices, in a list of known entities, of the entities the filter should
+ * return. All queries run concurrently on a pool of workers sharing the
+ * service and its connection pool, and all failures are collected into one
+ * result, instead of stopping at the first failing filter.
+ *
+ * Besides saving wall time, a large table is also a concurrent query load on
+ * the server. Query latencies are recorded under "filter".
+ *
+ * @author Hylke van der Schaaf
+ * @param <T> The entity type.
+ */
+public class FilterCaseRunner<T extends Entity<T>> {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilterCaseRunner.class);
+    /**
+     * The default number of queries that run at the same time.
+     */
+    private static final int DEFAULT_THREADS = 8;
+
+    /**
+     * One filter and its expected result.
+     */
+    private static class Case {
+
+        final String filter;
+        final int[] expected;
+
+        Case(String filter, int[] expected) {
+            this.filter = filter;
+            this.expected = expected;
+        }
+    }
+
+    private final BaseDao<T> dao;
+    private final List<T> entities;
+    private final List<Case> cases = new ArrayList<>();
+    private TestFixture fixture;
+    private int threads = DEFAULT_THREADS;
+
+    /**
+     * @param dao The dao to query.
+     * @param entities The known entities, the expected indices of the cases
+     * point into this list.
+     */
+    public FilterCaseRunner(BaseDao<T> dao, List<T> entities) {
+        this.dao = dao;
+        this.entities = entities;
+    }
+
+    /**
+     * Adds a case.
+     *
+     * @param filter The filter to query with.
+     * @param expected The indices of the entities the filter should return.
+     * @return this.
+     */
+    public FilterCaseRunner<T> add(String filter, int... expected) {
+        cases.add(new Case(filter, expected));
+        return this;
+    }
+
+    /**
+     * Restricts all results to the entities owned by the given fixture
+     * before they are checked, for servers shared with other tests.
+     *
+     * @param fixture The fixture that owns the known entities.
+     * @return this.
+     */
+    public FilterCaseRunner<T> setFixture(TestFixture fixture) {
+        this.fixture = fixture;
+        return this;
+    }
+
+    /**
+     * @param threads The number of queries that run at the same time.
+     * @return this.
+     */
+    public FilterCaseRunner<T> setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least 1 thread, got " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Runs all cases, and waits for them to finish.
+     *
+     * @return The combined result. The message lists every failing filter
+     * with its cause, one per line.
+     */
+    public Utils.TestResult run() {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, cases.size())));
+        try {
+            List<Future<String>> checks = new ArrayList<>(cases.size());
+            for (Case c : cases) {
+                checks.add(pool.submit(() -> check(c)));
+            }
+            StringBuilder problems = new StringBuilder();
+            int failed = 0;
+            for (int i = 0; i < checks.size(); i++) {
+                String problem;
+                try {
+                    problem = checks.get(i).get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return new Utils.TestResult(false, "Interrupted while checking filters.");
+                } catch (ExecutionException ex) {
+                    problem = "Check failed: " + ex.getCause();
+                }
+                if (problem != null) {
+                    failed++;
+                    problems.append('\n').append(cases.get(i).filter).append(": ").append(problem);
+                }
+            }
+            if (failed > 0) {
+                LOGGER.info("{} of {} filters failed.", failed, cases.size());
+                return new Utils.TestResult(false, failed + " of " + cases.size() + " filters failed:" + problems);
+            }
+            return new Utils.TestResult(true, "Check ok.");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return null if the case passes, or the cause of the failure.
+     */
+    private String check(Case c) {
+        List<T> expected = new ArrayList<>(c.expected.length);
+        for (int index : c.expected) {
+            expected.add(entities.get(index));
+        }
+        EntityList<T> result;
+        try {
+            result = LatencyRecorder.getInstance().time("filter", () -> dao.query().filter(c.filter).list());
+            if (fixture != null) {
+                result = fixture.owned(result);
+            }
+        } catch (ServiceFailureException | IllegalArgumentException ex) {
+            return "Failed to call service: " + ex.getMessage();
+        }
+        Utils.TestResult check = Utils.resultContains(result, expected);
+        if (check.testOk) {
+            return null;
+        }
+        return check.message + " Expected indices " + Arrays.toString(c.expected) + ".";
+    }
+
+}
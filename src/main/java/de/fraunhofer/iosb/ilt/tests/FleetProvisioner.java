@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Location;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
+import de.fraunhofer.iosb.ilt.sta.model.Sensor;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.geojson.Point;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provisions a fleet of devices: a Thing with a Location and a number of
+ * Datastreams, each with a few initial Observations. In FLAT mode every
+ * entity is posted separately, and linked by id, like
+ * CreateEntities.createEntities does. In DEEP mode each device is one deep
+ * insert of the Thing with everything in it. The Sensors and
+ * ObservedProperties are shared by all devices; they are resolved once, before
+ * the timed part, and linked by id in both modes.
+ *
+ * Devices are provisioned concurrently. Requests are counted as they are sent,
+ * so failed devices count the requests they used too. The reports of both
+ * modes can be compared with logComparison; main first runs a small fleet in
+ * each mode, so neither mode runs against a cold client and server.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class FleetProvisioner {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(FleetProvisioner.class);
+    /**
+     * The number of devices to provision in each mode.
+     */
+    private static final int DEVICE_COUNT = 1000;
+    /**
+     * The number of devices provisioned in each mode before the measured runs.
+     */
+    private static final int WARMUP_DEVICE_COUNT = 100;
+    private static final int DATASTREAMS_PER_DEVICE = 3;
+    private static final int OBSERVATIONS_PER_DATASTREAM = 2;
+    /**
+     * The number of devices provisioned at the same time.
+     */
+    private static final int CONCURRENCY = 20;
+    private static final ZonedDateTime START = ZonedDateTime.parse("2016-01-01T00:00:00Z");
+
+    /**
+     * How devices are sent to the server.
+     */
+    public static enum Mode {
+        /**
+         * Each entity in a separate request.
+         */
+        FLAT,
+        /**
+         * Each device in one deep insert.
+         */
+        DEEP
+    }
+
+    /**
+     * The outcome of provisioning a fleet.
+     */
+    public static class Report {
+
+        private final Mode mode;
+        private final int devices;
+        private final long requests;
+        private final long failures;
+        private final long nanos;
+
+        public Report(Mode mode, int devices, long requests, long failures, long nanos) {
+            this.mode = mode;
+            this.devices = devices;
+            this.requests = requests;
+            this.failures = failures;
+            this.nanos = nanos;
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public int getDevices() {
+            return devices;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public double getDevicesPerSecond() {
+            return devices * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d devices, %d requests, %d failed, %.3fs, %.1f devices/s",
+                    mode, devices, requests, failures, nanos / 1e9, getDevicesPerSecond());
+        }
+    }
+
+    private final SensorThingsService service;
+    private int datastreamsPerDevice = DATASTREAMS_PER_DEVICE;
+    private int observationsPerDatastream = OBSERVATIONS_PER_DATASTREAM;
+    private int concurrency = CONCURRENCY;
+    private List<Sensor> sensors;
+    private List<ObservedProperty> observedProperties;
+
+    /**
+     * @param service The service to provision. Its connection pool should
+     * allow concurrency connections.
+     */
+    public FleetProvisioner(SensorThingsService service) {
+        this.service = service;
+    }
+
+    /**
+     * @param datastreamsPerDevice The number of Datastreams of each device.
+     * @param observationsPerDatastream The number of initial Observations of
+     * each Datastream.
+     * @return this.
+     */
+    public FleetProvisioner setDevice(int datastreamsPerDevice, int observationsPerDatastream) {
+        this.datastreamsPerDevice = datastreamsPerDevice;
+        this.observationsPerDatastream = observationsPerDatastream;
+        sensors = null;
+        observedProperties = null;
+        return this;
+    }
+
+    /**
+     * @param concurrency The number of devices provisioned at the same time.
+     * @return this.
+     */
+    public FleetProvisioner setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Finds or creates the Sensor and ObservedProperty of each Datastream
+     * slot.
+     */
+    private void resolveShared() throws ServiceFailureException {
+        if (sensors != null) {
+            return;
+        }
+        MetadataResolver resolver = new MetadataResolver(service);
+        sensors = new ArrayList<>();
+        observedProperties = new ArrayList<>();
+        for (int i = 0; i < datastreamsPerDevice; i++) {
+            Sensor sensor = new Sensor("Fleet Sensor " + i, "Sensor type " + i + " of the fleet.", "text", "Some metadata.");
+            sensors.add(resolver.resolveSensor(sensor).withOnlyId());
+            ObservedProperty op = new ObservedProperty("Fleet Property " + i, URI.create("http://example.org/fleet/property/" + i), "Property " + i + " of the fleet.");
+            observedProperties.add(resolver.resolveObservedProperty(op).withOnlyId());
+        }
+    }
+
+    /**
+     * Builds the Thing of one device, without its Location and Datastreams;
+     * DEEP mode adds them, FLAT mode links them.
+     */
+    private Thing createThing(String prefix, int index) {
+        return new Thing(prefix + " device " + index, "Device " + index + " of fleet " + prefix,
+                Collections.singletonMap("reference", prefix + "-" + index));
+    }
+
+    private Location createLocation(String prefix, int index) {
+        return new Location(prefix + " location " + index, "Location of device " + index, "application/vnd.geo+json",
+                new Point(8 + (index % 100) * 0.01, 49 + (index / 100) * 0.01));
+    }
+
+    private Datastream createDatastream(String prefix, int index, int slot) {
+        Datastream ds = new Datastream(prefix + " device " + index + " stream " + slot, "Stream " + slot + " of device " + index,
+                "http://www.opengis.net/def/observationType/OGC-OM/2.0/OM_Measurement", new UnitOfMeasurement("unit " + slot, "u" + slot, "ucum:" + slot));
+        ds.setSensor(sensors.get(slot));
+        ds.setObservedProperty(observedProperties.get(slot));
+        return ds;
+    }
+
+    private Observation createObservation(int index, int nr) {
+        return new Observation(index + nr * 0.5, START.plusMinutes(nr));
+    }
+
+    /**
+     * @param requests Counts the requests as they are sent.
+     */
+    private void provisionDeep(String prefix, int index, LongAdder requests) throws ServiceFailureException {
+        Thing thing = createThing(prefix, index);
+        thing.getLocations().add(createLocation(prefix, index));
+        for (int slot = 0; slot < datastreamsPerDevice; slot++) {
+            Datastream ds = createDatastream(prefix, index, slot);
+            for (int nr = 0; nr < observationsPerDatastream; nr++) {
+                ds.getObservations().add(createObservation(index, nr));
+            }
+            thing.getDatastreams().add(ds);
+        }
+        requests.increment();
+        LatencyRecorder.getInstance().time("create device (deep)", () -> service.create(thing));
+    }
+
+    /**
+     * @param requests Counts the requests as they are sent.
+     */
+    private void provisionFlat(String prefix, int index, LongAdder requests) throws ServiceFailureException {
+        LatencyRecorder latencies = LatencyRecorder.getInstance();
+        Thing thing = createThing(prefix, index);
+        requests.increment();
+        latencies.create(service, thing);
+        Location location = createLocation(prefix, index);
+        location.getThings().add(thing.withOnlyId());
+        requests.increment();
+        latencies.create(service, location);
+        for (int slot = 0; slot < datastreamsPerDevice; slot++) {
+            Datastream ds = createDatastream(prefix, index, slot);
+            ds.setThing(thing.withOnlyId());
+            requests.increment();
+            latencies.create(service, ds);
+            for (int nr = 0; nr < observationsPerDatastream; nr++) {
+                Observation o = createObservation(index, nr);
+                o.setDatastream(ds.withOnlyId());
+                requests.increment();
+                latencies.create(service, o);
+            }
+        }
+    }
+
+    /**
+     * Provisions deviceCount devices.
+     *
+     * @param mode How to send the devices.
+     * @param prefix The prefix of the names and references of the devices, to
+     * keep fleets apart.
+     * @param deviceCount The number of devices.
+     * @return The report of the run.
+     * @throws ServiceFailureException If the shared Sensors or
+     * ObservedProperties could not be resolved.
+     * @throws InterruptedException If interrupted while waiting for the
+     * workers.
+     */
+    public Report provision(Mode mode, String prefix, int deviceCount) throws ServiceFailureException, InterruptedException {
+        resolveShared();
+        LongAdder requests = new LongAdder();
+        LongAdder failures = new LongAdder();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>(deviceCount);
+        for (int i = 0; i < deviceCount; i++) {
+            final int index = i;
+            futures.add(workers.submit(() -> {
+                try {
+                    if (mode == Mode.DEEP) {
+                        provisionDeep(prefix, index, requests);
+                    } else {
+                        provisionFlat(prefix, index, requests);
+                    }
+                } catch (ServiceFailureException ex) {
+                    LOGGER.error("Failed to provision device {}: {}", index, ex.getMessage());
+                    failures.increment();
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Provisioning task failed.", ex.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        Report report = new Report(mode, deviceCount, requests.sum(), failures.sum(), System.nanoTime() - start);
+        LOGGER.info("{}", report);
+        return report;
+    }
+
+    /**
+     * Logs how the deep mode compares to the flat mode.
+     *
+     * @param flat The report of the flat run.
+     * @param deep The report of the deep run.
+     */
+    public static void logComparison(Report flat, Report deep) {
+        LOGGER.info("Deep insert saved {} of {} requests ({}%), and took {}s instead of {}s ({}x faster).",
+                flat.getRequests() - deep.getRequests(),
+                flat.getRequests(),
+                String.format("%.1f", 100.0 * (flat.getRequests() - deep.getRequests()) / flat.getRequests()),
+                String.format("%.3f", deep.getNanos() / 1e9),
+                String.format("%.3f", flat.getNanos() / 1e9),
+                String.format("%.2f", (double) flat.getNanos() / deep.getNanos()));
+    }
+
+    /**
+     * @param args the command line arguments
+     * @throws ServiceFailureException If the shared metadata can not be
+     * resolved.
+     * @throws MalformedURLException If the service url is wrong.
+     * @throws URISyntaxException If the service url is wrong.
+     * @throws InterruptedException If interrupted.
+     */
+    public static void main(String[] args) throws ServiceFailureException, MalformedURLException, URISyntaxException, InterruptedException {
+        PoolingHttpClientConnectionManager connectionManager = Constants.createConnectionManager(CONCURRENCY, CONCURRENCY);
+        SensorThingsService service = Constants.createService(new URL(Constants.getBaseUrl()), connectionManager);
+        FleetProvisioner provisioner = new FleetProvisioner(service);
+        String run = Long.toString(System.currentTimeMillis(), 36);
+        LOGGER.info("Provisioning {} devices with {} Datastreams of {} Observations each, {} at a time, in {}.",
+                DEVICE_COUNT, DATASTREAMS_PER_DEVICE, OBSERVATIONS_PER_DATASTREAM, CONCURRENCY, Constants.getBaseUrl());
+        LOGGER.info("Warming up with {} devices per mode.", WARMUP_DEVICE_COUNT);
+        provisioner.provision(Mode.FLAT, "warmup-flat-" + run, WARMUP_DEVICE_COUNT);
+        provisioner.provision(Mode.DEEP, "warmup-deep-" + run, WARMUP_DEVICE_COUNT);
+        Report flat = provisioner.provision(Mode.FLAT, "flat-" + run, DEVICE_COUNT);
+        Report deep = provisioner.provision(Mode.DEEP, "deep-" + run, DEVICE_COUNT);
+        logComparison(flat, deep);
+        LatencyRecorder.getInstance().report();
+        connectionManager.shutdown();
+    }
+
+}
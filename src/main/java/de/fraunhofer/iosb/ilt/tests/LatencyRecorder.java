@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the latency of service calls in one HDR histogram per operation
+ * type, reports percentiles periodically, and can write all interval
+ * histograms to a .hlog file for offline comparison.
+ *
+ * All values are recorded in nanoseconds and reported in milliseconds.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class LatencyRecorder {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LatencyRecorder.class);
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final LatencyRecorder INSTANCE = new LatencyRecorder();
+
+    /**
+     * A call to the service that can fail.
+     *
+     * @param <R> The return type of the call.
+     */
+    @FunctionalInterface
+    public static interface ServiceCall<R> {
+
+        public R call() throws ServiceFailureException;
+    }
+
+    /**
+     * A call to the service that can fail, and does not return anything.
+     */
+    @FunctionalInterface
+    public static interface VoidServiceCall {
+
+        public void call() throws ServiceFailureException;
+    }
+
+    private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> totals = new TreeMap<>();
+    private final Map<String, Histogram> intervalHistograms = new TreeMap<>();
+    private ScheduledExecutorService reporter;
+    private HistogramLogWriter logWriter;
+    private File logFile;
+    private boolean shutdownHookAdded = false;
+
+    /**
+     * @return The recorder shared by all tools in this JVM.
+     */
+    public static LatencyRecorder getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records a latency for the given operation.
+     *
+     * @param operation The name of the operation.
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(String operation, long nanos) {
+        recorders.computeIfAbsent(operation, k -> new Recorder(SIGNIFICANT_DIGITS))
+                .recordValue(Math.max(0, nanos));
+    }
+
+    /**
+     * Records the time passed since the given start time for the given
+     * operation.
+     *
+     * @param operation The name of the operation.
+     * @param startNanos The start time, from System.nanoTime().
+     */
+    public void recordSince(String operation, long startNanos) {
+        record(operation, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Executes the call and records its latency, also when it fails.
+     *
+     * @param <R> The return type of the call.
+     * @param operation The name of the operation.
+     * @param call The call to time.
+     * @return The result of the call.
+     * @throws ServiceFailureException If the call fails.
+     */
+    public <R> R time(String operation, ServiceCall<R> call) throws ServiceFailureException {
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            recordSince(operation, start);
+        }
+    }
+
+    /**
+     * Executes the call and records its latency, also when it fails.
+     *
+     * @param operation The name of the operation.
+     * @param call The call to time.
+     * @throws ServiceFailureException If the call fails.
+     */
+    public void time(String operation, VoidServiceCall call) throws ServiceFailureException {
+        long start = System.nanoTime();
+        try {
+            call.call();
+        } finally {
+            recordSince(operation, start);
+        }
+    }
+
+    /**
+     * Creates the entity, recording the latency under "create [EntityType]".
+     *
+     * @param <T> The type of the entity.
+     * @param service The service to create the entity in.
+     * @param entity The entity to create.
+     * @throws ServiceFailureException If the creation fails.
+     */
+    public <T extends Entity<T>> void create(SensorThingsService service, T entity) throws ServiceFailureException {
+        time("create " + entity.getClass().getSimpleName(), () -> service.create(entity));
+    }
+
+    /**
+     * Deletes the entity, recording the latency under "delete [EntityType]".
+     *
+     * @param <T> The type of the entity.
+     * @param service The service to delete the entity from.
+     * @param entity The entity to delete.
+     * @throws ServiceFailureException If the delete fails.
+     */
+    public <T extends Entity<T>> void delete(SensorThingsService service, T entity) throws ServiceFailureException {
+        time("delete " + entity.getClass().getSimpleName(), () -> service.delete(entity));
+    }
+
+    /**
+     * Starts logging the percentiles of all operations with the given
+     * interval. If logFile is not null, all interval histograms are also
+     * written to that file, in the HdrHistogram log format.
+     *
+     * @param interval The time between reports.
+     * @param unit The unit of interval.
+     * @param logFile The file to write the histogram log to, or null.
+     * @throws FileNotFoundException If the log file can not be created.
+     */
+    public synchronized void startReporting(long interval, TimeUnit unit, File logFile) throws FileNotFoundException {
+        if (reporter != null) {
+            throw new IllegalStateException("Already reporting.");
+        }
+        if (logFile != null) {
+            this.logFile = logFile;
+            logWriter = new HistogramLogWriter(logFile);
+            long now = System.currentTimeMillis();
+            logWriter.outputLogFormatVersion();
+            logWriter.outputStartTime(now);
+            logWriter.setBaseTime(now);
+            logWriter.outputLegend();
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "LatencyReporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(this::report, interval, interval, unit);
+        if (!shutdownHookAdded) {
+            // One hook covers all reporting sessions of this recorder.
+            Runtime.getRuntime().addShutdownHook(new Thread(this::stopReporting, "LatencyReporterShutdown"));
+            shutdownHookAdded = true;
+        }
+    }
+
+    /**
+     * Stops the periodic reporting, logs the totals and closes the histogram
+     * log. Safe to call more than once.
+     */
+    public synchronized void stopReporting() {
+        if (reporter == null) {
+            return;
+        }
+        reporter.shutdownNow();
+        reporter = null;
+        report();
+        for (Map.Entry<String, Histogram> entry : totals.entrySet()) {
+            log("Total", entry.getKey(), entry.getValue());
+        }
+        if (logWriter != null) {
+            logWriter.close();
+            logWriter = null;
+            LOGGER.info("Histograms written to {}", logFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Logs the percentiles of all operations since the last report, and adds
+     * them to the totals.
+     */
+    public synchronized void report() {
+        for (Map.Entry<String, Recorder> entry : new TreeMap<>(recorders).entrySet()) {
+            String operation = entry.getKey();
+            Histogram interval = entry.getValue().getIntervalHistogram(intervalHistograms.get(operation));
+            intervalHistograms.put(operation, interval);
+            if (interval.getTotalCount() == 0) {
+                continue;
+            }
+            totals.computeIfAbsent(operation, k -> new Histogram(SIGNIFICANT_DIGITS)).add(interval);
+            log("Interval", operation, interval);
+            if (logWriter != null) {
+                interval.setTag(operation.replace(' ', '_'));
+                logWriter.outputIntervalHistogram(interval);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the totals of the given operation, of all reports so
+     * far.
+     *
+     * @param operation The operation to get the totals for.
+     * @return A copy of the totals, or null if nothing was reported.
+     */
+    public synchronized Histogram getTotal(String operation) {
+        Histogram total = totals.get(operation);
+        if (total == null) {
+            return null;
+        }
+        return total.copy();
+    }
+
+    private static void log(String prefix, String operation, Histogram h) {
+        LOGGER.info("{} {}: n={} p50={}ms p90={}ms p99={}ms p99.9={}ms max={}ms",
+                prefix, operation, h.getTotalCount(),
+                millis(h.getValueAtPercentile(50)),
+                millis(h.getValueAtPercentile(90)),
+                millis(h.getValueAtPercentile(99)),
+                millis(h.getValueAtPercentile(99.9)),
+                millis(h.getMaxValue()));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / NANOS_PER_MILLI);
+    }
+
+}
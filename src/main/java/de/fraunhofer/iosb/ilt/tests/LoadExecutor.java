@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs load generating tasks with a limit on the number of tasks that run at
+ * the same time. Submitting blocks while the limit is reached, so the producer
+ * of the tasks can not run ahead of the service.
+ *
+ * With virtual threads each task gets its own thread, and the limit is the
+ * only bound on concurrency. Virtual threads need Java 21 or later. They are
+ * looked up by reflection, so the project still builds for Java 8; on older
+ * runtimes a fixed pool of platform threads is used instead.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class LoadExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadExecutor.class.getName());
+    private static final Method NEW_VIRTUAL_EXECUTOR = findVirtualExecutorFactory();
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxConcurrency;
+    private final boolean virtual;
+
+    private LoadExecutor(ExecutorService executor, int maxConcurrency, boolean virtual) {
+        this.executor = executor;
+        this.permits = new Semaphore(maxConcurrency);
+        this.maxConcurrency = maxConcurrency;
+        this.virtual = virtual;
+    }
+
+    private static Method findVirtualExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the runtime supports virtual threads.
+     */
+    public static boolean virtualThreadsAvailable() {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor that uses a fixed pool of platform threads.
+     *
+     * @param threads The number of threads, and the concurrency limit.
+     * @return The new executor.
+     */
+    public static LoadExecutor platform(int threads) {
+        return new LoadExecutor(Executors.newFixedThreadPool(threads), threads, false);
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread for each task. Falls
+     * back to a pool of maxConcurrency platform threads if the runtime does
+     * not support virtual threads.
+     *
+     * @param maxConcurrency The maximum number of tasks running at the same
+     * time.
+     * @return The new executor.
+     */
+    public static LoadExecutor virtual(int maxConcurrency) {
+        if (!virtualThreadsAvailable()) {
+            LOGGER.warn("Virtual threads need Java 21, running on {}. Using {} platform threads.", System.getProperty("java.version"), maxConcurrency);
+            return platform(maxConcurrency);
+        }
+        try {
+            ExecutorService executor = (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+            return new LoadExecutor(executor, maxConcurrency, true);
+        } catch (IllegalAccessException | InvocationTargetException ex) {
+            LOGGER.warn("Failed to create virtual thread executor, using {} platform threads.", maxConcurrency, ex);
+            return platform(maxConcurrency);
+        }
+    }
+
+    /**
+     * Creates a virtual or a platform thread executor.
+     *
+     * @param useVirtual If true, use virtual threads, if available.
+     * @param maxConcurrency The maximum number of tasks running at the same
+     * time.
+     * @return The new executor.
+     */
+    public static LoadExecutor create(boolean useVirtual, int maxConcurrency) {
+        if (useVirtual) {
+            return virtual(maxConcurrency);
+        }
+        return platform(maxConcurrency);
+    }
+
+    /**
+     * Submits a task, blocking until fewer than maxConcurrency tasks are
+     * running.
+     *
+     * @param task The task to run.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void submit(Runnable task) throws InterruptedException {
+        permits.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Task failed.", ex);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for the submitted tasks to finish.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return true if all tasks finished, false if the timeout passed.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean shutdownAndWait(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * @return The maximum number of tasks running at the same time.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return The number of tasks currently running.
+     */
+    public int getActive() {
+        return maxConcurrency - permits.availablePermits();
+    }
+
+    /**
+     * @return true if this executor uses virtual threads.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+}
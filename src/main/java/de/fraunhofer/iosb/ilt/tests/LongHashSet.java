@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import java.util.function.LongConsumer;
+
+/**
+ * A set of primitive longs, using open addressing with linear probing. Avoids
+ * boxing every id when checking large results.
+ *
+ * Not thread safe.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class LongHashSet {
+
+    private long[] keys;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize The number of elements the set should be able to
+     * hold without resizing.
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = 4;
+        while (capacity < expectedSize * 2L) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Adds the value to the set.
+     *
+     * @param value The value to add.
+     * @return true if the value was not yet in the set.
+     */
+    public boolean add(long value) {
+        if ((size + 1) * 2L > keys.length) {
+            resize();
+        }
+        int i = slot(value);
+        while (used[i]) {
+            if (keys[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        used[i] = true;
+        keys[i] = value;
+        size++;
+        return true;
+    }
+
+    /**
+     * @param value The value to look for.
+     * @return true if the value is in the set.
+     */
+    public boolean contains(long value) {
+        return indexOf(value) >= 0;
+    }
+
+    /**
+     * Removes the value from the set.
+     *
+     * @param value The value to remove.
+     * @return true if the value was in the set.
+     */
+    public boolean remove(long value) {
+        int gap = indexOf(value);
+        if (gap < 0) {
+            return false;
+        }
+        used[gap] = false;
+        size--;
+        // Shift back following entries that can no longer be found past the gap.
+        int i = (gap + 1) & mask;
+        while (used[i]) {
+            int home = slot(keys[i]);
+            boolean inRange = gap <= i
+                    ? gap < home && home <= i
+                    : gap < home || home <= i;
+            if (!inRange) {
+                keys[gap] = keys[i];
+                used[gap] = true;
+                used[i] = false;
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+        return true;
+    }
+
+    private int indexOf(long value) {
+        int i = slot(value);
+        while (used[i]) {
+            if (keys[i] == value) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        allocate(keys.length * 2);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                add(oldKeys[i]);
+            }
+        }
+    }
+
+    /**
+     * @return The number of values in the set.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Calls the consumer for each value in the set, in no particular order.
+     *
+     * @param consumer The consumer to call.
+     */
+    public void forEach(LongConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) {
+                consumer.accept(keys[i]);
+            }
+        }
+    }
+
+}
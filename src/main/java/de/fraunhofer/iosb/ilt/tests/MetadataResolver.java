@@ -0,0 +1,544 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.dao.BaseDao;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.model.Id;
+import de.fraunhofer.iosb.ilt.sta.model.Location;
+import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
+import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
+import de.fraunhofer.iosb.ilt.sta.model.Sensor;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves metadata entities to existing entities on the server, creating
+ * only those that do not exist yet. Running the same provisioning twice
+ * therefore does not duplicate anything.
+ *
+ * All Things, Locations, Sensors and ObservedProperties are loaded once, into
+ * an in-memory index. Things and ObservedProperties are identified by their
+ * properties.reference, or if they have no reference, Things by their name and
+ * ObservedProperties by their definition. Locations and Sensors are
+ * identified by name, and Datastreams and MultiDatastreams by name within
+ * their Thing. The Datastreams of a Thing are loaded the first time they are
+ * needed, and not at all for Things that were just created. After loading,
+ * resolving a known tree costs no requests, and each missing entity costs
+ * one.
+ *
+ * Resolving an entity sets the id of the given template, so the template can
+ * be used in links afterwards.
+ *
+ * A Thing that does not exist at all can be created with createTreeIfMissing,
+ * with one deep insert instead of one request per entity. The server does not
+ * return the ids of the nested entities of a deep insert, so new Locations,
+ * Sensors and ObservedProperties in it are looked up with one query the first
+ * time they are needed again.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class MetadataResolver {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataResolver.class);
+    /**
+     * The page size used when loading the index.
+     */
+    private static final int LOAD_PAGE_SIZE = 1000;
+    private static final String REFERENCE = "reference";
+
+    private final SensorThingsService service;
+    private final Map<String, Thing> things = new HashMap<>();
+    private final Map<String, Location> locations = new HashMap<>();
+    private final Map<String, Sensor> sensors = new HashMap<>();
+    private final Map<String, ObservedProperty> observedProperties = new HashMap<>();
+    private final Map<Id, Map<String, Datastream>> datastreams = new HashMap<>();
+    private final Map<Id, Map<String, MultiDatastream>> multiDatastreams = new HashMap<>();
+    private final Set<String> unindexedLocations = new HashSet<>();
+    private final Set<String> unindexedSensors = new HashSet<>();
+    private final Set<String> unindexedObservedProperties = new HashSet<>();
+    private final Set<Entity<?>> createdEntities = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean loaded;
+    private long found;
+    private long created;
+    private long requests;
+
+    /**
+     * @param service The service to resolve against.
+     */
+    public MetadataResolver(SensorThingsService service) {
+        this.service = service;
+    }
+
+    /**
+     * Loads the index. Called automatically by the first resolve, call it
+     * again to pick up changes made by others.
+     *
+     * @return this.
+     * @throws ServiceFailureException If loading failed.
+     */
+    public synchronized MetadataResolver load() throws ServiceFailureException {
+        things.clear();
+        locations.clear();
+        sensors.clear();
+        observedProperties.clear();
+        datastreams.clear();
+        multiDatastreams.clear();
+        unindexedLocations.clear();
+        unindexedSensors.clear();
+        unindexedObservedProperties.clear();
+        loadAll(service.things(), things, t -> nameKey(t.getName()));
+        // Things with a reference can be found by both.
+        for (Thing thing : new ArrayList<>(things.values())) {
+            String key = referenceKey(thing);
+            if (key != null) {
+                things.putIfAbsent(key, thing);
+            }
+        }
+        loadAll(service.locations(), locations, l -> nameKey(l.getName()));
+        loadAll(service.sensors(), sensors, s -> nameKey(s.getName()));
+        loadAll(service.observedProperties(), observedProperties, MetadataResolver::observedPropertyKey);
+        // ObservedProperties with a reference can also be found by definition.
+        for (ObservedProperty op : new ArrayList<>(observedProperties.values())) {
+            observedProperties.putIfAbsent(definitionKey(op), op);
+        }
+        loaded = true;
+        LOGGER.info("Loaded {} Things, {} Locations, {} Sensors and {} ObservedProperties.", things.size(), locations.size(), sensors.size(), observedProperties.size());
+        return this;
+    }
+
+    private <T extends Entity<T>> void loadAll(BaseDao<T> dao, Map<String, T> index, Function<T, String> key) throws ServiceFailureException {
+        requests++;
+        for (Iterator<T> it = dao.query().top(LOAD_PAGE_SIZE).list().fullIterator(); it.hasNext();) {
+            T entity = it.next();
+            String k = key.apply(entity);
+            if (k != null) {
+                index.putIfAbsent(k, entity);
+            }
+        }
+    }
+
+    private static String nameKey(String name) {
+        return name == null ? null : "name:" + name;
+    }
+
+    private static String referenceKey(Map<String, Object> properties) {
+        if (properties == null || properties.get(REFERENCE) == null) {
+            return null;
+        }
+        return "ref:" + properties.get(REFERENCE);
+    }
+
+    private static String referenceKey(Thing thing) {
+        return referenceKey(thing.getProperties());
+    }
+
+    private static String thingKey(Thing thing) {
+        String key = referenceKey(thing);
+        return key == null ? nameKey(thing.getName()) : key;
+    }
+
+    private static String definitionKey(ObservedProperty op) {
+        return op.getDefinition() == null ? null : "def:" + op.getDefinition();
+    }
+
+    private static String observedPropertyKey(ObservedProperty op) {
+        String key = referenceKey(op.getProperties());
+        return key == null ? definitionKey(op) : key;
+    }
+
+    /**
+     * Adds the entity with the given key to the index, if it was created in a
+     * deep insert, and is not in the index yet.
+     */
+    private <T extends Entity<T>> void indexCreated(BaseDao<T> dao, Map<String, T> index, Set<String> unindexed, String key) throws ServiceFailureException {
+        if (key == null || !unindexed.remove(key) || index.containsKey(key)) {
+            return;
+        }
+        String value = key.substring(key.indexOf(':') + 1).replace("'", "''");
+        String filter;
+        if (key.startsWith("ref:")) {
+            filter = "properties/" + REFERENCE + " eq '" + value + "'";
+        } else if (key.startsWith("def:")) {
+            filter = "definition eq '" + value + "'";
+        } else {
+            filter = "name eq '" + value + "'";
+        }
+        requests++;
+        Iterator<T> it = dao.query().filter(filter).top(1).list().iterator();
+        if (it.hasNext()) {
+            index.put(key, it.next());
+        }
+    }
+
+    private void ensureLoaded() throws ServiceFailureException {
+        if (!loaded) {
+            load();
+        }
+    }
+
+    /**
+     * Returns the existing entity, or creates the given one.
+     */
+    private <T extends Entity<T>> T resolve(Map<String, T> index, String key, T template, T toCreate) throws ServiceFailureException {
+        T existing = index.get(key);
+        if (existing != null) {
+            found++;
+            template.setId(existing.getId());
+            return existing;
+        }
+        service.create(toCreate);
+        requests++;
+        created++;
+        createdEntities.add(toCreate);
+        createdEntities.add(template);
+        template.setId(toCreate.getId());
+        index.put(key, toCreate);
+        return toCreate;
+    }
+
+    /**
+     * @param template The Location to find or create.
+     * @return The existing or created Location.
+     * @throws ServiceFailureException If a request failed.
+     */
+    public synchronized Location resolveLocation(Location template) throws ServiceFailureException {
+        ensureLoaded();
+        String key = nameKey(template.getName());
+        indexCreated(service.locations(), locations, unindexedLocations, key);
+        return resolve(locations, key, template, template);
+    }
+
+    /**
+     * @param template The Sensor to find or create.
+     * @return The existing or created Sensor.
+     * @throws ServiceFailureException If a request failed.
+     */
+    public synchronized Sensor resolveSensor(Sensor template) throws ServiceFailureException {
+        ensureLoaded();
+        String key = nameKey(template.getName());
+        indexCreated(service.sensors(), sensors, unindexedSensors, key);
+        return resolve(sensors, key, template, template);
+    }
+
+    /**
+     * @param template The ObservedProperty to find or create.
+     * @return The existing or created ObservedProperty.
+     * @throws ServiceFailureException If a request failed.
+     */
+    public synchronized ObservedProperty resolveObservedProperty(ObservedProperty template) throws ServiceFailureException {
+        ensureLoaded();
+        String key = observedPropertyKey(template);
+        indexCreated(service.observedProperties(), observedProperties, unindexedObservedProperties, key);
+        return resolve(observedProperties, key, template, template);
+    }
+
+    /**
+     * Finds or creates the Thing, with its Locations. The Locations of an
+     * existing Thing are not changed. Datastreams of the template are ignored,
+     * see resolveTree.
+     *
+     * @param template The Thing to find or create.
+     * @return The existing or created Thing.
+     * @throws ServiceFailureException If a request failed.
+     */
+    public synchronized Thing resolveThing(Thing template) throws ServiceFailureException {
+        ensureLoaded();
+        String key = thingKey(template);
+        Thing existing = things.get(key);
+        if (existing != null) {
+            return resolve(things, key, template, existing);
+        }
+        Thing toCreate = new Thing(template.getName(), template.getDescription(), template.getProperties());
+        for (Location location : template.getLocations()) {
+            toCreate.getLocations().add(resolveLocation(location).withOnlyId());
+        }
+        Thing result = resolve(things, key, template, toCreate);
+        // A new Thing has no Datastreams yet.
+        datastreams.put(result.getId(), new HashMap<>());
+        multiDatastreams.put(result.getId(), new HashMap<>());
+        return result;
+    }
+
+    /**
+     * Creates the Thing, with its Locations, Datastreams, MultiDatastreams and
+     * their Observations, in one deep insert, if no such Thing exists yet.
+     * Locations, Sensors and ObservedProperties in the template that already
+     * exist are replaced by links to the existing ones. New Sensors and
+     * ObservedProperties used by more than one Datastream are created first,
+     * with one request each. Does nothing if the
+     * Thing exists, use resolveTree to complete an existing Thing.
+     *
+     * The server does not return the ids of the nested entities it created.
+     * The new Thing is added to the index, its Datastreams are loaded when
+     * they are needed, and its new Locations, Sensors and ObservedProperties
+     * are looked up when they are needed.
+     *
+     * @param template The Thing, with its Datastreams and MultiDatastreams.
+     * @return true if the Thing was created.
+     * @throws ServiceFailureException If a request failed.
+     */
+    public synchronized boolean createTreeIfMissing(Thing template) throws ServiceFailureException {
+        ensureLoaded();
+        String key = thingKey(template);
+        if (things.containsKey(key)) {
+            return false;
+        }
+        createSharedMetadata(template);
+        Set<Entity<?>> nested = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Location> templateLocations = new ArrayList<>(template.getLocations());
+        template.getLocations().clear();
+        for (Location location : templateLocations) {
+            template.getLocations().add(linkKnown(service.locations(), locations, unindexedLocations, nameKey(location.getName()), location, nested));
+        }
+        for (Datastream ds : template.getDatastreams()) {
+            ds.setSensor(linkKnown(service.sensors(), sensors, unindexedSensors, nameKey(ds.getSensor().getName()), ds.getSensor(), nested));
+            ds.setObservedProperty(linkKnown(service.observedProperties(), observedProperties, unindexedObservedProperties, observedPropertyKey(ds.getObservedProperty()), ds.getObservedProperty(), nested));
+            nested.add(ds);
+        }
+        for (MultiDatastream mds : template.getMultiDatastreams()) {
+            mds.setSensor(linkKnown(service.sensors(), sensors, unindexedSensors, nameKey(mds.getSensor().getName()), mds.getSensor(), nested));
+            List<ObservedProperty> templateOps = new ArrayList<>(mds.getObservedProperties());
+            mds.getObservedProperties().clear();
+            for (ObservedProperty op : templateOps) {
+                mds.getObservedProperties().add(linkKnown(service.observedProperties(), observedProperties, unindexedObservedProperties, observedPropertyKey(op), op, nested));
+            }
+            nested.add(mds);
+        }
+        service.create(template);
+        requests++;
+        created += 1 + nested.size();
+        createdEntities.add(template);
+        createdEntities.addAll(nested);
+        Thing indexed = new Thing(template.getName(), template.getDescription(), template.getProperties());
+        indexed.setId(template.getId());
+        things.put(key, indexed);
+        things.putIfAbsent(nameKey(template.getName()), indexed);
+        return true;
+    }
+
+    /**
+     * Creates the new Sensors and ObservedProperties that are used more than
+     * once in the tree. A deep insert would create a copy for each use.
+     */
+    private void createSharedMetadata(Thing template) throws ServiceFailureException {
+        Map<String, Integer> uses = new HashMap<>();
+        for (Datastream ds : template.getDatastreams()) {
+            uses.merge(nameKey(ds.getSensor().getName()), 1, Integer::sum);
+            uses.merge(observedPropertyKey(ds.getObservedProperty()), 1, Integer::sum);
+        }
+        for (MultiDatastream mds : template.getMultiDatastreams()) {
+            uses.merge(nameKey(mds.getSensor().getName()), 1, Integer::sum);
+            for (ObservedProperty op : mds.getObservedProperties()) {
+                uses.merge(observedPropertyKey(op), 1, Integer::sum);
+            }
+        }
+        for (Datastream ds : template.getDatastreams()) {
+            createIfShared(uses, ds.getSensor());
+            createIfShared(uses, ds.getObservedProperty());
+        }
+        for (MultiDatastream mds : template.getMultiDatastreams()) {
+            createIfShared(uses, mds.getSensor());
+            for (ObservedProperty op : mds.getObservedProperties()) {
+                createIfShared(uses, op);
+            }
+        }
+    }
+
+    private void createIfShared(Map<String, Integer> uses, Sensor sensor) throws ServiceFailureException {
+        String key = nameKey(sensor.getName());
+        if (uses.get(key) > 1 && !sensors.containsKey(key)) {
+            resolveSensor(sensor);
+        }
+    }
+
+    private void createIfShared(Map<String, Integer> uses, ObservedProperty op) throws ServiceFailureException {
+        String key = observedPropertyKey(op);
+        if (uses.get(key) > 1 && !observedProperties.containsKey(key)) {
+            resolveObservedProperty(op);
+        }
+    }
+
+    /**
+     * @return A link to the known entity with the given key, or the template
+     * if there is none, which is then added to created, and its key to
+     * unindexed.
+     */
+    private <T extends Entity<T>> T linkKnown(BaseDao<T> dao, Map<String, T> index, Set<String> unindexed, String key, T template, Set<Entity<?>> created) throws ServiceFailureException {
+        indexCreated(dao, index, unindexed, key);
+        T existing = index.get(key);
+        if (existing == null) {
+            created.add(template);
+            if (key != null) {
+                unindexed.add(key);
+            }
+            return template;
+        }
+        found++;
+        template.setId(existing.getId());
+        return existing.withOnlyId();
+    }
+
+    /**
+     * @return A copy of the Thing that can be used to navigate to its
+     * Datastreams.
+     */
+    private Thing parent(Thing thing) {
+        Thing parent = thing.withOnlyId();
+        parent.setService(service);
+        return parent;
+    }
+
+    private Map<String, Datastream> datastreamsOf(Thing thing) throws ServiceFailureException {
+        Map<String, Datastream> index = datastreams.get(thing.getId());
+        if (index == null) {
+            index = new HashMap<>();
+            loadAll(parent(thing).datastreams(), index, d -> d.getName());
+            datastreams.put(thing.getId(), index);
+        }
+        return index;
+    }
+
+    private Map<String, MultiDatastream> multiDatastreamsOf(Thing thing) throws ServiceFailureException {
+        Map<String, MultiDatastream> index = multiDatastreams.get(thing.getId());
+        if (index == null) {
+            index = new HashMap<>();
+            loadAll(parent(thing).multiDatastreams(), index, d -> d.getName());
+            multiDatastreams.put(thing.getId(), index);
+        }
+        return index;
+    }
+
+    /**
+     * Finds or creates the Datastream of the given Thing, with its Sensor and
+     * ObservedProperty.
+     *
+     * @param thing The resolved Thing the Datastream belongs to.
+     * @param template The Datastream to find or create.
+     * @return The existing or created Datastream.
+     * @throws ServiceFailureException If a request failed.
+     */
+    public synchronized Datastream resolveDatastream(Thing thing, Datastream template) throws ServiceFailureException {
+        ensureLoaded();
+        Map<String, Datastream> index = datastreamsOf(thing);
+        Datastream existing = index.get(template.getName());
+        if (existing != null) {
+            return resolve(index, template.getName(), template, existing);
+        }
+        Datastream toCreate = new Datastream(template.getName(), template.getDescription(), template.getObservationType(), template.getUnitOfMeasurement());
+        toCreate.setThing(thing.withOnlyId());
+        toCreate.setSensor(resolveSensor(template.getSensor()).withOnlyId());
+        toCreate.setObservedProperty(resolveObservedProperty(template.getObservedProperty()).withOnlyId());
+        return resolve(index, template.getName(), template, toCreate);
+    }
+
+    /**
+     * Finds or creates the MultiDatastream of the given Thing, with its
+     * Sensor and ObservedProperties.
+     *
+     * @param thing The resolved Thing the MultiDatastream belongs to.
+     * @param template The MultiDatastream to find or create.
+     * @return The existing or created MultiDatastream.
+     * @throws ServiceFailureException If a request failed.
+     */
+    public synchronized MultiDatastream resolveMultiDatastream(Thing thing, MultiDatastream template) throws ServiceFailureException {
+        ensureLoaded();
+        Map<String, MultiDatastream> index = multiDatastreamsOf(thing);
+        MultiDatastream existing = index.get(template.getName());
+        if (existing != null) {
+            return resolve(index, template.getName(), template, existing);
+        }
+        MultiDatastream toCreate = new MultiDatastream(template.getName(), template.getDescription(), template.getMultiObservationDataTypes(), template.getUnitOfMeasurements());
+        toCreate.setProperties(template.getProperties());
+        toCreate.setThing(thing.withOnlyId());
+        toCreate.setSensor(resolveSensor(template.getSensor()).withOnlyId());
+        for (ObservedProperty op : template.getObservedProperties()) {
+            toCreate.getObservedProperties().add(resolveObservedProperty(op).withOnlyId());
+        }
+        return resolve(index, template.getName(), template, toCreate);
+    }
+
+    /**
+     * Finds or creates the Thing, its Locations, and all its Datastreams and
+     * MultiDatastreams with their Sensors and ObservedProperties. Observations
+     * in the template are not created, use wasCreated to decide whether to
+     * create them.
+     *
+     * @param template The Thing, with its Datastreams and MultiDatastreams.
+     * @return The existing or created Thing.
+     * @throws ServiceFailureException If a request failed.
+     */
+    public synchronized Thing resolveTree(Thing template) throws ServiceFailureException {
+        Thing thing = resolveThing(template);
+        for (Datastream ds : template.getDatastreams()) {
+            resolveDatastream(thing, ds);
+        }
+        for (MultiDatastream mds : template.getMultiDatastreams()) {
+            resolveMultiDatastream(thing, mds);
+        }
+        return thing;
+    }
+
+    /**
+     * @param entity A template that was passed to one of the resolve methods.
+     * @return true if the entity was created by this resolver, false if it
+     * already existed.
+     */
+    public synchronized boolean wasCreated(Entity<?> entity) {
+        return createdEntities.contains(entity);
+    }
+
+    /**
+     * @return The number of entities that already existed.
+     */
+    public synchronized long getFound() {
+        return found;
+    }
+
+    /**
+     * @return The number of entities that were created.
+     */
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return The number of requests made, not counting the follow-up pages
+     * when loading.
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Id;
+import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects MultiDatastream Observations with primitive results, and posts
+ * them to the CreateObservations action in DataArray format, one DataArray per
+ * MultiDatastream.
+ *
+ * Results are given as double[] or long[], and copied into flat primitive
+ * arrays per MultiDatastream, so the caller can reuse its arrays. The request
+ * is written with a JsonGenerator straight from those arrays. Unlike the
+ * Observation path, where each result is a List of boxed numbers, no objects
+ * are created per component or per row.
+ *
+ * Not thread safe, each worker should use its own batcher.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class MultiObservationBatcher {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultiObservationBatcher.class);
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * The pending rows of one MultiDatastream.
+     */
+    private static class Batch {
+
+        final Object id;
+        final int width;
+        final boolean integral;
+        long[] times = new long[64];
+        double[] doubles;
+        long[] longs;
+        int rows;
+
+        Batch(Object id, int width, boolean integral) {
+            this.id = id;
+            this.width = width;
+            this.integral = integral;
+            if (integral) {
+                longs = new long[64 * width];
+            } else {
+                doubles = new double[64 * width];
+            }
+        }
+
+        int addRow(long time) {
+            if (rows == times.length) {
+                times = Arrays.copyOf(times, rows * 2);
+                if (integral) {
+                    longs = Arrays.copyOf(longs, rows * 2 * width);
+                } else {
+                    doubles = Arrays.copyOf(doubles, rows * 2 * width);
+                }
+            }
+            times[rows] = time;
+            return rows++ * width;
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that gives access to its buffer, so it can be
+     * posted without copying.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(64 * 1024);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    private final SensorThingsService service;
+    private final String url;
+    private final int batchSize;
+    private final Map<Id, Batch> batches = new LinkedHashMap<>();
+    private final Buffer buffer = new Buffer();
+    private final byte[] timeBytes = new byte[ObservationTemplate.TIME_LENGTH];
+    private int pending;
+    private long sentObservations;
+    private long sentRequests;
+
+    /**
+     * @param service The service to post to.
+     * @param baseUrl The base url of the service, ending in a slash.
+     * @param batchSize The number of Observations to collect before posting.
+     */
+    public MultiObservationBatcher(SensorThingsService service, String baseUrl, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+        this.service = service;
+        this.url = baseUrl + "CreateObservations";
+        this.batchSize = batchSize;
+    }
+
+    private Batch batchFor(MultiDatastream mds, int width, boolean integral) {
+        Id id = mds.getId();
+        if (id == null) {
+            throw new IllegalArgumentException("MultiDatastream must have an id to be batched.");
+        }
+        Batch batch = batches.get(id);
+        if (batch == null) {
+            batch = new Batch(id.getValue(), width, integral);
+            batches.put(id, batch);
+        } else if (batch.width != width || batch.integral != integral) {
+            throw new IllegalArgumentException("All results of a MultiDatastream must have the same length and type.");
+        }
+        return batch;
+    }
+
+    /**
+     * Adds an Observation with the given time and result. The result is
+     * copied.
+     *
+     * @param mds The MultiDatastream, with an id.
+     * @param phenomenonTimeMillis The phenomenonTime, in epoch milliseconds.
+     * @param result The result, one value per ObservedProperty.
+     * @throws ServiceFailureException If sending a full batch failed.
+     */
+    public void add(MultiDatastream mds, long phenomenonTimeMillis, double[] result) throws ServiceFailureException {
+        Batch batch = batchFor(mds, result.length, false);
+        System.arraycopy(result, 0, batch.doubles, batch.addRow(phenomenonTimeMillis), result.length);
+        added();
+    }
+
+    /**
+     * Adds an Observation with the given time and result. The result is
+     * copied.
+     *
+     * @param mds The MultiDatastream, with an id.
+     * @param phenomenonTimeMillis The phenomenonTime, in epoch milliseconds.
+     * @param result The result, one value per ObservedProperty.
+     * @throws ServiceFailureException If sending a full batch failed.
+     */
+    public void add(MultiDatastream mds, long phenomenonTimeMillis, long[] result) throws ServiceFailureException {
+        Batch batch = batchFor(mds, result.length, true);
+        System.arraycopy(result, 0, batch.longs, batch.addRow(phenomenonTimeMillis), result.length);
+        added();
+    }
+
+    private void added() throws ServiceFailureException {
+        pending++;
+        if (pending >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all pending Observations as a DataArray document into the
+     * internal buffer, and clears them.
+     *
+     * @return The number of bytes written, see getBuffer.
+     */
+    public int serialize() {
+        buffer.reset();
+        try (JsonGenerator generator = FACTORY.createGenerator(buffer)) {
+            generator.writeStartArray();
+            for (Batch batch : batches.values()) {
+                if (batch.rows == 0) {
+                    continue;
+                }
+                generator.writeStartObject();
+                generator.writeObjectFieldStart("MultiDatastream");
+                generator.writeFieldName("@iot.id");
+                if (batch.id instanceof Number) {
+                    generator.writeNumber(((Number) batch.id).longValue());
+                } else {
+                    generator.writeString(batch.id.toString());
+                }
+                generator.writeEndObject();
+                generator.writeArrayFieldStart("components");
+                generator.writeString("phenomenonTime");
+                generator.writeString("result");
+                generator.writeEndArray();
+                generator.writeNumberField("dataArray@iot.count", batch.rows);
+                generator.writeArrayFieldStart("dataArray");
+                for (int row = 0; row < batch.rows; row++) {
+                    generator.writeStartArray();
+                    ObservationTemplate.writeTime(batch.times[row], timeBytes, 0);
+                    generator.writeRawUTF8String(timeBytes, 0, timeBytes.length);
+                    if (batch.integral) {
+                        generator.writeArray(batch.longs, row * batch.width, batch.width);
+                    } else {
+                        generator.writeArray(batch.doubles, row * batch.width, batch.width);
+                    }
+                    generator.writeEndArray();
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+                batch.rows = 0;
+            }
+            generator.writeEndArray();
+        } catch (IOException ex) {
+            // Writing to memory does not fail.
+            throw new IllegalStateException(ex);
+        }
+        pending = 0;
+        return buffer.size();
+    }
+
+    /**
+     * @return The buffer holding the last serialized document. Only the first
+     * serialize() bytes are valid.
+     */
+    public byte[] getBuffer() {
+        return buffer.getBuffer();
+    }
+
+    /**
+     * Sends all pending Observations in one request.
+     *
+     * @throws ServiceFailureException If sending the batch failed.
+     */
+    public void flush() throws ServiceFailureException {
+        if (pending == 0) {
+            return;
+        }
+        int count = pending;
+        int length = serialize();
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new ByteArrayEntity(buffer.getBuffer(), 0, length, ContentType.APPLICATION_JSON));
+        LatencyRecorder.getInstance().time("create MultiDataArray", () -> {
+            try (CloseableHttpResponse response = service.execute(post)) {
+                int code = response.getStatusLine().getStatusCode();
+                String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+                if (code < 200 || code >= 300) {
+                    throw new ServiceFailureException("Post to " + url + " failed with status " + code + ": " + body);
+                }
+                for (JsonNode line : MAPPER.readTree(body)) {
+                    if (line.asText().startsWith("error")) {
+                        LOGGER.warn("Failed to create an observation: {}", line.asText());
+                    }
+                }
+            } catch (IOException ex) {
+                throw new ServiceFailureException("Failed to post to " + url, ex);
+            }
+        });
+        sentRequests++;
+        sentObservations += count;
+    }
+
+    /**
+     * @return The number of Observations waiting to be sent.
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * @return The number of Observations sent so far.
+     */
+    public long getSentObservations() {
+        return sentObservations;
+    }
+
+    /**
+     * @return The number of requests used to send the Observations.
+     */
+    public long getSentRequests() {
+        return sentRequests;
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Id;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayDocument;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayValue;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects Observations per Datastream and posts them in DataArray format to
+ * the CreateObservations action, so that many Observations only cost one HTTP
+ * request.
+ *
+ * Not thread safe, each worker should use its own batcher.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ObservationBatcher {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObservationBatcher.class);
+
+    /**
+     * The default set of Observation properties that is sent.
+     */
+    public static final Set<DataArrayValue.Property> DEFAULT_COMPONENTS = EnumSet.of(
+            DataArrayValue.Property.PhenomenonTime,
+            DataArrayValue.Property.Result,
+            DataArrayValue.Property.Parameters);
+
+    private final SensorThingsService service;
+    private final int batchSize;
+    private final Set<DataArrayValue.Property> components;
+    private final Map<Id, DataArrayValue> values = new LinkedHashMap<>();
+    private int pending = 0;
+    private long sentObservations = 0;
+    private long sentRequests = 0;
+
+    /**
+     * Creates a batcher that sends the default components.
+     *
+     * @param service The service to post to.
+     * @param batchSize The number of Observations to collect before posting.
+     */
+    public ObservationBatcher(SensorThingsService service, int batchSize) {
+        this(service, batchSize, DEFAULT_COMPONENTS);
+    }
+
+    /**
+     * @param service The service to post to.
+     * @param batchSize The number of Observations to collect before posting.
+     * @param components The Observation properties to send.
+     */
+    public ObservationBatcher(SensorThingsService service, int batchSize, Set<DataArrayValue.Property> components) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+        this.service = service;
+        this.batchSize = batchSize;
+        this.components = components;
+    }
+
+    /**
+     * Adds the given Observation to the batch of its Datastream. If the total
+     * number of pending Observations reaches the batch size, all pending
+     * Observations are sent.
+     *
+     * The Observation is not copied, so it, and its parameters, must not be
+     * modified until the batch is sent.
+     *
+     * @param o The Observation to add, must have a Datastream.
+     * @throws ServiceFailureException If sending the batch failed.
+     */
+    public void add(Observation o) throws ServiceFailureException {
+        Datastream datastream = o.getDatastream();
+        if (datastream == null || datastream.getId() == null) {
+            throw new IllegalArgumentException("Observation must have a Datastream with an id to be batched.");
+        }
+        DataArrayValue value = values.get(datastream.getId());
+        if (value == null) {
+            value = new DataArrayValue(datastream.withOnlyId(), components);
+            values.put(datastream.getId(), value);
+        }
+        value.addObservation(o);
+        pending++;
+        if (pending >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends all pending Observations in one request.
+     *
+     * @throws ServiceFailureException If sending the batch failed.
+     */
+    public void flush() throws ServiceFailureException {
+        if (pending == 0) {
+            return;
+        }
+        DataArrayDocument dad = new DataArrayDocument();
+        for (DataArrayValue value : values.values()) {
+            dad.addDataArrayValue(value);
+        }
+        int count = pending;
+        values.clear();
+        pending = 0;
+        List<String> result = LatencyRecorder.getInstance().time("create DataArray", () -> service.observations().create(dad));
+        sentRequests++;
+        sentObservations += count;
+        for (String line : result) {
+            if (line.startsWith("error")) {
+                LOGGER.warn("Failed to create an observation: {}", line);
+            }
+        }
+    }
+
+    /**
+     * @return The number of Observations waiting to be sent.
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * @return The number of Observations sent so far.
+     */
+    public long getSentObservations() {
+        return sentObservations;
+    }
+
+    /**
+     * @return The number of requests used to send the Observations.
+     */
+    public long getSentRequests() {
+        return sentRequests;
+    }
+
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.fraunhofer.iosb.ilt.sta.model.Id;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.TimeObject;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.threeten.extra.Interval;
+
+/**
+ * A simple, self-describing, columnar file format for Observations.
+ *
+ * A file starts with the magic bytes, followed by a JSON header that lists
+ * the columns and holds free-form metadata. After that come blocks of up to
+ * blockSize rows. Each block starts with its row count, followed by each
+ * column as a separately deflated chunk: the uncompressed and compressed
+ * lengths, and the compressed bytes. A block with zero rows ends the file.
+ * Blocks are independent, so writing and reading take constant memory.
+ *
+ * Timestamps are stored with millisecond precision. The id and phenomenonTime
+ * columns are delta encoded: each value is stored as the zigzag varint of the
+ * difference with the previous value, which for regular series makes them
+ * one or two bytes per row before compression. The end of a phenomenonTime
+ * interval and the resultTime are stored relative to the phenomenonTime.
+ * Numeric results are stored as varints or raw doubles in their own column,
+ * other results and the parameters as JSON text.
+ *
+ * Only numeric ids are supported.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ObservationColumns {
+
+    /**
+     * The magic bytes at the start of each file.
+     */
+    public static final byte[] MAGIC = "STACOLS1".getBytes(StandardCharsets.US_ASCII);
+    public static final int DEFAULT_BLOCK_SIZE = 65536;
+    public static final String COL_ID = "id";
+    public static final String COL_PHENOMENON_TIME = "phenomenonTime";
+    public static final String COL_PHENOMENON_TIME_END = "phenomenonTimeEnd";
+    public static final String COL_RESULT_TIME = "resultTime";
+    public static final String COL_RESULT_TYPE = "resultType";
+    public static final String COL_RESULT_NUMBER = "resultNumber";
+    public static final String COL_RESULT_TEXT = "resultText";
+    public static final String COL_PARAMETERS = "parameters";
+    /**
+     * The columns, in the order they are written.
+     */
+    public static final List<String> COLUMNS = Arrays.asList(
+            COL_ID, COL_PHENOMENON_TIME, COL_PHENOMENON_TIME_END, COL_RESULT_TIME,
+            COL_RESULT_TYPE, COL_RESULT_NUMBER, COL_RESULT_TEXT, COL_PARAMETERS);
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_DOUBLE = 2;
+    private static final int TYPE_JSON = 3;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<Map<String, Object>>() {
+        // Empty on purpose.
+    };
+
+    private ObservationColumns() {
+        // Utility class.
+    }
+
+    /**
+     * Writes Observations to a stream, in blocks.
+     */
+    public static class Writer implements Closeable {
+
+        private final OutputStream out;
+        private final int blockSize;
+        private final Deflater deflater;
+        private final Buffer[] columns = new Buffer[COLUMNS.size()];
+        private final byte[] deflated = new byte[64 * 1024];
+        private int rows;
+        private long previousId;
+        private long previousTime;
+        private long totalRows;
+        private long totalBytes;
+        private boolean closed;
+
+        /**
+         * @param out The stream to write to. It is closed when the writer is
+         * closed.
+         * @param metadata Free-form metadata to store in the header, or null.
+         * @param blockSize The number of rows per block.
+         * @param level The Deflater compression level.
+         * @throws IOException If writing fails.
+         */
+        public Writer(OutputStream out, Map<String, Object> metadata, int blockSize, int level) throws IOException {
+            this.out = new BufferedOutputStream(out, 64 * 1024);
+            this.blockSize = blockSize;
+            this.deflater = new Deflater(level);
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = new Buffer();
+            }
+            ObjectNode header = MAPPER.createObjectNode();
+            header.put("version", 1);
+            header.put("blockSize", blockSize);
+            ArrayNode columnNames = header.putArray("columns");
+            COLUMNS.forEach(columnNames::add);
+            if (metadata != null) {
+                header.set("metadata", MAPPER.valueToTree(metadata));
+            }
+            byte[] headerBytes = MAPPER.writeValueAsBytes(header);
+            write(MAGIC, MAGIC.length);
+            Buffer lengths = new Buffer();
+            lengths.writeVarLong(headerBytes.length);
+            write(lengths.data, lengths.size);
+            write(headerBytes, headerBytes.length);
+        }
+
+        /**
+         * @param out The stream to write to.
+         * @param metadata Free-form metadata to store in the header, or null.
+         * @throws IOException If writing fails.
+         */
+        public Writer(OutputStream out, Map<String, Object> metadata) throws IOException {
+            this(out, metadata, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+        }
+
+        private void write(byte[] bytes, int length) throws IOException {
+            out.write(bytes, 0, length);
+            totalBytes += length;
+        }
+
+        /**
+         * Adds an Observation. Its validTime, Datastream and
+         * FeatureOfInterest are not stored.
+         *
+         * @param o The Observation to add.
+         * @throws IOException If writing a full block fails.
+         */
+        public void add(Observation o) throws IOException {
+            Id id = o.getId();
+            if (id == null || !(id.getValue() instanceof Number)) {
+                throw new IllegalArgumentException("Only numeric ids are supported, got " + id);
+            }
+            long idValue = ((Number) id.getValue()).longValue();
+            columns[0].writeVarLong(zigzag(idValue - previousId));
+            previousId = idValue;
+
+            TimeObject phenomenonTime = o.getPhenomenonTime();
+            long start;
+            long end;
+            if (phenomenonTime.isInterval()) {
+                Interval interval = phenomenonTime.getAsInterval();
+                start = interval.getStart().toEpochMilli();
+                end = interval.getEnd().toEpochMilli();
+                columns[2].writeVarLong(zigzag(end - start) + 1);
+            } else {
+                start = phenomenonTime.getAsDateTime().toInstant().toEpochMilli();
+                columns[2].writeVarLong(0);
+            }
+            columns[1].writeVarLong(zigzag(start - previousTime));
+            previousTime = start;
+
+            ZonedDateTime resultTime = o.getResultTime();
+            columns[3].writeVarLong(resultTime == null ? 0 : zigzag(resultTime.toInstant().toEpochMilli() - start) + 1);
+
+            Object result = o.getResult();
+            if (result == null) {
+                columns[4].write(TYPE_NULL);
+            } else if (result instanceof Long || result instanceof Integer || result instanceof Short || result instanceof Byte) {
+                columns[4].write(TYPE_LONG);
+                columns[5].writeVarLong(zigzag(((Number) result).longValue()));
+            } else if (result instanceof Double || result instanceof Float) {
+                columns[4].write(TYPE_DOUBLE);
+                columns[5].writeLong(Double.doubleToLongBits(((Number) result).doubleValue()));
+            } else {
+                columns[4].write(TYPE_JSON);
+                columns[6].writeBytes(MAPPER.writeValueAsBytes(result));
+            }
+
+            Map<String, Object> parameters = o.getParameters();
+            if (parameters == null || parameters.isEmpty()) {
+                columns[7].writeVarLong(0);
+            } else {
+                columns[7].writeBytes(MAPPER.writeValueAsBytes(parameters));
+            }
+
+            rows++;
+            if (rows >= blockSize) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (rows == 0) {
+                return;
+            }
+            Buffer lengths = new Buffer();
+            lengths.writeVarLong(rows);
+            write(lengths.data, lengths.size);
+            for (Buffer column : columns) {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(column.size / 2 + 16);
+                deflater.reset();
+                deflater.setInput(column.data, 0, column.size);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(deflated);
+                    compressed.write(deflated, 0, count);
+                }
+                lengths.size = 0;
+                lengths.writeVarLong(column.size);
+                lengths.writeVarLong(compressed.size());
+                write(lengths.data, lengths.size);
+                write(compressed.toByteArray(), compressed.size());
+                column.size = 0;
+            }
+            totalRows += rows;
+            rows = 0;
+            previousId = 0;
+            previousTime = 0;
+        }
+
+        /**
+         * @return The number of rows written so far, including the current
+         * block.
+         */
+        public long getRowCount() {
+            return totalRows + rows;
+        }
+
+        /**
+         * @return The number of bytes written to the stream so far.
+         */
+        public long getByteCount() {
+            return totalBytes;
+        }
+
+        /**
+         * Writes the last block and the end marker, and closes the stream.
+         *
+         * @throws IOException If writing fails.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                flushBlock();
+                write(new byte[]{0}, 1);
+                out.flush();
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+
+        /**
+         * Closes the stream without writing the last block and the end
+         * marker, so readers see the output as truncated.
+         *
+         * @throws IOException If closing the stream fails.
+         */
+        public void abort() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * Reads Observations from a stream, one block at a time.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final JsonNode header;
+        private final Buffer[] columns;
+        private final int[] columnIndex = new int[COLUMNS.size()];
+        private final Inflater inflater = new Inflater();
+        private byte[] compressed = new byte[0];
+        private int rowsLeft;
+        private long previousId;
+        private long previousTime;
+        private boolean ended;
+
+        /**
+         * Reads the header of the stream.
+         *
+         * @param in The stream to read from. It is closed when the reader is
+         * closed.
+         * @throws IOException If the stream is not in the columnar format.
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+            byte[] magic = new byte[MAGIC.length];
+            this.in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not an Observation column file.");
+            }
+            byte[] headerBytes = new byte[(int) readVarLong(this.in)];
+            this.in.readFully(headerBytes);
+            header = MAPPER.readTree(headerBytes);
+            JsonNode names = header.path("columns");
+            columns = new Buffer[names.size()];
+            Arrays.fill(columnIndex, -1);
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = new Buffer();
+                int known = COLUMNS.indexOf(names.get(i).asText());
+                if (known >= 0) {
+                    columnIndex[known] = i;
+                }
+            }
+            for (int i = 0; i < columnIndex.length; i++) {
+                if (columnIndex[i] < 0) {
+                    throw new IOException("Missing column " + COLUMNS.get(i));
+                }
+            }
+        }
+
+        /**
+         * @return The metadata stored in the header, or a missing node.
+         */
+        public JsonNode getMetadata() {
+            return header.path("metadata");
+        }
+
+        private Buffer column(int known) {
+            return columns[columnIndex[known]];
+        }
+
+        private boolean readBlock() throws IOException {
+            if (ended) {
+                return false;
+            }
+            rowsLeft = (int) readVarLong(in);
+            if (rowsLeft == 0) {
+                ended = true;
+                return false;
+            }
+            for (Buffer column : columns) {
+                int rawLength = (int) readVarLong(in);
+                int compressedLength = (int) readVarLong(in);
+                if (compressed.length < compressedLength) {
+                    compressed = new byte[compressedLength];
+                }
+                in.readFully(compressed, 0, compressedLength);
+                column.ensureCapacity(rawLength);
+                inflater.reset();
+                inflater.setInput(compressed, 0, compressedLength);
+                try {
+                    int done = 0;
+                    while (done < rawLength) {
+                        int count = inflater.inflate(column.data, done, rawLength - done);
+                        if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                            throw new IOException("Truncated column chunk.");
+                        }
+                        done += count;
+                    }
+                } catch (DataFormatException ex) {
+                    throw new IOException("Corrupt column chunk.", ex);
+                }
+                column.size = rawLength;
+                column.position = 0;
+            }
+            previousId = 0;
+            previousTime = 0;
+            return true;
+        }
+
+        /**
+         * @return The next Observation, or null at the end of the stream. The
+         * Observation has no Datastream.
+         * @throws IOException If reading fails.
+         */
+        public Observation next() throws IOException {
+            if (rowsLeft == 0 && !readBlock()) {
+                return null;
+            }
+            rowsLeft--;
+            Observation o = new Observation();
+            previousId += unzigzag(column(0).readVarLong());
+            o.setId(new IdLong(previousId));
+
+            long start = previousTime + unzigzag(column(1).readVarLong());
+            previousTime = start;
+            long end = column(2).readVarLong();
+            if (end == 0) {
+                o.setPhenomenonTimeFrom(toDateTime(start));
+            } else {
+                o.setPhenomenonTimeFrom(Interval.of(Instant.ofEpochMilli(start), Instant.ofEpochMilli(start + unzigzag(end - 1))));
+            }
+            long resultTime = column(3).readVarLong();
+            if (resultTime != 0) {
+                o.setResultTime(toDateTime(start + unzigzag(resultTime - 1)));
+            }
+
+            int type = column(4).read();
+            switch (type) {
+                case TYPE_NULL:
+                    break;
+                case TYPE_LONG:
+                    o.setResult(unzigzag(column(5).readVarLong()));
+                    break;
+                case TYPE_DOUBLE:
+                    o.setResult(Double.longBitsToDouble(column(5).readLong()));
+                    break;
+                case TYPE_JSON:
+                    o.setResult(fromJson(MAPPER.readValue(column(6).readBytes(), Object.class)));
+                    break;
+                default:
+                    throw new IOException("Unknown result type " + type);
+            }
+
+            byte[] parameters = column(7).readBytes();
+            if (parameters.length > 0) {
+                o.setParameters(MAPPER.readValue(parameters, MAP_TYPE));
+            }
+            return o;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+    }
+
+    /**
+     * Jackson reads big numbers as BigInteger or BigDecimal, which the rest
+     * of the tools do not expect.
+     */
+    private static Object fromJson(Object value) {
+        if (value instanceof BigInteger || value instanceof BigDecimal) {
+            return ((Number) value).doubleValue();
+        }
+        return value;
+    }
+
+    private static ZonedDateTime toDateTime(long millis) {
+        return ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Unexpected end of column file.");
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Varint too long.");
+    }
+
+    /**
+     * A growable byte buffer with a read position, holding one column of a
+     * block.
+     */
+    private static class Buffer {
+
+        byte[] data = new byte[1024];
+        int size;
+        int position;
+
+        void ensureCapacity(int capacity) {
+            if (data.length < capacity) {
+                data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+            }
+        }
+
+        void write(int b) {
+            ensureCapacity(size + 1);
+            data[size++] = (byte) b;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(size + 10);
+            while ((value & ~0x7FL) != 0) {
+                data[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensureCapacity(size + 8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                data[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensureCapacity(size + bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+
+        int read() throws IOException {
+            if (position >= size) {
+                throw new EOFException("Column too short.");
+            }
+            return data[position++] & 0xFF;
+        }
+
+        long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Varint too long.");
+        }
+
+        long readLong() throws IOException {
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | read();
+            }
+            return result;
+        }
+
+        byte[] readBytes() throws IOException {
+            int length = (int) readVarLong();
+            if (position + length > size) {
+                throw new EOFException("Column too short.");
+            }
+            byte[] result = Arrays.copyOfRange(data, position, position + length);
+            position += length;
+            return result;
+        }
+    }
+
+}
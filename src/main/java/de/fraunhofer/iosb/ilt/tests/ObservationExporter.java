@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports all Observations of a Datastream to a file in the format of
+ * ObservationColumns. Pages are fetched ahead by a PagedReader, with only the
+ * exported properties selected, and written out block by block, so memory use
+ * does not depend on the size of the Datastream.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ObservationExporter {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObservationExporter.class);
+
+    private static final long DATASTREAM_ID = 1;
+    private static final String OUTPUT_FILE = "observations.stacols";
+    private static final int PAGE_SIZE = 10_000;
+    private static final int PREFETCH = 2;
+    private static final String SELECT = "id,phenomenonTime,resultTime,result,parameters";
+    /**
+     * Sorting by time keeps the deltas in the time column small.
+     */
+    private static final String ORDER_BY = "phenomenonTime asc,id asc";
+
+    private final SensorThingsService service;
+    private final String baseUrl;
+    private int pageSize = PAGE_SIZE;
+    private int prefetch = PREFETCH;
+    private int blockSize = ObservationColumns.DEFAULT_BLOCK_SIZE;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * @param service The service to export from.
+     * @param baseUrl The base url of the service, ending in a slash.
+     */
+    public ObservationExporter(SensorThingsService service, String baseUrl) {
+        this.service = service;
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * @param pageSize The number of Observations to request per page.
+     * @param prefetch The number of pages to fetch ahead.
+     * @return this.
+     */
+    public ObservationExporter setPaging(int pageSize, int prefetch) {
+        this.pageSize = pageSize;
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * @param blockSize The number of rows per block in the file.
+     * @param level The Deflater compression level.
+     * @return this.
+     */
+    public ObservationExporter setBlocks(int blockSize, int level) {
+        this.blockSize = blockSize;
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Exports the Observations of the given Datastream to a file. The export
+     * is written to a .part file next to it, that is renamed when the export
+     * is complete, and deleted when it fails.
+     *
+     * @param datastream The Datastream to export.
+     * @param file The file to write to.
+     * @return The number of exported Observations.
+     * @throws ServiceFailureException If reading from the service fails.
+     * @throws IOException If writing fails.
+     */
+    public long export(Datastream datastream, File file) throws ServiceFailureException, IOException {
+        File part = new File(file.getPath() + ".part");
+        boolean done = false;
+        try {
+            long count = export(datastream, new FileOutputStream(part));
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            done = true;
+            return count;
+        } finally {
+            if (!done && part.exists() && !part.delete()) {
+                LOGGER.warn("Failed to delete partial export {}", part);
+            }
+        }
+    }
+
+    /**
+     * Exports the Observations of the given Datastream to a stream. The
+     * stream is closed when done. If the export fails, the end marker is not
+     * written, so the output can not be mistaken for a complete export.
+     *
+     * @param datastream The Datastream to export.
+     * @param out The stream to write to.
+     * @return The number of exported Observations.
+     * @throws ServiceFailureException If reading from the service fails.
+     * @throws IOException If writing fails.
+     */
+    public long export(Datastream datastream, OutputStream out) throws ServiceFailureException, IOException {
+        long start = System.currentTimeMillis();
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("source", baseUrl);
+        metadata.put("exported", Instant.now().toString());
+        metadata.put("datastreamId", datastream.getId().getValue());
+        metadata.put("datastreamName", datastream.getName());
+        metadata.put("unitOfMeasurement", datastream.getUnitOfMeasurement());
+
+        PagedReader<Observation> reader = new PagedReader<>(service, baseUrl, Observation.class)
+                .setPageSize(pageSize)
+                .setPrefetch(prefetch)
+                .setSelect(SELECT)
+                .setOrderBy(ORDER_BY);
+        String path = "Datastreams(" + Utils.idUrl(datastream.getId()) + ")/Observations";
+        ObservationColumns.Writer writer = new ObservationColumns.Writer(out, metadata, blockSize, level);
+        boolean done = false;
+        try (PagedReader<Observation>.PrefetchingIterator it = reader.iterator(path, null)) {
+            while (it.hasNext()) {
+                writer.add(it.next());
+            }
+            writer.close();
+            done = true;
+            long duration = Math.max(1, System.currentTimeMillis() - start);
+            LOGGER.info("Exported {} Observations to {} bytes in {}ms, {} obs/s.",
+                    writer.getRowCount(), writer.getByteCount(), duration, writer.getRowCount() * 1000 / duration);
+            return writer.getRowCount();
+        } catch (IllegalStateException ex) {
+            if (ex.getCause() instanceof ServiceFailureException) {
+                throw (ServiceFailureException) ex.getCause();
+            }
+            throw ex;
+        } finally {
+            if (!done) {
+                try {
+                    writer.abort();
+                } catch (IOException exc) {
+                    LOGGER.warn("Failed to close aborted export: {}", exc.getMessage());
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws ServiceFailureException, URISyntaxException, IOException {
+        long datastreamId = args.length > 0 ? Long.parseLong(args[0]) : DATASTREAM_ID;
+        File file = new File(args.length > 1 ? args[1] : OUTPUT_FILE);
+        SensorThingsService service = Constants.createService(Constants.getBaseUrl());
+        Datastream datastream = service.datastreams().find(datastreamId);
+        LOGGER.info("Exporting Datastream {} from {} to {}", datastreamId, Constants.getBaseUrl(), file.getAbsolutePath());
+        new ObservationExporter(service, Constants.getBaseUrl()).export(datastream, file);
+    }
+
+}
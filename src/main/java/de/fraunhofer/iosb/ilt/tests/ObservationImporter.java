@@ -0,0 +1,682 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
+import de.fraunhofer.iosb.ilt.sta.model.Sensor;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.model.TimeObject;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayValue;
+import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.threeten.extra.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports Observations from files into a service. Three formats are read:
+ * <ul>
+ * <li>JSON lines, one Observation per line with a Datastream reference, as
+ * written by DatasetGenerator.writeToFiles,</li>
+ * <li>CSV with a header line, with the columns datastream, phenomenonTime and
+ * result, and optionally resultTime,</li>
+ * <li>the columnar format of ObservationColumns, as written by
+ * ObservationExporter.</li>
+ * </ul>
+ * Text files are read through memory mapped windows, columnar files through a
+ * FileChannel.
+ *
+ * Each row has a source key, the id of the Datastream in the source. The
+ * DatastreamResolver maps source keys to Datastreams in the target service.
+ * By default a Datastream is created for each source key, the way
+ * CreateEntities creates them.
+ *
+ * Rows are spread over a number of workers, each posting through its own
+ * ObservationBatcher in DataArray format. All rows of one Datastream go to
+ * the same worker, so their order is kept. Rows are imported as fast as
+ * possible, or, with a speed greater than zero, at the pace of their
+ * phenomenonTime: speed 1 replays in real time, speed 60 replays an hour in a
+ * minute.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ObservationImporter {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObservationImporter.class);
+
+    private static final String IMPORT_FILE = "Observations.jsonl";
+    private static final int WORKER_COUNT = 4;
+    private static final int BATCH_SIZE = 1000;
+    /**
+     * The replay speed, or 0 to import as fast as possible.
+     */
+    private static final double SPEED = 0;
+    /**
+     * How long a worker holds a partial batch while replaying, before it
+     * sends it anyway.
+     */
+    private static final long MAX_HOLD_MILLIS = 200;
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int QUEUE_SIZE = 10_000;
+    private static final Set<DataArrayValue.Property> COMPONENTS = EnumSet.of(
+            DataArrayValue.Property.PhenomenonTime,
+            DataArrayValue.Property.ResultTime,
+            DataArrayValue.Property.Result,
+            DataArrayValue.Property.Parameters);
+
+    /**
+     * Finds the Datastream in the target service for the key of a Datastream
+     * in the source. Called from one thread only.
+     */
+    public static interface DatastreamResolver {
+
+        public Datastream resolve(String sourceKey) throws ServiceFailureException;
+    }
+
+    /**
+     * An Observation read from a file, with the key of its source Datastream.
+     */
+    public static class Row {
+
+        public final String sourceKey;
+        public final Observation observation;
+
+        public Row(String sourceKey, Observation observation) {
+            this.sourceKey = sourceKey;
+            this.observation = observation;
+        }
+    }
+
+    /**
+     * A source of rows.
+     */
+    public static interface RowSource extends Closeable {
+
+        /**
+         * @return The next row, or null at the end.
+         * @throws IOException If reading fails.
+         */
+        public Row next() throws IOException;
+    }
+
+    private static final Row END = new Row(null, null);
+
+    private final SensorThingsService service;
+    private DatastreamResolver resolver;
+    private int workerCount = WORKER_COUNT;
+    private int batchSize = BATCH_SIZE;
+    private double speed = SPEED;
+    private boolean shiftToNow;
+    private final LongAdder sent = new LongAdder();
+
+    /**
+     * @param service The service to import into. Its connection pool should
+     * allow a connection per worker.
+     */
+    public ObservationImporter(SensorThingsService service) {
+        this.service = service;
+        this.resolver = new CreatingResolver(service);
+    }
+
+    /**
+     * @param resolver The resolver that maps source keys to Datastreams.
+     * @return this.
+     */
+    public ObservationImporter setResolver(DatastreamResolver resolver) {
+        this.resolver = resolver;
+        return this;
+    }
+
+    /**
+     * @param workerCount The number of workers that post in parallel.
+     * @param batchSize The number of Observations per request of a worker.
+     * @return this.
+     */
+    public ObservationImporter setWorkers(int workerCount, int batchSize) {
+        this.workerCount = workerCount;
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param speed The replay speed, relative to the phenomenonTime of the
+     * rows, or 0 to import as fast as possible.
+     * @param shiftToNow Whether to shift all times so that the first row gets
+     * the current time.
+     * @return this.
+     */
+    public ObservationImporter setSpeed(double speed, boolean shiftToNow) {
+        this.speed = speed;
+        this.shiftToNow = shiftToNow;
+        return this;
+    }
+
+    /**
+     * @return The number of Observations sent so far.
+     */
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    /**
+     * Opens a file as a RowSource, picking the format by the extension:
+     * .csv, .jsonl or .stacols.
+     *
+     * @param file The file to open.
+     * @return The RowSource.
+     * @throws IOException If the file can not be opened.
+     */
+    public static RowSource open(File file) throws IOException {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".csv")) {
+            return new CsvSource(new MappedLines(file, WINDOW_SIZE));
+        }
+        if (name.endsWith(".jsonl") || name.endsWith(".json")) {
+            return new JsonLinesSource(new MappedLines(file, WINDOW_SIZE));
+        }
+        if (name.endsWith(".stacols")) {
+            return new ColumnarSource(file);
+        }
+        throw new IOException("Unknown file type: " + file);
+    }
+
+    /**
+     * Imports all rows of the given source.
+     *
+     * @param source The source to read. It is closed when done.
+     * @return The number of imported Observations.
+     * @throws ServiceFailureException If posting or resolving fails.
+     * @throws IOException If reading fails.
+     */
+    public long importRows(RowSource source) throws ServiceFailureException, IOException {
+        long startTime = System.currentTimeMillis();
+        List<BlockingQueue<Row>> queues = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(workerCount);
+        List<Future<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            BlockingQueue<Row> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+            queues.add(queue);
+            tasks.add(pool.submit(() -> {
+                work(queue);
+                return null;
+            }));
+        }
+        Map<String, Datastream> targets = new HashMap<>();
+        Map<String, Integer> workers = new HashMap<>();
+        long read = 0;
+        long firstTime = Long.MIN_VALUE;
+        long wallStart = 0;
+        long shift = 0;
+        try (RowSource rows = source) {
+            Row row;
+            while ((row = rows.next()) != null) {
+                Datastream target = targets.get(row.sourceKey);
+                if (target == null) {
+                    target = resolver.resolve(row.sourceKey).withOnlyId();
+                    targets.put(row.sourceKey, target);
+                    workers.put(row.sourceKey, workers.size() % workerCount);
+                }
+                Observation o = row.observation;
+                o.setDatastream(target);
+                if (speed > 0 || shiftToNow) {
+                    long time = startMillis(o.getPhenomenonTime());
+                    if (firstTime == Long.MIN_VALUE) {
+                        firstTime = time;
+                        wallStart = System.currentTimeMillis();
+                        shift = shiftToNow ? wallStart - firstTime : 0;
+                    }
+                    if (speed > 0) {
+                        long due = wallStart + (long) ((time - firstTime) / speed);
+                        long wait = due - System.currentTimeMillis();
+                        if (wait > 0) {
+                            Thread.sleep(wait);
+                        }
+                    }
+                    if (shift != 0) {
+                        shiftTimes(o, shift);
+                    }
+                }
+                put(queues.get(workers.get(row.sourceKey)), new Row(row.sourceKey, o), tasks);
+                read++;
+            }
+            for (BlockingQueue<Row> queue : queues) {
+                put(queue, END, tasks);
+            }
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceFailureException("Interrupted while importing.", ex);
+        } catch (ExecutionException ex) {
+            throw new ServiceFailureException("Failed to import.", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        LOGGER.info("Imported {} Observations into {} Datastreams in {}ms, {} obs/s.", read, targets.size(), duration, read * 1000 / duration);
+        return read;
+    }
+
+    /**
+     * Puts the row in the queue, checking for failed workers while the queue
+     * is full.
+     */
+    private static void put(BlockingQueue<Row> queue, Row row, List<Future<Void>> tasks) throws ExecutionException, InterruptedException {
+        while (!queue.offer(row, 100, TimeUnit.MILLISECONDS)) {
+            checkFailed(tasks);
+        }
+    }
+
+    private static void checkFailed(List<Future<Void>> tasks) throws ExecutionException, InterruptedException {
+        for (Future<Void> task : tasks) {
+            if (task.isDone()) {
+                // A worker only ends early if it failed, get() throws its exception.
+                task.get();
+                throw new IllegalStateException("Worker ended early.");
+            }
+        }
+    }
+
+    private void work(BlockingQueue<Row> queue) throws ServiceFailureException, InterruptedException {
+        ObservationBatcher batcher = new ObservationBatcher(service, batchSize, COMPONENTS);
+        long before = 0;
+        while (true) {
+            Row row = speed > 0 ? queue.poll(MAX_HOLD_MILLIS, TimeUnit.MILLISECONDS) : queue.take();
+            if (row == null) {
+                // Replaying, and no new rows for a while.
+                batcher.flush();
+            } else if (row == END) {
+                batcher.flush();
+                sent.add(batcher.getSentObservations() - before);
+                return;
+            } else {
+                batcher.add(row.observation);
+            }
+            sent.add(batcher.getSentObservations() - before);
+            before = batcher.getSentObservations();
+        }
+    }
+
+    private static long startMillis(TimeObject time) {
+        if (time.isInterval()) {
+            return time.getAsInterval().getStart().toEpochMilli();
+        }
+        return time.getAsDateTime().toInstant().toEpochMilli();
+    }
+
+    private static void shiftTimes(Observation o, long shiftMillis) {
+        Duration shift = Duration.ofMillis(shiftMillis);
+        TimeObject time = o.getPhenomenonTime();
+        if (time.isInterval()) {
+            Interval interval = time.getAsInterval();
+            o.setPhenomenonTimeFrom(Interval.of(interval.getStart().plus(shift), interval.getEnd().plus(shift)));
+        } else {
+            o.setPhenomenonTimeFrom(time.getAsDateTime().plus(shift));
+        }
+        if (o.getResultTime() != null) {
+            o.setResultTime(o.getResultTime().plus(shift));
+        }
+    }
+
+    /**
+     * Creates a Datastream for each source key, in a shared Thing, with a
+     * shared Sensor and ObservedProperty.
+     */
+    public static class CreatingResolver implements DatastreamResolver {
+
+        private final SensorThingsService service;
+        private final Map<String, Datastream> created = new HashMap<>();
+        private Thing thing;
+        private Sensor sensor;
+        private ObservedProperty obsProp;
+
+        public CreatingResolver(SensorThingsService service) {
+            this.service = service;
+        }
+
+        @Override
+        public Datastream resolve(String sourceKey) throws ServiceFailureException {
+            Datastream datastream = created.get(sourceKey);
+            if (datastream != null) {
+                return datastream;
+            }
+            LatencyRecorder latencies = LatencyRecorder.getInstance();
+            if (thing == null) {
+                thing = new Thing("Imported Thing", "The thing of imported Observations.");
+                latencies.create(service, thing);
+                sensor = new Sensor("Import Sensor", "The sensor of imported Observations.", "text", "Some metadata.");
+                latencies.create(service, sensor);
+                try {
+                    obsProp = new ObservedProperty("Imported Property", new URI("http://ucom.org/imported"), "The property of imported Observations.");
+                } catch (URISyntaxException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                latencies.create(service, obsProp);
+            }
+            datastream = new Datastream("Datastream " + sourceKey, "Imported from source Datastream " + sourceKey + ".", "someType", new UnitOfMeasurement("unknown", "", ""));
+            datastream.setThing(thing);
+            datastream.setSensor(sensor);
+            datastream.setObservedProperty(obsProp);
+            latencies.create(service, datastream);
+            created.put(sourceKey, datastream);
+            return datastream;
+        }
+    }
+
+    /**
+     * Reads the lines of a file through memory mapped windows. A line may not
+     * be longer than a window.
+     */
+    public static class MappedLines implements Closeable {
+
+        private final FileChannel channel;
+        private final long fileSize;
+        private final int windowSize;
+        private long windowStart;
+        private MappedByteBuffer window;
+        private byte[] lineBuffer = new byte[1024];
+
+        public MappedLines(File file, int windowSize) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.fileSize = channel.size();
+            this.windowSize = windowSize;
+            map(0);
+        }
+
+        private void map(long start) throws IOException {
+            windowStart = start;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, fileSize - start));
+        }
+
+        /**
+         * @return The next line, without the line end, or null at the end of
+         * the file.
+         * @throws IOException If reading fails, or a line is too long.
+         */
+        public String nextLine() throws IOException {
+            while (true) {
+                int start = window.position();
+                int limit = window.limit();
+                for (int i = start; i < limit; i++) {
+                    if (window.get(i) == '\n') {
+                        String line = decode(start, i);
+                        window.position(i + 1);
+                        return line;
+                    }
+                }
+                long end = windowStart + limit;
+                if (end >= fileSize) {
+                    if (start == limit) {
+                        return null;
+                    }
+                    window.position(limit);
+                    return decode(start, limit);
+                }
+                if (start == 0) {
+                    throw new IOException("Line at " + windowStart + " longer than " + windowSize + " bytes.");
+                }
+                map(windowStart + start);
+            }
+        }
+
+        private String decode(int start, int end) {
+            if (end > start && window.get(end - 1) == '\r') {
+                end--;
+            }
+            int length = end - start;
+            if (lineBuffer.length < length) {
+                lineBuffer = new byte[Math.max(length, lineBuffer.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                lineBuffer[i] = window.get(start + i);
+            }
+            return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads Observations in JSON, one per line, with a Datastream reference.
+     */
+    public static class JsonLinesSource implements RowSource {
+
+        private final ObjectMapper mapper = ObjectMapperFactory.get();
+        private final MappedLines lines;
+
+        public JsonLinesSource(MappedLines lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public Row next() throws IOException {
+            String line;
+            do {
+                line = lines.nextLine();
+                if (line == null) {
+                    return null;
+                }
+            } while (line.trim().isEmpty());
+            ObjectNode node = (ObjectNode) mapper.readTree(line);
+            JsonNode datastream = node.remove("Datastream");
+            if (datastream == null || !datastream.has("@iot.id")) {
+                throw new IOException("Observation without Datastream id: " + line);
+            }
+            node.remove("@iot.id");
+            node.remove("FeatureOfInterest");
+            return new Row(datastream.get("@iot.id").asText(), mapper.treeToValue(node, Observation.class));
+        }
+
+        @Override
+        public void close() throws IOException {
+            lines.close();
+        }
+    }
+
+    /**
+     * Reads Observations from CSV with a header line. Fields may be quoted
+     * with double quotes.
+     */
+    public static class CsvSource implements RowSource {
+
+        private final MappedLines lines;
+        private final int datastreamColumn;
+        private final int phenomenonTimeColumn;
+        private final int resultColumn;
+        private final int resultTimeColumn;
+
+        public CsvSource(MappedLines lines) throws IOException {
+            this.lines = lines;
+            String header = lines.nextLine();
+            if (header == null) {
+                throw new IOException("Empty CSV file.");
+            }
+            List<String> columns = splitCsv(header);
+            datastreamColumn = columns.indexOf("datastream");
+            phenomenonTimeColumn = columns.indexOf("phenomenonTime");
+            resultColumn = columns.indexOf("result");
+            resultTimeColumn = columns.indexOf("resultTime");
+            if (datastreamColumn < 0 || phenomenonTimeColumn < 0 || resultColumn < 0) {
+                throw new IOException("CSV needs the columns datastream, phenomenonTime and result, found " + columns);
+            }
+        }
+
+        @Override
+        public Row next() throws IOException {
+            String line;
+            do {
+                line = lines.nextLine();
+                if (line == null) {
+                    return null;
+                }
+            } while (line.trim().isEmpty());
+            List<String> fields = splitCsv(line);
+            Observation o = new Observation(parseResult(fields.get(resultColumn)), (Datastream) null);
+            String phenomenonTime = fields.get(phenomenonTimeColumn);
+            if (phenomenonTime.contains("/")) {
+                o.setPhenomenonTimeFrom(Interval.parse(phenomenonTime));
+            } else {
+                o.setPhenomenonTimeFrom(ZonedDateTime.parse(phenomenonTime));
+            }
+            if (resultTimeColumn >= 0 && resultTimeColumn < fields.size() && !fields.get(resultTimeColumn).isEmpty()) {
+                o.setResultTime(ZonedDateTime.parse(fields.get(resultTimeColumn)));
+            }
+            return new Row(fields.get(datastreamColumn), o);
+        }
+
+        private static Object parseResult(String value) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                // Not a long.
+            }
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException ex) {
+                return value;
+            }
+        }
+
+        /**
+         * Splits a CSV line into fields. Quoted fields may contain commas and
+         * doubled quotes.
+         *
+         * @param line The line to split.
+         * @return The fields.
+         */
+        public static List<String> splitCsv(String line) {
+            List<String> result = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        field.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    result.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            result.add(field.toString());
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            lines.close();
+        }
+    }
+
+    /**
+     * Reads a columnar file, as written by ObservationExporter. The source
+     * key of all rows is the datastreamId from the metadata of the file, or
+     * the file name if there is none.
+     */
+    public static class ColumnarSource implements RowSource {
+
+        private final ObservationColumns.Reader reader;
+        private final String sourceKey;
+
+        public ColumnarSource(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            reader = new ObservationColumns.Reader(Channels.newInputStream(channel));
+            JsonNode datastreamId = reader.getMetadata().get("datastreamId");
+            sourceKey = datastreamId == null ? file.getName() : datastreamId.asText();
+        }
+
+        @Override
+        public Row next() throws IOException {
+            Observation o = reader.next();
+            if (o == null) {
+                return null;
+            }
+            o.setId(null);
+            return new Row(sourceKey, o);
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    public static void main(String[] args) throws ServiceFailureException, URISyntaxException, IOException {
+        File file = new File(args.length > 0 ? args[0] : IMPORT_FILE);
+        SensorThingsService service = Constants.createService(new URL(Constants.getBaseUrl()),
+                Constants.createConnectionManager(WORKER_COUNT, WORKER_COUNT));
+        LOGGER.info("Importing {} into {}", file.getAbsolutePath(), Constants.getBaseUrl());
+        LatencyRecorder.getInstance().startReporting(10, TimeUnit.SECONDS, null);
+        try {
+            new ObservationImporter(service).importRows(open(file));
+        } finally {
+            LatencyRecorder.getInstance().stopReporting();
+        }
+    }
+
+}
@@ -0,0 +1,651 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Id;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayDocument;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayValue;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local, append-only spool of Observations, for when the server is slow or
+ * down.
+ *
+ * The spool is a directory of memory-mapped segment files of fixed size. Each
+ * record is an int length, followed by the Observation as JSON. The length is
+ * written after the JSON, so a record is either complete or not there at all.
+ * Drained records are not removed but marked, by negating their length, and a
+ * segment file is deleted once all its records are drained and it is no longer
+ * written to. Since the segments are memory-mapped, the spool survives a crash
+ * of the process. Reopening a spool directory picks up the records that were
+ * not drained yet.
+ *
+ * Only Observations of a Datastream can be spooled, since they are posted
+ * with the CreateObservations action, one DataArray per Datastream.
+ *
+ * A drain thread posts the spooled Observations in batches, in the order they
+ * were appended. When a batch fails it is retried with exponential backoff.
+ * After a bounded number of attempts the drainer gives up the round, and pauses
+ * for the maximum backoff before starting over; Observations are never dropped.
+ * Observations the server rejects one by one are moved to the quarantine file
+ * in the spool directory, one JSON document per line, for inspection.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ObservationSpool implements Closeable {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ObservationSpool.class);
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-([0-9]+)\\.spool");
+    /**
+     * The file in the spool directory that holds rejected Observations.
+     */
+    public static final String QUARANTINE_FILE = "rejected.jsonl";
+    /**
+     * The default size of a segment file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    /**
+     * The number of Observations posted per request by the drainer.
+     */
+    private static final int DRAIN_BATCH_SIZE = 500;
+    /**
+     * The number of attempts for one batch in a drain round.
+     */
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    /**
+     * The window over which the drain rate is calculated.
+     */
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * One memory-mapped segment file.
+     */
+    private static class Segment {
+
+        final long sequence;
+        final File file;
+        final MappedByteBuffer buffer;
+        /**
+         * The position of the first record that is not drained yet.
+         */
+        int readPos;
+        /**
+         * The position where the next record is written.
+         */
+        int writePos;
+
+        Segment(File file, long sequence, int size) throws IOException {
+            this.file = file;
+            this.sequence = sequence;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                // The mapping stays valid after the file is closed.
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            }
+        }
+
+        /**
+         * Finds the read and write positions.
+         *
+         * @return The number of records that are not drained.
+         */
+        int scan() {
+            int pending = 0;
+            int pos = 0;
+            readPos = -1;
+            while (pos + 4 <= buffer.capacity()) {
+                int length = buffer.getInt(pos);
+                if (length == 0) {
+                    break;
+                }
+                if (length > 0) {
+                    pending++;
+                    if (readPos < 0) {
+                        readPos = pos;
+                    }
+                }
+                pos += 4 + Math.abs(length);
+            }
+            writePos = pos;
+            if (readPos < 0) {
+                readPos = pos;
+            }
+            return pending;
+        }
+
+        boolean fits(int length) {
+            return writePos + 4 + length <= buffer.capacity();
+        }
+
+        void write(byte[] data) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(writePos + 4);
+            view.put(data);
+            buffer.putInt(writePos, data.length);
+            writePos += 4 + data.length;
+        }
+
+        boolean hasRecord(int pos) {
+            return pos + 4 <= buffer.capacity() && buffer.getInt(pos) > 0;
+        }
+
+        byte[] read(int pos) {
+            byte[] data = new byte[buffer.getInt(pos)];
+            ByteBuffer view = buffer.duplicate();
+            view.position(pos + 4);
+            view.get(data);
+            return data;
+        }
+
+        /**
+         * Marks the record at the read position as drained.
+         */
+        void drainOne() {
+            int length = buffer.getInt(readPos);
+            buffer.putInt(readPos, -length);
+            readPos += 4 + length;
+        }
+
+        void close() {
+            buffer.force();
+        }
+    }
+
+    private final ObjectMapper mapper = ObjectMapperFactory.get();
+    private final File directory;
+    private final int segmentSize;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private long depth;
+    private long appended;
+    private long drained;
+    private long failedAttempts;
+    private long rejected;
+    private double drainRate;
+    private long rateWindowStart;
+    private long rateWindowDrained;
+    private int batchSize = DRAIN_BATCH_SIZE;
+    private int maxAttempts = MAX_ATTEMPTS;
+    private long initialBackoffMillis = INITIAL_BACKOFF_MILLIS;
+    private long maxBackoffMillis = MAX_BACKOFF_MILLIS;
+    private Thread drainer;
+    private volatile boolean draining;
+
+    /**
+     * Opens the spool in the given directory, with the default segment size.
+     *
+     * @param directory The directory to keep the segment files in.
+     * @throws IOException If the directory can not be used.
+     */
+    public ObservationSpool(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the spool in the given directory. Existing segments are reopened.
+     *
+     * @param directory The directory to keep the segment files in.
+     * @param segmentSize The size of new segment files, this limits the size
+     * of a single Observation.
+     * @throws IOException If the directory can not be used.
+     */
+    public ObservationSpool(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create spool directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        File[] files = directory.listFiles((dir, name) -> SEGMENT_NAME.matcher(name).matches());
+        Arrays.sort(files, (a, b) -> Long.compare(sequenceOf(a), sequenceOf(b)));
+        for (File file : files) {
+            Segment segment = new Segment(file, sequenceOf(file), segmentSize);
+            depth += segment.scan();
+            segments.addLast(segment);
+        }
+        removeDrainedSegments();
+        if (depth > 0) {
+            LOGGER.info("Reopened spool {} with {} Observations in {} segments.", directory, depth, segments.size());
+        }
+    }
+
+    private static long sequenceOf(File file) {
+        Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not a segment file: " + file);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /**
+     * Sets the number of Observations posted per request by the drainer.
+     *
+     * @param batchSize The number of Observations per request.
+     * @return this.
+     */
+    public ObservationSpool setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Sets the retry behaviour of the drainer.
+     *
+     * @param maxAttempts The number of attempts of a batch in one drain round.
+     * @param initialBackoffMillis The pause after the first failure, doubled
+     * for each following failure.
+     * @param maxBackoffMillis The longest pause.
+     * @return this.
+     */
+    public ObservationSpool setRetry(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    /**
+     * Appends the given Observation to the spool. The Observation must have a
+     * Datastream with only an id.
+     *
+     * @param o The Observation to spool.
+     * @throws IOException If the Observation can not be written.
+     * @throws IllegalArgumentException If the Observation has no Datastream
+     * with an id.
+     */
+    public void append(Observation o) throws IOException {
+        // Checked here, a record the drainer can not post would block the spool.
+        Datastream datastream;
+        try {
+            datastream = datastreamOf(o);
+        } catch (ServiceFailureException ex) {
+            datastream = null;
+        }
+        if (datastream == null || datastream.getId() == null) {
+            throw new IllegalArgumentException("Only Observations of a Datastream with an id can be spooled.");
+        }
+        byte[] data = mapper.writeValueAsBytes(o);
+        synchronized (this) {
+            Segment segment = segments.peekLast();
+            if (segment == null || !segment.fits(data.length)) {
+                segment = newSegment(segment == null ? 0 : segment.sequence + 1);
+                if (!segment.fits(data.length)) {
+                    throw new IOException("Observation of " + data.length + " bytes does not fit in a segment of " + segmentSize);
+                }
+            }
+            segment.write(data);
+            depth++;
+            appended++;
+            notifyAll();
+        }
+    }
+
+    private static Datastream datastreamOf(Observation o) throws ServiceFailureException {
+        return o.getDatastream();
+    }
+
+    private Segment newSegment(long sequence) throws IOException {
+        Segment previous = segments.peekLast();
+        if (previous != null) {
+            previous.buffer.force();
+        }
+        File file = new File(directory, String.format("segment-%010d.spool", sequence));
+        Segment segment = new Segment(file, sequence, segmentSize);
+        segment.scan();
+        segments.addLast(segment);
+        removeDrainedSegments();
+        return segment;
+    }
+
+    /**
+     * Deletes the segments at the head that are fully drained, except the one
+     * being written to.
+     */
+    private void removeDrainedSegments() {
+        while (segments.size() > 1) {
+            Segment head = segments.peekFirst();
+            if (head.hasRecord(head.readPos)) {
+                return;
+            }
+            segments.removeFirst();
+            head.close();
+            if (!head.file.delete()) {
+                LOGGER.warn("Failed to delete drained segment {}", head.file);
+            }
+        }
+    }
+
+    /**
+     * Reads, without draining them, up to max of the oldest Observations.
+     *
+     * @param max The maximum number of Observations to read.
+     * @return The Observations, oldest first.
+     * @throws IOException If a record can not be parsed.
+     */
+    public List<Observation> peek(int max) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                int pos = segment.readPos;
+                while (records.size() < max && pos < segment.writePos && segment.hasRecord(pos)) {
+                    byte[] data = segment.read(pos);
+                    records.add(data);
+                    pos += 4 + data.length;
+                }
+                if (records.size() >= max) {
+                    break;
+                }
+            }
+        }
+        List<Observation> result = new ArrayList<>(records.size());
+        for (byte[] data : records) {
+            result.add(mapper.readValue(data, Observation.class));
+        }
+        return result;
+    }
+
+    /**
+     * Marks the given number of the oldest Observations as drained.
+     *
+     * @param count The number of Observations to mark.
+     */
+    public synchronized void drain(int count) {
+        for (int i = 0; i < count; i++) {
+            Segment head = segments.peekFirst();
+            while (head != null && !head.hasRecord(head.readPos)) {
+                if (segments.size() == 1) {
+                    throw new IllegalStateException("Drained more Observations than spooled.");
+                }
+                removeDrainedSegments();
+                head = segments.peekFirst();
+            }
+            head.drainOne();
+        }
+        removeDrainedSegments();
+        depth -= count;
+        drained += count;
+        long now = System.nanoTime();
+        if (rateWindowStart == 0) {
+            rateWindowStart = now;
+        } else if (now - rateWindowStart >= RATE_WINDOW_NANOS) {
+            drainRate = (drained - rateWindowDrained) * 1e9 / (now - rateWindowStart);
+            rateWindowStart = now;
+            rateWindowDrained = drained;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Starts a thread that posts the spooled Observations to the given
+     * service, until close is called.
+     *
+     * @param service The service to post to.
+     * @return this.
+     */
+    public synchronized ObservationSpool startDraining(SensorThingsService service) {
+        if (drainer != null) {
+            throw new IllegalStateException("Already draining.");
+        }
+        draining = true;
+        drainer = new Thread(() -> drainLoop(service), "spool-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+        return this;
+    }
+
+    private void drainLoop(SensorThingsService service) {
+        int attempt = 0;
+        while (draining) {
+            try {
+                synchronized (this) {
+                    if (depth == 0) {
+                        // Restart the rate window when the backlog starts again.
+                        rateWindowStart = 0;
+                        rateWindowDrained = drained;
+                        wait(1000);
+                        continue;
+                    }
+                }
+                List<Observation> batch;
+                try {
+                    batch = peek(batchSize);
+                } catch (IOException ex) {
+                    LOGGER.error("Spool is corrupt, stopping the drainer.", ex);
+                    return;
+                }
+                try {
+                    List<Observation> rejected = post(service, batch);
+                    // The server has the batch, it must not be posted again.
+                    synchronized (this) {
+                        this.rejected += rejected.size();
+                        drain(batch.size());
+                    }
+                    attempt = 0;
+                    try {
+                        quarantine(rejected);
+                    } catch (IOException ex) {
+                        LOGGER.error("Failed to quarantine {} rejected Observations.", rejected.size(), ex);
+                    }
+                } catch (ServiceFailureException | RuntimeException ex) {
+                    if (ex instanceof RuntimeException) {
+                        LOGGER.error("Unexpected failure while draining.", ex);
+                    }
+                    synchronized (this) {
+                        failedAttempts++;
+                    }
+                    attempt++;
+                    long backoff;
+                    if (attempt >= maxAttempts) {
+                        LOGGER.error("Draining failed {} times, pausing for {}ms. Spool depth {}: {}", attempt, maxBackoffMillis, getDepth(), ex.getMessage());
+                        backoff = maxBackoffMillis;
+                        attempt = 0;
+                    } else {
+                        backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 30));
+                        LOGGER.warn("Draining failed, retry {} in {}ms: {}", attempt, backoff, ex.getMessage());
+                    }
+                    Thread.sleep(backoff);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Posts the batch in DataArray format.
+     *
+     * @return The Observations of the batch the server rejected.
+     */
+    private List<Observation> post(SensorThingsService service, List<Observation> batch) throws ServiceFailureException {
+        Map<Id, DataArrayValue> values = new LinkedHashMap<>();
+        Map<Id, List<Observation>> rows = new LinkedHashMap<>();
+        for (Observation o : batch) {
+            Datastream datastream = datastreamOf(o);
+            DataArrayValue value = values.get(datastream.getId());
+            if (value == null) {
+                value = new DataArrayValue(datastream.withOnlyId(), ObservationBatcher.DEFAULT_COMPONENTS);
+                values.put(datastream.getId(), value);
+                rows.put(datastream.getId(), new ArrayList<>());
+            }
+            value.addObservation(o);
+            rows.get(datastream.getId()).add(o);
+        }
+        DataArrayDocument dad = new DataArrayDocument();
+        List<Observation> order = new ArrayList<>(batch.size());
+        for (Map.Entry<Id, DataArrayValue> entry : values.entrySet()) {
+            dad.addDataArrayValue(entry.getValue());
+            order.addAll(rows.get(entry.getKey()));
+        }
+        List<String> result = LatencyRecorder.getInstance().time("create DataArray", () -> service.observations().create(dad));
+        if (result.size() != order.size()) {
+            LOGGER.warn("Expected {} results from CreateObservations, got {}.", order.size(), result.size());
+        }
+        List<Observation> failures = new ArrayList<>();
+        for (int i = 0; i < result.size() && i < order.size(); i++) {
+            if (result.get(i).startsWith("error")) {
+                LOGGER.warn("Server rejected a spooled Observation: {}", result.get(i));
+                failures.add(order.get(i));
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Appends the given Observations to the quarantine file.
+     */
+    private void quarantine(List<Observation> observations) throws IOException {
+        if (observations.isEmpty()) {
+            return;
+        }
+        File file = new File(directory, QUARANTINE_FILE);
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            for (Observation o : observations) {
+                out.write(mapper.writeValueAsBytes(o));
+                out.write('\n');
+            }
+        }
+        LOGGER.warn("Moved {} rejected Observations to {}.", observations.size(), file);
+    }
+
+    /**
+     * Waits until all spooled Observations are drained.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return true if the spool is empty.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (depth > 0) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of Observations in the spool.
+     */
+    public synchronized long getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return The number of Observations appended since the spool was opened.
+     */
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    /**
+     * @return The number of Observations drained since the spool was opened.
+     */
+    public synchronized long getDrained() {
+        return drained;
+    }
+
+    /**
+     * @return The number of failed drain requests.
+     */
+    public synchronized long getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    /**
+     * @return The number of drained Observations that the server rejected.
+     * They are moved to the quarantine file, unless writing it fails.
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return The number of Observations drained per second, over the last
+     * few seconds of draining.
+     */
+    public synchronized double getDrainRate() {
+        return drainRate;
+    }
+
+    /**
+     * Stops the drainer, and closes the segment files. Observations that are
+     * not drained stay in the directory.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            draining = false;
+            thread = drainer;
+            drainer = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+        }
+    }
+
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sta.model.Id;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Writes the Observations that CreateEntities generates straight into a
+ * reusable byte buffer, as JSON, without building Observation entities or
+ * parameter maps. The content is the same as that of an Observation created by
+ * CreateEntities with the same index: the result is the index, and the
+ * parameters are those of the generate methods in CreateEntities.
+ *
+ * After the first few Observations the buffer has grown to its working size,
+ * and writing an Observation no longer allocates.
+ *
+ * Not thread safe, each worker should use its own template.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ObservationTemplate {
+
+    private static final byte[] DIGITS = "0123456789".getBytes(StandardCharsets.US_ASCII);
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+    /**
+     * The length of a time written by writeTime, like
+     * 2016-01-01T00:00:00.000Z.
+     */
+    public static final int TIME_LENGTH = 24;
+
+    private final byte[] datastreamRef;
+    private final byte[] scratch = new byte[20];
+    private byte[] buffer;
+    private int length;
+    private int rows;
+    private boolean openDataArray;
+
+    /**
+     * @param datastreamId The id of the Datastream of the Observations.
+     */
+    public ObservationTemplate(Id datastreamId) {
+        this(datastreamId, 1024);
+    }
+
+    /**
+     * @param datastreamId The id of the Datastream of the Observations.
+     * @param initialCapacity The initial size of the buffer, in bytes.
+     */
+    public ObservationTemplate(Id datastreamId, int initialCapacity) {
+        try {
+            datastreamRef = ObjectMapperFactory.get().writeValueAsBytes(datastreamId.getValue());
+        } catch (JsonProcessingException ex) {
+            throw new IllegalArgumentException("Can not serialise id " + datastreamId, ex);
+        }
+        buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Replaces the buffer content with a single Observation, to be posted to
+     * the Observations collection.
+     *
+     * @param index The index of the Observation, used as result and as the
+     * start value of the parameters.
+     * @param phenomenonTimeMillis The phenomenonTime, in milliseconds since the
+     * epoch.
+     * @return this.
+     */
+    public ObservationTemplate writeObservation(int index, long phenomenonTimeMillis) {
+        length = 0;
+        rows = 0;
+        openDataArray = false;
+        ascii("{\"phenomenonTime\":");
+        time(phenomenonTimeMillis);
+        ascii(",\"result\":");
+        integer(index);
+        ascii(",\"parameters\":");
+        parameters(index);
+        ascii(",\"Datastream\":{\"@iot.id\":");
+        bytes(datastreamRef);
+        ascii("}}");
+        return this;
+    }
+
+    /**
+     * Replaces the buffer content with the start of a DataArray document, to
+     * be posted to the CreateObservations action. Rows are added with addRow.
+     *
+     * @return this.
+     */
+    public ObservationTemplate startDataArray() {
+        length = 0;
+        rows = 0;
+        openDataArray = true;
+        ascii("[{\"Datastream\":{\"@iot.id\":");
+        bytes(datastreamRef);
+        ascii("},\"components\":[\"phenomenonTime\",\"result\",\"parameters\"],\"dataArray\":[");
+        return this;
+    }
+
+    /**
+     * Adds an Observation to the DataArray document.
+     *
+     * @param index The index of the Observation.
+     * @param phenomenonTimeMillis The phenomenonTime, in milliseconds since the
+     * epoch.
+     * @return this.
+     * @throws IllegalStateException If no DataArray document was started.
+     */
+    public ObservationTemplate addRow(int index, long phenomenonTimeMillis) {
+        if (!openDataArray) {
+            throw new IllegalStateException("Call startDataArray before adding rows.");
+        }
+        if (rows > 0) {
+            ensure(1);
+            buffer[length++] = ',';
+        }
+        ascii("[");
+        time(phenomenonTimeMillis);
+        ascii(",");
+        integer(index);
+        ascii(",");
+        parameters(index);
+        ascii("]");
+        rows++;
+        return this;
+    }
+
+    /**
+     * @return The number of rows in the DataArray document.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    private void parameters(int index) {
+        ascii("{\"string\":");
+        letters(index, 10);
+        ascii(",\"boolean\":");
+        ascii(index % 2 == 0 ? "true" : "false");
+        ascii(",\"int\":");
+        integer(index);
+        ascii(",\"intArray\":");
+        intArray(index, 5);
+        ascii(",\"intIntArray\":[");
+        for (int i = 0; i < 3; i++) {
+            if (i > 0) {
+                ascii(",");
+            }
+            intArray(index + i, 3);
+        }
+        ascii("],\"objArray\":[");
+        for (int i = 0; i < 3; i++) {
+            int value = index + i;
+            if (i > 0) {
+                ascii(",");
+            }
+            ascii("{\"string\":");
+            letters(value, 10);
+            ascii(",\"boolean\":");
+            ascii(value % 2 == 0 ? "true" : "false");
+            ascii(",\"int\":");
+            integer(value);
+            ascii(",\"intArray\":");
+            intArray(value, 3);
+            ascii("}");
+        }
+        ascii("]}");
+    }
+
+    /**
+     * Writes the same string as CreateEntities.generateString, quoted.
+     */
+    private void letters(int startLetter, int count) {
+        ensure(count + 2);
+        buffer[length++] = '"';
+        int letter = startLetter % 26;
+        for (int i = 0; i < count; i++) {
+            buffer[length++] = (byte) ('a' + letter);
+            letter = (letter + 1) % 26;
+        }
+        buffer[length++] = '"';
+    }
+
+    private void intArray(int startValue, int count) {
+        ascii("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                ascii(",");
+            }
+            integer(startValue + i);
+        }
+        ascii("]");
+    }
+
+    private void integer(long value) {
+        ensure(20);
+        if (value == Long.MIN_VALUE) {
+            ascii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int pos = scratch.length;
+        do {
+            scratch[--pos] = DIGITS[(int) (value % 10)];
+            value /= 10;
+        } while (value > 0);
+        int count = scratch.length - pos;
+        System.arraycopy(scratch, pos, buffer, length, count);
+        length += count;
+    }
+
+    /**
+     * Writes the time as a quoted ISO 8601 UTC time with milliseconds.
+     */
+    private void time(long epochMillis) {
+        ensure(2 + TIME_LENGTH);
+        buffer[length++] = '"';
+        length = writeTime(epochMillis, buffer, length);
+        buffer[length++] = '"';
+    }
+
+    /**
+     * Writes the time as an unquoted ISO 8601 UTC time with milliseconds, in
+     * TIME_LENGTH ASCII bytes. Uses the civil-from-days algorithm, to avoid
+     * creating date objects.
+     *
+     * @param epochMillis The time to write.
+     * @param target The array to write to.
+     * @param offset The position in the array to start writing at.
+     * @return The position after the written time.
+     */
+    public static int writeTime(long epochMillis, byte[] target, int offset) {
+        long days = Math.floorDiv(epochMillis, MILLIS_PER_DAY);
+        long millisOfDay = Math.floorMod(epochMillis, MILLIS_PER_DAY);
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        int pos = padded(year, 4, target, offset);
+        target[pos++] = '-';
+        pos = padded(month, 2, target, pos);
+        target[pos++] = '-';
+        pos = padded(day, 2, target, pos);
+        target[pos++] = 'T';
+        pos = padded(millisOfDay / 3_600_000, 2, target, pos);
+        target[pos++] = ':';
+        pos = padded(millisOfDay / 60_000 % 60, 2, target, pos);
+        target[pos++] = ':';
+        pos = padded(millisOfDay / 1000 % 60, 2, target, pos);
+        target[pos++] = '.';
+        pos = padded(millisOfDay % 1000, 3, target, pos);
+        target[pos++] = 'Z';
+        return pos;
+    }
+
+    private static int padded(long value, int width, byte[] target, int offset) {
+        for (int i = width - 1; i >= 0; i--) {
+            target[offset + i] = DIGITS[(int) (value % 10)];
+            value /= 10;
+        }
+        return offset + width;
+    }
+
+    private void ascii(String value) {
+        int count = value.length();
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            buffer[length++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void bytes(byte[] value) {
+        ensure(value.length);
+        System.arraycopy(value, 0, buffer, length, value.length);
+        length += value.length;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+
+    /**
+     * @return The buffer. Only the first getLength() bytes are valid.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return The number of valid bytes in the buffer.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Finishes the DataArray document, if one was started.
+     */
+    private void finish() {
+        if (openDataArray) {
+            ascii("]}]");
+            openDataArray = false;
+        }
+    }
+
+    /**
+     * @return The content of the buffer, as a String. For debugging.
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Posts the content of the buffer. A DataArray document is finished first.
+     * The response is checked for rows that failed.
+     *
+     * @param service The service to use for the request.
+     * @param url The url to post to: the Observations collection for a single
+     * Observation, or the CreateObservations action for a DataArray document.
+     * @return The number of Observations that failed to be created.
+     * @throws ServiceFailureException If the request failed.
+     */
+    public int post(SensorThingsService service, URI url) throws ServiceFailureException {
+        finish();
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new ByteArrayEntity(buffer, 0, length, ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = service.execute(post)) {
+            int code = response.getStatusLine().getStatusCode();
+            if (code < 200 || code >= 300) {
+                String message = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+                throw new ServiceFailureException("Post to " + url + " failed with status " + code + ": " + message);
+            }
+            if (rows == 0 || response.getEntity() == null) {
+                EntityUtils.consume(response.getEntity());
+                return 0;
+            }
+            return countErrors(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            throw new ServiceFailureException("Failed to post to " + url, ex);
+        }
+    }
+
+    private static int countErrors(String response) {
+        int count = 0;
+        int pos = response.indexOf("\"error");
+        while (pos >= 0) {
+            count++;
+            pos = response.indexOf("\"error", pos + 1);
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads large collections from a service. Unlike EntityList.fullIterator,
+ * which fetches the next page only when the current page is used up, the
+ * iterators of this reader fetch and parse the next pages in a background
+ * thread while the current page is being consumed, so the latency of the
+ * service is paid only once instead of once per page.
+ *
+ * For even larger collections, readPartitioned splits the collection into id
+ * or time ranges, and reads the ranges concurrently.
+ *
+ * @author Hylke van der Schaaf
+ * @param <T> The type of entity to read.
+ */
+public class PagedReader<T extends Entity<T>> {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(PagedReader.class);
+
+    /**
+     * Handles the entities of a partitioned read. Called from several threads
+     * at the same time.
+     *
+     * @param <T> The type of entity to handle.
+     */
+    public static interface EntityHandler<T> {
+
+        public void handle(T entity) throws ServiceFailureException;
+    }
+
+    private final SensorThingsService service;
+    private final String baseUrl;
+    private final Class<T> entityClass;
+    private final ObjectMapper mapper = ObjectMapperFactory.get();
+    private int pageSize = 1000;
+    private int prefetch = 2;
+    private String orderBy;
+    private String select;
+    private final LongAdder pagesRead = new LongAdder();
+
+    /**
+     * @param service The service to read from. Only its http client is used.
+     * @param baseUrl The base url of the service, ending in a slash.
+     * @param entityClass The class of the entities to read.
+     */
+    public PagedReader(SensorThingsService service, String baseUrl, Class<T> entityClass) {
+        this.service = service;
+        this.baseUrl = baseUrl;
+        this.entityClass = entityClass;
+    }
+
+    /**
+     * @param pageSize The $top to request. The server may return less.
+     * @return this.
+     */
+    public PagedReader<T> setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param prefetch The number of pages to fetch ahead of the consumer.
+     * @return this.
+     */
+    public PagedReader<T> setPrefetch(int prefetch) {
+        if (prefetch < 1) {
+            throw new IllegalArgumentException("Prefetch must be at least 1, got " + prefetch);
+        }
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * @param orderBy The $orderby to request, or null for the server default.
+     * @return this.
+     */
+    public PagedReader<T> setOrderBy(String orderBy) {
+        this.orderBy = orderBy;
+        return this;
+    }
+
+    /**
+     * @param select The $select to request, or null for all properties.
+     * @return this.
+     */
+    public PagedReader<T> setSelect(String select) {
+        this.select = select;
+        return this;
+    }
+
+    /**
+     * @return The number of pages fetched so far, by all iterators.
+     */
+    public long getPagesRead() {
+        return pagesRead.sum();
+    }
+
+    /**
+     * Starts reading the given collection. The returned iterator should be
+     * closed if it is not read to the end, to stop the prefetching.
+     *
+     * @param path The path of the collection, relative to the base url, like
+     * "Datastreams(1)/Observations".
+     * @param filter The $filter to apply, or null.
+     * @return An iterator over all entities of the collection.
+     */
+    public PrefetchingIterator iterator(String path, String filter) {
+        StringBuilder url = new StringBuilder(baseUrl).append(path).append("?$top=").append(pageSize);
+        if (orderBy != null) {
+            url.append("&$orderby=").append(encode(orderBy));
+        }
+        if (select != null) {
+            url.append("&$select=").append(encode(select));
+        }
+        if (filter != null && !filter.isEmpty()) {
+            url.append("&$filter=").append(encode(filter));
+        }
+        return new PrefetchingIterator(url.toString());
+    }
+
+    /**
+     * Reads the given collection in partitions, with one thread per
+     * partition. Each partition is the collection, filtered by the filter and
+     * the partition filter. The partitions should not overlap.
+     *
+     * @param path The path of the collection, relative to the base url.
+     * @param filter The $filter to apply to all partitions, or null.
+     * @param partitions The filters that select the partitions, as created by
+     * idPartitions or timePartitions.
+     * @param handler The handler to pass the entities to.
+     * @return The number of entities read.
+     * @throws ServiceFailureException If reading any of the partitions fails.
+     */
+    public long readPartitioned(String path, String filter, List<String> partitions, EntityHandler<T> handler) throws ServiceFailureException {
+        long start = System.nanoTime();
+        LongAdder count = new LongAdder();
+        ExecutorService pool = Executors.newFixedThreadPool(partitions.size());
+        try {
+            List<Future<Void>> tasks = new ArrayList<>();
+            for (String partition : partitions) {
+                String combined = filter == null || filter.isEmpty() ? partition : "(" + filter + ") and " + partition;
+                tasks.add(pool.submit(() -> {
+                    try (PrefetchingIterator it = iterator(path, combined)) {
+                        while (it.hasNext()) {
+                            handler.handle(it.next());
+                            count.increment();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceFailureException("Interrupted while reading " + path, ex);
+        } catch (ExecutionException ex) {
+            throw new ServiceFailureException("Failed to read " + path, ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        LOGGER.debug("Read {} entities from {} in {} partitions in {}ms.",
+                count.sum(), path, partitions.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return count.sum();
+    }
+
+    /**
+     * Finds the lowest and highest numeric id in the given collection.
+     *
+     * @param path The path of the collection, relative to the base url.
+     * @param filter The $filter to apply, or null.
+     * @return The lowest and highest id, or null if the collection is empty.
+     * @throws ServiceFailureException If the service fails.
+     */
+    public long[] findIdRange(String path, String filter) throws ServiceFailureException {
+        String query = baseUrl + path + "?$top=1&$select=id"
+                + (filter == null || filter.isEmpty() ? "" : "&$filter=" + encode(filter)) + "&$orderby=";
+        JsonNode first = getPage(query + encode("id asc")).path("value");
+        JsonNode last = getPage(query + encode("id desc")).path("value");
+        if (first.size() == 0 || last.size() == 0) {
+            return null;
+        }
+        return new long[]{first.get(0).get("@iot.id").asLong(), last.get(0).get("@iot.id").asLong()};
+    }
+
+    /**
+     * Splits the id range from min to max, both inclusive, into partitions of
+     * equal width.
+     *
+     * @param min The lowest id.
+     * @param max The highest id.
+     * @param count The number of partitions.
+     * @return The filters that select the partitions.
+     */
+    public static List<String> idPartitions(long min, long max, int count) {
+        List<String> result = new ArrayList<>();
+        long width = Math.max(1, (max - min + count) / count);
+        for (long from = min; from <= max; from += width) {
+            result.add("id ge " + from + " and id lt " + Math.min(max + 1, from + width));
+        }
+        return result;
+    }
+
+    /**
+     * Splits the time range from start (inclusive) to end (exclusive) into
+     * partitions of equal length.
+     *
+     * @param property The time property to split on, like "phenomenonTime".
+     * @param start The start of the range.
+     * @param end The end of the range.
+     * @param count The number of partitions.
+     * @return The filters that select the partitions.
+     */
+    public static List<String> timePartitions(String property, Instant start, Instant end, int count) {
+        List<String> result = new ArrayList<>();
+        Duration width = Duration.between(start, end).dividedBy(count);
+        Instant from = start;
+        for (int i = 0; i < count; i++) {
+            Instant to = i == count - 1 ? end : from.plus(width);
+            result.add(property + " ge " + from + " and " + property + " lt " + to);
+            from = to;
+        }
+        return result;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private JsonNode getPage(String url) throws ServiceFailureException {
+        HttpGet get = new HttpGet(url);
+        try (CloseableHttpResponse response = service.execute(get)) {
+            int code = response.getStatusLine().getStatusCode();
+            String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            if (code < 200 || code >= 300) {
+                throw new ServiceFailureException("Reading " + url + " failed with " + code + ": " + body);
+            }
+            pagesRead.increment();
+            return mapper.readTree(body);
+        } catch (IOException ex) {
+            throw new ServiceFailureException("Failed to read " + url, ex);
+        }
+    }
+
+    /**
+     * A page of parsed entities, or the failure that ended the reading.
+     */
+    private class Page {
+
+        final List<T> entities;
+        final Throwable failure;
+
+        Page(List<T> entities, Throwable failure) {
+            this.entities = entities;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * An iterator that fetches pages in a background thread, up to prefetch
+     * pages ahead of the consumer. Failures of the background thread are
+     * thrown from hasNext, as IllegalStateException, Errors are rethrown as
+     * they are.
+     */
+    public class PrefetchingIterator implements Iterator<T>, AutoCloseable {
+
+        private final Page end = new Page(Collections.emptyList(), null);
+        private final BlockingQueue<Page> queue = new ArrayBlockingQueue<>(prefetch);
+        private final Thread fetcher;
+        private Iterator<T> current = Collections.emptyIterator();
+        private boolean finished;
+
+        private PrefetchingIterator(String url) {
+            fetcher = new Thread(() -> fetch(url), "PagedReader-prefetch");
+            fetcher.setDaemon(true);
+            fetcher.start();
+        }
+
+        private void fetch(String url) {
+            String next = url;
+            try {
+                while (next != null) {
+                    JsonNode page = getPage(next);
+                    List<T> entities = new ArrayList<>(page.path("value").size());
+                    for (JsonNode node : page.path("value")) {
+                        T entity = mapper.treeToValue(node, entityClass);
+                        entity.setService(service);
+                        entities.add(entity);
+                    }
+                    queue.put(new Page(entities, null));
+                    JsonNode nextLink = page.get("@iot.nextLink");
+                    next = nextLink == null ? null : nextLink.asText();
+                }
+                queue.put(end);
+            } catch (InterruptedException ex) {
+                // Closed by the consumer.
+            } catch (Throwable ex) {
+                // Anything else would end the thread, and leave the consumer waiting forever.
+                try {
+                    queue.put(new Page(null, ex));
+                } catch (InterruptedException exc) {
+                    // Closed by the consumer.
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (finished) {
+                    return false;
+                }
+                Page page;
+                try {
+                    page = queue.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new IllegalStateException("Interrupted while waiting for the next page.", ex);
+                }
+                if (page.failure != null) {
+                    finished = true;
+                    if (page.failure instanceof Error) {
+                        throw (Error) page.failure;
+                    }
+                    throw new IllegalStateException("Failed to fetch page.", page.failure);
+                }
+                if (page == end) {
+                    finished = true;
+                    return false;
+                }
+                current = page.entities.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        /**
+         * Stops the prefetching.
+         */
+        @Override
+        public void close() {
+            finished = true;
+            fetcher.interrupt();
+        }
+    }
+
+}
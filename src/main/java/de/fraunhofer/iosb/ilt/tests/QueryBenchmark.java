@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import org.HdrHistogram.Histogram;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the filter expressions of FilterTests and DateTimeTests as a benchmark
+ * against a large dataset, as generated by DatasetGenerator. The times and
+ * geometries of the expressions are moved into the time span and bounding box
+ * of the dataset, so that they select a realistic part of it.
+ *
+ * For each filter, the first page latency (p50, p99) and the rate at which
+ * rows are returned while following the nextLinks are reported. Filters that
+ * are much slower than the others, for the same number of rows, point to
+ * predicates for which the server has no usable index.
+ *
+ * Filters the server rejects are reported as failed, and do not stop the run.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class QueryBenchmark {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryBenchmark.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Load the dataset before running the benchmark.
+     */
+    private static final boolean LOAD_DATASET = false;
+    private static final double SCALE_FACTOR = 1;
+    private static final long SEED = 42;
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+    private static final int PAGE_SIZE = 1000;
+    /**
+     * The maximum number of rows to fetch per run, by following nextLinks.
+     */
+    private static final int MAX_ROWS = 10_000;
+    /**
+     * The file to write the results to, as csv, or null.
+     */
+    private static final String RESULT_FILE = null;
+
+    /**
+     * A named filter on an entity set.
+     */
+    public static class FilterCase {
+
+        public final String name;
+        public final String entitySet;
+        public final String filter;
+
+        public FilterCase(String name, String entitySet, String filter) {
+            this.name = name;
+            this.entitySet = entitySet;
+            this.filter = filter;
+        }
+
+        @Override
+        public String toString() {
+            return entitySet + "?$filter=" + filter;
+        }
+    }
+
+    /**
+     * The measurements of one FilterCase.
+     */
+    public static class Result {
+
+        public final FilterCase filterCase;
+        /**
+         * The latencies of the first page of each measured run.
+         */
+        public final Histogram firstPage = new Histogram(3);
+        public long rows;
+        public long pages;
+        public long totalNanos;
+        public int failures;
+        public String error;
+
+        public Result(FilterCase filterCase) {
+            this.filterCase = filterCase;
+        }
+
+        /**
+         * @return The number of rows returned per second, over all pages of
+         * all measured runs.
+         */
+        public double getRowsPerSecond() {
+            return totalNanos == 0 ? 0 : rows * 1e9 / totalNanos;
+        }
+
+        public double getP50Millis() {
+            return firstPage.getValueAtPercentile(50) / 1e6;
+        }
+
+        public double getP99Millis() {
+            return firstPage.getValueAtPercentile(99) / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            if (error != null) {
+                return String.format(Locale.ROOT, "%-40s failed: %s", filterCase.name, error);
+            }
+            long runs = firstPage.getTotalCount();
+            return String.format(Locale.ROOT, "%-40s p50 %8.1fms  p99 %8.1fms  %8d rows/run  %10.1f rows/s",
+                    filterCase.name, getP50Millis(), getP99Millis(), runs == 0 ? 0 : rows / runs, getRowsPerSecond());
+        }
+    }
+
+    private final SensorThingsService service;
+    private final String baseUrl;
+    private int warmupRuns = WARMUP_RUNS;
+    private int measuredRuns = MEASURED_RUNS;
+    private int pageSize = PAGE_SIZE;
+    private int maxRows = MAX_ROWS;
+
+    /**
+     * @param service The service to query. Only its http client is used.
+     * @param baseUrl The base url of the service, ending in a slash.
+     */
+    public QueryBenchmark(SensorThingsService service, String baseUrl) {
+        this.service = service;
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * @param warmupRuns The number of unmeasured runs of each filter.
+     * @param measuredRuns The number of measured runs of each filter.
+     * @return this.
+     */
+    public QueryBenchmark setRuns(int warmupRuns, int measuredRuns) {
+        this.warmupRuns = warmupRuns;
+        this.measuredRuns = measuredRuns;
+        return this;
+    }
+
+    /**
+     * @param pageSize The $top to request.
+     * @param maxRows The maximum number of rows to fetch per run.
+     * @return this.
+     */
+    public QueryBenchmark setPaging(int pageSize, int maxRows) {
+        this.pageSize = pageSize;
+        this.maxRows = maxRows;
+        return this;
+    }
+
+    /**
+     * Creates the filters of FilterTests and DateTimeTests for the dataset of
+     * the given generator.
+     *
+     * @param generator The generator of the dataset.
+     * @return The filters.
+     */
+    public static List<FilterCase> createFilters(DatasetGenerator generator) {
+        double[] bbox = generator.getBoundingBox();
+        return createFilters(generator.getStart(), generator.getTimeSpan(), bbox[0], bbox[1], bbox[2], bbox[3]);
+    }
+
+    /**
+     * Creates the filters of FilterTests and DateTimeTests for a dataset with
+     * the given extent. Like T700 and T800 in DateTimeTests, the instants used
+     * lie at 70% and 80% of the time span. The geometries are placed around
+     * the centre of the bounding box, and cover about a tenth of its width.
+     *
+     * @param start The start of the time span of the dataset.
+     * @param timeSpan The length of the time span.
+     * @param minLon The western bound of the dataset.
+     * @param minLat The southern bound of the dataset.
+     * @param maxLon The eastern bound of the dataset.
+     * @param maxLat The northern bound of the dataset.
+     * @return The filters.
+     */
+    public static List<FilterCase> createFilters(Instant start, Duration timeSpan, double minLon, double minLat, double maxLon, double maxLat) {
+        List<FilterCase> filters = new ArrayList<>();
+        Instant t700 = start.plus(timeSpan.multipliedBy(7).dividedBy(10));
+        Instant t800 = start.plus(timeSpan.multipliedBy(8).dividedBy(10));
+        String interval = t700 + "/" + t800;
+
+        String[] properties = {"phenomenonTime", "resultTime", "validTime"};
+        String[] operators = {"lt", "gt", "le", "ge", "eq"};
+        for (String property : properties) {
+            for (String op : operators) {
+                filters.add(new FilterCase("time " + property + " " + op + " instant", "Observations", property + " " + op + " " + t700));
+                filters.add(new FilterCase("time " + property + " " + op + " interval", "Observations", property + " " + op + " " + interval));
+            }
+        }
+        String[] functions = {"before", "after", "meets", "during", "overlaps", "starts", "finishes"};
+        for (String property : properties) {
+            for (String function : functions) {
+                filters.add(new FilterCase("time " + function + "(" + property + ")", "Observations", function + "(" + property + "," + interval + ")"));
+            }
+        }
+        filters.add(new FilterCase("time range phenomenonTime", "Observations", "phenomenonTime ge " + t700 + " and phenomenonTime lt " + t800));
+        filters.add(new FilterCase("time duration add", "Observations", "phenomenonTime add duration'P1D' gt " + t700));
+        filters.add(new FilterCase("time duration sub", "Observations", "phenomenonTime gt " + t700 + " sub duration'P1D'"));
+
+        double cx = (minLon + maxLon) / 2;
+        double cy = (minLat + maxLat) / 2;
+        double dx = (maxLon - minLon) / 20;
+        double dy = (maxLat - minLat) / 20;
+        String point = wkt("POINT(%f %f)", cx, cy);
+        String line = wkt("LINESTRING(%f %f, %f %f)", cx, minLat, cx, maxLat);
+        String box = wkt("POLYGON((%f %f, %f %f, %f %f, %f %f, %f %f))",
+                cx - dx, cy - dy, cx - dx, cy + dy, cx + dx, cy + dy, cx + dx, cy - dy, cx - dx, cy - dy);
+        filters.add(new FilterCase("geo.distance", "Locations", "geo.distance(location, " + point + ") lt " + format(2 * dx)));
+        filters.add(new FilterCase("geo.intersects", "Locations", "geo.intersects(location, " + line + ")"));
+        filters.add(new FilterCase("geo.length", "Locations", "geo.length(location) gt 1"));
+        filters.add(new FilterCase("st_contains", "Locations", "st_contains(" + box + ", location)"));
+        filters.add(new FilterCase("st_crosses", "Locations", "st_crosses(" + line + ", location)"));
+        filters.add(new FilterCase("st_disjoint", "Locations", "st_disjoint(" + box + ", location)"));
+        filters.add(new FilterCase("st_equals", "Locations", "st_equals(location, " + point + ")"));
+        filters.add(new FilterCase("st_intersects", "Locations", "st_intersects(location, " + box + ")"));
+        filters.add(new FilterCase("st_overlaps", "Locations", "st_overlaps(" + box + ", location)"));
+        filters.add(new FilterCase("st_relate", "Locations", "st_relate(" + box + ", location, 'T********')"));
+        filters.add(new FilterCase("st_touches", "Locations", "st_touches(" + box + ", location)"));
+        filters.add(new FilterCase("st_within", "Locations", "st_within(location, " + box + ")"));
+
+        filters.add(new FilterCase("indirect Locations/name", "Things", "Locations/name eq 'Location 1'"));
+        filters.add(new FilterCase("indirect HistoricalLocations", "Things", "startswith(HistoricalLocations/Location/name, 'Location 1')"));
+        filters.add(new FilterCase("indirect st_within", "Observations", "st_within(Datastream/Thing/Locations/location, " + box + ")"));
+        filters.add(new FilterCase("indirect st_within and time", "Observations",
+                "phenomenonTime ge " + t700 + " and phenomenonTime lt " + t800 + " and st_within(Datastream/Thing/Locations/location, " + box + ")"));
+        return filters;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.5f", value);
+    }
+
+    private static String wkt(String template, Object... coordinates) {
+        return "geography'" + String.format(Locale.ROOT, template.replace("%f", "%.5f"), coordinates) + "'";
+    }
+
+    /**
+     * Runs all given filters, one after the other.
+     *
+     * @param filters The filters to run.
+     * @return The results, in the order of the filters.
+     */
+    public List<Result> run(List<FilterCase> filters) {
+        List<Result> results = new ArrayList<>();
+        for (FilterCase filterCase : filters) {
+            Result result = run(filterCase);
+            LOGGER.info("{}", result);
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Runs one filter the configured number of times.
+     *
+     * @param filterCase The filter to run.
+     * @return The result.
+     */
+    public Result run(FilterCase filterCase) {
+        Result result = new Result(filterCase);
+        String url;
+        try {
+            url = baseUrl + filterCase.entitySet + "?$top=" + pageSize + "&$filter="
+                    + URLEncoder.encode(filterCase.filter, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        for (int i = 0; i < warmupRuns + measuredRuns; i++) {
+            try {
+                fetch(url, i < warmupRuns ? null : result);
+            } catch (ServiceFailureException | IOException ex) {
+                result.failures++;
+                result.error = ex.getMessage();
+                // A filter that fails once will fail every time.
+                break;
+            }
+        }
+        return result;
+    }
+
+    private void fetch(String url, Result result) throws ServiceFailureException, IOException {
+        long start = System.nanoTime();
+        long rows = 0;
+        long pages = 0;
+        String next = url;
+        while (next != null && rows < maxRows) {
+            JsonNode page = get(next);
+            if (pages == 0 && result != null) {
+                result.firstPage.recordValue(System.nanoTime() - start);
+            }
+            pages++;
+            rows += page.path("value").size();
+            JsonNode nextLink = page.get("@iot.nextLink");
+            next = nextLink == null ? null : nextLink.asText();
+        }
+        if (result != null) {
+            result.totalNanos += System.nanoTime() - start;
+            result.rows += rows;
+            result.pages += pages;
+        }
+    }
+
+    private JsonNode get(String url) throws ServiceFailureException, IOException {
+        HttpGet get = new HttpGet(url);
+        try (CloseableHttpResponse response = service.execute(get)) {
+            int code = response.getStatusLine().getStatusCode();
+            String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            if (code < 200 || code >= 300) {
+                throw new ServiceFailureException("Query failed with " + code + ": " + body);
+            }
+            return MAPPER.readTree(body);
+        }
+    }
+
+    /**
+     * Logs the results, slowest first, and writes them to the given file if
+     * it is not null.
+     *
+     * @param results The results to report.
+     * @param csvFile The file to write the results to, or null.
+     * @throws FileNotFoundException If the file can not be written.
+     */
+    public static void report(List<Result> results, File csvFile) throws FileNotFoundException {
+        List<Result> sorted = new ArrayList<>(results);
+        Collections.sort(sorted, Comparator.comparingDouble((Result r) -> r.error == null ? r.getP50Millis() : -1).reversed());
+        LOGGER.info("Results, slowest first:");
+        for (Result result : sorted) {
+            LOGGER.info("{}", result);
+        }
+        if (csvFile == null) {
+            return;
+        }
+        try (PrintStream out = new PrintStream(csvFile)) {
+            out.println("name,entitySet,filter,runs,p50Ms,p99Ms,rows,pages,rowsPerSecond,error");
+            for (Result result : results) {
+                out.println(String.format(Locale.ROOT, "\"%s\",%s,\"%s\",%d,%.3f,%.3f,%d,%d,%.1f,\"%s\"",
+                        result.filterCase.name, result.filterCase.entitySet, result.filterCase.filter.replace("\"", "\"\""),
+                        result.firstPage.getTotalCount(), result.getP50Millis(), result.getP99Millis(),
+                        result.rows, result.pages, result.getRowsPerSecond(),
+                        result.error == null ? "" : result.error.replace("\"", "\"\"")));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws ServiceFailureException, URISyntaxException, IOException {
+        DatasetGenerator generator = DatasetGenerator.forScale(SCALE_FACTOR).setSeed(SEED);
+        SensorThingsService service = Constants.createService(Constants.getBaseUrl());
+        if (LOAD_DATASET) {
+            LOGGER.info("Loading {} Observations.", generator.getObservationCount());
+            generator.writeToService(service, 5, 1000);
+        }
+        List<FilterCase> filters = createFilters(generator);
+        LOGGER.info("Running {} filters against {}", filters.size(), Constants.getBaseUrl());
+        List<Result> results = new QueryBenchmark(service, Constants.getBaseUrl()).run(filters);
+        report(results, RESULT_FILE == null ? null : new File(RESULT_FILE));
+    }
+
+}
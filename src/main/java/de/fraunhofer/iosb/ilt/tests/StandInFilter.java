@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The $filter support of the StandInServer. Supports comparisons (eq, ne, lt,
+ * le, gt, ge) between properties and literals, combined with and, or, not and
+ * parentheses. Literals can be numbers, 'strings', true, false, null, times
+ * and time intervals. Properties are direct properties of the entity, id,
+ * the id of a linked entity, like Datastream/id, or a value in the properties
+ * of the entity, like properties/owner. Functions and arithmetic are not
+ * supported.
+ *
+ * Times follow the interval semantics tested in DateTimeTests, with intervals
+ * treated as half-open:
+ * <ul>
+ * <li>a lt b: a ends before b starts. For an instant a, a is before the start
+ * of b.</li>
+ * <li>a le b: a does not start after b, and does not end after b.</li>
+ * <li>a eq b: a and b have the same start and the same end.</li>
+ * </ul>
+ *
+ * @author Hylke van der Schaaf
+ */
+public class StandInFilter {
+
+    /**
+     * The properties that hold times or time intervals.
+     */
+    public static final Set<String> TIME_PROPERTIES = new HashSet<>(Arrays.asList(
+            "phenomenonTime", "resultTime", "validTime", "time"));
+
+    private static final Pattern NUMBER = Pattern.compile("-?[0-9]+(\\.[0-9]+)?([eE][-+]?[0-9]+)?");
+    private static final Pattern TIME = Pattern.compile("[0-9]{4}-[0-9]{2}-[0-9]{2}T[^ ]*");
+    private static final Pattern PATH = Pattern.compile("[A-Za-z@][A-Za-z0-9_.@]*(/[A-Za-z@][A-Za-z0-9_.@]*)*");
+
+    private static interface Node {
+
+        public boolean matches(long id, ObjectNode entity);
+    }
+
+    private static interface Operand {
+
+        public Object evaluate(long id, ObjectNode entity);
+    }
+
+    private final Node root;
+
+    private StandInFilter(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Parses the given filter.
+     *
+     * @param filter The filter to parse.
+     * @return The parsed filter.
+     * @throws IllegalArgumentException If the filter is not valid, or uses
+     * something that is not supported.
+     */
+    public static StandInFilter parse(String filter) {
+        Parser parser = new Parser(tokenize(filter));
+        Node root = parser.parseOr();
+        if (parser.hasNext()) {
+            throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in filter: " + filter);
+        }
+        return new StandInFilter(root);
+    }
+
+    /**
+     * @param id The id of the entity.
+     * @param entity The stored entity.
+     * @return true if the entity matches the filter.
+     */
+    public boolean matches(long id, ObjectNode entity) {
+        return root.matches(id, entity);
+    }
+
+    private static List<String> tokenize(String filter) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        int length = filter.length();
+        while (i < length) {
+            char c = filter.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')' || c == ',') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '\'') {
+                StringBuilder token = new StringBuilder("'");
+                i++;
+                while (true) {
+                    if (i >= length) {
+                        throw new IllegalArgumentException("Unterminated string in filter: " + filter);
+                    }
+                    char s = filter.charAt(i++);
+                    if (s == '\'') {
+                        if (i < length && filter.charAt(i) == '\'') {
+                            token.append('\'');
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        token.append(s);
+                    }
+                }
+                tokens.add(token.toString());
+            } else {
+                int start = i;
+                while (i < length && !Character.isWhitespace(filter.charAt(i)) && "()',".indexOf(filter.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(filter.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    private static class Parser {
+
+        private final List<String> tokens;
+        private int pos = 0;
+
+        public Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        public boolean hasNext() {
+            return pos < tokens.size();
+        }
+
+        public String peek() {
+            return hasNext() ? tokens.get(pos) : null;
+        }
+
+        private String next() {
+            if (!hasNext()) {
+                throw new IllegalArgumentException("Unexpected end of filter.");
+            }
+            return tokens.get(pos++);
+        }
+
+        private boolean accept(String token) {
+            if (token.equalsIgnoreCase(peek())) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        public Node parseOr() {
+            Node left = parseAnd();
+            while (accept("or")) {
+                Node a = left;
+                Node b = parseAnd();
+                left = (id, e) -> a.matches(id, e) || b.matches(id, e);
+            }
+            return left;
+        }
+
+        private Node parseAnd() {
+            Node left = parseNot();
+            while (accept("and")) {
+                Node a = left;
+                Node b = parseNot();
+                left = (id, e) -> a.matches(id, e) && b.matches(id, e);
+            }
+            return left;
+        }
+
+        private Node parseNot() {
+            if (accept("not")) {
+                Node inner = parseNot();
+                return (id, e) -> !inner.matches(id, e);
+            }
+            if (accept("(")) {
+                Node inner = parseOr();
+                if (!accept(")")) {
+                    throw new IllegalArgumentException("Missing ')' in filter.");
+                }
+                return inner;
+            }
+            return parseComparison();
+        }
+
+        private Node parseComparison() {
+            Operand left = parseOperand();
+            String op = next().toLowerCase();
+            Operand right = parseOperand();
+            switch (op) {
+                case "eq":
+                    return (id, e) -> equal(left.evaluate(id, e), right.evaluate(id, e));
+                case "ne":
+                    return (id, e) -> !equal(left.evaluate(id, e), right.evaluate(id, e));
+                case "lt":
+                    return (id, e) -> lessThan(left.evaluate(id, e), right.evaluate(id, e));
+                case "gt":
+                    return (id, e) -> lessThan(right.evaluate(id, e), left.evaluate(id, e));
+                case "le":
+                    return (id, e) -> lessOrEqual(left.evaluate(id, e), right.evaluate(id, e));
+                case "ge":
+                    return (id, e) -> lessOrEqual(right.evaluate(id, e), left.evaluate(id, e));
+                default:
+                    throw new IllegalArgumentException("Unsupported operator: " + op);
+            }
+        }
+
+        private Operand parseOperand() {
+            String token = next();
+            if ("(".equals(peek())) {
+                throw new IllegalArgumentException("Functions are not supported: " + token);
+            }
+            if (token.startsWith("'")) {
+                String value = token.substring(1);
+                return (id, e) -> value;
+            }
+            if ("null".equals(token)) {
+                return (id, e) -> null;
+            }
+            if ("true".equals(token) || "false".equals(token)) {
+                Boolean value = Boolean.valueOf(token);
+                return (id, e) -> value;
+            }
+            if (NUMBER.matcher(token).matches()) {
+                Double value = Double.valueOf(token);
+                return (id, e) -> value;
+            }
+            if (TIME.matcher(token).matches()) {
+                TimeValue value = TimeValue.parse(token);
+                return (id, e) -> value;
+            }
+            if (PATH.matcher(token).matches()) {
+                return pathOperand(token);
+            }
+            throw new IllegalArgumentException("Unsupported operand: " + token);
+        }
+
+        private Operand pathOperand(String path) {
+            if ("id".equals(path) || "@iot.id".equals(path)) {
+                return (id, e) -> (double) id;
+            }
+            String[] parts = path.split("/");
+            if (parts.length == 2 && ("id".equals(parts[1]) || "@iot.id".equals(parts[1]))) {
+                String link = parts[0];
+                return (id, e) -> {
+                    JsonNode ref = e.get(link);
+                    if (ref == null || !ref.has("@iot.id")) {
+                        return null;
+                    }
+                    return ref.get("@iot.id").asDouble();
+                };
+            }
+            if (parts.length > 1 && "properties".equals(parts[0])) {
+                return (id, e) -> {
+                    JsonNode node = e;
+                    for (String part : parts) {
+                        node = node == null ? null : node.get(part);
+                    }
+                    return toValue(parts[parts.length - 1], node);
+                };
+            }
+            if (parts.length > 1) {
+                throw new IllegalArgumentException("Unsupported path: " + path);
+            }
+            return (id, e) -> toValue(path, e.get(path));
+        }
+    }
+
+    private static Object toValue(String name, JsonNode node) {
+        if (node == null || node.isNull()) {
+            return null;
+        }
+        if (node.isNumber()) {
+            return node.asDouble();
+        }
+        if (node.isBoolean()) {
+            return node.asBoolean();
+        }
+        if (node.isTextual()) {
+            if (TIME_PROPERTIES.contains(name)) {
+                return TimeValue.parse(node.asText());
+            }
+            return node.asText();
+        }
+        return node;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a instanceof TimeValue || b instanceof TimeValue) {
+            TimeValue ta = TimeValue.of(a);
+            TimeValue tb = TimeValue.of(b);
+            return ta != null && tb != null && ta.start.equals(tb.start) && ta.end.equals(tb.end);
+        }
+        if (a instanceof Comparable && a.getClass() == b.getClass()) {
+            return a.equals(b);
+        }
+        return false;
+    }
+
+    private static boolean lessThan(Object a, Object b) {
+        if (a instanceof TimeValue || b instanceof TimeValue) {
+            TimeValue ta = TimeValue.of(a);
+            TimeValue tb = TimeValue.of(b);
+            if (ta == null || tb == null) {
+                return false;
+            }
+            if (ta.isInterval()) {
+                return !ta.end.isAfter(tb.start);
+            }
+            return ta.start.isBefore(tb.start);
+        }
+        return compare(a, b) < 0;
+    }
+
+    private static boolean lessOrEqual(Object a, Object b) {
+        if (a instanceof TimeValue || b instanceof TimeValue) {
+            TimeValue ta = TimeValue.of(a);
+            TimeValue tb = TimeValue.of(b);
+            if (ta == null || tb == null) {
+                return false;
+            }
+            return !ta.start.isAfter(tb.start) && !ta.end.isAfter(tb.end);
+        }
+        Integer result = compareOrNull(a, b);
+        return result != null && result <= 0;
+    }
+
+    private static int compare(Object a, Object b) {
+        Integer result = compareOrNull(a, b);
+        return result == null ? 0 : result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Integer compareOrNull(Object a, Object b) {
+        if (a == null || b == null || a.getClass() != b.getClass() || !(a instanceof Comparable)) {
+            return null;
+        }
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    /**
+     * A time instant, or a time interval.
+     */
+    public static class TimeValue {
+
+        public final Instant start;
+        public final Instant end;
+
+        public TimeValue(Instant start, Instant end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public boolean isInterval() {
+            return !start.equals(end);
+        }
+
+        /**
+         * Parses an ISO 8601 time, or two times separated by a slash.
+         *
+         * @param value The value to parse.
+         * @return The parsed time.
+         * @throws IllegalArgumentException If the value is not a time.
+         */
+        public static TimeValue parse(String value) {
+            try {
+                int slash = value.indexOf('/');
+                if (slash < 0) {
+                    Instant instant = ZonedDateTime.parse(value).toInstant();
+                    return new TimeValue(instant, instant);
+                }
+                return new TimeValue(
+                        ZonedDateTime.parse(value.substring(0, slash)).toInstant(),
+                        ZonedDateTime.parse(value.substring(slash + 1)).toInstant());
+            } catch (DateTimeParseException ex) {
+                throw new IllegalArgumentException("Not a time: " + value, ex);
+            }
+        }
+
+        private static TimeValue of(Object value) {
+            if (value instanceof TimeValue) {
+                return (TimeValue) value;
+            }
+            if (value instanceof String) {
+                try {
+                    return parse((String) value);
+                } catch (IllegalArgumentException ex) {
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,1080 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-process stand-in for a SensorThings API server, that keeps all
+ * entities in memory. It implements enough of v1.0 for the tools and tests in
+ * this project to run without a real server:
+ * <ul>
+ * <li>create, read, update and delete, including deep inserts, navigation to
+ * related entities and cascading deletes,</li>
+ * <li>$filter (see StandInFilter), $top, $skip, $count, $orderby, $select and
+ * nextLink paging,</li>
+ * <li>the CreateObservations action, in DataArray format,</li>
+ * <li>$batch, in the JSON format of version 1.1.</li>
+ * </ul>
+ * An artificial latency and a maximum request rate can be configured, to test
+ * load tools against a server with known behaviour.
+ *
+ * Queries scan all entities of the requested type, so the stand-in is not
+ * meant to measure server side query performance.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class StandInServer {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(StandInServer.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+    private static final String AT_IOT_ID = "@iot.id";
+    private static final Pattern SEGMENT = Pattern.compile("([A-Za-z]+)(?:\\(([0-9]+)\\))?");
+    /**
+     * The Observation properties that can be used as DataArray components.
+     */
+    private static final List<String> COMPONENTS = Arrays.asList(
+            "phenomenonTime", "result", "resultTime", "resultQuality", "validTime", "parameters");
+
+    /**
+     * The entity sets, with the name of a single entity of the set.
+     */
+    private static final Map<String, String> SINGULAR = new LinkedHashMap<>();
+    /**
+     * The to-one relations of each entity set, by the name of the link.
+     */
+    private static final Map<String, List<String>> TO_ONE = new HashMap<>();
+    /**
+     * The many-to-many relations, stored as a list of ids in the entity that
+     * owns the relation.
+     */
+    private static final Map<String, List<String>> TO_MANY = new HashMap<>();
+    /**
+     * The many-to-many relations that are an ordered list, in which the same
+     * entity can appear more than once, by the entity set that owns them.
+     */
+    private static final Map<String, String> ORDERED = new HashMap<>();
+
+    static {
+        SINGULAR.put("Things", "Thing");
+        SINGULAR.put("Locations", "Location");
+        SINGULAR.put("HistoricalLocations", "HistoricalLocation");
+        SINGULAR.put("Datastreams", "Datastream");
+        SINGULAR.put("MultiDatastreams", "MultiDatastream");
+        SINGULAR.put("Sensors", "Sensor");
+        SINGULAR.put("ObservedProperties", "ObservedProperty");
+        SINGULAR.put("Observations", "Observation");
+        SINGULAR.put("FeaturesOfInterest", "FeatureOfInterest");
+        for (String set : SINGULAR.keySet()) {
+            TO_ONE.put(set, Collections.emptyList());
+            TO_MANY.put(set, Collections.emptyList());
+        }
+        TO_ONE.put("HistoricalLocations", Arrays.asList("Thing"));
+        TO_ONE.put("Datastreams", Arrays.asList("Thing", "Sensor", "ObservedProperty"));
+        TO_ONE.put("MultiDatastreams", Arrays.asList("Thing", "Sensor"));
+        TO_ONE.put("Observations", Arrays.asList("Datastream", "MultiDatastream", "FeatureOfInterest"));
+        TO_MANY.put("Things", Arrays.asList("Locations"));
+        TO_MANY.put("HistoricalLocations", Arrays.asList("Locations"));
+        TO_MANY.put("MultiDatastreams", Arrays.asList("ObservedProperties"));
+        ORDERED.put("MultiDatastreams", "ObservedProperties");
+    }
+
+    /**
+     * A failed request, with the http status to return.
+     */
+    private static class RequestException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        public RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * The result of handling one request.
+     */
+    private static class Response {
+
+        private final int status;
+        private final JsonNode body;
+        private final String location;
+
+        public Response(int status, JsonNode body, String location) {
+            this.status = status;
+            this.body = body;
+            this.location = location;
+        }
+    }
+
+    private final int port;
+    private final String contextPath;
+    private final Map<String, TreeMap<Long, ObjectNode>> store = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private HttpServer server;
+    private ExecutorService executor;
+    private String baseUrl;
+
+    private int threads = 16;
+    private int defaultTop = 100;
+    private int maxTop = 10000;
+    private long latencyMillis = 0;
+    private long requestPeriodNanos = 0;
+    private long nextRequestSlot = 0;
+
+    /**
+     * Creates a stand-in on a free port, with the service at /v1.0.
+     */
+    public StandInServer() {
+        this(0, "/v1.0");
+    }
+
+    /**
+     * @param port The port to listen on, or 0 to pick a free port.
+     * @param contextPath The path of the service, like
+     * /SensorThingsService/v1.0
+     */
+    public StandInServer(int port, String contextPath) {
+        this.port = port;
+        this.contextPath = contextPath.endsWith("/") ? contextPath.substring(0, contextPath.length() - 1) : contextPath;
+        for (String set : SINGULAR.keySet()) {
+            store.put(set, new TreeMap<>());
+        }
+    }
+
+    /**
+     * @param threads The number of threads handling requests.
+     * @return this.
+     */
+    public StandInServer setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param defaultTop The page size if the request has no $top.
+     * @param maxTop The maximum page size.
+     * @return this.
+     */
+    public StandInServer setPageSizes(int defaultTop, int maxTop) {
+        this.defaultTop = defaultTop;
+        this.maxTop = maxTop;
+        return this;
+    }
+
+    /**
+     * @param latencyMillis The time each request is delayed, in addition to
+     * the time it takes to handle it.
+     * @return this.
+     */
+    public StandInServer setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Limits the number of requests that are handled per second. Requests
+     * over the limit are queued.
+     *
+     * @param maxRequestsPerSecond The maximum rate, or 0 for no limit.
+     * @return this.
+     */
+    public synchronized StandInServer setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+        this.requestPeriodNanos = maxRequestsPerSecond <= 0 ? 0 : (long) (1e9 / maxRequestsPerSecond);
+        return this;
+    }
+
+    /**
+     * Starts listening.
+     *
+     * @return this.
+     * @throws IOException If the server can not be started.
+     */
+    public synchronized StandInServer start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "StandInServer");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext(contextPath + "/", this::handle);
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort() + contextPath + "/";
+        LOGGER.info("Stand-in server listening on {}", baseUrl);
+        return this;
+    }
+
+    /**
+     * Stops the server, and waits at most a second for running requests.
+     */
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(1);
+        executor.shutdownNow();
+        server = null;
+        LOGGER.info("Stand-in server on {} stopped.", baseUrl);
+    }
+
+    /**
+     * @return The url of the service, ending with a slash.
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * @param set The entity set, like Observations.
+     * @return The number of entities in the set.
+     */
+    public int count(String set) {
+        lock.readLock().lock();
+        try {
+            return store.get(set).size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            throttle();
+            byte[] input = readAll(exchange.getRequestBody());
+            String path = exchange.getRequestURI().getRawPath().substring(contextPath.length());
+            Response response;
+            try {
+                JsonNode body = input.length == 0 ? null : MAPPER.readTree(input);
+                response = dispatch(exchange.getRequestMethod(), path, exchange.getRequestURI().getRawQuery(), body);
+            } catch (JsonProcessingException ex) {
+                response = error(400, "Invalid JSON: " + ex.getOriginalMessage());
+            } catch (RequestException ex) {
+                response = error(ex.status, ex.getMessage());
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Failed to handle {} {}", exchange.getRequestMethod(), exchange.getRequestURI(), ex);
+                response = error(500, ex.toString());
+            }
+            if (response.location != null) {
+                exchange.getResponseHeaders().set("Location", response.location);
+            }
+            if (response.body == null) {
+                exchange.sendResponseHeaders(response.status, -1);
+            } else {
+                byte[] output = MAPPER.writeValueAsBytes(response.body);
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(response.status, output.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(output);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void throttle() throws InterruptedException {
+        long waitNanos = 0;
+        synchronized (this) {
+            if (requestPeriodNanos > 0) {
+                long now = System.nanoTime();
+                long slot = Math.max(now, nextRequestSlot);
+                nextRequestSlot = slot + requestPeriodNanos;
+                waitNanos = slot - now;
+            }
+        }
+        long totalMillis = latencyMillis + TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        if (totalMillis > 0) {
+            Thread.sleep(totalMillis);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static Response error(int status, String message) {
+        ObjectNode body = NODES.objectNode();
+        body.put("code", status);
+        body.put("message", message);
+        return new Response(status, body, null);
+    }
+
+    private Response dispatch(String method, String path, String rawQuery, JsonNode body) throws RequestException {
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        if ("$batch".equals(path) && "POST".equals(method)) {
+            return batch(body);
+        }
+        if ("CreateObservations".equals(path) && "POST".equals(method)) {
+            return createObservations(body);
+        }
+        List<String[]> segments = parsePath(path);
+        if (segments.isEmpty() && "GET".equals(method)) {
+            return serviceDocument();
+        }
+        switch (method) {
+            case "GET":
+                return get(path, segments, parseQuery(rawQuery));
+
+            case "POST":
+                return post(segments, requireObject(body));
+
+            case "PATCH":
+            case "PUT":
+                return patch(segments, requireObject(body));
+
+            case "DELETE":
+                return delete(segments);
+
+            default:
+                throw new RequestException(405, "Method not supported: " + method);
+        }
+    }
+
+    private Response serviceDocument() {
+        ObjectNode result = NODES.objectNode();
+        ArrayNode value = result.putArray("value");
+        for (String set : SINGULAR.keySet()) {
+            value.addObject()
+                    .put("name", set)
+                    .put("url", baseUrl + set);
+        }
+        return new Response(200, result, null);
+    }
+
+    private static ObjectNode requireObject(JsonNode body) throws RequestException {
+        if (body == null || !body.isObject()) {
+            throw new RequestException(400, "Expected a JSON object.");
+        }
+        return (ObjectNode) body;
+    }
+
+    private static List<String[]> parsePath(String path) throws RequestException {
+        List<String[]> segments = new ArrayList<>();
+        if (path.isEmpty()) {
+            return segments;
+        }
+        for (String segment : path.split("/")) {
+            Matcher matcher = SEGMENT.matcher(segment);
+            if (!matcher.matches()) {
+                throw new RequestException(404, "Not a valid path segment: " + segment);
+            }
+            segments.add(new String[]{matcher.group(1), matcher.group(2)});
+        }
+        return segments;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws RequestException {
+        Map<String, String> query = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        try {
+            for (String part : rawQuery.split("&")) {
+                int eq = part.indexOf('=');
+                if (eq < 0) {
+                    query.put(URLDecoder.decode(part, "UTF-8"), "");
+                } else {
+                    query.put(URLDecoder.decode(part.substring(0, eq), "UTF-8"), URLDecoder.decode(part.substring(eq + 1), "UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+            throw new RequestException(400, "Invalid query: " + rawQuery);
+        }
+        return query;
+    }
+
+    /**
+     * The target of a request: either one entity, or a (filtered) set.
+     */
+    private static class Target {
+
+        private final String set;
+        private final Long id;
+        /**
+         * For a set navigated to from a parent entity: the parent set.
+         */
+        private final String parentSet;
+        private final long parentId;
+
+        public Target(String set, Long id, String parentSet, long parentId) {
+            this.set = set;
+            this.id = id;
+            this.parentSet = parentSet;
+            this.parentId = parentId;
+        }
+    }
+
+    /**
+     * Resolves the path to a target. Must be called with at least the read
+     * lock held.
+     */
+    private Target resolve(List<String[]> segments) throws RequestException {
+        if (segments.isEmpty()) {
+            throw new RequestException(404, "No entity set given.");
+        }
+        String[] first = segments.get(0);
+        if (!SINGULAR.containsKey(first[0])) {
+            throw new RequestException(404, "Unknown entity set: " + first[0]);
+        }
+        Target target = new Target(first[0], first[1] == null ? null : Long.valueOf(first[1]), null, 0);
+        for (int i = 1; i < segments.size(); i++) {
+            String[] segment = segments.get(i);
+            if (target.id == null) {
+                throw new RequestException(404, "Can not navigate from a set.");
+            }
+            ObjectNode parent = store.get(target.set).get(target.id);
+            if (parent == null) {
+                throw new RequestException(404, "No such entity: " + target.set + "(" + target.id + ")");
+            }
+            String name = segment[0];
+            if (TO_ONE.get(target.set).contains(name)) {
+                JsonNode ref = parent.get(name);
+                if (ref == null) {
+                    throw new RequestException(404, "No " + name + " linked to " + target.set + "(" + target.id + ")");
+                }
+                target = new Target(setOf(name), ref.get(AT_IOT_ID).asLong(), null, 0);
+            } else if (SINGULAR.containsKey(name)) {
+                Long id = segment[1] == null ? null : Long.valueOf(segment[1]);
+                target = new Target(name, id, target.set, target.id);
+            } else {
+                throw new RequestException(404, "Unknown navigation property: " + name);
+            }
+        }
+        return target;
+    }
+
+    private static String setOf(String singular) {
+        for (Map.Entry<String, String> entry : SINGULAR.entrySet()) {
+            if (entry.getValue().equals(singular)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the child is related to the given parent.
+     */
+    private boolean isRelated(String set, long id, ObjectNode entity, String parentSet, long parentId) {
+        String parentLink = SINGULAR.get(parentSet);
+        if (TO_ONE.get(set).contains(parentLink)) {
+            JsonNode ref = entity.get(parentLink);
+            return ref != null && ref.get(AT_IOT_ID).asLong() == parentId;
+        }
+        if (TO_MANY.get(set).contains(parentSet)) {
+            return containsRef(entity.get(parentSet), parentId);
+        }
+        if (TO_MANY.get(parentSet).contains(set)) {
+            ObjectNode parent = store.get(parentSet).get(parentId);
+            return parent != null && containsRef(parent.get(set), id);
+        }
+        return false;
+    }
+
+    private static boolean containsRef(JsonNode refs, long id) {
+        if (refs == null) {
+            return false;
+        }
+        for (JsonNode ref : refs) {
+            if (ref.get(AT_IOT_ID).asLong() == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Response get(String path, List<String[]> segments, Map<String, String> query) throws RequestException {
+        lock.readLock().lock();
+        try {
+            Target target = resolve(segments);
+            if (target.id != null) {
+                ObjectNode entity = store.get(target.set).get(target.id);
+                if (entity == null || (target.parentSet != null && !isRelated(target.set, target.id, entity, target.parentSet, target.parentId))) {
+                    throw new RequestException(404, "No such entity: " + target.set + "(" + target.id + ")");
+                }
+                return new Response(200, toJson(target.set, target.id, entity, parseSelect(query)), null);
+            }
+            return new Response(200, list(path, target, query), null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private ObjectNode list(String path, Target target, Map<String, String> query) throws RequestException {
+        StandInFilter filter = null;
+        String filterString = query.get("$filter");
+        if (filterString != null) {
+            try {
+                filter = StandInFilter.parse(filterString);
+            } catch (IllegalArgumentException ex) {
+                throw new RequestException(400, ex.getMessage());
+            }
+        }
+        int top = Math.min(maxTop, parseInt(query, "$top", defaultTop));
+        int skip = parseInt(query, "$skip", 0);
+        List<Map.Entry<Long, ObjectNode>> candidates = new ArrayList<>();
+        if (target.parentSet != null && TO_MANY.get(target.parentSet).contains(target.set)) {
+            // Walk the links of the parent, to keep their order, like that of
+            // the ObservedProperties of a MultiDatastream.
+            ObjectNode parent = store.get(target.parentSet).get(target.parentId);
+            JsonNode refs = parent == null ? null : parent.get(target.set);
+            if (refs != null) {
+                for (JsonNode ref : refs) {
+                    long id = ref.get(AT_IOT_ID).asLong();
+                    ObjectNode entity = store.get(target.set).get(id);
+                    if (entity != null) {
+                        candidates.add(new AbstractMap.SimpleImmutableEntry<>(id, entity));
+                    }
+                }
+            }
+        } else {
+            for (Map.Entry<Long, ObjectNode> entry : store.get(target.set).entrySet()) {
+                if (target.parentSet == null || isRelated(target.set, entry.getKey(), entry.getValue(), target.parentSet, target.parentId)) {
+                    candidates.add(entry);
+                }
+            }
+        }
+        List<Map.Entry<Long, ObjectNode>> matches = new ArrayList<>();
+        for (Map.Entry<Long, ObjectNode> entry : candidates) {
+            if (filter == null || filter.matches(entry.getKey(), entry.getValue())) {
+                matches.add(entry);
+            }
+        }
+        String orderBy = query.get("$orderby");
+        if (orderBy != null) {
+            matches.sort(parseOrderBy(orderBy));
+        }
+        List<String> select = parseSelect(query);
+        ObjectNode result = NODES.objectNode();
+        if ("true".equals(query.get("$count"))) {
+            result.put("@iot.count", matches.size());
+        }
+        ArrayNode value = result.putArray("value");
+        int end = Math.min(matches.size(), skip + top);
+        for (int i = skip; i < end; i++) {
+            Map.Entry<Long, ObjectNode> entry = matches.get(i);
+            value.add(toJson(target.set, entry.getKey(), entry.getValue(), select));
+        }
+        if (end < matches.size()) {
+            Map<String, String> next = new LinkedHashMap<>(query);
+            next.put("$top", Integer.toString(top));
+            next.put("$skip", Integer.toString(end));
+            result.put("@iot.nextLink", baseUrl + path + "?" + encodeQuery(next));
+        }
+        return result;
+    }
+
+    private static int parseInt(Map<String, String> query, String name, int deflt) throws RequestException {
+        String value = query.get(name);
+        if (value == null) {
+            return deflt;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < 0) {
+                throw new RequestException(400, name + " can not be negative.");
+            }
+            return parsed;
+        } catch (NumberFormatException ex) {
+            throw new RequestException(400, "Not a valid number for " + name + ": " + value);
+        }
+    }
+
+    private static String encodeQuery(Map<String, String> query) {
+        StringBuilder result = new StringBuilder();
+        try {
+            for (Map.Entry<String, String> entry : query.entrySet()) {
+                if (result.length() > 0) {
+                    result.append('&');
+                }
+                result.append(URLEncoder.encode(entry.getKey(), "UTF-8").replace("+", "%20"))
+                        .append('=')
+                        .append(URLEncoder.encode(entry.getValue(), "UTF-8").replace("+", "%20"));
+            }
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return result.toString();
+    }
+
+    private static Comparator<Map.Entry<Long, ObjectNode>> parseOrderBy(String orderBy) throws RequestException {
+        Comparator<Map.Entry<Long, ObjectNode>> result = null;
+        for (String part : orderBy.split(",")) {
+            String[] words = part.trim().split("\\s+");
+            String property = words[0];
+            boolean descending = words.length > 1 && "desc".equalsIgnoreCase(words[1]);
+            Comparator<Map.Entry<Long, ObjectNode>> comparator;
+            if ("id".equals(property) || AT_IOT_ID.equals(property)) {
+                comparator = Comparator.comparing(Map.Entry::getKey);
+            } else if (property.contains("/")) {
+                throw new RequestException(400, "Unsupported $orderby: " + part);
+            } else {
+                comparator = (a, b) -> compareJson(a.getValue().get(property), b.getValue().get(property));
+            }
+            if (descending) {
+                comparator = comparator.reversed();
+            }
+            result = result == null ? comparator : result.thenComparing(comparator);
+        }
+        return result;
+    }
+
+    private static int compareJson(JsonNode a, JsonNode b) {
+        boolean aNull = a == null || a.isNull();
+        boolean bNull = b == null || b.isNull();
+        if (aNull || bNull) {
+            return Boolean.compare(!aNull, !bNull);
+        }
+        if (a.isNumber() && b.isNumber()) {
+            return Double.compare(a.asDouble(), b.asDouble());
+        }
+        return a.asText().compareTo(b.asText());
+    }
+
+    private static List<String> parseSelect(Map<String, String> query) {
+        String select = query.get("$select");
+        if (select == null || select.trim().isEmpty()) {
+            return null;
+        }
+        List<String> result = new ArrayList<>();
+        for (String property : select.split(",")) {
+            result.add(property.trim());
+        }
+        return result;
+    }
+
+    private ObjectNode toJson(String set, long id, ObjectNode entity, List<String> select) {
+        ObjectNode json = NODES.objectNode();
+        String selfLink = baseUrl + set + "(" + id + ")";
+        if (select == null || select.contains("id") || select.contains(AT_IOT_ID)) {
+            json.put(AT_IOT_ID, id);
+        }
+        if (select == null) {
+            json.put("@iot.selfLink", selfLink);
+        }
+        Iterator<Map.Entry<String, JsonNode>> fields = entity.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            String name = field.getKey();
+            if (TO_ONE.get(set).contains(name) || TO_MANY.get(set).contains(name)) {
+                continue;
+            }
+            if (select == null || select.contains(name)) {
+                json.set(name, field.getValue());
+            }
+        }
+        if (select == null) {
+            for (String link : TO_ONE.get(set)) {
+                if (entity.has(link)) {
+                    json.put(link + "@iot.navigationLink", selfLink + "/" + link);
+                }
+            }
+            for (String other : SINGULAR.keySet()) {
+                if (isNavigable(set, other)) {
+                    json.put(other + "@iot.navigationLink", selfLink + "/" + other);
+                }
+            }
+        }
+        return json;
+    }
+
+    private static boolean isNavigable(String parentSet, String set) {
+        return TO_ONE.get(set).contains(SINGULAR.get(parentSet))
+                || TO_MANY.get(set).contains(parentSet)
+                || TO_MANY.get(parentSet).contains(set);
+    }
+
+    private Response post(List<String[]> segments, ObjectNode body) throws RequestException {
+        lock.writeLock().lock();
+        try {
+            Target target = resolve(segments);
+            if (target.id != null) {
+                throw new RequestException(405, "Can not POST to an entity.");
+            }
+            long id;
+            String parentLink = target.parentSet == null ? null : SINGULAR.get(target.parentSet);
+            if (parentLink != null && TO_ONE.get(target.set).contains(parentLink)) {
+                ObjectNode child = body.deepCopy();
+                child.set(parentLink, ref(target.parentId));
+                id = create(target.set, child);
+            } else {
+                id = create(target.set, body);
+                if (target.parentSet != null) {
+                    link(target.parentSet, target.parentId, target.set, id);
+                }
+            }
+            String location = baseUrl + target.set + "(" + id + ")";
+            return new Response(201, toJson(target.set, id, store.get(target.set).get(id), null), location);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static ObjectNode ref(long id) {
+        ObjectNode ref = NODES.objectNode();
+        ref.put(AT_IOT_ID, id);
+        return ref;
+    }
+
+    /**
+     * Links two existing entities through a many-to-many relation. Must be
+     * called with the write lock held.
+     */
+    private void link(String setA, long idA, String setB, long idB) throws RequestException {
+        if (TO_MANY.get(setA).contains(setB)) {
+            addRef(store.get(setA).get(idA), setB, idB, setB.equals(ORDERED.get(setA)));
+        } else if (TO_MANY.get(setB).contains(setA)) {
+            addRef(store.get(setB).get(idB), setA, idA, setA.equals(ORDERED.get(setB)));
+        } else {
+            throw new RequestException(400, "Can not link " + setB + " to " + setA);
+        }
+    }
+
+    private static void addRef(ObjectNode owner, String name, long id, boolean ordered) {
+        JsonNode refs = owner.get(name);
+        if (refs == null || !refs.isArray()) {
+            refs = owner.putArray(name);
+        }
+        if (ordered || !containsRef(refs, id)) {
+            ((ArrayNode) refs).add(ref(id));
+        }
+    }
+
+    /**
+     * Creates the entity, and any new related entities it contains. Must be
+     * called with the write lock held.
+     *
+     * @return The id of the new entity.
+     */
+    private long create(String set, ObjectNode entity) throws RequestException {
+        long id = nextId.getAndIncrement();
+        ObjectNode stored = NODES.objectNode();
+        Map<String, JsonNode> children = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, JsonNode>> fields = entity.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            String name = field.getKey();
+            JsonNode value = field.getValue();
+            if (name.startsWith("@iot.") || name.endsWith("@iot.navigationLink")) {
+                continue;
+            }
+            if (TO_ONE.get(set).contains(name)) {
+                stored.set(name, ref(findOrCreate(setOf(name), value)));
+            } else if (SINGULAR.containsKey(name)) {
+                if (!value.isArray()) {
+                    throw new RequestException(400, name + " must be an array.");
+                }
+                children.put(name, value);
+            } else {
+                stored.set(name, value);
+            }
+        }
+        store.get(set).put(id, stored);
+        for (Map.Entry<String, JsonNode> entry : children.entrySet()) {
+            String childSet = entry.getKey();
+            String parentLink = SINGULAR.get(set);
+            for (JsonNode child : entry.getValue()) {
+                if (TO_ONE.get(childSet).contains(parentLink)) {
+                    if (child.has(AT_IOT_ID)) {
+                        ObjectNode existing = find(childSet, child.get(AT_IOT_ID).asLong());
+                        existing.set(parentLink, ref(id));
+                    } else {
+                        ObjectNode copy = requireObject(child).deepCopy();
+                        copy.set(parentLink, ref(id));
+                        create(childSet, copy);
+                    }
+                } else if (isNavigable(set, childSet)) {
+                    link(set, id, childSet, findOrCreate(childSet, child));
+                } else {
+                    throw new RequestException(400, "Unknown navigation property of " + set + ": " + childSet);
+                }
+            }
+        }
+        return id;
+    }
+
+    private long findOrCreate(String set, JsonNode value) throws RequestException {
+        ObjectNode entity = requireObject(value);
+        if (entity.has(AT_IOT_ID)) {
+            long id = entity.get(AT_IOT_ID).asLong();
+            find(set, id);
+            return id;
+        }
+        return create(set, entity);
+    }
+
+    private ObjectNode find(String set, long id) throws RequestException {
+        ObjectNode entity = store.get(set).get(id);
+        if (entity == null) {
+            throw new RequestException(400, "No such entity: " + set + "(" + id + ")");
+        }
+        return entity;
+    }
+
+    private Response patch(List<String[]> segments, ObjectNode body) throws RequestException {
+        lock.writeLock().lock();
+        try {
+            Target target = resolve(segments);
+            if (target.id == null) {
+                throw new RequestException(405, "Can not update a set.");
+            }
+            ObjectNode entity = store.get(target.set).get(target.id);
+            if (entity == null) {
+                throw new RequestException(404, "No such entity: " + target.set + "(" + target.id + ")");
+            }
+            Iterator<Map.Entry<String, JsonNode>> fields = body.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                String name = field.getKey();
+                if (name.startsWith("@iot.")) {
+                    continue;
+                }
+                if (TO_ONE.get(target.set).contains(name)) {
+                    entity.set(name, ref(findOrCreate(setOf(name), field.getValue())));
+                } else if (SINGULAR.containsKey(name)) {
+                    for (JsonNode child : field.getValue()) {
+                        link(target.set, target.id, name, findOrCreate(name, child));
+                    }
+                } else {
+                    entity.set(name, field.getValue());
+                }
+            }
+            return new Response(200, null, null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Response delete(List<String[]> segments) throws RequestException {
+        lock.writeLock().lock();
+        try {
+            Target target = resolve(segments);
+            if (target.id == null) {
+                throw new RequestException(405, "Can not delete a set.");
+            }
+            if (!store.get(target.set).containsKey(target.id)) {
+                throw new RequestException(404, "No such entity: " + target.set + "(" + target.id + ")");
+            }
+            deleteCascading(target.set, target.id);
+            return new Response(200, null, null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the entity, and all entities that can not exist without it,
+     * like the Observations of a Datastream. Must be called with the write
+     * lock held.
+     */
+    private void deleteCascading(String set, long id) {
+        if (store.get(set).remove(id) == null) {
+            return;
+        }
+        String link = SINGULAR.get(set);
+        for (String childSet : SINGULAR.keySet()) {
+            if (TO_ONE.get(childSet).contains(link)) {
+                List<Long> children = new ArrayList<>();
+                for (Map.Entry<Long, ObjectNode> entry : store.get(childSet).entrySet()) {
+                    JsonNode ref = entry.getValue().get(link);
+                    if (ref != null && ref.get(AT_IOT_ID).asLong() == id) {
+                        children.add(entry.getKey());
+                    }
+                }
+                for (Long child : children) {
+                    deleteCascading(childSet, child);
+                }
+            }
+            if (TO_MANY.get(childSet).contains(set)) {
+                for (ObjectNode owner : store.get(childSet).values()) {
+                    JsonNode refs = owner.get(set);
+                    if (refs != null) {
+                        for (Iterator<JsonNode> it = refs.iterator(); it.hasNext();) {
+                            if (it.next().get(AT_IOT_ID).asLong() == id) {
+                                it.remove();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles the CreateObservations action. Each row is created separately,
+     * and the response lists the selfLink of each, or "error".
+     */
+    private Response createObservations(JsonNode body) throws RequestException {
+        if (body == null || !body.isArray()) {
+            throw new RequestException(400, "Expected a JSON array.");
+        }
+        ArrayNode result = NODES.arrayNode();
+        lock.writeLock().lock();
+        try {
+            for (JsonNode document : body) {
+                JsonNode components = document.get("components");
+                JsonNode rows = document.get("dataArray");
+                if (components == null || rows == null) {
+                    throw new RequestException(400, "Missing components or dataArray.");
+                }
+                for (JsonNode row : rows) {
+                    ObjectNode observation = NODES.objectNode();
+                    for (String link : TO_ONE.get("Observations")) {
+                        if (document.has(link)) {
+                            observation.set(link, document.get(link));
+                        }
+                    }
+                    for (int i = 0; i < components.size() && i < row.size(); i++) {
+                        String component = components.get(i).asText();
+                        if ("FeatureOfInterest/id".equals(component)) {
+                            observation.set("FeatureOfInterest", ref(row.get(i).asLong()));
+                        } else if (COMPONENTS.contains(component)) {
+                            observation.set(component, row.get(i));
+                        }
+                    }
+                    try {
+                        long id = create("Observations", observation);
+                        result.add(baseUrl + "Observations(" + id + ")");
+                    } catch (RequestException ex) {
+                        result.add("error " + ex.getMessage());
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return new Response(201, result, null);
+    }
+
+    /**
+     * Handles a batch request in the JSON format of version 1.1. The requests
+     * are executed in order, each url is relative to the service root.
+     */
+    private Response batch(JsonNode body) throws RequestException {
+        JsonNode requests = body == null ? null : body.get("requests");
+        if (requests == null || !requests.isArray()) {
+            throw new RequestException(400, "Expected a requests array.");
+        }
+        ObjectNode result = NODES.objectNode();
+        ArrayNode responses = result.putArray("responses");
+        for (JsonNode request : requests) {
+            String method = request.path("method").asText("get").toUpperCase();
+            String url = request.path("url").asText();
+            if (url.startsWith(baseUrl)) {
+                url = url.substring(baseUrl.length());
+            }
+            int q = url.indexOf('?');
+            String path = q < 0 ? url : url.substring(0, q);
+            String query = q < 0 ? null : url.substring(q + 1);
+            Response response;
+            try {
+                response = dispatch(method, path, query, request.get("body"));
+            } catch (RequestException ex) {
+                response = error(ex.status, ex.getMessage());
+            }
+            ObjectNode item = responses.addObject();
+            if (request.has("id")) {
+                item.set("id", request.get("id"));
+            }
+            item.put("status", response.status);
+            if (response.location != null) {
+                item.put("location", response.location);
+            }
+            if (response.body != null) {
+                item.set("body", response.body);
+            }
+        }
+        return new Response(200, result, null);
+    }
+
+    /**
+     * Runs a stand-in at the location of Constants.BASE_URL, until the process
+     * is stopped.
+     *
+     * @param args Optional: the latency in milliseconds and the maximum number
+     * of requests per second.
+     * @throws IOException If the server can not be started.
+     */
+    public static void main(String[] args) throws IOException {
+        URL url = new URL(Constants.BASE_URL);
+        StandInServer standIn = new StandInServer(url.getPort() < 0 ? url.getDefaultPort() : url.getPort(), url.getPath());
+        if (args.length > 0) {
+            standIn.setLatencyMillis(Long.parseLong(args[0]));
+        }
+        if (args.length > 1) {
+            standIn.setMaxRequestsPerSecond(Double.parseDouble(args[1]));
+        }
+        standIn.start();
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.iosb.ilt.tests;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.model.FeatureOfInterest;
+import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.model.ext.EntityList;
+import de.fraunhofer.iosb.ilt.sta.query.Query;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The entities created by one test class. Entities are created through the
+ * fixture, which records them and tags Things with the namespace of the
+ * fixture in their properties. Teardown only deletes the recorded entities,
+ * instead of wiping the server with Utils.deleteAll, so test classes using
+ * their own fixture can run in parallel against the same server.
+ *
+ * Since other fixtures may exist on the server at the same time, queries on a
+ * whole entity set should be restricted to the owned entities before they are
+ * checked, see owned().
+ *
+ * FeaturesOfInterest generated by the server for Observations are not known
+ * to the fixture. On teardown, the fixture finds them through the Things with
+ * its namespace, and deletes them after the Observations. The namespace is also
+ * used to find Things that were created without going through the fixture,
+ * for instance in a deep insert.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class TestFixture {
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(TestFixture.class);
+    /**
+     * The Thing property holding the namespace of the fixture.
+     */
+    public static final String NAMESPACE_PROPERTY = "fixture";
+
+    private final SensorThingsService service;
+    private final String namespace;
+    private final ConcurrentLinkedQueue<Entity<?>> entities = new ConcurrentLinkedQueue<>();
+    private final Set<String> ownedIds = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param service The service to create the entities in.
+     * @param namespace The namespace to tag the entities with, should be
+     * unique on the server.
+     */
+    public TestFixture(SensorThingsService service, String namespace) {
+        this.service = service;
+        this.namespace = namespace;
+    }
+
+    /**
+     * Creates a fixture with a namespace made from the simple name of the
+     * given class and a random suffix.
+     *
+     * @param service The service to create the entities in.
+     * @param testClass The test class that owns the fixture.
+     * @return The fixture.
+     */
+    public static TestFixture forClass(SensorThingsService service, Class<?> testClass) {
+        String suffix = UUID.randomUUID().toString().substring(0, 8);
+        return new TestFixture(service, testClass.getSimpleName() + "-" + suffix);
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * Creates the given entity on the service and records it. Things are
+     * tagged with the namespace first. Observations of a Datastream or
+     * MultiDatastream of this fixture are owned, but left to the cascade
+     * when the fixture is deleted.
+     *
+     * @param <T> The entity type.
+     * @param entity The entity to create.
+     * @return The created entity, with its id.
+     * @throws ServiceFailureException If the service fails.
+     */
+    public <T extends Entity<T>> T create(T entity) throws ServiceFailureException {
+        if (entity instanceof Thing) {
+            Thing thing = (Thing) entity;
+            Map<String, Object> properties = thing.getProperties();
+            if (properties == null) {
+                properties = new HashMap<>();
+                thing.setProperties(properties);
+            }
+            properties.put(NAMESPACE_PROPERTY, namespace);
+        }
+        boolean cascades = entity instanceof Observation && ownsParent((Observation) entity);
+        service.create(entity);
+        if (cascades) {
+            // Deleted with its (Multi)Datastream, not one by one.
+            ownedIds.add(key(entity));
+        } else {
+            register(entity);
+        }
+        return entity;
+    }
+
+    /**
+     * Checks the Datastream or MultiDatastream of a new Observation. Called
+     * before the Observation is created, so the client does not try to fetch
+     * a missing link from the service.
+     */
+    private boolean ownsParent(Observation observation) {
+        try {
+            Datastream datastream = observation.getDatastream();
+            if (datastream != null) {
+                return owns(datastream);
+            }
+            MultiDatastream multiDatastream = observation.getMultiDatastream();
+            return multiDatastream != null && owns(multiDatastream);
+        } catch (ServiceFailureException ex) {
+            LOGGER.trace("Failed to find the Datastream of an Observation.", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Records an entity that was created some other way, so it is owned and
+     * deleted by this fixture.
+     *
+     * @param entity The entity, with its id.
+     */
+    public void register(Entity<?> entity) {
+        if (entity.getId() == null) {
+            throw new IllegalArgumentException("Only entities with an id can be registered.");
+        }
+        entities.add(entity);
+        ownedIds.add(key(entity));
+    }
+
+    private static String key(Entity<?> entity) {
+        return entity.getClass().getSimpleName() + ":" + entity.getId().getValue();
+    }
+
+    /**
+     * @param entity The entity to check.
+     * @return true if the entity was created by this fixture.
+     */
+    public boolean owns(Entity<?> entity) {
+        return entity.getId() != null && ownedIds.contains(key(entity));
+    }
+
+    /**
+     * Pages through the given result, and returns the entities in it that
+     * are owned by this fixture.
+     *
+     * @param <T> The entity type.
+     * @param result The result to restrict.
+     * @return A list with the owned entities of the result, without a count.
+     */
+    public <T extends Entity<T>> EntityList<T> owned(EntityList<T> result) {
+        EntityList<T> owned = new EntityList<>(result.getType());
+        Iterator<T> it = result.fullIterator();
+        while (it.hasNext()) {
+            T entity = it.next();
+            if (owns(entity)) {
+                owned.add(entity);
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * Deletes all entities recorded by this fixture, the Things tagged with
+     * its namespace, and the FeaturesOfInterest of their Observations. Things,
+     * Datastreams and MultiDatastreams go first, so the server can cascade to
+     * their Observations, FeaturesOfInterest go last. Failures are logged,
+     * since most are entities that were already removed by a cascade or by the
+     * test itself.
+     */
+    public void deleteAll() {
+        List<Entity<?>> first = new ArrayList<>();
+        List<Entity<?>> rest = new ArrayList<>();
+        // Look up the leftovers before the Observations linking them are gone.
+        List<Entity<?>> features = findTagged(service.featuresOfInterest().query().filter(
+                "Observations/Datastream/Thing/" + namespaceFilter()
+                + " or Observations/MultiDatastream/Thing/" + namespaceFilter()));
+        for (Entity<?> thing : findTagged(service.things().query().filter(namespaceFilter()))) {
+            if (!owns(thing)) {
+                first.add(thing);
+            }
+        }
+        Set<String> featureIds = new HashSet<>();
+        features.forEach(f -> featureIds.add(key(f)));
+        for (Entity<?> entity : entities) {
+            if (entity instanceof Thing || entity instanceof Datastream || entity instanceof MultiDatastream) {
+                first.add(entity);
+            } else if (!(entity instanceof FeatureOfInterest)) {
+                rest.add(entity);
+            } else if (featureIds.add(key(entity))) {
+                features.add(entity);
+            }
+        }
+        int total = first.size() + rest.size() + features.size();
+        int failed = delete(first) + delete(rest) + delete(features);
+        LOGGER.info("Fixture {} deleted {} entities, {} were already gone.", namespace, total - failed, failed);
+        entities.clear();
+        ownedIds.clear();
+    }
+
+    private String namespaceFilter() {
+        return "properties/" + NAMESPACE_PROPERTY + " eq '" + namespace.replace("'", "''") + "'";
+    }
+
+    private static <T extends Entity<T>> List<Entity<?>> findTagged(Query<T> query) {
+        List<Entity<?>> found = new ArrayList<>();
+        try {
+            Iterator<T> it = query.select("id").list().fullIterator();
+            while (it.hasNext()) {
+                found.add(it.next());
+            }
+        } catch (ServiceFailureException | RuntimeException ex) {
+            // Servers without support for the query only leave leftovers.
+            LOGGER.warn("Failed to find leftover entities: {}", ex.getMessage());
+        }
+        return found;
+    }
+
+    private int delete(List<Entity<?>> toDelete) {
+        int failed = 0;
+        for (Entity<?> entity : toDelete) {
+            try {
+                delete(entity);
+            } catch (ServiceFailureException ex) {
+                LOGGER.debug("Failed to delete entity {}: {}", key(entity), ex.getMessage());
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends Entity<T>> void delete(Entity<?> entity) throws ServiceFailureException {
+        service.delete((T) entity);
+    }
+
+}
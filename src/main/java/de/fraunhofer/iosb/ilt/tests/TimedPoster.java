@@ -21,14 +21,45 @@ import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
 import de.fraunhofer.iosb.ilt.sta.model.Datastream;
 import de.fraunhofer.iosb.ilt.sta.model.Observation;
 import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
-import java.util.Calendar;
+import java.net.URL;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Posts Observations to a set of Datastreams at a fixed rate per Datastream.
+ *
+ * The generator is open-loop: the send time of each Observation is fixed in
+ * advance, independent of how fast the server responds. When the server is
+ * slow, sends queue up instead of being postponed, and both the lag between
+ * the intended and actual send time and the response time measured from the
+ * intended send time are recorded, next to the plain service time. This way a
+ * slow server can not hide its latency spikes by slowing down the load
+ * generator (coordinated omission).
+ *
+ * When the server fails, or falls too far behind, Observations go to a local
+ * ObservationSpool instead, which posts them in batches once the server
+ * recovers. As long as the spool is not empty, new Observations are spooled
+ * too, so they arrive in order.
  *
  * @author scf
  */
@@ -39,58 +70,358 @@ public class TimedPoster implements Runnable {
      */
     private static final org.slf4j.Logger LOGGER = LoggerFactory.getLogger(TimedPoster.class);
     private static final long DATASTREAM_ID = 1658;
-    private static final long POSTDELAY = 2 * 1000;
+    /**
+     * The number of Observations per second, per Datastream.
+     */
+    private static final double RATE_PER_DATASTREAM = 0.5;
+    /**
+     * The number of Observations to post per Datastream.
+     */
     private static final long MAX_COUNT = 1000;
-    private SensorThingsService service;
-    private boolean stopped = false;
-    private long datastreamId;
+    /**
+     * The number of threads sending requests.
+     */
+    private static final int WORKER_COUNT = 20;
+    /**
+     * If true, Observations are sent by the non-blocking
+     * AsyncSensorThingsClient instead of the worker threads.
+     */
+    private static final boolean USE_ASYNC = false;
+    /**
+     * The maximum number of requests in flight when using the async client.
+     */
+    private static final int ASYNC_MAX_IN_FLIGHT = 1000;
+    /**
+     * How often the dispatcher checks for due Observations.
+     */
+    private static final long TICK_MILLIS = 1;
+    /**
+     * How often the latencies are logged.
+     */
+    private static final long REPORT_SECONDS = 10;
+    /**
+     * The file to write the latency histograms to.
+     */
+    private static final String LATENCY_LOG_FILE = "TimedPoster.hlog";
+    /**
+     * If true, Observations that can not be sent are spooled to disk, instead
+     * of being lost.
+     */
+    private static final boolean USE_SPOOL = true;
+    /**
+     * The directory of the spool.
+     */
+    private static final String SPOOL_DIRECTORY = "TimedPoster.spool";
+    /**
+     * When a worker is this far behind schedule, the server is considered too
+     * slow and Observations are spooled.
+     */
+    private static final long SPOOL_LAG_MILLIS = 1000;
+    /**
+     * How long to wait for the spool to drain after the last Observation.
+     */
+    private static final long SPOOL_DRAIN_MINUTES = 10;
+    /**
+     * The time between the intended and the actual sending of a request.
+     */
+    private static final String OP_SEND_LAG = "send lag";
+    /**
+     * The time between the intended sending of a request and the response.
+     */
+    private static final String OP_RESPONSE_TIME = "create Observation from intended";
+    private static final LatencyRecorder LATENCIES = LatencyRecorder.getInstance();
+
+    private final SensorThingsService service;
+    private final List<Long> datastreamIds;
+    private final double ratePerDatastream;
+    private final long maxCount;
+    private final PoolingHttpClientConnectionManager connectionManager = Constants.createConnectionManager(WORKER_COUNT, WORKER_COUNT);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder spooled = new LongAdder();
+    private volatile boolean stopped = false;
+
+    private List<Datastream> datastreams;
+    private ExecutorService workers;
+    private AsyncSensorThingsClient asyncClient;
+    private ObservationSpool spool;
+    private CountDownLatch done;
+    private long startNanos;
+    private long startMillis;
+    private long periodNanos;
+    private long nextIndex = 0;
+    private long totalCount;
 
     public TimedPoster() throws MalformedURLException, URISyntaxException {
-        service = Constants.createService();
+        this(DATASTREAM_ID);
     }
 
     public TimedPoster(long datastreamId) throws MalformedURLException, URISyntaxException {
-        this();
-        this.datastreamId = datastreamId;
+        this(RATE_PER_DATASTREAM, MAX_COUNT, datastreamId);
+    }
+
+    /**
+     * @param ratePerDatastream The number of Observations per second, per
+     * Datastream.
+     * @param maxCount The number of Observations to post per Datastream.
+     * @param datastreamIds The ids of the Datastreams to post to.
+     * @throws MalformedURLException If the service url is wrong.
+     * @throws URISyntaxException If the service url is wrong.
+     */
+    public TimedPoster(double ratePerDatastream, long maxCount, long... datastreamIds) throws MalformedURLException, URISyntaxException {
+        if (ratePerDatastream <= 0) {
+            throw new IllegalArgumentException("Rate must be positive, got " + ratePerDatastream);
+        }
+        this.service = Constants.createService(new URL(Constants.getBaseUrl()), connectionManager);
+        this.ratePerDatastream = ratePerDatastream;
+        this.maxCount = maxCount;
+        this.datastreamIds = new ArrayList<>();
+        for (long id : datastreamIds) {
+            this.datastreamIds.add(id);
+        }
     }
 
     @Override
     public void run() {
+        try {
+            datastreams = new ArrayList<>();
+            for (Long id : datastreamIds) {
+                datastreams.add(service.datastreams().find(id).withOnlyId());
+            }
+        } catch (ServiceFailureException ex) {
+            LOGGER.error("Failed to fetch Datastream", ex);
+            return;
+        }
+        int dsCount = datastreams.size();
+        totalCount = maxCount * dsCount;
+        // The Observations of all Datastreams are spread evenly over each period.
+        periodNanos = (long) (1_000_000_000L / ratePerDatastream);
+        LOGGER.info("Posting {} Observations to each of {} Datastreams, {}/s in total.", maxCount, dsCount, ratePerDatastream * dsCount);
+
+        if (USE_SPOOL) {
+            try {
+                spool = new ObservationSpool(new File(SPOOL_DIRECTORY)).startDraining(service);
+            } catch (IOException ex) {
+                LOGGER.error("Failed to open spool", ex);
+                return;
+            }
+        }
+        workers = Executors.newFixedThreadPool(WORKER_COUNT);
+        if (USE_ASYNC) {
+            try {
+                asyncClient = Constants.createAsyncClient(ASYNC_MAX_IN_FLIGHT);
+            } catch (MalformedURLException ex) {
+                LOGGER.error("Failed to create async client", ex);
+                return;
+            }
+        }
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+        done = new CountDownLatch(1);
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        scheduler.scheduleAtFixedRate(this::dispatch, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        if (spool != null) {
+            scheduler.scheduleAtFixedRate(this::reportSpool, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+        }
+        try {
+            done.await();
+            if (asyncClient != null) {
+                // Failed async requests are spooled by the workers.
+                asyncClient.awaitIdle();
+            }
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.HOURS);
+            if (spool != null && !spool.awaitEmpty(SPOOL_DRAIN_MINUTES, TimeUnit.MINUTES)) {
+                LOGGER.warn("Spool not drained, {} Observations left in {}.", spool.getDepth(), SPOOL_DIRECTORY);
+            }
+        } catch (InterruptedException ex) {
+            LOGGER.warn("Rude wakeup.", ex);
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        scheduler.shutdownNow();
+        if (asyncClient != null) {
+            try {
+                asyncClient.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to close async client.", ex);
+            }
+        }
+        if (spool != null) {
+            spool.close();
+        }
+        LOGGER.info("Posted {} Observations, {} spooled, {} failed.", sent.sum(), spooled.sum(), failed.sum());
+    }
+
+    /**
+     * Hands all Observations that are due to the workers. Called by the
+     * scheduler every tick. An exception would silently cancel the schedule,
+     * so the dispatcher stops itself instead, and always releases run() when
+     * it does not expect another tick.
+     */
+    private void dispatch() {
+        boolean waiting = false;
+        try {
+            long now = System.nanoTime();
+            int dsCount = datastreams.size();
+            while (nextIndex < totalCount && !stopped) {
+                long intended = startNanos + nextIndex * periodNanos / dsCount;
+                if (intended > now) {
+                    waiting = true;
+                    return;
+                }
+                Datastream datastream = datastreams.get((int) (nextIndex % dsCount));
+                if (asyncClient == null) {
+                    workers.execute(() -> send(datastream, intended));
+                } else {
+                    sendAsync(datastream, intended);
+                }
+                nextIndex++;
+            }
+        } catch (RuntimeException ex) {
+            LOGGER.error("Dispatcher failed after {} of {} Observations, stopping.", nextIndex, totalCount, ex);
+            stopped = true;
+        } finally {
+            if (!waiting) {
+                done.countDown();
+            }
+        }
+    }
+
+    private Observation createObservation(Datastream datastream, long intendedNanos) {
+        long phenMillis = startMillis + (intendedNanos - startNanos) / 1_000_000;
+        ZonedDateTime phenTime = ZonedDateTime.ofInstant(Instant.ofEpochMilli(phenMillis), ZoneOffset.UTC);
+        Observation o = new Observation(phenTime.getSecond(), datastream);
+        o.setPhenomenonTimeFrom(phenTime);
         final Map<String, Object> params = new HashMap<>();
         params.put("a", 10);
         params.put("b", 20);
         params.put("c", 30);
+        o.setParameters(params);
+        return o;
+    }
+
+    private void reportSpool() {
+        LOGGER.info("Spool depth {}, draining {}/s, {} failed drain attempts.", spool.getDepth(), String.format("%.1f", spool.getDrainRate()), spool.getFailedAttempts());
+    }
+
+    /**
+     * Puts the Observation in the spool, or counts it as failed if there is
+     * no spool.
+     *
+     * @return true if the Observation was spooled.
+     */
+    private boolean spool(Observation o) {
+        if (spool == null) {
+            return false;
+        }
+        try {
+            spool.append(o);
+            spooled.increment();
+            return true;
+        } catch (IOException | IllegalArgumentException ex) {
+            LOGGER.error("Failed to spool Observation: {}", ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Spools the Observation instead of sending it when the poster is too far
+     * behind, or when older Observations are still in the spool, so that they
+     * arrive in order.
+     *
+     * @return true if the Observation was spooled.
+     */
+    private boolean spoolIfBehind(Observation o, long actualNanos, long intendedNanos) {
+        if (spool == null) {
+            return false;
+        }
+        boolean behind = actualNanos - intendedNanos > TimeUnit.MILLISECONDS.toNanos(SPOOL_LAG_MILLIS);
+        return (behind || spool.getDepth() > 0) && spool(o);
+    }
+
+    /**
+     * Spools an Observation that could not be created, or counts it as
+     * failed.
+     */
+    private void spoolFailed(Observation o, Throwable ex) {
+        if (!spool(o)) {
+            LOGGER.error("Failed to create Observation: {}", ex.getMessage());
+            failed.increment();
+        }
+    }
+
+    /**
+     * Hands the Observation to the async client. Called from the dispatcher,
+     * which blocks while the window of the client is full; that time shows up
+     * as send lag.
+     */
+    private void sendAsync(Datastream datastream, long intendedNanos) {
+        Observation o = createObservation(datastream, intendedNanos);
+        if (spoolIfBehind(o, System.nanoTime(), intendedNanos)) {
+            return;
+        }
         try {
-            Datastream datastream = service.datastreams().find(datastreamId);
-            int count = 0;
-            while (!stopped) {
-                Calendar now = Calendar.getInstance();
-                Observation o = new Observation(now.get(Calendar.SECOND), datastream);
-                o.setParameters(params);
-                service.create(o);
-                LOGGER.info("Created obs with result {}.", o.getResult());
-                count++;
-                if (count >= MAX_COUNT) {
-                    stopped = true;
-                    break;
+            CompletableFuture<Observation> future = asyncClient.create(o);
+            LATENCIES.record(OP_SEND_LAG, System.nanoTime() - intendedNanos);
+            future.whenComplete((result, ex) -> {
+                LATENCIES.recordSince(OP_RESPONSE_TIME, intendedNanos);
+                if (ex == null) {
+                    sent.increment();
+                    return;
                 }
-                Thread.sleep(POSTDELAY);
-            }
-        } catch (ServiceFailureException ex) {
-            LOGGER.error("Failed to fetch Datastream", ex);
+                // Spooling writes to disk, which must not happen on the I/O
+                // thread of the client.
+                try {
+                    workers.execute(() -> spoolFailed(o, ex));
+                } catch (RejectedExecutionException rex) {
+                    LOGGER.error("Failed to create Observation: {}", ex.getMessage());
+                    failed.increment();
+                }
+            });
         } catch (InterruptedException ex) {
-            LOGGER.warn("Rude wakeup.", ex);
+            LOGGER.warn("Interrupted while sending.", ex);
+            stopped = true;
+            Thread.currentThread().interrupt();
         }
     }
 
+    private void send(Datastream datastream, long intendedNanos) {
+        long actualNanos = System.nanoTime();
+        Observation o = createObservation(datastream, intendedNanos);
+        LATENCIES.record(OP_SEND_LAG, actualNanos - intendedNanos);
+        if (spoolIfBehind(o, actualNanos, intendedNanos)) {
+            return;
+        }
+        try {
+            LATENCIES.create(service, o);
+            LOGGER.debug("Created obs with result {}.", o.getResult());
+            sent.increment();
+        } catch (ServiceFailureException ex) {
+            spoolFailed(o, ex);
+        }
+        LATENCIES.recordSince(OP_RESPONSE_TIME, intendedNanos);
+    }
+
+    /**
+     * Stops posting. Observations that are already queued are still sent.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
     /**
      * @param args the command line arguments
      * @throws java.net.MalformedURLException If url is wrong.
      * @throws java.net.URISyntaxException If url is wrong.
+     * @throws java.io.FileNotFoundException If the latency log can not be
+     * created.
      */
-    public static void main(String[] args) throws MalformedURLException, URISyntaxException {
+    public static void main(String[] args) throws MalformedURLException, URISyntaxException, FileNotFoundException {
+        LATENCIES.startReporting(REPORT_SECONDS, TimeUnit.SECONDS, new File(LATENCY_LOG_FILE));
         TimedPoster timedPoster = new TimedPoster(DATASTREAM_ID);
         timedPoster.run();
+        LATENCIES.stopReporting();
     }
 
 }
@@ -24,9 +24,16 @@ import de.fraunhofer.iosb.ilt.sta.model.ext.EntityList;
 import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +44,19 @@ import org.slf4j.LoggerFactory;
 public class Utils {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Utils.class.getName());
+    /**
+     * The number of parallel deletes.
+     */
+    public static int DELETE_THREADS = 10;
+    /**
+     * The number of entity ids to fetch in one request when deleting.
+     */
+    public static int DELETE_PAGE_SIZE = 10000;
+    /**
+     * The maximum number of missing or unexpected ids listed in a check
+     * message.
+     */
+    public static int MAX_REPORTED_IDS = 25;
 
     /**
      * Class returned by checks on results. Encapsulates the result of the
@@ -59,34 +79,169 @@ public class Utils {
     }
 
     /**
-     * Checks if the list contains all the given entities exactly once.
+     * Checks if the list contains all the given entities exactly once. The
+     * check uses a hash index on the ids of the expected entities, so it is
+     * linear in the size of the result. All missing and unexpected ids are
+     * counted, and the first MAX_REPORTED_IDS of each are listed in the
+     * message.
      *
-     * @param result
-     * @param entityList
-     * @return
+     * @param result The result to check.
+     * @param entityList The entities that are expected in the result. This
+     * list is not modified.
+     * @return The result of the check.
      */
     public static TestResult resultContains(EntityList<? extends Entity> result, List<? extends Entity> entityList) {
+        StringBuilder problems = new StringBuilder();
         long count = result.getCount();
         if (count != -1 && count != entityList.size()) {
             LOGGER.info("Result count ({}) not equal to expected count ({})", count, entityList.size());
-            return new TestResult(false, "Result count " + count + " not equal to expected count (" + entityList.size() + ")");
-        }
-        Iterator<? extends Entity> it;
-        for (it = result.fullIterator(); it.hasNext();) {
-            Entity next = it.next();
-            Entity inList = findEntityIn(next, entityList);
-            if (!entityList.remove(inList)) {
-                LOGGER.info("Entity with id {} found in result that is not expected.", next.getId());
-                return new TestResult(false, "Entity with id " + next.getId() + " found in result that is not expected.");
+            problems.append("Result count ").append(count).append(" not equal to expected count (").append(entityList.size()).append("). ");
+        }
+        List<Object> unexpected = new ArrayList<>();
+        List<Object> missing = new ArrayList<>();
+        long unexpectedCount = 0;
+        long missingCount;
+        Iterator<? extends Entity> it = result.fullIterator();
+        if (hasOnlyLongIds(entityList)) {
+            LongHashSet expected = new LongHashSet(entityList.size());
+            for (Entity entity : entityList) {
+                expected.add((Long) entity.getId().getValue());
+            }
+            while (it.hasNext()) {
+                Object value = idValue(it.next());
+                if (!(value instanceof Long) || !expected.remove((Long) value)) {
+                    unexpectedCount++;
+                    addLimited(unexpected, value);
+                }
+            }
+            missingCount = expected.size();
+            expected.forEach(value -> addLimited(missing, value));
+        } else {
+            Set<Object> expected = new HashSet<>(entityList.size() * 2);
+            for (Entity entity : entityList) {
+                expected.add(idValue(entity));
+            }
+            while (it.hasNext()) {
+                Object value = idValue(it.next());
+                if (!expected.remove(value)) {
+                    unexpectedCount++;
+                    addLimited(unexpected, value);
+                }
+            }
+            missingCount = expected.size();
+            for (Object value : expected) {
+                addLimited(missing, value);
             }
         }
-        if (!entityList.isEmpty()) {
-            LOGGER.info("Expected entity not found in result.");
-            return new TestResult(false, entityList.size() + " expected entities not in result.");
+        if (unexpectedCount > 0) {
+            LOGGER.info("{} entities found in result that are not expected: {}", unexpectedCount, unexpected);
+            problems.append(unexpectedCount).append(" entities found in result that are not expected, with ids ").append(unexpected).append(". ");
+        }
+        if (missingCount > 0) {
+            LOGGER.info("{} expected entities not found in result: {}", missingCount, missing);
+            problems.append(missingCount).append(" expected entities not in result, with ids ").append(missing).append(". ");
+        }
+        if (problems.length() > 0) {
+            return new TestResult(false, problems.toString().trim());
         }
         return new TestResult(true, "Check ok.");
     }
 
+    /**
+     * Checks a result of any size without holding it in memory. The result is
+     * paged through using its full iterator, and each entity is checked
+     * against the expected ids and the given predicate. For example, to check
+     * that a result holds exactly the Observations with ids in [a, b), each
+     * with a result equal to its id minus a:
+     * <pre>
+     * resultMatches(result, ExpectedIds.range(a, b),
+     *         o -&gt; ((Number) o.getResult()).longValue() == ((Long) o.getId().getValue()) - a);
+     * </pre>
+     *
+     * @param <T> The entity type.
+     * @param result The result to check.
+     * @param expected The expected ids, or null if any id is acceptable. Seen
+     * ids are removed from this set.
+     * @param check The check each entity must pass, or null.
+     * @return The result of the check.
+     */
+    public static <T extends Entity<T>> TestResult resultMatches(EntityList<T> result, ExpectedIds expected, Predicate<? super T> check) {
+        long seen = 0;
+        long unexpectedCount = 0;
+        long failedCount = 0;
+        List<Object> unexpected = new ArrayList<>();
+        List<Object> failed = new ArrayList<>();
+        for (Iterator<T> it = result.fullIterator(); it.hasNext();) {
+            T next = it.next();
+            seen++;
+            Object value = idValue(next);
+            if (expected != null && (!(value instanceof Long) || !expected.remove((Long) value))) {
+                unexpectedCount++;
+                addLimited(unexpected, value);
+            }
+            if (check != null && !check.test(next)) {
+                failedCount++;
+                addLimited(failed, value);
+            }
+        }
+        StringBuilder problems = new StringBuilder();
+        if (unexpectedCount > 0) {
+            LOGGER.info("{} entities found in result that are not expected: {}", unexpectedCount, unexpected);
+            problems.append(unexpectedCount).append(" entities found in result that are not expected, with ids ").append(unexpected).append(". ");
+        }
+        if (expected != null && expected.remaining() > 0) {
+            List<Long> missing = expected.firstRemaining(MAX_REPORTED_IDS);
+            LOGGER.info("{} expected entities not found in result: {}", expected.remaining(), missing);
+            problems.append(expected.remaining()).append(" expected entities not in result, with ids ").append(missing).append(". ");
+        }
+        if (failedCount > 0) {
+            LOGGER.info("{} entities failed the check: {}", failedCount, failed);
+            problems.append(failedCount).append(" entities failed the check, with ids ").append(failed).append(". ");
+        }
+        if (problems.length() > 0) {
+            return new TestResult(false, problems.toString().trim());
+        }
+        return new TestResult(true, "Check ok, " + seen + " entities.");
+    }
+
+    private static boolean hasOnlyLongIds(List<? extends Entity> entities) {
+        for (Entity entity : entities) {
+            if (!(idValue(entity) instanceof Long)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Object idValue(Entity entity) {
+        Id id = entity.getId();
+        if (id == null) {
+            return null;
+        }
+        return id.getValue();
+    }
+
+    private static void addLimited(List<Object> list, Object value) {
+        if (list.size() < MAX_REPORTED_IDS) {
+            list.add(value);
+        }
+    }
+
+    /**
+     * Formats an id the way it appears in a url: numbers as they are,
+     * strings quoted.
+     *
+     * @param id The id to format.
+     * @return The id, as used in urls like Things(id).
+     */
+    public static String idUrl(Id id) {
+        Object value = id.getValue();
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        return "'" + value.toString().replace("'", "''") + "'";
+    }
+
     public static Entity findEntityIn(Entity entity, List<? extends Entity> entities) {
         Id id = entity.getId();
         for (Entity inList : entities) {
@@ -97,31 +252,101 @@ public class Utils {
         return null;
     }
 
+    /**
+     * Deletes all entities from the given service. Things, Datastreams and
+     * MultiDatastreams are deleted first, so that the server can cascade the
+     * delete to their Observations and HistoricalLocations.
+     *
+     * @param sts The service to delete all entities from.
+     * @throws ServiceFailureException If the service fails.
+     */
     public static void deleteAll(SensorThingsService sts) throws ServiceFailureException {
-        deleteAll(sts.things());
-        deleteAll(sts.locations());
-        deleteAll(sts.sensors());
-        deleteAll(sts.featuresOfInterest());
-        deleteAll(sts.observedProperties());
-        deleteAll(sts.observations());
+        ExecutorService pool = Executors.newFixedThreadPool(DELETE_THREADS);
+        try {
+            deleteAll(sts.things(), pool);
+            deleteAll(sts.datastreams(), pool);
+            deleteAll(sts.multiDatastreams(), pool);
+            deleteAll(sts.locations(), pool);
+            deleteAll(sts.sensors(), pool);
+            deleteAll(sts.featuresOfInterest(), pool);
+            deleteAll(sts.observedProperties(), pool);
+            deleteAll(sts.observations(), pool);
+        } finally {
+            pool.shutdownNow();
+        }
     }
 
     public static <T extends Entity<T>> void deleteAll(BaseDao<T> doa) throws ServiceFailureException {
-        boolean more = true;
-        int count = 0;
-        while (more) {
-            EntityList<T> entities = doa.query().count().list();
-            if (entities.getCount() > 0) {
-                LOGGER.info("{} to go.", entities.getCount());
-            } else {
-                more = false;
+        ExecutorService pool = Executors.newFixedThreadPool(DELETE_THREADS);
+        try {
+            deleteAll(doa, pool);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Deletes all entities of the given dao, using the given pool of workers.
+     * The ids of the entities are fetched in pages of DELETE_PAGE_SIZE, and the
+     * entities of each page are deleted in parallel, until there are no
+     * entities left.
+     *
+     * @param <T> The entity type.
+     * @param doa The dao to delete all entities from.
+     * @param pool The workers to use for deleting.
+     * @throws ServiceFailureException If the service fails, or none of the
+     * entities in a page could be deleted.
+     */
+    public static <T extends Entity<T>> void deleteAll(BaseDao<T> doa, ExecutorService pool) throws ServiceFailureException {
+        LatencyRecorder latencies = LatencyRecorder.getInstance();
+        long startTime = System.currentTimeMillis();
+        long count = 0;
+        long failed = 0;
+        while (true) {
+            EntityList<T> entities = latencies.time("query", () -> doa.query().select("id").top(DELETE_PAGE_SIZE).count().list());
+            if (entities.isEmpty()) {
+                break;
             }
+            LOGGER.info("{} to go.", entities.getCount());
+            List<Future<Boolean>> deletes = new ArrayList<>(entities.size());
             for (T entity : entities) {
-                doa.delete(entity);
-                count++;
+                deletes.add(pool.submit(() -> {
+                    try {
+                        latencies.time("delete " + entity.getClass().getSimpleName(), () -> doa.delete(entity));
+                        return true;
+                    } catch (ServiceFailureException ex) {
+                        // Most likely already removed by a cascading delete.
+                        LOGGER.debug("Failed to delete entity {}: {}", entity.getId(), ex.getMessage());
+                        return false;
+                    }
+                }));
+            }
+            int pageDeleted = 0;
+            for (Future<Boolean> delete : deletes) {
+                try {
+                    if (delete.get()) {
+                        pageDeleted++;
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new ServiceFailureException("Interrupted while deleting.", ex);
+                } catch (ExecutionException ex) {
+                    throw new ServiceFailureException("Failed to delete.", ex.getCause());
+                }
             }
+            if (pageDeleted == 0) {
+                throw new ServiceFailureException("Failed to delete any of " + deletes.size() + " entities using " + doa.getClass().getName());
+            }
+            count += pageDeleted;
+            failed += deletes.size() - pageDeleted;
+            LOGGER.info("Deleted {}, {}/s.", count, perSecond(count, startTime));
         }
-        LOGGER.info("Deleted {} using {}.", count, doa.getClass().getName());
+        LOGGER.info("Deleted {} using {} ({} failed), {}/s.", count, doa.getClass().getName(), failed, perSecond(count, startTime));
+    }
+
+    private static long perSecond(long count, long startTime) {
+        long duration = Math.max(1, System.currentTimeMillis() - startTime);
+        return count * 1000 / duration;
     }
 
 }
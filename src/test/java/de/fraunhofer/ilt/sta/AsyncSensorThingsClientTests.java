@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayDocument;
+import de.fraunhofer.iosb.ilt.sta.model.ext.DataArrayValue;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.tests.AsyncSensorThingsClient;
+import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.ObservationBatcher;
+import de.fraunhofer.iosb.ilt.tests.StandInServer;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the AsyncSensorThingsClient against the stand-in server.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class AsyncSensorThingsClientTests {
+
+    private static final ZonedDateTime START = ZonedDateTime.parse("2016-01-01T00:00:00Z");
+    private static StandInServer server;
+    private static SensorThingsService service;
+    private static AsyncSensorThingsClient client;
+
+    @BeforeClass
+    public static void setUp() throws IOException, URISyntaxException {
+        server = new StandInServer().start();
+        service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+        client = new AsyncSensorThingsClient(server.getBaseUrl(), HttpAsyncClients.createDefault(), 8)
+                .setService(service);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void testCreateQueryDelete() throws InterruptedException, ExecutionException, ServiceFailureException {
+        Datastream datastream = SampleEntities.createDatastream(service);
+        Assert.assertNotNull(datastream.getId());
+
+        List<CompletableFuture<Observation>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Observation o = new Observation(i, datastream.withOnlyId());
+            o.setPhenomenonTimeFrom(START.plusMinutes(i));
+            futures.add(client.create(o));
+            Assert.assertTrue(client.getInFlight() <= client.getMaxInFlight());
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+        for (CompletableFuture<Observation> future : futures) {
+            Assert.assertNotNull(future.get().getId());
+        }
+        // Created entities can be used with the blocking api.
+        Assert.assertEquals(100, datastream.observations().query().count().top(1).list().getCount());
+
+        JsonNode found = client.query("Datastreams(" + datastream.getId().getValue() + ")/Observations", "$filter=result%20ge%2090").get();
+        Assert.assertEquals(10, found.size());
+
+        client.delete(futures.get(0).get()).get();
+        client.awaitIdle();
+        Assert.assertEquals(0, client.getInFlight());
+        Assert.assertEquals(99, datastream.observations().query().count().top(1).list().getCount());
+    }
+
+    @Test
+    public void testCreateObservations() throws InterruptedException, ExecutionException, ServiceFailureException {
+        Datastream datastream = SampleEntities.createDatastream(service);
+        DataArrayValue value = new DataArrayValue(datastream.withOnlyId(), ObservationBatcher.DEFAULT_COMPONENTS);
+        for (int i = 0; i < 20; i++) {
+            Observation o = new Observation(i, datastream);
+            o.setPhenomenonTimeFrom(START.plusMinutes(i));
+            value.addObservation(o);
+        }
+        DataArrayDocument document = new DataArrayDocument();
+        document.addDataArrayValue(value);
+        List<String> lines = client.createObservations(document).get();
+        Assert.assertEquals(20, lines.size());
+        for (String line : lines) {
+            Assert.assertTrue(line, line.contains("Observations("));
+        }
+    }
+
+    @Test
+    public void testFailure() throws InterruptedException {
+        CompletableFuture<JsonNode> future = client.get("NoSuchSet");
+        try {
+            future.get();
+            Assert.fail("Expected a failure.");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof ServiceFailureException);
+        }
+        // The permit is released just after the future completes.
+        client.awaitIdle();
+        Assert.assertEquals(0, client.getInFlight());
+    }
+
+}
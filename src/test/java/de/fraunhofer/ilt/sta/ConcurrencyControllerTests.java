@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.tests.ConcurrencyController;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the ConcurrencyController against a model of a server with a fixed
+ * number of request handlers.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ConcurrencyControllerTests {
+
+    private static final long SERVICE_NANOS = 10_000_000;
+
+    /**
+     * Runs the controller against a server with the given number of handlers,
+     * each taking SERVICE_NANOS per request. Beyond that concurrency requests
+     * queue: throughput stays flat and latency grows linearly.
+     */
+    private static ConcurrencyController search(int handlers, int maxConcurrency) {
+        ConcurrencyController controller = new ConcurrencyController(1, maxConcurrency);
+        int steps = 0;
+        do {
+            int c = controller.getConcurrency();
+            double perSecond = 1e9 / SERVICE_NANOS;
+            double throughput = Math.min(c, handlers) * perSecond;
+            long latency = SERVICE_NANOS * Math.max(1, (c + handlers - 1) / handlers);
+            controller.record(throughput, latency);
+            Assert.assertTrue("Too many steps", ++steps < 50);
+        } while (!controller.isDone());
+        return controller;
+    }
+
+    @Test
+    public void testFindsKnee() {
+        ConcurrencyController controller = search(24, 1000);
+        ConcurrencyController.Step knee = controller.getKnee();
+        Assert.assertEquals(24, knee.concurrency);
+        Assert.assertEquals(2400, knee.throughput, 0.001);
+        Assert.assertEquals(SERVICE_NANOS, knee.p99Nanos);
+        Assert.assertEquals(24, controller.getConcurrency());
+    }
+
+    @Test
+    public void testPowerOfTwoKnee() {
+        ConcurrencyController.Step knee = search(8, 1000).getKnee();
+        Assert.assertEquals(8, knee.concurrency);
+    }
+
+    @Test
+    public void testMaxConcurrency() {
+        ConcurrencyController controller = search(1000, 50);
+        Assert.assertEquals(50, controller.getKnee().concurrency);
+        Assert.assertEquals(50, controller.getSteps().get(controller.getSteps().size() - 1).concurrency);
+    }
+
+    @Test
+    public void testLatencyLimit() {
+        // A server that keeps scaling, but whose latency explodes beyond 16.
+        ConcurrencyController controller = new ConcurrencyController(1, 1000).setMaxLatencyFactor(3);
+        do {
+            int c = controller.getConcurrency();
+            long latency = c <= 16 ? SERVICE_NANOS : SERVICE_NANOS * c;
+            controller.record(c * 100.0, latency);
+        } while (!controller.isDone());
+        Assert.assertTrue(controller.getKnee().concurrency <= 16);
+        Assert.assertTrue(controller.getKnee().concurrency >= 16);
+    }
+
+    @Test
+    public void testErrorLimit() {
+        // A server that keeps scaling, but starts failing requests beyond 16.
+        ConcurrencyController controller = new ConcurrencyController(1, 1000);
+        do {
+            int c = controller.getConcurrency();
+            double errorRate = c <= 16 ? 0 : 0.2;
+            controller.record(c * 100.0, SERVICE_NANOS, errorRate);
+        } while (!controller.isDone());
+        Assert.assertEquals(16, controller.getKnee().concurrency);
+    }
+
+    @Test
+    public void testFirstStepOverErrorLimit() {
+        ConcurrencyController controller = new ConcurrencyController(1, 64);
+        Assert.assertFalse(controller.record(100.0, SERVICE_NANOS, 0.5));
+        Assert.assertTrue(controller.isDone());
+        Assert.assertNull(controller.getKnee());
+    }
+
+}
@@ -31,6 +31,8 @@ import de.fraunhofer.iosb.ilt.sta.model.ext.EntityList;
 import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
 import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
 import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.FilterCaseRunner;
+import de.fraunhofer.iosb.ilt.tests.TestFixture;
 import de.fraunhofer.iosb.ilt.tests.Utils;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -61,6 +63,7 @@ public class DateTimeTests {
     private static final Logger LOGGER = LoggerFactory.getLogger(DateTimeTests.class);
     private static String rootUri;
     private static SensorThingsService service;
+    private static TestFixture fixture;
     private static final List<Thing> THINGS = new ArrayList<>();
     private static final List<Location> LOCATIONS = new ArrayList<>();
     private static final List<Sensor> SENSORS = new ArrayList<>();
@@ -94,7 +97,7 @@ public class DateTimeTests {
 
     @BeforeClass
     public static void setUp() {
-        rootUri = Constants.BASE_URL;
+        rootUri = Constants.getBaseUrl();
         rootUri = rootUri.trim();
         if (rootUri.lastIndexOf('/') == rootUri.length() - 1) {
             rootUri = rootUri.substring(0, rootUri.length() - 1);
@@ -102,7 +105,8 @@ public class DateTimeTests {
         URL url;
         try {
             url = new URL(rootUri);
-            service = Constants.createService(url);
+            service = Constants.createService(url, Constants.getSharedConnectionManager());
+            fixture = TestFixture.forClass(service, DateTimeTests.class);
             createEntities();
         } catch (MalformedURLException | URISyntaxException ex) {
             LOGGER.error("Failed to create service uri.", ex);
@@ -116,31 +120,30 @@ public class DateTimeTests {
     @AfterClass
     public static void tearDown() {
         LOGGER.info("tearing down class.");
-        try {
-            Utils.deleteAll(service);
-        } catch (ServiceFailureException ex) {
-            LOGGER.error("Failed to clean database.", ex);
+        if (fixture != null) {
+            fixture.deleteAll();
         }
     }
 
     private static void createEntities() throws ServiceFailureException, URISyntaxException {
+        // Linked entities are created first, so the fixture knows their ids.
+        Location location = new Location("Location 1.0", "Location of Thing 1.", "application/vnd.geo+json", new Point(8, 51));
+        LOCATIONS.add(fixture.create(location));
         Thing thing = new Thing("Thing 1", "The first thing.");
         THINGS.add(thing);
-        Location location = new Location("Location 1.0", "Location of Thing 1.", "application/vnd.geo+json", new Point(8, 51));
-        LOCATIONS.add(location);
-        thing.getLocations().add(location);
-        service.create(thing);
+        thing.getLocations().add(location.withOnlyId());
+        fixture.create(thing);
 
         Sensor sensor = new Sensor("Sensor 1", "The first sensor.", "text", "Some metadata.");
-        SENSORS.add(sensor);
+        SENSORS.add(fixture.create(sensor));
         ObservedProperty obsProp = new ObservedProperty("Temperature", new URI("http://ucom.org/temperature"), "The temperature of the thing.");
-        O_PROPS.add(obsProp);
+        O_PROPS.add(fixture.create(obsProp));
         Datastream datastream = new Datastream("Datastream 1", "The temperature of thing 1, sensor 1.", "someType", new UnitOfMeasurement("degree celcius", "°C", "ucum:T"));
         DATASTREAMS.add(datastream);
-        datastream.setThing(thing);
-        datastream.setSensor(sensor);
-        datastream.setObservedProperty(obsProp);
-        service.create(datastream);
+        datastream.setThing(thing.withOnlyId());
+        datastream.setSensor(sensor.withOnlyId());
+        datastream.setObservedProperty(obsProp.withOnlyId());
+        fixture.create(datastream);
 
         T600 = ZonedDateTime.parse("2016-01-01T06:00:00.000Z");
         T659 = ZonedDateTime.parse("2016-01-01T06:59:00.000Z");
@@ -203,13 +206,14 @@ public class DateTimeTests {
         o.setPhenomenonTime(pt);
         o.setResultTime(rt);
         o.setValidTime(vt);
-        service.create(o);
+        fixture.create(o);
         OBSERVATIONS.add(o);
     }
 
     public void filterAndCheck(BaseDao doa, String filter, List<? extends Entity> expected) {
         try {
-            EntityList<Observation> result = doa.query().filter(filter).list();
+            // Other test classes may share the server, only check our own entities.
+            EntityList<Observation> result = fixture.owned(doa.query().filter(filter).list());
             Utils.TestResult check = Utils.resultContains(result, expected);
             Assert.assertTrue("Failed on filter: " + filter + " Cause: " + check.message, check.testOk);
         } catch (ServiceFailureException ex) {
@@ -217,6 +221,11 @@ public class DateTimeTests {
         }
     }
 
+    private void checkCases(FilterCaseRunner<?> cases) {
+        Utils.TestResult check = cases.run();
+        Assert.assertTrue(check.message, check.testOk);
+    }
+
     public void filterForException(BaseDao doa, String filter) {
         try {
             doa.query().filter(filter).list();
@@ -229,103 +238,108 @@ public class DateTimeTests {
     }
 
     @Test
-    public void testLt() throws ServiceFailureException {
-        ObservationDao doa = service.observations();
-        filterAndCheck(doa, String.format("resultTime lt %s", T700), getFromList(OBSERVATIONS, 0, 1));
-        filterAndCheck(doa, String.format("validTime lt %s", T700), getFromList(OBSERVATIONS, 8, 9));
-        filterAndCheck(doa, String.format("phenomenonTime lt %s", T700), getFromList(OBSERVATIONS, 0, 1, 8, 9));
-
-        filterAndCheck(doa, String.format("resultTime lt %s", I700_800), getFromList(OBSERVATIONS, 0, 1));
-        filterAndCheck(doa, String.format("validTime lt %s", I700_800), getFromList(OBSERVATIONS, 8, 9));
-        filterAndCheck(doa, String.format("phenomenonTime lt %s", I700_800), getFromList(OBSERVATIONS, 0, 1, 8, 9));
-
-        filterAndCheck(doa, String.format("%s lt resultTime", T800), getFromList(OBSERVATIONS, 6, 7));
-        filterAndCheck(doa, String.format("%s lt validTime", T800), getFromList(OBSERVATIONS, 15));
-        filterAndCheck(doa, String.format("%s lt phenomenonTime", T800), getFromList(OBSERVATIONS, 6, 7, 15));
-
-        filterAndCheck(doa, String.format("%s lt resultTime", I700_800), getFromList(OBSERVATIONS, 5, 6, 7));
-        filterAndCheck(doa, String.format("%s lt validTime", I700_800), getFromList(OBSERVATIONS, 14, 15));
-        filterAndCheck(doa, String.format("%s lt phenomenonTime", I700_800), getFromList(OBSERVATIONS, 5, 6, 7, 14, 15));
+    public void testLt() {
+        FilterCaseRunner<Observation> cases = new FilterCaseRunner<>(service.observations(), OBSERVATIONS).setFixture(fixture);
+        cases.add(String.format("resultTime lt %s", T700), 0, 1);
+        cases.add(String.format("validTime lt %s", T700), 8, 9);
+        cases.add(String.format("phenomenonTime lt %s", T700), 0, 1, 8, 9);
+
+        cases.add(String.format("resultTime lt %s", I700_800), 0, 1);
+        cases.add(String.format("validTime lt %s", I700_800), 8, 9);
+        cases.add(String.format("phenomenonTime lt %s", I700_800), 0, 1, 8, 9);
+
+        cases.add(String.format("%s lt resultTime", T800), 6, 7);
+        cases.add(String.format("%s lt validTime", T800), 15);
+        cases.add(String.format("%s lt phenomenonTime", T800), 6, 7, 15);
+
+        cases.add(String.format("%s lt resultTime", I700_800), 5, 6, 7);
+        cases.add(String.format("%s lt validTime", I700_800), 14, 15);
+        cases.add(String.format("%s lt phenomenonTime", I700_800), 5, 6, 7, 14, 15);
+        checkCases(cases);
     }
 
     @Test
-    public void testGt() throws ServiceFailureException {
-        ObservationDao doa = service.observations();
-        filterAndCheck(doa, String.format("resultTime gt %s", T800), getFromList(OBSERVATIONS, 6, 7));
-        filterAndCheck(doa, String.format("validTime gt %s", T800), getFromList(OBSERVATIONS, 15));
-        filterAndCheck(doa, String.format("phenomenonTime gt %s", T800), getFromList(OBSERVATIONS, 6, 7, 15));
-
-        filterAndCheck(doa, String.format("resultTime gt %s", I700_800), getFromList(OBSERVATIONS, 5, 6, 7));
-        filterAndCheck(doa, String.format("validTime gt %s", I700_800), getFromList(OBSERVATIONS, 14, 15));
-        filterAndCheck(doa, String.format("phenomenonTime gt %s", I700_800), getFromList(OBSERVATIONS, 5, 6, 7, 14, 15));
-
-        filterAndCheck(doa, String.format("%s gt resultTime", T700), getFromList(OBSERVATIONS, 0, 1));
-        filterAndCheck(doa, String.format("%s gt validTime", T700), getFromList(OBSERVATIONS, 8, 9));
-        filterAndCheck(doa, String.format("%s gt phenomenonTime", T700), getFromList(OBSERVATIONS, 0, 1, 8, 9));
-
-        filterAndCheck(doa, String.format("%s gt resultTime", I700_800), getFromList(OBSERVATIONS, 0, 1));
-        filterAndCheck(doa, String.format("%s gt validTime", I700_800), getFromList(OBSERVATIONS, 8, 9));
-        filterAndCheck(doa, String.format("%s gt phenomenonTime", I700_800), getFromList(OBSERVATIONS, 0, 1, 8, 9));
+    public void testGt() {
+        FilterCaseRunner<Observation> cases = new FilterCaseRunner<>(service.observations(), OBSERVATIONS).setFixture(fixture);
+        cases.add(String.format("resultTime gt %s", T800), 6, 7);
+        cases.add(String.format("validTime gt %s", T800), 15);
+        cases.add(String.format("phenomenonTime gt %s", T800), 6, 7, 15);
+
+        cases.add(String.format("resultTime gt %s", I700_800), 5, 6, 7);
+        cases.add(String.format("validTime gt %s", I700_800), 14, 15);
+        cases.add(String.format("phenomenonTime gt %s", I700_800), 5, 6, 7, 14, 15);
+
+        cases.add(String.format("%s gt resultTime", T700), 0, 1);
+        cases.add(String.format("%s gt validTime", T700), 8, 9);
+        cases.add(String.format("%s gt phenomenonTime", T700), 0, 1, 8, 9);
+
+        cases.add(String.format("%s gt resultTime", I700_800), 0, 1);
+        cases.add(String.format("%s gt validTime", I700_800), 8, 9);
+        cases.add(String.format("%s gt phenomenonTime", I700_800), 0, 1, 8, 9);
+        checkCases(cases);
     }
 
     @Test
-    public void testLe() throws ServiceFailureException {
-        ObservationDao doa = service.observations();
-        filterAndCheck(doa, String.format("resultTime le %s", T700), getFromList(OBSERVATIONS, 0, 1, 2));
-        filterAndCheck(doa, String.format("validTime le %s", T700), getFromList(OBSERVATIONS, 8, 9));
-        filterAndCheck(doa, String.format("phenomenonTime le %s", T700), getFromList(OBSERVATIONS, 0, 1, 2, 8, 9));
-
-        filterAndCheck(doa, String.format("resultTime le %s", I700_800), getFromList(OBSERVATIONS, 0, 1, 2));
-        filterAndCheck(doa, String.format("validTime le %s", I700_800), getFromList(OBSERVATIONS, 8, 9, 10, 11, 17, 19));
-        filterAndCheck(doa, String.format("phenomenonTime le %s", I700_800), getFromList(OBSERVATIONS, 0, 1, 2, 8, 9, 10, 11, 17, 19));
-
-        filterAndCheck(doa, String.format("%s le resultTime", T800), getFromList(OBSERVATIONS, 5, 6, 7));
-        filterAndCheck(doa, String.format("%s le validTime", T800), getFromList(OBSERVATIONS, 14, 15));
-        filterAndCheck(doa, String.format("%s le phenomenonTime", T800), getFromList(OBSERVATIONS, 5, 6, 7, 14, 15));
-
-        filterAndCheck(doa, String.format("%s le resultTime", I700_800), getFromList(OBSERVATIONS, 5, 6, 7));
-        filterAndCheck(doa, String.format("%s le validTime", I700_800), getFromList(OBSERVATIONS, 11, 13, 14, 15, 18, 20));
-        filterAndCheck(doa, String.format("%s le phenomenonTime", I700_800), getFromList(OBSERVATIONS, 5, 6, 7, 11, 13, 14, 15, 18, 20));
+    public void testLe() {
+        FilterCaseRunner<Observation> cases = new FilterCaseRunner<>(service.observations(), OBSERVATIONS).setFixture(fixture);
+        cases.add(String.format("resultTime le %s", T700), 0, 1, 2);
+        cases.add(String.format("validTime le %s", T700), 8, 9);
+        cases.add(String.format("phenomenonTime le %s", T700), 0, 1, 2, 8, 9);
+
+        cases.add(String.format("resultTime le %s", I700_800), 0, 1, 2);
+        cases.add(String.format("validTime le %s", I700_800), 8, 9, 10, 11, 17, 19);
+        cases.add(String.format("phenomenonTime le %s", I700_800), 0, 1, 2, 8, 9, 10, 11, 17, 19);
+
+        cases.add(String.format("%s le resultTime", T800), 5, 6, 7);
+        cases.add(String.format("%s le validTime", T800), 14, 15);
+        cases.add(String.format("%s le phenomenonTime", T800), 5, 6, 7, 14, 15);
+
+        cases.add(String.format("%s le resultTime", I700_800), 5, 6, 7);
+        cases.add(String.format("%s le validTime", I700_800), 11, 13, 14, 15, 18, 20);
+        cases.add(String.format("%s le phenomenonTime", I700_800), 5, 6, 7, 11, 13, 14, 15, 18, 20);
+        checkCases(cases);
     }
 
     @Test
-    public void testGe() throws ServiceFailureException {
-        ObservationDao doa = service.observations();
-        filterAndCheck(doa, String.format("resultTime ge %s", T800), getFromList(OBSERVATIONS, 5, 6, 7));
-        filterAndCheck(doa, String.format("validTime ge %s", T800), getFromList(OBSERVATIONS, 14, 15));
-        filterAndCheck(doa, String.format("phenomenonTime ge %s", T800), getFromList(OBSERVATIONS, 5, 6, 7, 14, 15));
-
-        filterAndCheck(doa, String.format("resultTime ge %s", I700_800), getFromList(OBSERVATIONS, 5, 6, 7));
-        filterAndCheck(doa, String.format("validTime ge %s", I700_800), getFromList(OBSERVATIONS, 11, 13, 14, 15, 18, 20));
-        filterAndCheck(doa, String.format("phenomenonTime ge %s", I700_800), getFromList(OBSERVATIONS, 5, 6, 7, 11, 13, 14, 15, 18, 20));
-
-        filterAndCheck(doa, String.format("%s ge resultTime", T700), getFromList(OBSERVATIONS, 0, 1, 2));
-        filterAndCheck(doa, String.format("%s ge validTime", T700), getFromList(OBSERVATIONS, 8, 9));
-        filterAndCheck(doa, String.format("%s ge phenomenonTime", T700), getFromList(OBSERVATIONS, 0, 1, 2, 8, 9));
-
-        filterAndCheck(doa, String.format("%s ge resultTime", I700_800), getFromList(OBSERVATIONS, 0, 1, 2));
-        filterAndCheck(doa, String.format("%s ge validTime", I700_800), getFromList(OBSERVATIONS, 8, 9, 10, 11, 17, 19));
-        filterAndCheck(doa, String.format("%s ge phenomenonTime", I700_800), getFromList(OBSERVATIONS, 0, 1, 2, 8, 9, 10, 11, 17, 19));
+    public void testGe() {
+        FilterCaseRunner<Observation> cases = new FilterCaseRunner<>(service.observations(), OBSERVATIONS).setFixture(fixture);
+        cases.add(String.format("resultTime ge %s", T800), 5, 6, 7);
+        cases.add(String.format("validTime ge %s", T800), 14, 15);
+        cases.add(String.format("phenomenonTime ge %s", T800), 5, 6, 7, 14, 15);
+
+        cases.add(String.format("resultTime ge %s", I700_800), 5, 6, 7);
+        cases.add(String.format("validTime ge %s", I700_800), 11, 13, 14, 15, 18, 20);
+        cases.add(String.format("phenomenonTime ge %s", I700_800), 5, 6, 7, 11, 13, 14, 15, 18, 20);
+
+        cases.add(String.format("%s ge resultTime", T700), 0, 1, 2);
+        cases.add(String.format("%s ge validTime", T700), 8, 9);
+        cases.add(String.format("%s ge phenomenonTime", T700), 0, 1, 2, 8, 9);
+
+        cases.add(String.format("%s ge resultTime", I700_800), 0, 1, 2);
+        cases.add(String.format("%s ge validTime", I700_800), 8, 9, 10, 11, 17, 19);
+        cases.add(String.format("%s ge phenomenonTime", I700_800), 0, 1, 2, 8, 9, 10, 11, 17, 19);
+        checkCases(cases);
     }
 
     @Test
-    public void testEq() throws ServiceFailureException {
-        ObservationDao doa = service.observations();
-        filterAndCheck(doa, String.format("resultTime eq %s", T800), getFromList(OBSERVATIONS, 5));
-        filterAndCheck(doa, String.format("validTime eq %s", T800), getFromList(OBSERVATIONS));
-        filterAndCheck(doa, String.format("phenomenonTime eq %s", T800), getFromList(OBSERVATIONS, 5));
-
-        filterAndCheck(doa, String.format("resultTime eq %s", I700_800), getFromList(OBSERVATIONS));
-        filterAndCheck(doa, String.format("validTime eq %s", I700_800), getFromList(OBSERVATIONS, 11));
-        filterAndCheck(doa, String.format("phenomenonTime eq %s", I700_800), getFromList(OBSERVATIONS, 11));
-
-        filterAndCheck(doa, String.format("%s eq resultTime", T700), getFromList(OBSERVATIONS, 2));
-        filterAndCheck(doa, String.format("%s eq validTime", T700), getFromList(OBSERVATIONS));
-        filterAndCheck(doa, String.format("%s eq phenomenonTime", T700), getFromList(OBSERVATIONS, 2));
-
-        filterAndCheck(doa, String.format("%s eq resultTime", I700_800), getFromList(OBSERVATIONS));
-        filterAndCheck(doa, String.format("%s eq validTime", I700_800), getFromList(OBSERVATIONS, 11));
-        filterAndCheck(doa, String.format("%s eq phenomenonTime", I700_800), getFromList(OBSERVATIONS, 11));
+    public void testEq() {
+        FilterCaseRunner<Observation> cases = new FilterCaseRunner<>(service.observations(), OBSERVATIONS).setFixture(fixture);
+        cases.add(String.format("resultTime eq %s", T800), 5);
+        cases.add(String.format("validTime eq %s", T800));
+        cases.add(String.format("phenomenonTime eq %s", T800), 5);
+
+        cases.add(String.format("resultTime eq %s", I700_800));
+        cases.add(String.format("validTime eq %s", I700_800), 11);
+        cases.add(String.format("phenomenonTime eq %s", I700_800), 11);
+
+        cases.add(String.format("%s eq resultTime", T700), 2);
+        cases.add(String.format("%s eq validTime", T700));
+        cases.add(String.format("%s eq phenomenonTime", T700), 2);
+
+        cases.add(String.format("%s eq resultTime", I700_800));
+        cases.add(String.format("%s eq validTime", I700_800), 11);
+        cases.add(String.format("%s eq phenomenonTime", I700_800), 11);
+        checkCases(cases);
     }
 
     @Test
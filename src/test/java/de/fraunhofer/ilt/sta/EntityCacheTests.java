@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Entity;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.tests.CachingSensorThingsService;
+import de.fraunhofer.iosb.ilt.tests.EntityCache;
+import de.fraunhofer.iosb.ilt.tests.StandInServer;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the entity cache, and the caching service on the stand-in server.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class EntityCacheTests {
+
+    @Test
+    public void testEviction() throws ServiceFailureException, InterruptedException {
+        EntityCache<String, String> cache = new EntityCache<>(2, 50, TimeUnit.MILLISECONDS);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        Assert.assertEquals("A", cache.getIfPresent("a"));
+        // b is now the least recently used.
+        cache.put("c", "C");
+        Assert.assertNull(cache.getIfPresent("b"));
+        Assert.assertEquals("C", cache.get("c", () -> "other"));
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getEvictions());
+
+        Thread.sleep(60);
+        Assert.assertEquals("new", cache.get("c", () -> "new"));
+        Assert.assertEquals(2, cache.getMisses());
+        Assert.assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    public void testCachingService() throws IOException, URISyntaxException, ServiceFailureException {
+        StandInServer server = new StandInServer().start();
+        try {
+            EntityCache<String, Entity<?>> cache = new EntityCache<>(100, 1, TimeUnit.MINUTES);
+            CachingSensorThingsService service = new CachingSensorThingsService(new URL(server.getBaseUrl()), cache);
+            Thing thing = new Thing("Thing 1", "The first thing.");
+            service.create(thing);
+
+            Thing first = service.things().find(thing.getId());
+            Thing second = service.things().find(thing.getId());
+            Assert.assertSame(first, second);
+            Assert.assertEquals(1, cache.getMisses());
+            Assert.assertEquals(1, cache.getHits());
+
+            Assert.assertSame(service.findByName(Thing.class, "Thing 1"), service.findByName(Thing.class, "Thing 1"));
+            Assert.assertNull(service.findByName(Thing.class, "Thing 2"));
+            Assert.assertEquals(2, cache.getHits());
+
+            Thing changed = new Thing("Thing 2", "The renamed thing.");
+            changed.setId(thing.getId());
+            service.update(changed);
+            Assert.assertEquals("Thing 2", service.things().find(thing.getId()).getName());
+            Assert.assertEquals(1, cache.size());
+        } finally {
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.FilterCaseRunner;
+import de.fraunhofer.iosb.ilt.tests.StandInServer;
+import de.fraunhofer.iosb.ilt.tests.TestFixture;
+import de.fraunhofer.iosb.ilt.tests.Utils;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests running filter cases concurrently against the stand-in server.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class FilterCaseRunnerTests {
+
+    private StandInServer server;
+    private SensorThingsService service;
+    private TestFixture fixture;
+    private final List<Thing> things = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException, URISyntaxException, ServiceFailureException {
+        server = new StandInServer().start();
+        service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+        fixture = TestFixture.forClass(service, FilterCaseRunnerTests.class);
+        for (int i = 0; i < 5; i++) {
+            things.add(fixture.create(new Thing("Thing " + i, "Thing number " + i + ".")));
+        }
+        // Not owned by the fixture, so never part of a checked result.
+        service.create(new Thing("Thing 9", "A thing of another test."));
+    }
+
+    @After
+    public void tearDown() {
+        fixture.deleteAll();
+        server.stop();
+    }
+
+    @Test
+    public void testAllPass() {
+        Utils.TestResult result = new FilterCaseRunner<>(service.things(), things)
+                .setFixture(fixture)
+                .setThreads(3)
+                .add("name eq 'Thing 1'", 1)
+                .add("name ne 'Thing 1'", 0, 2, 3, 4)
+                .add("name lt 'Thing 3'", 0, 1, 2)
+                .add("name eq 'Nothing'")
+                .run();
+        Assert.assertTrue(result.message, result.testOk);
+    }
+
+    @Test
+    public void testFailuresAreCollected() {
+        Utils.TestResult result = new FilterCaseRunner<>(service.things(), things)
+                .setFixture(fixture)
+                .add("name eq 'Thing 1'", 2)
+                .add("name eq 'Thing 3'", 3)
+                .add("name eq 'Thing 4'")
+                .run();
+        Assert.assertFalse(result.testOk);
+        Assert.assertTrue(result.message, result.message.startsWith("2 of 3 filters failed:"));
+        Assert.assertTrue(result.message, result.message.contains("name eq 'Thing 1': "));
+        Assert.assertTrue(result.message, result.message.contains("name eq 'Thing 4': "));
+        Assert.assertFalse(result.message, result.message.contains("Thing 3"));
+    }
+
+}
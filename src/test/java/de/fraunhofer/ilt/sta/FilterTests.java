@@ -31,6 +31,7 @@ import de.fraunhofer.iosb.ilt.sta.model.ext.EntityList;
 import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
 import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
 import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.TestFixture;
 import de.fraunhofer.iosb.ilt.tests.Utils;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -61,6 +62,7 @@ import org.threeten.extra.Interval;
 public class FilterTests {
 
     private static SensorThingsService service;
+    private static TestFixture fixture;
     private static final List<Thing> THINGS = new ArrayList<>();
     private static final List<Location> LOCATIONS = new ArrayList<>();
     private static final List<Sensor> SENSORS = new ArrayList<>();
@@ -73,55 +75,56 @@ public class FilterTests {
 
     @BeforeClass
     public static void setUpClass() throws URISyntaxException, ServiceFailureException, MalformedURLException {
-        URL url = new URL(Constants.BASE_URL);
-        service = Constants.createService(url);
+        URL url = new URL(Constants.getBaseUrl());
+        service = Constants.createService(url, Constants.getSharedConnectionManager());
+        fixture = TestFixture.forClass(service, FilterTests.class);
         createEntities();
     }
 
     @AfterClass
-    public static void tearDownClass() throws ServiceFailureException {
-        Utils.deleteAll(service);
+    public static void tearDownClass() {
+        fixture.deleteAll();
     }
 
     private static void createEntities() throws ServiceFailureException, URISyntaxException {
         Thing thing = new Thing("Thing 1", "The first thing.");
-        service.create(thing);
+        fixture.create(thing);
         THINGS.add(thing);
 
         thing = new Thing("Thing 2", "The second thing.");
-        service.create(thing);
+        fixture.create(thing);
         THINGS.add(thing);
 
         thing = new Thing("Thing 3", "The third thing.");
-        service.create(thing);
+        fixture.create(thing);
         THINGS.add(thing);
 
         thing = new Thing("Thing 4", "The fourt thing.");
-        service.create(thing);
+        fixture.create(thing);
         THINGS.add(thing);
 
         // Locations 0
         Location location = new Location("Location 1.0", "First Location of Thing 1.", "application/vnd.geo+json", new Point(8, 51));
         location.getThings().add(THINGS.get(0));
-        service.create(location);
+        fixture.create(location);
         LOCATIONS.add(location);
 
         // Locations 1
         location = new Location("Location 1.1", "Second Location of Thing 1.", "application/vnd.geo+json", new Point(8, 52));
         location.getThings().add(THINGS.get(0));
-        service.create(location);
+        fixture.create(location);
         LOCATIONS.add(location);
 
         // Locations 2
         location = new Location("Location 2", "Location of Thing 2.", "application/vnd.geo+json", new Point(8, 53));
         location.getThings().add(THINGS.get(1));
-        service.create(location);
+        fixture.create(location);
         LOCATIONS.add(location);
 
         // Locations 3
         location = new Location("Location 3", "Location of Thing 3.", "application/vnd.geo+json", new Point(8, 54));
         location.getThings().add(THINGS.get(2));
-        service.create(location);
+        fixture.create(location);
         LOCATIONS.add(location);
 
         // Locations 4
@@ -132,7 +135,7 @@ public class FilterTests {
                         new LngLatAlt(7, 53),
                         new LngLatAlt(8, 53)));
         location.getThings().add(THINGS.get(3));
-        service.create(location);
+        fixture.create(location);
         LOCATIONS.add(location);
 
         // Locations 5
@@ -140,7 +143,7 @@ public class FilterTests {
                 new LineString(
                         new LngLatAlt(5, 52),
                         new LngLatAlt(5, 53)));
-        service.create(location);
+        fixture.create(location);
         LOCATIONS.add(location);
 
         // Locations 6
@@ -148,7 +151,7 @@ public class FilterTests {
                 new LineString(
                         new LngLatAlt(5, 52),
                         new LngLatAlt(6, 53)));
-        service.create(location);
+        fixture.create(location);
         LOCATIONS.add(location);
 
         // Locations 7
@@ -156,53 +159,54 @@ public class FilterTests {
                 new LineString(
                         new LngLatAlt(4, 52),
                         new LngLatAlt(8, 52)));
-        service.create(location);
+        fixture.create(location);
         LOCATIONS.add(location);
 
         Sensor sensor = new Sensor("Sensor 1", "The first sensor.", "text", "Some metadata.");
-        service.create(sensor);
+        fixture.create(sensor);
         SENSORS.add(sensor);
 
         ObservedProperty obsProp = new ObservedProperty("Temperature", new URI("http://ucom.org/temperature"), "The temperature of the thing.");
-        service.create(obsProp);
+        fixture.create(obsProp);
         O_PROPS.add(obsProp);
 
         Datastream datastream = new Datastream("Datastream 1", "The temperature of thing 1, sensor 1.", "someType", new UnitOfMeasurement("degree celcius", "°C", "ucum:T"));
         datastream.setThing(thing);
         datastream.setSensor(sensor);
         datastream.setObservedProperty(obsProp);
-        service.create(datastream);
+        fixture.create(datastream);
         DATASTREAMS.add(datastream);
 
         Observation o = new Observation(1, datastream);
         o.setPhenomenonTimeFrom(ZonedDateTime.parse("2016-01-01T01:01:01.000Z"));
         o.setValidTime(Interval.of(Instant.parse("2016-01-01T01:01:01.000Z"), Instant.parse("2016-01-01T23:59:59.999Z")));
-        service.create(o);
+        fixture.create(o);
         OBSERVATIONS.add(o);
 
         o = new Observation(2, datastream);
         o.setPhenomenonTimeFrom(ZonedDateTime.parse("2016-01-02T01:01:01.000Z"));
         o.setValidTime(Interval.of(Instant.parse("2016-01-02T01:01:01.000Z"), Instant.parse("2016-01-02T23:59:59.999Z")));
-        service.create(o);
+        fixture.create(o);
         OBSERVATIONS.add(o);
 
         o = new Observation(3, datastream);
         o.setPhenomenonTimeFrom(ZonedDateTime.parse("2016-01-03T01:01:01.000Z"));
         o.setValidTime(Interval.of(Instant.parse("2016-01-03T01:01:01.000Z"), Instant.parse("2016-01-03T23:59:59.999Z")));
-        service.create(o);
+        fixture.create(o);
         OBSERVATIONS.add(o);
 
         o = new Observation(4, datastream);
         o.setPhenomenonTimeFrom(ZonedDateTime.parse("2016-01-04T01:01:01.000Z"));
         o.setValidTime(Interval.of(Instant.parse("2016-01-04T01:01:01.000Z"), Instant.parse("2016-01-04T23:59:59.999Z")));
-        service.create(o);
+        fixture.create(o);
         OBSERVATIONS.add(o);
 
     }
 
     public void filterAndCheck(BaseDao doa, String filter, List<? extends Entity> expected) {
         try {
-            EntityList<Observation> result = doa.query().filter(filter).list();
+            // Other test classes may share the server, only check our own entities.
+            EntityList<Observation> result = fixture.owned(doa.query().filter(filter).list());
             Utils.TestResult check = Utils.resultContains(result, expected);
             Assert.assertTrue("Failed on filter: " + filter + " Cause: " + check.message, check.testOk);
         } catch (ServiceFailureException ex) {
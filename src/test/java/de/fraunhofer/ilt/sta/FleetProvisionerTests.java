@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.FleetProvisioner;
+import de.fraunhofer.iosb.ilt.tests.StandInServer;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests provisioning a fleet in both modes on the stand-in server.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class FleetProvisionerTests {
+
+    @Test
+    public void testDeepAndFlat() throws IOException, URISyntaxException, ServiceFailureException, InterruptedException {
+        StandInServer server = new StandInServer().start();
+        try {
+            SensorThingsService service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+            FleetProvisioner provisioner = new FleetProvisioner(service).setDevice(2, 3).setConcurrency(4);
+            FleetProvisioner.Report flat = provisioner.provision(FleetProvisioner.Mode.FLAT, "flat", 10);
+            FleetProvisioner.Report deep = provisioner.provision(FleetProvisioner.Mode.DEEP, "deep", 10);
+            FleetProvisioner.logComparison(flat, deep);
+
+            Assert.assertEquals(0, flat.getFailures());
+            Assert.assertEquals(0, deep.getFailures());
+            // Thing, Location, and per Datastream itself and its Observations.
+            Assert.assertEquals(10 * (2 + 2 * (1 + 3)), flat.getRequests());
+            Assert.assertEquals(10, deep.getRequests());
+
+            Assert.assertEquals(20, server.count("Things"));
+            Assert.assertEquals(20, server.count("Locations"));
+            Assert.assertEquals(40, server.count("Datastreams"));
+            Assert.assertEquals(120, server.count("Observations"));
+            // Shared by both fleets.
+            Assert.assertEquals(2, server.count("Sensors"));
+            Assert.assertEquals(2, server.count("ObservedProperties"));
+            Assert.assertEquals(1, service.things().query().filter("name eq 'deep device 3'").list().size());
+        } finally {
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.tests.LoadExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the concurrency limit of the LoadExecutor.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class LoadExecutorTests {
+
+    private static void testLimit(LoadExecutor executor) throws InterruptedException {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 50; i++) {
+            executor.submit(() -> {
+                int now = running.incrementAndGet();
+                maxRunning.accumulateAndGet(now, Math::max);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.incrementAndGet();
+            });
+        }
+        Assert.assertTrue(executor.shutdownAndWait(10, TimeUnit.SECONDS));
+        Assert.assertEquals(50, done.get());
+        Assert.assertTrue("Too many tasks at once: " + maxRunning.get(), maxRunning.get() <= 4);
+        Assert.assertEquals(0, executor.getActive());
+    }
+
+    @Test
+    public void testPlatformLimit() throws InterruptedException {
+        testLimit(LoadExecutor.platform(4));
+    }
+
+    @Test
+    public void testVirtualLimit() throws InterruptedException {
+        LoadExecutor executor = LoadExecutor.virtual(4);
+        Assert.assertEquals(LoadExecutor.virtualThreadsAvailable(), executor.isVirtual());
+        testLimit(executor);
+    }
+
+}
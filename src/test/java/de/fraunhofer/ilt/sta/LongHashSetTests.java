@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.tests.LongHashSet;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the primitive long set used for result checks.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class LongHashSetTests {
+
+    @Test
+    public void testAddRemove() {
+        LongHashSet set = new LongHashSet(2);
+        Assert.assertTrue(set.add(0));
+        Assert.assertTrue(set.add(-5));
+        Assert.assertTrue(set.add(Long.MAX_VALUE));
+        Assert.assertFalse(set.add(0));
+        Assert.assertEquals(3, set.size());
+        Assert.assertTrue(set.remove(-5));
+        Assert.assertFalse(set.remove(-5));
+        Assert.assertTrue(set.contains(0));
+        Assert.assertTrue(set.contains(Long.MAX_VALUE));
+        Assert.assertEquals(2, set.size());
+    }
+
+    @Test
+    public void testAgainstHashSet() {
+        Random random = new Random(42);
+        LongHashSet set = new LongHashSet();
+        Set<Long> reference = new HashSet<>();
+        for (int i = 0; i < 100_000; i++) {
+            // A small value range forces many collisions and removals.
+            long value = random.nextInt(5000);
+            if (random.nextBoolean()) {
+                Assert.assertEquals(reference.add(value), set.add(value));
+            } else {
+                Assert.assertEquals(reference.remove(value), set.remove(value));
+            }
+        }
+        Assert.assertEquals(reference.size(), set.size());
+        for (long value = 0; value < 5000; value++) {
+            Assert.assertEquals(reference.contains(value), set.contains(value));
+        }
+        Set<Long> iterated = new HashSet<>();
+        set.forEach(iterated::add);
+        Assert.assertEquals(reference, iterated);
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Location;
+import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
+import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
+import de.fraunhofer.iosb.ilt.sta.model.Sensor;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.MetadataResolver;
+import de.fraunhofer.iosb.ilt.tests.StandInServer;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import org.geojson.Point;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that resolving the same metadata twice does not duplicate it.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class MetadataResolverTests {
+
+    private StandInServer server;
+    private SensorThingsService service;
+
+    @Before
+    public void setUp() throws IOException, URISyntaxException {
+        server = new StandInServer().start();
+        service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * Creates a new template tree, as a provisioning run would.
+     */
+    private static Thing createTree(int nr) throws URISyntaxException {
+        Thing thing = new Thing("Thing " + nr, "Thing number " + nr, Collections.singletonMap("reference", "thing-" + nr));
+        thing.getLocations().add(new Location("Location " + nr, "Where thing " + nr + " is.", "application/vnd.geo+json", new Point(8, 49 + nr)));
+        Sensor sensor = new Sensor("Shared Sensor", "The sensor all things use.", "text", "Some metadata.");
+        ObservedProperty temperature = new ObservedProperty("Temperature", new URI("http://ucom.org/temperature"), "The temperature.");
+        ObservedProperty humidity = new ObservedProperty("Humidity", new URI("http://ucom.org/humidity"), "The humidity.");
+        Datastream ds1 = new Datastream("Temperature " + nr, "The temperature of thing " + nr, "someType", new UnitOfMeasurement("degree celcius", "°C", "ucum:T"));
+        ds1.setSensor(sensor);
+        ds1.setObservedProperty(temperature);
+        thing.getDatastreams().add(ds1);
+        Datastream ds2 = new Datastream("Humidity " + nr, "The humidity of thing " + nr, "someType", new UnitOfMeasurement("relative humidity", "%", "ucum:Humidity"));
+        ds2.setSensor(sensor);
+        ds2.setObservedProperty(humidity);
+        thing.getDatastreams().add(ds2);
+        MultiDatastream mds = new MultiDatastream("Climate " + nr, "Both values of thing " + nr,
+                Arrays.asList("OM_Measurement", "OM_Measurement"),
+                Arrays.asList(new UnitOfMeasurement("degree celcius", "°C", "ucum:T"), new UnitOfMeasurement("relative humidity", "%", "ucum:Humidity")));
+        mds.setSensor(sensor);
+        mds.getObservedProperties().add(temperature);
+        mds.getObservedProperties().add(humidity);
+        thing.getMultiDatastreams().add(mds);
+        return thing;
+    }
+
+    @Test
+    public void testRepeatable() throws ServiceFailureException, URISyntaxException {
+        MetadataResolver first = new MetadataResolver(service);
+        for (int nr = 0; nr < 3; nr++) {
+            Thing template = createTree(nr);
+            first.resolveTree(template);
+            Assert.assertTrue(first.wasCreated(template.getDatastreams().iterator().next()));
+        }
+        // Per Thing: the Thing, its Location and three (Multi)Datastreams, plus one Sensor and two ObservedProperties.
+        Assert.assertEquals(3 * 5 + 3, first.getCreated());
+        Assert.assertEquals(3, server.count("Things"));
+        Assert.assertEquals(1, server.count("Sensors"));
+        Assert.assertEquals(2, server.count("ObservedProperties"));
+        Assert.assertEquals(6, server.count("Datastreams"));
+        Assert.assertEquals(3, server.count("MultiDatastreams"));
+
+        MetadataResolver second = new MetadataResolver(service);
+        for (int nr = 0; nr < 3; nr++) {
+            Thing template = createTree(nr);
+            Thing thing = second.resolveTree(template);
+            Assert.assertNotNull(template.getId());
+            Assert.assertEquals(thing.getId(), template.getId());
+            Datastream ds = template.getDatastreams().iterator().next();
+            Assert.assertFalse(second.wasCreated(ds));
+            Assert.assertNotNull(ds.getId());
+        }
+        Assert.assertEquals(0, second.getCreated());
+        // Four index loads, and the Datastreams and MultiDatastreams of each Thing.
+        Assert.assertEquals(4 + 3 * 2, second.getRequests());
+        Assert.assertEquals(3, server.count("Things"));
+        Assert.assertEquals(6, server.count("Datastreams"));
+        Assert.assertEquals(3, server.count("Locations"));
+    }
+
+    @Test
+    public void testDeepInsert() throws ServiceFailureException, URISyntaxException {
+        MetadataResolver first = new MetadataResolver(service);
+        Thing template = createTree(0);
+        Assert.assertTrue(first.createTreeIfMissing(template));
+        Assert.assertTrue(first.wasCreated(template.getMultiDatastreams().iterator().next()));
+        // Four index loads, the shared Sensor and two ObservedProperties, and one deep insert.
+        Assert.assertEquals(4 + 3 + 1, first.getRequests());
+        Assert.assertEquals(1, server.count("Things"));
+        Assert.assertEquals(1, server.count("Locations"));
+        Assert.assertEquals(1, server.count("Sensors"));
+        Assert.assertEquals(2, server.count("ObservedProperties"));
+        Assert.assertEquals(2, server.count("Datastreams"));
+        Assert.assertEquals(1, server.count("MultiDatastreams"));
+        Assert.assertFalse(first.createTreeIfMissing(createTree(0)));
+
+        MetadataResolver second = new MetadataResolver(service);
+        Assert.assertFalse(second.createTreeIfMissing(createTree(0)));
+        second.resolveTree(createTree(0));
+        Assert.assertEquals(0, second.getCreated());
+    }
+
+    @Test
+    public void testDeepInsertFleet() throws ServiceFailureException, URISyntaxException {
+        MetadataResolver resolver = new MetadataResolver(service);
+        for (int nr = 0; nr < 5; nr++) {
+            Thing thing = new Thing("Device " + nr, "Device number " + nr, Collections.singletonMap("reference", "device-" + nr));
+            Datastream ds = new Datastream("Pressure " + nr, "The pressure of device " + nr, "someType", new UnitOfMeasurement("hectopascal", "hPa", "ucum:hPa"));
+            ds.setSensor(new Sensor("Barometer", "The barometer of all devices.", "text", "Some metadata."));
+            ds.setObservedProperty(new ObservedProperty("Pressure", new URI("http://ucom.org/pressure"), "The air pressure."));
+            thing.getDatastreams().add(ds);
+            Assert.assertTrue(resolver.createTreeIfMissing(thing));
+        }
+        Assert.assertEquals(5, server.count("Things"));
+        Assert.assertEquals(1, server.count("Sensors"));
+        Assert.assertEquals(1, server.count("ObservedProperties"));
+        // Four index loads, five deep inserts, and one lookup of the Sensor and ObservedProperty of the first.
+        Assert.assertEquals(4 + 5 + 2, resolver.getRequests());
+        // The created Things are in the index, without reloading it.
+        Assert.assertFalse(resolver.createTreeIfMissing(new Thing("Device 0", "Device number 0", Collections.singletonMap("reference", "device-0"))));
+        Assert.assertEquals(4 + 5 + 2, resolver.getRequests());
+    }
+
+    @Test
+    public void testObservedPropertyReference() throws ServiceFailureException, URISyntaxException {
+        MetadataResolver resolver = new MetadataResolver(service);
+        URI definition = new URI("http://ucom.org/temperature");
+        ObservedProperty plain = new ObservedProperty("Temperature", definition, "The temperature.");
+        ObservedProperty inside = new ObservedProperty("Inside Temperature", definition, "The temperature inside.");
+        inside.setProperties(Collections.singletonMap("reference", "inside"));
+        resolver.resolveObservedProperty(plain);
+        resolver.resolveObservedProperty(inside);
+        Assert.assertEquals(2, server.count("ObservedProperties"));
+        Assert.assertNotEquals(plain.getId(), inside.getId());
+
+        MetadataResolver second = new MetadataResolver(service);
+        ObservedProperty again = new ObservedProperty("Inside Temperature", definition, "The temperature inside.");
+        again.setProperties(Collections.singletonMap("reference", "inside"));
+        second.resolveObservedProperty(again);
+        Assert.assertEquals(inside.getId(), again.getId());
+        Assert.assertEquals(0, second.getCreated());
+    }
+
+}
@@ -30,6 +30,7 @@ import de.fraunhofer.iosb.ilt.sta.model.ext.EntityList;
 import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
 import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
 import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.TestFixture;
 import de.fraunhofer.iosb.ilt.tests.Utils;
 import java.net.MalformedURLException;
 import java.net.URI;
@@ -59,6 +60,7 @@ public class MultiDataTests {
     private static final Logger LOGGER = LoggerFactory.getLogger(MultiDataTests.class);
     private static String rootUri;
     private static SensorThingsService service;
+    private static TestFixture fixture;
     private static final List<Thing> THINGS = new ArrayList<>();
     private static final List<Location> LOCATIONS = new ArrayList<>();
     private static final List<Sensor> SENSORS = new ArrayList<>();
@@ -72,7 +74,7 @@ public class MultiDataTests {
 
     @BeforeClass
     public static void setUp() {
-        rootUri = Constants.BASE_URL;
+        rootUri = Constants.getBaseUrl();
         rootUri = rootUri.trim();
         if (rootUri.lastIndexOf('/') == rootUri.length() - 1) {
             rootUri = rootUri.substring(0, rootUri.length() - 1);
@@ -80,7 +82,8 @@ public class MultiDataTests {
         URL url;
         try {
             url = new URL(rootUri);
-            service = Constants.createService(url);
+            service = Constants.createService(url, Constants.getSharedConnectionManager());
+            fixture = TestFixture.forClass(service, MultiDataTests.class);
             createEntities();
         } catch (MalformedURLException | URISyntaxException ex) {
             LOGGER.error("Failed to create service uri.", ex);
@@ -94,10 +97,8 @@ public class MultiDataTests {
     @AfterClass
     public static void tearDown() {
         LOGGER.info("tearing down class.");
-        try {
-            Utils.deleteAll(service);
-        } catch (ServiceFailureException ex) {
-            LOGGER.error("Failed to clean database.", ex);
+        if (fixture != null) {
+            fixture.deleteAll();
         }
     }
 
@@ -109,33 +110,33 @@ public class MultiDataTests {
      */
     private static void createEntities() throws ServiceFailureException, URISyntaxException {
         Location location = new Location("Location 1.0", "Location of Thing 1.", "application/vnd.geo+json", new Point(8, 51));
-        service.create(location);
+        fixture.create(location);
         LOCATIONS.add(location);
 
         Thing thing = new Thing("Thing 1", "The first thing.");
         thing.getLocations().add(location.withOnlyId());
-        service.create(thing);
+        fixture.create(thing);
         THINGS.add(thing);
 
         thing = new Thing("Thing 2", "The second thing.");
         thing.getLocations().add(location.withOnlyId());
-        service.create(thing);
+        fixture.create(thing);
         THINGS.add(thing);
 
         Sensor sensor = new Sensor("Sensor 1", "The first sensor.", "text", "Some metadata.");
-        service.create(sensor);
+        fixture.create(sensor);
         SENSORS.add(sensor);
 
         sensor = new Sensor("Sensor 2", "The second sensor.", "text", "Some metadata.");
-        service.create(sensor);
+        fixture.create(sensor);
         SENSORS.add(sensor);
 
         ObservedProperty obsProp = new ObservedProperty("ObservedProperty 1", new URI("http://ucom.org/temperature"), "The temperature of the thing.");
-        service.create(obsProp);
+        fixture.create(obsProp);
         OBSERVED_PROPS.add(obsProp);
 
         obsProp = new ObservedProperty("ObservedProperty 2", new URI("http://ucom.org/humidity"), "The humidity of the thing.");
-        service.create(obsProp);
+        fixture.create(obsProp);
         OBSERVED_PROPS.add(obsProp);
 
         Datastream datastream = new Datastream("Datastream 1", "The temperature of thing 1, sensor 1.", "someType", new UnitOfMeasurement("degree celcius", "°C", "ucum:T"));
@@ -143,14 +144,14 @@ public class MultiDataTests {
         datastream.setThing(THINGS.get(0).withOnlyId());
         datastream.setSensor(SENSORS.get(0).withOnlyId());
         datastream.setObservedProperty(OBSERVED_PROPS.get(0).withOnlyId());
-        service.create(datastream);
+        fixture.create(datastream);
 
         datastream = new Datastream("Datastream 2", "The temperature of thing 2, sensor 2.", "someType", new UnitOfMeasurement("degree celcius", "°C", "ucum:T"));
         DATASTREAMS.add(datastream);
         datastream.setThing(THINGS.get(1).withOnlyId());
         datastream.setSensor(SENSORS.get(1).withOnlyId());
         datastream.setObservedProperty(OBSERVED_PROPS.get(0).withOnlyId());
-        service.create(datastream);
+        fixture.create(datastream);
 
         createObservation(DATASTREAMS.get(0).withOnlyId(), -1);
         createObservation(DATASTREAMS.get(1).withOnlyId(), 0);
@@ -158,13 +159,13 @@ public class MultiDataTests {
 
     private static void createObservation(Datastream ds, double... result) throws ServiceFailureException {
         Observation o = new Observation(result, ds);
-        service.create(o);
+        fixture.create(o);
         OBSERVATIONS.add(o);
     }
 
     private static void createObservation(MultiDatastream ds, double... result) throws ServiceFailureException {
         Observation o = new Observation(result, ds);
-        service.create(o);
+        fixture.create(o);
         OBSERVATIONS.add(o);
     }
 
@@ -200,7 +201,7 @@ public class MultiDataTests {
         observedProperties.add(OBSERVED_PROPS.get(0).withOnlyId());
         md1.setObservedProperties(observedProperties);
 
-        service.create(md1);
+        fixture.create(md1);
         MULTIDATASTREAMS.add(md1);
 
         // Create a MultiDatastream with two different ObservedProperties.
@@ -223,7 +224,7 @@ public class MultiDataTests {
         observedProperties2.add(OBSERVED_PROPS.get(1).withOnlyId());
         md2.setObservedProperties(observedProperties2);
 
-        service.create(md2);
+        fixture.create(md2);
         MULTIDATASTREAMS.add(md2);
 
         // Create a MultiDatastream with two different ObservedProperties, in the opposite order.
@@ -246,7 +247,7 @@ public class MultiDataTests {
         observedProperties3.add(OBSERVED_PROPS.get(0).withOnlyId());
         md3.setObservedProperties(observedProperties3);
 
-        service.create(md3);
+        fixture.create(md3);
         MULTIDATASTREAMS.add(md3);
 
         // Create a MultiDatastream with two of the same ObservedProperties.
@@ -269,7 +270,7 @@ public class MultiDataTests {
         observedProperties4.add(OBSERVED_PROPS.get(0).withOnlyId());
         md4.setObservedProperties(observedProperties4);
 
-        service.create(md4);
+        fixture.create(md4);
         MULTIDATASTREAMS.add(md4);
 
         createObservation(md1, 1);
@@ -367,17 +368,17 @@ public class MultiDataTests {
         }
         {
             // Check if all observations are there.
-            EntityList<Observation> fetchedObservations = service.observations().query().list();
+            EntityList<Observation> fetchedObservations = fixture.owned(service.observations().query().list());
             checkResult("Looking for all observations", Utils.resultContains(fetchedObservations, new ArrayList<>(OBSERVATIONS)));
         }
         {
             // Deleting ObservedProperty 2 should delete MultiDatastream 2 and 3 and their Observations.
             service.delete(OBSERVED_PROPS.get(1));
-            EntityList<MultiDatastream> fetchedMultiDatastreams = service.multiDatastreams().query().list();
+            EntityList<MultiDatastream> fetchedMultiDatastreams = fixture.owned(service.multiDatastreams().query().list());
             checkResult(
                     "Checking if MultiDatastreams are automatically deleted.",
                     Utils.resultContains(fetchedMultiDatastreams, getFromList(MULTIDATASTREAMS, 0, 3)));
-            EntityList<Observation> fetchedObservations = service.observations().query().list();
+            EntityList<Observation> fetchedObservations = fixture.owned(service.observations().query().list());
             checkResult(
                     "Checking if Observations are automatically deleted.",
                     Utils.resultContains(fetchedObservations, getFromList(OBSERVATIONS, 0, 1, 2, 3, 4, 11, 12, 13)));
@@ -385,7 +386,7 @@ public class MultiDataTests {
         {
             // Deleting Sensor 2 should delete MultiDatastream 4
             service.delete(SENSORS.get(1));
-            EntityList<MultiDatastream> fetchedMultiDatastreams = service.multiDatastreams().query().list();
+            EntityList<MultiDatastream> fetchedMultiDatastreams = fixture.owned(service.multiDatastreams().query().list());
             checkResult(
                     "Checking if MultiDatastreams are automatically deleted.",
                     Utils.resultContains(fetchedMultiDatastreams, getFromList(MULTIDATASTREAMS, 0)));
@@ -393,7 +394,7 @@ public class MultiDataTests {
         {
             // Deleting Thing 1 should delete the last MultiDatastream.
             service.delete(THINGS.get(0));
-            EntityList<MultiDatastream> fetchedMultiDatastreams = service.multiDatastreams().query().list();
+            EntityList<MultiDatastream> fetchedMultiDatastreams = fixture.owned(service.multiDatastreams().query().list());
             checkResult(
                     "Checking if MultiDatastreams are automatically deleted.",
                     Utils.resultContains(fetchedMultiDatastreams, new ArrayList<>()));
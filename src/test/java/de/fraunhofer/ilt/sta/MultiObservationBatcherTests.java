@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.MultiDatastream;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
+import de.fraunhofer.iosb.ilt.sta.model.Sensor;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.MultiObservationBatcher;
+import de.fraunhofer.iosb.ilt.tests.StandInServer;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests posting MultiDatastream Observations with primitive results.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class MultiObservationBatcherTests {
+
+    private static final long START = Instant.parse("2019-03-07T00:00:00Z").toEpochMilli();
+
+    private StandInServer server;
+    private SensorThingsService service;
+
+    @Before
+    public void setUp() throws IOException, URISyntaxException {
+        server = new StandInServer().start();
+        service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private MultiDatastream createMultiDatastream(String name) throws ServiceFailureException, URISyntaxException {
+        Thing thing = new Thing("Thing " + name, "The thing of " + name);
+        service.create(thing);
+        Sensor sensor = new Sensor("Sensor " + name, "The sensor of " + name, "text", "Some metadata.");
+        service.create(sensor);
+        ObservedProperty op1 = new ObservedProperty("Luminous Flux", new URI("http://www.qudt.org/qudt/owl/1.0.0/quantity/Instances.html/LuminousFlux"), "observedProperty 1");
+        service.create(op1);
+        ObservedProperty op2 = new ObservedProperty("Temperature", new URI("http://www.qudt.org/qudt/owl/1.0.0/quantity/Instances.html/Tempreture"), "observedProperty 2");
+        service.create(op2);
+        MultiDatastream mds = new MultiDatastream(
+                name,
+                "MultiDatastream " + name,
+                Arrays.asList(
+                        "http://www.opengis.net/def/observationType/OGC-OM/2.0/OM_Measurement",
+                        "http://www.opengis.net/def/observationType/OGC-OM/2.0/OM_Measurement"),
+                Arrays.asList(
+                        new UnitOfMeasurement("Lumen", "lm", "ucum:lm"),
+                        new UnitOfMeasurement("Centigrade", "C", "ucum:Cel")));
+        mds.setThing(thing);
+        mds.setSensor(sensor);
+        mds.getObservedProperties().add(op1);
+        mds.getObservedProperties().add(op2);
+        service.create(mds);
+        return mds;
+    }
+
+    @Test
+    public void testSerialize() {
+        MultiDatastream mds = new MultiDatastream();
+        mds.setId(new IdLong(5L));
+        MultiObservationBatcher batcher = new MultiObservationBatcher(service, server.getBaseUrl(), 100);
+        long[] result = {7, 13};
+        try {
+            batcher.add(mds, START, result);
+            result[0] = 8;
+            result[1] = 14;
+            batcher.add(mds, START + 86_400_000L, result);
+        } catch (ServiceFailureException ex) {
+            Assert.fail(ex.getMessage());
+        }
+        int length = batcher.serialize();
+        Assert.assertEquals(0, batcher.getPending());
+        String json = new String(batcher.getBuffer(), 0, length, StandardCharsets.UTF_8);
+        Assert.assertEquals(
+                "[{\"MultiDatastream\":{\"@iot.id\":5},\"components\":[\"phenomenonTime\",\"result\"],\"dataArray@iot.count\":2,"
+                + "\"dataArray\":[[\"2019-03-07T00:00:00.000Z\",[7,13]],[\"2019-03-08T00:00:00.000Z\",[8,14]]]}]",
+                json);
+        // Nothing pending, an empty document.
+        Assert.assertEquals(2, batcher.serialize());
+    }
+
+    @Test
+    public void testPost() throws ServiceFailureException, URISyntaxException, IOException {
+        MultiDatastream first = createMultiDatastream("first");
+        MultiDatastream second = createMultiDatastream("second");
+        MultiObservationBatcher batcher = new MultiObservationBatcher(service, server.getBaseUrl(), 40);
+        double[] doubles = new double[2];
+        long[] longs = new long[2];
+        for (int i = 0; i < 50; i++) {
+            doubles[0] = i * 0.5;
+            doubles[1] = -i;
+            batcher.add(first, START + i * 60_000L, doubles);
+            longs[0] = i;
+            longs[1] = i * 2L;
+            batcher.add(second, START + i * 60_000L, longs);
+        }
+        batcher.flush();
+        Assert.assertEquals(100, batcher.getSentObservations());
+        Assert.assertEquals(3, batcher.getSentRequests());
+        Assert.assertEquals(100, server.count("Observations"));
+
+        try {
+            batcher.add(first, START, new double[3]);
+            Assert.fail("Expected a width mismatch to be rejected.");
+        } catch (IllegalArgumentException ex) {
+            // Expected.
+        }
+
+        List<Observation> observations = first.observations().query().orderBy("id asc").top(100).list().toList();
+        Assert.assertEquals(50, observations.size());
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode result = mapper.valueToTree(observations.get(3).getResult());
+        Assert.assertEquals(1.5, result.get(0).asDouble(), 0);
+        Assert.assertEquals(-3, result.get(1).asDouble(), 0);
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.ObservationBatcher;
+import de.fraunhofer.iosb.ilt.tests.ObservationColumns;
+import de.fraunhofer.iosb.ilt.tests.ObservationExporter;
+import de.fraunhofer.iosb.ilt.tests.StandInServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.threeten.extra.Interval;
+
+/**
+ * Tests writing and reading the columnar Observation format, and exporting
+ * to it from the stand-in server.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ObservationColumnsTests {
+
+    private static final ZonedDateTime START = ZonedDateTime.parse("2016-01-01T00:00:00Z");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Observation> createObservations(int count) {
+        List<Observation> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Object value;
+            switch (i % 5) {
+                case 0:
+                    value = (long) i - 10;
+                    break;
+                case 1:
+                    value = i * 0.25;
+                    break;
+                case 2:
+                    value = "value " + i;
+                    break;
+                case 3:
+                    value = Collections.singletonMap("nested", i);
+                    break;
+                default:
+                    value = null;
+            }
+            Observation o = new Observation(value, (Datastream) null);
+            o.setId(new IdLong(1000L + i * 3));
+            ZonedDateTime time = START.plusSeconds(i * 60);
+            if (i % 7 == 0) {
+                o.setPhenomenonTimeFrom(Interval.of(time.toInstant(), time.plusSeconds(30).toInstant()));
+            } else {
+                o.setPhenomenonTimeFrom(time);
+            }
+            if (i % 2 == 0) {
+                o.setResultTime(time.plusNanos(1_500_000));
+            }
+            if (i % 3 == 0) {
+                Map<String, Object> parameters = new HashMap<>();
+                parameters.put("index", i);
+                o.setParameters(parameters);
+            }
+            result.add(o);
+        }
+        return result;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<Observation> observations = createObservations(100);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // A small block size, so the blocks and their boundaries are tested.
+        try (ObservationColumns.Writer writer = new ObservationColumns.Writer(out, Collections.singletonMap("test", "roundTrip"), 16, Deflater.BEST_SPEED)) {
+            for (Observation o : observations) {
+                writer.add(o);
+            }
+            Assert.assertEquals(100, writer.getRowCount());
+        }
+
+        try (ObservationColumns.Reader reader = new ObservationColumns.Reader(new ByteArrayInputStream(out.toByteArray()))) {
+            Assert.assertEquals("roundTrip", reader.getMetadata().get("test").asText());
+            for (Observation expected : observations) {
+                Observation actual = reader.next();
+                Assert.assertNotNull(actual);
+                Assert.assertEquals(expected.getId(), actual.getId());
+                Assert.assertEquals(expected.getPhenomenonTime().isInterval(), actual.getPhenomenonTime().isInterval());
+                if (expected.getPhenomenonTime().isInterval()) {
+                    Assert.assertEquals(expected.getPhenomenonTime().getAsInterval(), actual.getPhenomenonTime().getAsInterval());
+                } else {
+                    Assert.assertTrue(expected.getPhenomenonTime().getAsDateTime().isEqual(actual.getPhenomenonTime().getAsDateTime()));
+                }
+                if (expected.getResultTime() == null) {
+                    Assert.assertNull(actual.getResultTime());
+                } else {
+                    // Millisecond precision.
+                    Assert.assertEquals(expected.getResultTime().toInstant().toEpochMilli(), actual.getResultTime().toInstant().toEpochMilli());
+                }
+                Assert.assertEquals(expected.getResult(), actual.getResult());
+                Assert.assertEquals(expected.getParameters(), actual.getParameters());
+            }
+            Assert.assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testExport() throws IOException, URISyntaxException, ServiceFailureException {
+        StandInServer server = new StandInServer().setPageSizes(10, 25).start();
+        try {
+            SensorThingsService service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+            Datastream datastream = SampleEntities.createDatastream(service);
+            ObservationBatcher batcher = new ObservationBatcher(service, 100);
+            for (int i = 0; i < 250; i++) {
+                Observation o = new Observation(i * 0.5, datastream);
+                o.setPhenomenonTimeFrom(START.plusMinutes(i));
+                batcher.add(o);
+            }
+            batcher.flush();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long count = new ObservationExporter(service, server.getBaseUrl())
+                    .setPaging(25, 2)
+                    .setBlocks(100, Deflater.DEFAULT_COMPRESSION)
+                    .export(datastream, out);
+            Assert.assertEquals(250, count);
+
+            try (ObservationColumns.Reader reader = new ObservationColumns.Reader(new ByteArrayInputStream(out.toByteArray()))) {
+                Assert.assertEquals("Datastream 1", reader.getMetadata().get("datastreamName").asText());
+                for (int i = 0; i < 250; i++) {
+                    Observation o = reader.next();
+                    Assert.assertEquals(i * 0.5, ((Number) o.getResult()).doubleValue(), 0);
+                    Assert.assertTrue(START.plusMinutes(i).isEqual(o.getPhenomenonTime().getAsDateTime()));
+                }
+                Assert.assertNull(reader.next());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testAbortedExport() throws IOException, URISyntaxException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObservationColumns.Writer writer = new ObservationColumns.Writer(out, null, 16, Deflater.BEST_SPEED);
+        for (Observation o : createObservations(40)) {
+            writer.add(o);
+        }
+        writer.abort();
+        try (ObservationColumns.Reader reader = new ObservationColumns.Reader(new ByteArrayInputStream(out.toByteArray()))) {
+            while (reader.next() != null) {
+                // Read until the truncation is found.
+            }
+            Assert.fail("Aborted export read as complete.");
+        } catch (IOException ex) {
+            // expected
+        }
+
+        StandInServer server = new StandInServer().start();
+        try {
+            SensorThingsService service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+            Datastream missing = new Datastream("Missing", "Not on the server.", "someType", new UnitOfMeasurement("degree celcius", "°C", "ucum:T"));
+            missing.setId(new IdLong(999L));
+            File file = folder.newFile("export.stacols");
+            try {
+                new ObservationExporter(service, server.getBaseUrl()).export(missing, file);
+                Assert.fail("Export of a missing Datastream did not fail.");
+            } catch (ServiceFailureException ex) {
+                // expected
+            }
+            Assert.assertFalse(new File(file.getPath() + ".part").exists());
+        } finally {
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.DatasetGenerator;
+import de.fraunhofer.iosb.ilt.tests.ObservationColumns;
+import de.fraunhofer.iosb.ilt.tests.ObservationImporter;
+import de.fraunhofer.iosb.ilt.tests.StandInServer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests importing files into the stand-in server.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ObservationImporterTests {
+
+    private static final ZonedDateTime START = ZonedDateTime.parse("2016-01-01T00:00:00Z");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private StandInServer server;
+    private SensorThingsService service;
+
+    @Before
+    public void setUp() throws IOException, URISyntaxException {
+        server = new StandInServer().start();
+        service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testJsonLines() throws IOException, URISyntaxException, ServiceFailureException {
+        File dir = folder.newFolder();
+        DatasetGenerator.forScale(0.2).setObservationsPerDatastream(50).writeToFiles(dir);
+        // A small window, so lines cross window boundaries.
+        ObservationImporter.MappedLines lines = new ObservationImporter.MappedLines(new File(dir, "Observations.jsonl"), 4096);
+        long count = new ObservationImporter(service)
+                .setWorkers(3, 40)
+                .importRows(new ObservationImporter.JsonLinesSource(lines));
+        Assert.assertEquals(200, count);
+        Assert.assertEquals(200, server.count("Observations"));
+        Assert.assertEquals(4, server.count("Datastreams"));
+    }
+
+    @Test
+    public void testCsv() throws IOException, ServiceFailureException {
+        File file = folder.newFile("observations.csv");
+        Files.write(file.toPath(), Arrays.asList(
+                "datastream,phenomenonTime,result,resultTime",
+                "a,2016-01-01T00:00:00Z,1,",
+                "b,2016-01-01T00:01:00Z/2016-01-01T00:02:00Z,2.5,2016-01-01T00:03:00Z",
+                "a,2016-01-01T00:02:00Z,\"text, with \"\"quotes\"\"\",",
+                ""), StandardCharsets.UTF_8);
+        long count = new ObservationImporter(service).setWorkers(2, 10).importRows(ObservationImporter.open(file));
+        Assert.assertEquals(3, count);
+        Assert.assertEquals(3, server.count("Observations"));
+        Assert.assertEquals(2, server.count("Datastreams"));
+        Assert.assertEquals(1, service.observations().query().filter("result eq 'text, with \"quotes\"'").list().size());
+    }
+
+    @Test
+    public void testColumnarReplay() throws IOException, ServiceFailureException {
+        File file = folder.newFile("observations.stacols");
+        try (ObservationColumns.Writer writer = new ObservationColumns.Writer(new FileOutputStream(file), Collections.singletonMap("datastreamId", 7))) {
+            for (int i = 0; i < 10; i++) {
+                Observation o = new Observation(i, (Datastream) null);
+                o.setId(new IdLong(i + 1L));
+                o.setPhenomenonTimeFrom(START.plusMinutes(i));
+                writer.add(o);
+            }
+        }
+        long start = System.currentTimeMillis();
+        // Nine minutes at 600 times real speed take 900ms.
+        long count = new ObservationImporter(service)
+                .setSpeed(600, false)
+                .importRows(ObservationImporter.open(file));
+        long duration = System.currentTimeMillis() - start;
+        Assert.assertEquals(10, count);
+        Assert.assertTrue("Replay too fast: " + duration, duration >= 850);
+        Assert.assertEquals(10, server.count("Observations"));
+        Assert.assertEquals("Datastream 7", service.datastreams().query().list().iterator().next().getName());
+    }
+
+}
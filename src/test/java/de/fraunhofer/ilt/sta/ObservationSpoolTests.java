@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.ObservationSpool;
+import de.fraunhofer.iosb.ilt.tests.StandInServer;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the Observation spool, on its own and draining to the stand-in
+ * server.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ObservationSpoolTests {
+
+    private static final ZonedDateTime START = ZonedDateTime.parse("2016-01-01T00:00:00Z");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Observation createObservation(Datastream datastream, int i) {
+        Observation o = new Observation(i, datastream);
+        o.setPhenomenonTimeFrom(START.plusMinutes(i));
+        return o;
+    }
+
+    @Test
+    public void testReopen() throws IOException, ServiceFailureException {
+        File dir = folder.newFolder();
+        Datastream datastream = new Datastream();
+        datastream.setId(new IdLong(3L));
+        // Small segments, so records are spread over many files.
+        try (ObservationSpool spool = new ObservationSpool(dir, 1024)) {
+            for (int i = 0; i < 100; i++) {
+                spool.append(createObservation(datastream, i));
+            }
+            Assert.assertEquals(100, spool.getDepth());
+        }
+        int segments = dir.list().length;
+        Assert.assertTrue("Expected several segments, got " + segments, segments > 5);
+
+        try (ObservationSpool spool = new ObservationSpool(dir, 1024)) {
+            Assert.assertEquals(100, spool.getDepth());
+            List<Observation> first = spool.peek(40);
+            Assert.assertEquals(40, first.size());
+            for (int i = 0; i < 40; i++) {
+                Assert.assertEquals(i, ((Number) first.get(i).getResult()).intValue());
+                Assert.assertEquals(datastream.getId(), first.get(i).getDatastream().getId());
+            }
+            spool.drain(30);
+            Assert.assertEquals(70, spool.getDepth());
+        }
+        Assert.assertTrue("Drained segments not deleted", dir.list().length < segments);
+
+        try (ObservationSpool spool = new ObservationSpool(dir, 1024)) {
+            Assert.assertEquals(70, spool.getDepth());
+            Assert.assertEquals(30, ((Number) spool.peek(1).get(0).getResult()).intValue());
+        }
+    }
+
+    @Test
+    public void testDrainAfterOutage() throws IOException, URISyntaxException, ServiceFailureException, InterruptedException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        StandInServer server = new StandInServer(port, "/v1.0").start();
+        SensorThingsService service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+        Datastream datastream = SampleEntities.createDatastream(service);
+        server.stop();
+
+        try (ObservationSpool spool = new ObservationSpool(folder.newFolder())) {
+            spool.setBatchSize(7).setRetry(3, 10, 100).startDraining(service);
+            for (int i = 0; i < 20; i++) {
+                spool.append(createObservation(datastream.withOnlyId(), i));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (spool.getFailedAttempts() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue("Drainer did not retry", spool.getFailedAttempts() >= 3);
+            Assert.assertEquals(20, spool.getDepth());
+
+            server.start();
+            Assert.assertTrue("Spool not drained", spool.awaitEmpty(10, TimeUnit.SECONDS));
+            Assert.assertEquals(20, spool.getDrained());
+            Assert.assertEquals(20, server.count("Observations"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRejectedAreQuarantined() throws IOException, URISyntaxException, ServiceFailureException, InterruptedException {
+        StandInServer server = new StandInServer().start();
+        try {
+            SensorThingsService service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+            Datastream datastream = SampleEntities.createDatastream(service);
+            Datastream missing = new Datastream();
+            missing.setId(new IdLong(999L));
+
+            File dir = folder.newFolder();
+            try (ObservationSpool spool = new ObservationSpool(dir)) {
+                try {
+                    spool.append(new Observation(1, (Datastream) null));
+                    Assert.fail("Observation without Datastream was spooled.");
+                } catch (IllegalArgumentException ex) {
+                    // expected
+                }
+                for (int i = 0; i < 10; i++) {
+                    spool.append(createObservation(i % 3 == 0 ? missing : datastream.withOnlyId(), i));
+                }
+                spool.startDraining(service);
+                Assert.assertTrue("Spool not drained", spool.awaitEmpty(10, TimeUnit.SECONDS));
+                Assert.assertEquals(4, spool.getRejected());
+            }
+            Assert.assertEquals(6, server.count("Observations"));
+            List<String> rejected = Files.readAllLines(new File(dir, ObservationSpool.QUARANTINE_FILE).toPath());
+            Assert.assertEquals(4, rejected.size());
+        } finally {
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.sta.jackson.ObjectMapperFactory;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.IdLong;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.tests.CreateEntities;
+import de.fraunhofer.iosb.ilt.tests.ObservationTemplate;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests that the ObservationTemplate writes the same Observations as
+ * CreateEntities builds.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class ObservationTemplateTests {
+
+    private static final ObjectMapper MAPPER = ObjectMapperFactory.get();
+    private static final long START = Instant.parse("1999-12-31T23:58:00Z").toEpochMilli();
+    private static final long DELTA = 60_123L;
+
+    private static Observation buildObservation(Datastream datastream, int i) {
+        Observation o = new Observation(i, datastream);
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("string", CreateEntities.generateString(i, 10));
+        parameters.put("boolean", i % 2 == 0);
+        parameters.put("int", i);
+        parameters.put("intArray", CreateEntities.generateIntArray(i, 5));
+        parameters.put("intIntArray", CreateEntities.generateIntIntArray(i, 3));
+        parameters.put("objArray", CreateEntities.generateObjectList(i, 3));
+        o.setParameters(parameters);
+        o.setPhenomenonTimeFrom(ZonedDateTime.ofInstant(Instant.ofEpochMilli(START + DELTA * i), ZoneOffset.UTC));
+        return o;
+    }
+
+    private static Instant time(JsonNode node) {
+        return ZonedDateTime.parse(node.asText()).toInstant();
+    }
+
+    @Test
+    public void testSingleObservation() throws IOException {
+        Datastream datastream = new Datastream();
+        datastream.setId(new IdLong(42L));
+        ObservationTemplate template = new ObservationTemplate(datastream.getId(), 16);
+        for (int i : new int[]{0, 1, 25, 99, 12345}) {
+            JsonNode expected = MAPPER.valueToTree(buildObservation(datastream, i));
+            JsonNode actual = MAPPER.readTree(template.writeObservation(i, START + DELTA * i).toString());
+            Assert.assertEquals(expected.get("result"), actual.get("result"));
+            Assert.assertEquals(expected.get("parameters"), actual.get("parameters"));
+            Assert.assertEquals(42, actual.get("Datastream").get("@iot.id").asLong());
+            Assert.assertEquals(time(expected.get("phenomenonTime")), time(actual.get("phenomenonTime")));
+        }
+    }
+
+    @Test
+    public void testDataArray() throws IOException {
+        Datastream datastream = new Datastream();
+        datastream.setId(new IdLong(7L));
+        ObservationTemplate template = new ObservationTemplate(datastream.getId());
+        template.startDataArray();
+        for (int i = 0; i < 30; i++) {
+            template.addRow(i, START + DELTA * i);
+        }
+        template.addRow(30, START + DELTA * 30);
+        Assert.assertEquals(31, template.getRows());
+
+        // Finish the document the way post does.
+        JsonNode actual = MAPPER.readTree(template.toString() + "]}]");
+        Assert.assertEquals(7, actual.get(0).get("Datastream").get("@iot.id").asLong());
+        JsonNode rows = actual.get(0).get("dataArray");
+        Assert.assertEquals(31, rows.size());
+        for (int i = 0; i <= 30; i++) {
+            JsonNode expected = MAPPER.valueToTree(buildObservation(datastream, i));
+            JsonNode row = rows.get(i);
+            Assert.assertEquals(time(expected.get("phenomenonTime")), time(row.get(0)));
+            Assert.assertEquals(expected.get("result"), row.get(1));
+            Assert.assertEquals(expected.get("parameters"), row.get(2));
+        }
+    }
+
+}
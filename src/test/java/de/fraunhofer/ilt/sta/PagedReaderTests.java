@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.LongHashSet;
+import de.fraunhofer.iosb.ilt.tests.ObservationBatcher;
+import de.fraunhofer.iosb.ilt.tests.PagedReader;
+import de.fraunhofer.iosb.ilt.tests.StandInServer;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.time.ZonedDateTime;
+import java.util.List;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the PagedReader against the stand-in server.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class PagedReaderTests {
+
+    private static final ZonedDateTime START = ZonedDateTime.parse("2016-01-01T00:00:00Z");
+    private static final int COUNT = 200;
+    private static StandInServer server;
+    private static SensorThingsService service;
+    private static String path;
+    private static long firstId;
+
+    @BeforeClass
+    public static void setUp() throws IOException, URISyntaxException, ServiceFailureException {
+        // Small pages, so there are many of them to prefetch.
+        server = new StandInServer().setPageSizes(10, 25).start();
+        service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+        Datastream datastream = SampleEntities.createDatastream(service);
+        ObservationBatcher batcher = new ObservationBatcher(service, 100);
+        for (int i = 0; i < COUNT; i++) {
+            Observation o = new Observation(i, datastream);
+            o.setPhenomenonTimeFrom(START.plusMinutes(i));
+            batcher.add(o);
+        }
+        batcher.flush();
+        path = "Datastreams(" + datastream.getId().getValue() + ")/Observations";
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        server.stop();
+    }
+
+    private static PagedReader<Observation> createReader() {
+        return new PagedReader<>(service, server.getBaseUrl(), Observation.class).setPageSize(25).setPrefetch(3);
+    }
+
+    @Test
+    public void testIterator() {
+        PagedReader<Observation> reader = createReader().setOrderBy("id asc");
+        long last = -1;
+        int count = 0;
+        try (PagedReader<Observation>.PrefetchingIterator it = reader.iterator(path, null)) {
+            while (it.hasNext()) {
+                Observation o = it.next();
+                long id = (Long) o.getId().getValue();
+                Assert.assertTrue("Out of order: " + id, id > last);
+                Assert.assertEquals(count, ((Number) o.getResult()).intValue());
+                last = id;
+                count++;
+            }
+        }
+        Assert.assertEquals(COUNT, count);
+        Assert.assertEquals(COUNT / 25, reader.getPagesRead());
+
+        try (PagedReader<Observation>.PrefetchingIterator it = reader.iterator(path, "result ge 190")) {
+            count = 0;
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+        }
+        Assert.assertEquals(10, count);
+    }
+
+    @Test
+    public void testPartitioned() throws ServiceFailureException {
+        PagedReader<Observation> reader = createReader();
+        long[] range = reader.findIdRange(path, null);
+        Assert.assertEquals(COUNT - 1, range[1] - range[0]);
+
+        List<String> byId = PagedReader.idPartitions(range[0], range[1], 3);
+        Assert.assertEquals(3, byId.size());
+        checkPartitioned(reader, byId, null, COUNT);
+
+        List<String> byTime = PagedReader.timePartitions("phenomenonTime", START.toInstant(), START.plusMinutes(COUNT).toInstant(), 4);
+        checkPartitioned(reader, byTime, null, COUNT);
+        checkPartitioned(reader, byTime, "result lt 50", 50);
+    }
+
+    private static void checkPartitioned(PagedReader<Observation> reader, List<String> partitions, String filter, int expected) throws ServiceFailureException {
+        LongHashSet seen = new LongHashSet(COUNT);
+        long read = reader.readPartitioned(path, filter, partitions, o -> {
+            synchronized (seen) {
+                Assert.assertTrue("Read twice: " + o.getId(), seen.add((Long) o.getId().getValue()));
+            }
+        });
+        Assert.assertEquals(expected, read);
+        Assert.assertEquals(expected, seen.size());
+    }
+
+    @Test
+    public void testFailure() {
+        try (PagedReader<Observation>.PrefetchingIterator it = createReader().iterator("NoSuchSet", null)) {
+            it.hasNext();
+            Assert.fail("Expected a failure.");
+        } catch (IllegalStateException ex) {
+            Assert.assertTrue(ex.getCause() instanceof ServiceFailureException);
+        }
+    }
+
+}
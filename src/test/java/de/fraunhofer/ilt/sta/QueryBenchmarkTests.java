@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
+import de.fraunhofer.iosb.ilt.sta.model.Sensor;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.DatasetGenerator;
+import de.fraunhofer.iosb.ilt.tests.QueryBenchmark;
+import de.fraunhofer.iosb.ilt.tests.StandInServer;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the QueryBenchmark against a small generated dataset in the stand-in
+ * server.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class QueryBenchmarkTests {
+
+    private static StandInServer server;
+    private static SensorThingsService service;
+    private static DatasetGenerator generator;
+
+    @BeforeClass
+    public static void setUp() throws IOException, URISyntaxException, ServiceFailureException {
+        server = new StandInServer().setPageSizes(10, 25).start();
+        service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+        generator = DatasetGenerator.forScale(0.2).setObservationsPerDatastream(101);
+        List<Sensor> sensors = generator.createSensors();
+        for (Sensor sensor : sensors) {
+            service.create(sensor);
+        }
+        List<ObservedProperty> obsProps = generator.createObservedProperties();
+        for (ObservedProperty obsProp : obsProps) {
+            service.create(obsProp);
+        }
+        for (int t = 0; t < 2; t++) {
+            Thing thing = generator.createThing(t);
+            service.create(thing);
+            for (int d = 0; d < 2; d++) {
+                Datastream datastream = generator.createDatastream(t, d, thing, sensors.get(d), obsProps.get(d));
+                service.create(datastream);
+                generator.createObservations(t, d, datastream, service::create);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testRun() {
+        Map<String, QueryBenchmark.FilterCase> filters = new HashMap<>();
+        for (QueryBenchmark.FilterCase filterCase : QueryBenchmark.createFilters(generator)) {
+            filters.put(filterCase.name, filterCase);
+        }
+        QueryBenchmark benchmark = new QueryBenchmark(service, server.getBaseUrl())
+                .setRuns(1, 3)
+                .setPaging(25, 100);
+
+        // Observations 70 to 79 of each of the 4 Datastreams.
+        QueryBenchmark.Result range = benchmark.run(filters.get("time range phenomenonTime"));
+        Assert.assertNull(range.error);
+        Assert.assertEquals(3, range.firstPage.getTotalCount());
+        Assert.assertEquals(3 * 40, range.rows);
+        Assert.assertEquals(3 * 2, range.pages);
+        Assert.assertTrue(range.getRowsPerSecond() > 0);
+
+        // 280 rows match, but a run stops after 100.
+        QueryBenchmark.Result capped = benchmark.run(filters.get("time phenomenonTime lt instant"));
+        Assert.assertNull(capped.error);
+        Assert.assertEquals(3 * 100, capped.rows);
+
+        // The stand-in does not implement the spatial functions.
+        QueryBenchmark.Result failed = benchmark.run(filters.get("st_within"));
+        Assert.assertNotNull(failed.error);
+        Assert.assertEquals(0, failed.firstPage.getTotalCount());
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
+import de.fraunhofer.iosb.ilt.sta.model.Sensor;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.model.ext.UnitOfMeasurement;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import java.net.URI;
+
+/**
+ * Creates the small set of entities that most tests need to post
+ * Observations.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class SampleEntities {
+
+    private SampleEntities() {
+        // Utility class.
+    }
+
+    /**
+     * Creates Thing 1, Sensor 1, the Temperature ObservedProperty, and
+     * Datastream 1 linking them.
+     *
+     * @param service The service to create the entities in.
+     * @return The created Datastream.
+     * @throws ServiceFailureException If the service fails.
+     */
+    public static Datastream createDatastream(SensorThingsService service) throws ServiceFailureException {
+        Thing thing = new Thing("Thing 1", "The first thing.");
+        service.create(thing);
+        Sensor sensor = new Sensor("Sensor 1", "The first sensor.", "text", "Some metadata.");
+        service.create(sensor);
+        ObservedProperty obsProp = new ObservedProperty("Temperature", URI.create("http://ucom.org/temperature"), "The temperature of the thing.");
+        service.create(obsProp);
+        return createDatastream(service, "Datastream 1", thing, sensor, obsProp);
+    }
+
+    /**
+     * Creates a temperature Datastream for existing entities.
+     *
+     * @param service The service to create the Datastream in.
+     * @param name The name of the Datastream.
+     * @param thing The Thing of the Datastream.
+     * @param sensor The Sensor of the Datastream.
+     * @param obsProp The ObservedProperty of the Datastream.
+     * @return The created Datastream.
+     * @throws ServiceFailureException If the service fails.
+     */
+    public static Datastream createDatastream(SensorThingsService service, String name, Thing thing, Sensor sensor, ObservedProperty obsProp) throws ServiceFailureException {
+        Datastream datastream = new Datastream(name, "The temperature of thing 1, sensor 1.", "someType", new UnitOfMeasurement("degree celcius", "°C", "ucum:T"));
+        datastream.setThing(thing);
+        datastream.setSensor(sensor);
+        datastream.setObservedProperty(obsProp);
+        service.create(datastream);
+        return datastream;
+    }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 Hylke van der Schaaf.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fraunhofer.ilt.sta;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.fraunhofer.iosb.ilt.sta.ServiceFailureException;
+import de.fraunhofer.iosb.ilt.sta.model.Datastream;
+import de.fraunhofer.iosb.ilt.sta.model.Location;
+import de.fraunhofer.iosb.ilt.sta.model.Observation;
+import de.fraunhofer.iosb.ilt.sta.model.ObservedProperty;
+import de.fraunhofer.iosb.ilt.sta.model.Sensor;
+import de.fraunhofer.iosb.ilt.sta.model.Thing;
+import de.fraunhofer.iosb.ilt.sta.model.ext.EntityList;
+import de.fraunhofer.iosb.ilt.sta.service.SensorThingsService;
+import de.fraunhofer.iosb.ilt.tests.Constants;
+import de.fraunhofer.iosb.ilt.tests.ExpectedIds;
+import de.fraunhofer.iosb.ilt.tests.ObservationBatcher;
+import de.fraunhofer.iosb.ilt.tests.StandInServer;
+import de.fraunhofer.iosb.ilt.tests.Utils;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.geojson.Point;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the in-process stand-in server, using the normal client.
+ *
+ * @author Hylke van der Schaaf
+ */
+public class StandInServerTests {
+
+    private static final ZonedDateTime START = ZonedDateTime.parse("2016-01-01T00:00:00Z");
+    private static StandInServer server;
+    private static SensorThingsService service;
+    private static Thing thing;
+    private static Sensor sensor;
+    private static ObservedProperty obsProp;
+
+    @BeforeClass
+    public static void setUp() throws IOException, URISyntaxException, ServiceFailureException {
+        // A small page size, so paging is tested.
+        server = new StandInServer().setPageSizes(10, 25).start();
+        service = Constants.createService(new URL(server.getBaseUrl()), Constants.getSharedConnectionManager());
+
+        thing = new Thing("Thing 1", "The first thing.");
+        thing.getLocations().add(new Location("Location 1.0", "Location of Thing 1.", "application/vnd.geo+json", new Point(8, 51)));
+        service.create(thing);
+        sensor = new Sensor("Sensor 1", "The first sensor.", "text", "Some metadata.");
+        service.create(sensor);
+        obsProp = new ObservedProperty("Temperature", new URI("http://ucom.org/temperature"), "The temperature of the thing.");
+        service.create(obsProp);
+    }
+
+    @AfterClass
+    public static void tearDown() throws ServiceFailureException {
+        try {
+            Utils.deleteAll(service);
+            Assert.assertEquals(0, server.count("Observations"));
+            Assert.assertEquals(0, server.count("Things"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testCreateQueryAndDelete() throws ServiceFailureException {
+        Assert.assertEquals(1, server.count("Locations"));
+        Assert.assertEquals(1, service.things().find(thing.getId()).locations().query().list().size());
+        Datastream datastream = SampleEntities.createDatastream(service, "Datastream 1", thing, sensor, obsProp);
+
+        long first = -1;
+        for (int i = 0; i < 95; i++) {
+            Observation o = new Observation(i, datastream);
+            o.setPhenomenonTimeFrom(START.plusMinutes(i));
+            service.create(o);
+            if (first < 0) {
+                first = (Long) o.getId().getValue();
+            }
+        }
+        long base = first;
+        EntityList<Observation> all = datastream.observations().query().count().list();
+        Assert.assertEquals(95, all.getCount());
+        Assert.assertEquals(10, all.size());
+        Utils.TestResult check = Utils.resultMatches(all, ExpectedIds.range(base, base + 95),
+                o -> ((Number) o.getResult()).longValue() == (Long) o.getId().getValue() - base);
+        Assert.assertTrue(check.message, check.testOk);
+
+        String filter = String.format("phenomenonTime lt %s and result ge 10", START.plusMinutes(20));
+        EntityList<Observation> filtered = datastream.observations().query().filter(filter).list();
+        check = Utils.resultMatches(filtered, ExpectedIds.range(base + 10, base + 20), null);
+        Assert.assertTrue(check.message, check.testOk);
+
+        service.delete(datastream);
+        String ofDatastream = "Datastream/id eq " + datastream.getId().getValue();
+        Assert.assertTrue(service.observations().query().filter(ofDatastream).list().isEmpty());
+    }
+
+    @Test
+    public void testCreateObservations() throws ServiceFailureException {
+        Datastream datastream = SampleEntities.createDatastream(service, "Datastream 2", thing, sensor, obsProp);
+        ObservationBatcher batcher = new ObservationBatcher(service, 20);
+        for (int i = 0; i < 50; i++) {
+            Observation o = new Observation(i, datastream);
+            o.setPhenomenonTimeFrom(START.plusMinutes(i));
+            batcher.add(o);
+        }
+        batcher.flush();
+        Assert.assertEquals(3, batcher.getSentRequests());
+        Assert.assertEquals(50, datastream.observations().query().count().top(1).list().getCount());
+    }
+
+    @Test
+    public void testOrderedObservedProperties() throws IOException, URISyntaxException, ServiceFailureException {
+        ObservedProperty second = new ObservedProperty("Humidity", new URI("http://ucom.org/humidity"), "The humidity of the thing.");
+        service.create(second);
+        long first = (Long) obsProp.getId().getValue();
+        long other = (Long) second.getId().getValue();
+        String body = String.format("{\"name\": \"MultiDatastream 1\", \"Thing\": {\"@iot.id\": %d}, \"Sensor\": {\"@iot.id\": %d},"
+                + " \"ObservedProperties\": [{\"@iot.id\": %d}, {\"@iot.id\": %d}, {\"@iot.id\": %d}]}",
+                thing.getId().getValue(), sensor.getId().getValue(), other, first, first);
+        HttpPost post = new HttpPost(new URI(server.getBaseUrl() + "MultiDatastreams"));
+        post.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+        String location;
+        try (CloseableHttpResponse response = service.execute(post)) {
+            Assert.assertEquals(201, response.getStatusLine().getStatusCode());
+            location = response.getFirstHeader("Location").getValue();
+            EntityUtils.consume(response.getEntity());
+        }
+        HttpGet get = new HttpGet(new URI(location + "/ObservedProperties"));
+        List<Long> ids = new ArrayList<>();
+        try (CloseableHttpResponse response = service.execute(get)) {
+            JsonNode result = new ObjectMapper().readTree(EntityUtils.toString(response.getEntity()));
+            for (JsonNode op : result.get("value")) {
+                ids.add(op.get("@iot.id").asLong());
+            }
+        }
+        Assert.assertEquals(Arrays.asList(other, first, first), ids);
+    }
+
+    @Test
+    public void testInvalidJson() throws IOException, URISyntaxException {
+        HttpPost post = new HttpPost(new URI(server.getBaseUrl() + "Things"));
+        post.setEntity(new StringEntity("{\"name\": ", ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = service.execute(post)) {
+            Assert.assertEquals(400, response.getStatusLine().getStatusCode());
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+}